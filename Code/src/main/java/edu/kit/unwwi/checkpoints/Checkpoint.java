@@ -3,26 +3,42 @@ package edu.kit.unwwi.checkpoints;
 import edu.kit.unwwi.checkpoints.qemu.models.Blockdevice;
 import edu.kit.unwwi.checkpoints.qemu.models.CPU;
 import edu.kit.unwwi.checkpoints.qemu.models.memory.MemorySegment;
+import edu.kit.unwwi.checkpoints.qemu.models.memory.SegmentCapture;
+import edu.kit.unwwi.checkpoints.qemu.models.memory.TLB;
+import edu.kit.unwwi.checkpoints.qemu.models.memory.VirtualMemoryView;
+import edu.kit.unwwi.checkpoints.qemu.models.registers.RegisterFile;
 import edu.kit.unwwi.checkpoints.qmp.Event;
-import edu.kit.unwwi.checkpoints.qmp.EventHandler;
-import edu.kit.unwwi.checkpoints.qmp.QMPInterface;
+import edu.kit.unwwi.checkpoints.qmp.QMPClient;
 import edu.kit.unwwi.checkpoints.qmp.commands.*;
+import edu.kit.unwwi.checkpoints.storage.*;
+import edu.kit.unwwi.elf.ProgramHeader;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /**
  * A class representing a checkpoint of a running QEMU-instance.
@@ -61,6 +77,111 @@ public class Checkpoint {
 	 * The filename of the main JSON file.
 	 */
 	private static final String JSON_FILE = "checkpoint.json";
+	/**
+	 * The directory name of the page store shared by all checkpoints in the same location.
+	 */
+	private static final String PAGES = "pages";
+	/**
+	 * The JSON key for the manifest of a memory segment stored in the page store.
+	 */
+	private static final String PAGE_MANIFEST = "pageManifest";
+	/**
+	 * The JSON key for the size of the pages a memory segment was split into.
+	 */
+	private static final String PAGE_SIZE_KEY = "pageSize";
+	/**
+	 * The file ending used for page manifests.
+	 */
+	private static final String PAGE_FILE_TYPE = ".pages";
+	/**
+	 * The directory name of the chunk store shared by all checkpoints in the same location.
+	 */
+	private static final String CHUNKS = "chunks";
+	/**
+	 * The JSON key for the manifest of a blockdevice image stored in the chunk store.
+	 */
+	private static final String CHUNK_MANIFEST = "chunkManifest";
+	/**
+	 * The file ending used for chunk manifests.
+	 */
+	private static final String CHUNK_FILE_TYPE = ".chunks";
+	/**
+	 * The JSON key for the codec a stored file was compressed with.
+	 */
+	private static final String COMPRESSION = "compression";
+	/**
+	 * The file ending appended to compressed files.
+	 */
+	private static final String COMPRESSED_FILE_TYPE = ".frames";
+	/**
+	 * The JSON key for the location of the hash tree of a stored object.
+	 */
+	private static final String MERKLE_TREE = "merkleTree";
+	/**
+	 * The file ending used for hash trees.
+	 */
+	private static final String MERKLE_FILE_TYPE = ".merkle";
+	/**
+	 * The JSON key for the physical start address of a memory segment.
+	 */
+	private static final String START_ADDRESS = "startPhysicalAddress";
+	/**
+	 * The JSON key for the virtual start address of a memory segment.
+	 */
+	private static final String START_VIRTUAL_ADDRESS = "startVirtualAddress";
+	/**
+	 * The JSON key for the size of a memory segment.
+	 */
+	private static final String SIZE = "size";
+	/**
+	 * The JSON key for whether QEMU walked the page tables while dumping the memory.
+	 */
+	private static final String PAGING = "paging";
+	/**
+	 * The JSON key for the location of the binary snapshot of the CPUs.
+	 */
+	private static final String REGISTER_SNAPSHOT = "registerSnapshot";
+	/**
+	 * The filename of the binary snapshot of the CPUs.
+	 */
+	private static final String REGISTER_FILE = "registers.bin";
+	/**
+	 * How long to wait for QEMU to report it stopped the virtual machine.
+	 */
+	private static final Duration STOP_TIMEOUT = Duration.ofSeconds(30);
+
+	/**
+	 * The size of the pages memory gets split into when stored in the page store.
+	 * 0 if memory segments should be stored as a whole instead.
+	 */
+	private static int PAGE_SIZE = 0;
+	/**
+	 * All page stores which are currently opened, by their directory.
+	 */
+	private static final Map<Path, PageStore> PAGE_STORES = new HashMap<>();
+	/**
+	 * The average size of the chunks blockdevice images get split into when stored in the chunk store.
+	 * 0 if images should be copied as a whole instead.
+	 */
+	private static int CHUNK_SIZE = 0;
+	/**
+	 * All chunk stores which are currently opened, by their directory.
+	 */
+	private static final Map<Path, ChunkStore> CHUNK_STORES = new HashMap<>();
+	/**
+	 * The writer used to compress memory segments and blockdevice images which are stored as a whole.
+	 * Null if they should be stored uncompressed.
+	 */
+	private static FrameWriter COMPRESSOR = null;
+	/**
+	 * Whether the CPUs get stored in a binary snapshot instead of the JSON-file.
+	 */
+	private static boolean BINARY_REGISTERS = false;
+	/**
+	 * Runs the tasks storing memory and blockdevices, each on its own virtual thread.
+	 * Querying QEMU happens asynchronously and doesn't need any thread.
+	 */
+	private static final Executor STORAGE = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("checkpoint-storage-", 0).factory());
 
 	/**
 	 * The location where this checkpoint is stored.
@@ -79,13 +200,21 @@ public class Checkpoint {
 	 */
 	private final JSONObject json;
 	/**
-	 * Stores hashes and paths of all the blockdevices in this checkpoint for later use.
+	 * The CPUs of this checkpoint, including their registers.
+	 */
+	private final CPU[] cpus;
+	/**
+	 * The binary snapshot of the CPUs, or null if they were stored in the JSON.
 	 */
-	private final Map<String, Path> blockHashes = new HashMap<>();
+	private final Path registerSnapshot;
 	/**
-	 * Stores hashes and paths of all the memory segments in this checkpoint for later use.
+	 * Stores hashes and descriptions of all the stored blockdevices in this checkpoint for later use.
 	 */
-	private final Map<String, Path> segmentHashes = new HashMap<>();
+	private final Map<String, JSONObject> blockHashes = new HashMap<>();
+	/**
+	 * Stores hashes and descriptions of all the stored memory segments in this checkpoint for later use.
+	 */
+	private final Map<String, JSONObject> segmentHashes = new HashMap<>();
 
 	/**
 	 * Internal constructor to create a new checkpoint after necessary actions were completed.
@@ -94,23 +223,28 @@ public class Checkpoint {
 	 * @param config    The path to the json-file containing metadata about this checkpoint.
 	 * @param timestamp The timestamp QEMU reported when this checkpoint was created.
 	 * @param json      The json structure contained in the file.
+	 * @param cpus      The CPUs of this checkpoint.
 	 */
-	private Checkpoint(@NotNull Path location, @NotNull Path config, long timestamp, @NotNull JSONObject json) {
+	private Checkpoint(@NotNull Path location, @NotNull Path config, long timestamp, @NotNull JSONObject json, @NotNull CPU @NotNull [] cpus) {
 		this.location = location;
 		this.config = config;
 		this.timestamp = timestamp;
 		this.json = json;
+		this.cpus = cpus;
+		this.registerSnapshot = json.has(REGISTER_SNAPSHOT) ? Path.of(json.getString(REGISTER_SNAPSHOT)) : null;
 		JSONArray blockdevices = json.getJSONArray(BLOCK);
 		for (Object current : blockdevices) {
 			JSONObject device = (JSONObject) current;
 			if (device.has(STORAGE_LOCATION)) {
-				blockHashes.put(device.getString(HASH), Paths.get(device.getString(STORAGE_LOCATION)));
+				blockHashes.put(device.getString(HASH), device);
 			}
 		}
 		JSONArray segments = json.getJSONArray(MEMORY);
 		for (Object current : segments) {
 			JSONObject segment = (JSONObject) current;
-			segmentHashes.put(segment.getString(HASH), Paths.get(segment.getString(STORAGE_LOCATION)));
+			if (segment.has(STORAGE_LOCATION)) {
+				segmentHashes.put(segment.getString(HASH), segment);
+			}
 		}
 	}
 
@@ -124,23 +258,24 @@ public class Checkpoint {
 	 * @throws InterruptedException A thread was interrupted while waiting for data from QEMU.
 	 * @throws ExecutionException   An exception occurred while waiting for data from QEMU.
 	 */
-	public static Checkpoint createCheckpoint(@NotNull Path location, @NotNull QMPInterface qmpInterface) throws IOException, InterruptedException, ExecutionException {
+	public static Checkpoint createCheckpoint(@NotNull Path location, @NotNull QMPClient qmpInterface) throws IOException, InterruptedException, ExecutionException {
 		assert Files.isDirectory(location);
 		long timestamp = stopExecution(qmpInterface);
 
-		// Parse the registers
-		FutureTask<JSONArray> futureCPUs = new FutureTask<>(() -> parseCPU(qmpInterface));
-		Thread.ofPlatform().name(CPU).start(futureCPUs);
+		// Query the registers, which only waits for QEMU and doesn't need a thread
+		CompletableFuture<CPU[]> futureCPUs = parseCPU(qmpInterface);
 
 		// Create the subfolder for storing all checkpoint data
 		Path subfolder = location.resolve(Long.toUnsignedString(timestamp));
 		Files.createDirectory(subfolder);
 
-		// Parse memory and blockdevices. Not yet sure whether virtual Threads are really a good idea here.
-		FutureTask<JSONArray> futureBlocks = new FutureTask<>(() -> parseAndCopyBlock(qmpInterface, subfolder));
-		FutureTask<JSONArray> futureMemory = new FutureTask<>(() -> parseMemory(qmpInterface, subfolder));
-		Thread.ofPlatform().name(MEMORY).start(futureMemory);
-		Thread.ofVirtual().name(BLOCK).start(futureBlocks);
+		// Parse memory and blockdevices. Only storing the data blocks, which happens on virtual threads.
+		PageStore pages = openPageStore(location);
+		ChunkStore chunks = openChunkStore(location);
+		FrameWriter compressor = COMPRESSOR;
+		CompletableFuture<JSONArray> futureBlocks = qmpInterface.executeAsync(new QueryBlock())
+				.thenApplyAsync(query -> unchecked(() -> parseAndCopyBlock(query.getResult(), subfolder, chunks, compressor)), STORAGE);
+		CompletableFuture<MemoryDump> futureMemory = CompletableFuture.supplyAsync(() -> unchecked(() -> parseMemory(qmpInterface, subfolder, pages, compressor)), STORAGE);
 
 		// Create the descriptor file
 		Path descriptorFile = subfolder.resolve(JSON_FILE);
@@ -148,13 +283,144 @@ public class Checkpoint {
 		fullJSON.put(TIMESTAMP, timestamp);
 
 		// Put the results into JSON
-		fullJSON.put(CPU, futureCPUs.get());
-		fullJSON.put(MEMORY, futureMemory.get());
+		CPU[] cpus = futureCPUs.get();
+		MemoryDump memory = futureMemory.get();
+		fullJSON.put(MEMORY, memory.segments());
+		fullJSON.put(PAGING, memory.paging());
 		fullJSON.put(BLOCK, futureBlocks.get());
 
 		qmpInterface.executeCommand(Continue.INSTANCE);
+		storeCPUs(cpus, fullJSON, subfolder, null, null);
 		Files.writeString(descriptorFile, fullJSON.toString());
-		return new Checkpoint(subfolder, descriptorFile, timestamp, fullJSON);
+		return new Checkpoint(subfolder, descriptorFile, timestamp, fullJSON, cpus);
+	}
+
+	/**
+	 * Sets whether the CPUs and their registers get stored in a binary snapshot next to the JSON-file instead of inside it.
+	 * The layout of the registers then only gets stored once for all CPUs,
+	 * and follow-up checkpoints only store the registers which changed since the previous checkpoint.
+	 * The JSON of the CPUs can still be created from the snapshot using exportJson.
+	 * Applies to all checkpoints created afterwards.
+	 *
+	 * @param binary Whether to store the CPUs in a binary snapshot.
+	 */
+	public static void setBinaryRegisters(boolean binary) {
+		BINARY_REGISTERS = binary;
+	}
+
+	/**
+	 * Sets the size of the pages memory gets split into.
+	 * If set, the memory of all following checkpoints gets stored in a page store shared by all checkpoints in the same location,
+	 * so only pages which were never seen before get written.
+	 * Setting it to 0 stores every memory segment as a whole.
+	 *
+	 * @param pageSize The size of the pages in bytes, or 0 to disable the page store.
+	 */
+	public static void setPageSize(int pageSize) {
+		if (pageSize < 0) throw new IllegalArgumentException("Page size must not be negative");
+		PAGE_SIZE = pageSize;
+	}
+
+	/**
+	 * Opens the page store in the given location if memory should be stored page by page.
+	 * Stores stay open, so the index of a store only needs to be read once and never gets opened twice.
+	 *
+	 * @param location The directory containing all checkpoints.
+	 * @return The store to use, or null if segments should be stored as a whole.
+	 * @throws IOException When the store could not be opened.
+	 */
+	@Nullable
+	private static PageStore openPageStore(@NotNull Path location) throws IOException {
+		if (PAGE_SIZE == 0) return null;
+		else return openPageStore(location, PAGE_SIZE);
+	}
+
+	/**
+	 * Opens the page store in the given location with the given page size.
+	 * All page sizes share the same open files, so a store which is in use never gets closed,
+	 * e.g. when the memory of an older checkpoint gets restored while a follow-up is being created.
+	 *
+	 * @param location The directory containing all checkpoints.
+	 * @param pageSize The size of the pages in bytes.
+	 * @return The store.
+	 * @throws IOException When the store could not be opened.
+	 */
+	@NotNull
+	private static synchronized PageStore openPageStore(@NotNull Path location, int pageSize) throws IOException {
+		Path directory = location.resolve(PAGES).toAbsolutePath().normalize();
+		PageStore store = PAGE_STORES.get(directory);
+		if (store == null) {
+			store = new PageStore(directory, pageSize, MemorySegment.getHashAlgorithm());
+			PAGE_STORES.put(directory, store);
+		}
+		return store.withPageSize(pageSize);
+	}
+
+	/**
+	 * Sets the average size of the chunks blockdevice images get split into.
+	 * If set, the images of all following checkpoints get stored in a chunk store shared by all checkpoints in the same location,
+	 * so only chunks which were never seen before get written.
+	 * The boundaries of the chunks depend on the content, so data shifted by insertions still gets deduplicated.
+	 * Setting it to 0 copies every image as a whole.
+	 *
+	 * @param averageSize The average size of the chunks in bytes, must be a power of 2, or 0 to disable the chunk store.
+	 */
+	public static void setChunkSize(int averageSize) {
+		if (averageSize != 0 && !FastCDC.isValidAverageSize(averageSize))
+			throw new IllegalArgumentException("Chunk size must be a power of 2 between 256 and 2^24");
+		CHUNK_SIZE = averageSize;
+	}
+
+	/**
+	 * Sets the codec used to compress memory segments and blockdevice images which are stored as a whole.
+	 * The data gets split into independent frames, which are compressed in parallel,
+	 * so parts of the data can still be read without decompressing everything using a FramedFile.
+	 * Applies to all checkpoints created afterwards.
+	 *
+	 * @param codec The codec to use, or null to store the data uncompressed.
+	 * @param level The compression level handed to the codec.
+	 * @throws IllegalArgumentException When the level is not supported by the codec.
+	 */
+	public static void setCompression(@Nullable Codec codec, int level) throws IllegalArgumentException {
+		if (codec == null) COMPRESSOR = null;
+		else COMPRESSOR = new FrameWriter(codec, level);
+	}
+
+	/**
+	 * Opens the chunk store in the given location if blockdevice images should be stored in chunks.
+	 * Stores stay open, so the index of a store only needs to be read once and never gets opened twice.
+	 * All chunk sizes share the same open files, so a store which is still in use by an earlier checkpoint never gets closed.
+	 *
+	 * @param location The directory containing all checkpoints.
+	 * @return The store to use, or null if images should be copied as a whole.
+	 * @throws IOException When the store could not be opened.
+	 */
+	@Nullable
+	private static synchronized ChunkStore openChunkStore(@NotNull Path location) throws IOException {
+		if (CHUNK_SIZE == 0) return null;
+		Path directory = location.resolve(CHUNKS).toAbsolutePath().normalize();
+		ChunkStore store = CHUNK_STORES.get(directory);
+		if (store == null) {
+			store = new ChunkStore(directory, CHUNK_SIZE, Blockdevice.getHashAlgorithm());
+			CHUNK_STORES.put(directory, store);
+		}
+		return store.withAverageSize(CHUNK_SIZE);
+	}
+
+	/**
+	 * Runs a task inside a future, so checked exceptions complete the future exceptionally.
+	 *
+	 * @param task The task to run.
+	 * @param <T>  The type of the result.
+	 * @return The result of the task.
+	 * @throws CompletionException Wrapping whatever the task threw.
+	 */
+	private static <T> T unchecked(@NotNull Callable<T> task) throws CompletionException {
+		try {
+			return task.call();
+		} catch (Exception e) {
+			throw new CompletionException(e);
+		}
 	}
 
 	/**
@@ -164,89 +430,87 @@ public class Checkpoint {
 	 * @return The timestamp returned by QEMU.
 	 * @throws IOException Something went wrong while communicating with QEMU.
 	 */
-	private static long stopExecution(@NotNull QMPInterface inter) throws IOException {
+	private static long stopExecution(@NotNull QMPClient inter) throws IOException {
 
 		Status status = new Status();
 		inter.executeCommand(status);
 
 		if (status.isRunning()) {
-			Lock stopLock = new ReentrantLock();
-			final LongContainer container = new LongContainer();
-			stopLock.lock();
-			Condition stopCondition = stopLock.newCondition();
-			inter.registerEventHandler(new EventHandler() {
-				@Override
-				public void handleEvent(@NotNull Event event) {
-					stopLock.lock();
-					container.value = event.getTimestamp() * 1000000 + event.getTimestampMicroseconds();
-					stopCondition.signalAll();
-					stopLock.unlock();
-				}
-
-				@Override
-				public @NotNull String eventName() {
-					return "STOP";
-				}
-			});
+			CompletableFuture<Event> stopped = inter.awaitEvent("STOP", _ -> true, STOP_TIMEOUT);
 			inter.executeCommand(Stop.INSTANCE);
-			stopCondition.awaitUninterruptibly();
-			stopLock.unlock();
-			return container.value;
+			try {
+				Event event = stopped.join();
+				return event.getTimestamp() * 1000000 + event.getTimestampMicroseconds();
+			} catch (CompletionException e) {
+				throw new IOException("QEMU did not report stopping", e.getCause());
+			}
 		} else return -1L;
 	}
 
 	/**
-	 * Parses all information about the CPU on the given QMP instance.
+	 * Queries all CPU cores on the given QMP instance and their registers.
 	 *
 	 * @param inter The QMP interface to parse.
-	 * @return All collected information about the CPU.
-	 * @throws IOException An error while reading from QEMU occurred.
+	 * @return A future completing with all collected information about the CPU,
+	 * or exceptionally if an error while reading from QEMU occurred.
 	 */
-	private static JSONArray parseCPU(@NotNull QMPInterface inter) throws IOException {
-		CPU[] cpus = getCPUs(inter);
+	@NotNull
+	private static CompletableFuture<CPU[]> parseCPU(@NotNull QMPClient inter) {
+		return inter.executeAsync(new QueryCPURegisters(inter)).thenCompose(QueryCPURegisters::queryRegisters);
+	}
 
-		// Write CPU information to the JSON file
-		JSONArray cpuArray = new JSONArray();
-		for (CPU cpu : cpus) {
-			cpuArray.put(cpu.toJSON());
-		}
-		return cpuArray;
+	/**
+	 * Stores the CPUs either in the JSON of a checkpoint or in a binary snapshot, whose location then gets added to the JSON.
+	 *
+	 * @param cpus      The CPUs to store.
+	 * @param json      The JSON of the checkpoint.
+	 * @param directory The directory of the checkpoint.
+	 * @param base      The binary snapshot of the previous checkpoint, or null to store all registers.
+	 * @param previous  The CPUs of the previous checkpoint, or null to store all registers.
+	 * @throws IOException When the snapshot could not be written.
+	 */
+	private static void storeCPUs(@NotNull CPU @NotNull [] cpus, @NotNull JSONObject json, @NotNull Path directory, @Nullable Path base, @NotNull CPU @Nullable [] previous) throws IOException {
+		if (BINARY_REGISTERS) {
+			Path snapshot = directory.resolve(REGISTER_FILE);
+			RegisterSnapshot.write(cpus, snapshot, base, previous);
+			json.put(REGISTER_SNAPSHOT, snapshot.toAbsolutePath().toString());
+		} else json.put(CPU, toJSON(cpus));
 	}
 
 	/**
-	 * Queries all existing CPU cores and their registers.
+	 * Converts CPUs to JSON.
 	 *
-	 * @param inter The interface to query on.
-	 * @return The CPU cores that were found.
-	 * @throws IOException An error occurred while communicating with QEMU.
+	 * @param cpus The CPUs to convert.
+	 * @return The JSON array holding all CPUs.
 	 */
-	private static CPU[] getCPUs(@NotNull QMPInterface inter) throws IOException {
-		QueryCPURegisters query = new QueryCPURegisters(inter);
-		inter.executeCommand(query);
-		return query.getResult();
+	@NotNull
+	private static JSONArray toJSON(@NotNull CPU @NotNull [] cpus) {
+		JSONArray cpuArray = new JSONArray();
+		for (CPU cpu : cpus) {
+			cpuArray.put(cpu.toJSON());
+		}
+		return cpuArray;
 	}
 
 	/**
 	 * Parse all blockdevices connected to the running QEMU-instance and return a JSON Array containing their data.
 	 * Also copies the images behind the blockdevices to the checkpoint folder.
 	 *
-	 * @param inter     The interface to query on.
-	 * @param directory The directory where data about the running instance gets stored.
+	 * @param devices    The blockdevices QEMU reported.
+	 * @param directory  The directory where data about the running instance gets stored.
+	 * @param chunks     The chunk store to write the images to, or null to copy them as a whole.
+	 * @param compressor The writer compressing images which are copied as a whole, or null to copy them uncompressed.
 	 * @return The JSON array containing the information about the blockdevices.
-	 * @throws IOException An error occurred while communicating with QEMU.
+	 * @throws IOException An error occurred while storing the images.
 	 */
-	private static JSONArray parseAndCopyBlock(@NotNull QMPInterface inter, @NotNull Path directory) throws IOException {
+	private static JSONArray parseAndCopyBlock(@NotNull Blockdevice[] devices, @NotNull Path directory, @Nullable ChunkStore chunks, @Nullable FrameWriter compressor) throws IOException {
 		JSONArray result = new JSONArray();
 		Path subfolder = directory.resolve(BLOCK);
 		Files.createDirectory(subfolder);
-		Blockdevice[] devices = getBlockdevices(inter);
 		for (Blockdevice device : devices) {
 			JSONObject deviceJSON = device.toJSON();
 			if (device.hasMedia()) {
-				assert device.getPath() != null;
-				Path target = subfolder.resolve(device.getPath().getFileName());
-				deviceJSON.put(STORAGE_LOCATION, target.toAbsolutePath().toString());
-				Files.copy(device.getPath(), target);
+				storeBlock(device, deviceJSON, subfolder, chunks, compressor);
 				result.put(deviceJSON);
 			}
 		}
@@ -254,45 +518,234 @@ public class Checkpoint {
 	}
 
 	/**
-	 * Requests all blockdevices currently registered with QEMU.
+	 * Stores the image of a blockdevice in the given directory and adds its location and hash to the JSON describing it.
+	 * If a chunk store is given, only the manifest gets stored in the directory.
+	 * Unless it is already known, the hash tree gets computed while storing the image and is then stored next to it.
 	 *
-	 * @param inter The interface to query on.
-	 * @return The blockdevices which were found.
+	 * @param device     The device to store.
+	 * @param deviceJSON The JSON describing the device.
+	 * @param subfolder  The directory to store the image in.
+	 * @param chunks     The chunk store to write the chunks to, or null to copy the image as a whole.
+	 * @param compressor The writer compressing the image if it gets copied as a whole, or null to copy it uncompressed.
+	 * @throws IOException When the image could not be stored.
 	 */
-	private static Blockdevice[] getBlockdevices(@NotNull QMPInterface inter) {
-		QueryBlock blocks = new QueryBlock();
-		try {
-			inter.executeCommand(blocks);
-			return blocks.getResult();
-		} catch (IOException e) {
-			throw new UncheckedIOException(e);
+	private static void storeBlock(@NotNull Blockdevice device, @NotNull JSONObject deviceJSON, @NotNull Path subfolder, @Nullable ChunkStore chunks, @Nullable FrameWriter compressor) throws IOException {
+		assert device.getPath() != null;
+		Path name = device.getPath().getFileName();
+		if (chunks != null) {
+			Path manifest = subfolder.resolve(name + CHUNK_FILE_TYPE);
+			device.capture((source, tree) -> chunks.store(source, manifest, tree));
+			deviceJSON.put(CHUNK_MANIFEST, manifest.toAbsolutePath().toString());
+		} else if (compressor != null) {
+			Path target = subfolder.resolve(name + COMPRESSED_FILE_TYPE);
+			deviceJSON.put(STORAGE_LOCATION, target.toAbsolutePath().toString());
+			deviceJSON.put(COMPRESSION, compressor.getCodec().name());
+			device.capture((source, tree) -> compressor.write(source, target, tree));
+		} else {
+			Path target = subfolder.resolve(name);
+			deviceJSON.put(STORAGE_LOCATION, target.toAbsolutePath().toString());
+			device.copyTo(target);
 		}
+		deviceJSON.put(HASH, Base64.getEncoder().encodeToString(device.getHash()));
+		Path tree = subfolder.resolve(name + MERKLE_FILE_TYPE);
+		device.getTree().write(tree);
+		deviceJSON.put(MERKLE_TREE, tree.toAbsolutePath().toString());
 	}
 
 	/**
 	 * Parse the memory contents of the VM and write them to disk.
 	 *
-	 * @param inter     The interface to query on.
-	 * @param directory The directory to store the dumps to.
-	 * @return A JSON array holding information about the queried data.
+	 * @param inter      The interface to query on.
+	 * @param directory  The directory to store the dumps to.
+	 * @param pages      The page store to write the memory to, or null to store segments as a whole.
+	 * @param compressor The writer compressing segments which are stored as a whole, or null to store them uncompressed.
+	 * @return A JSON array holding information about the queried data, and whether the dump used paging.
 	 * @throws IOException          An error occurred while communicating with QEMU.
 	 * @throws InterruptedException This thread was interrupted while waiting for the QEMU-dump to finish.
 	 */
-	private static JSONArray parseMemory(@NotNull QMPInterface inter, @NotNull Path directory) throws IOException, InterruptedException {
+	private static MemoryDump parseMemory(@NotNull QMPClient inter, @NotNull Path directory, @Nullable PageStore pages, @Nullable FrameWriter compressor) throws IOException, InterruptedException {
 		JSONArray segments = new JSONArray();
-		ELFDump elf = new ELFDump(inter);
-		inter.executeCommand(elf);
-		elf.awaitCompletion();
 		Path segmentStorage = directory.resolve(MEMORY);
 		Files.createDirectory(segmentStorage);
-		for (MemorySegment segment : elf.getSegments()) {
+		boolean paging = dumpMemory(inter, segment -> {
 			JSONObject segmentJSON = segment.toJSON();
-			Path segmentLocation = segmentStorage.resolve(Long.toUnsignedString(segment.getStartPhysicalAddress()) + MEMORY_FILE_TYPE);
-			segmentJSON.put(STORAGE_LOCATION, segmentLocation.toAbsolutePath().toString());
-			segment.getInputStream().transferTo(Files.newOutputStream(segmentLocation));
+			storeSegment(segment, segmentJSON, segmentStorage, pages, compressor);
 			segments.put(segmentJSON);
+		}, (header, content) -> segments.put(storeStream(header, content, segmentStorage, pages, compressor, null)));
+		return new MemoryDump(segments, paging);
+	}
+
+	/**
+	 * Dumps the memory of the VM and hands every segment to one of the handlers.
+	 * If streaming is enabled, the contents of the segments get handed to the stream handler while QEMU is still dumping,
+	 * otherwise the segments get handed to the handler after the dump was written to a temporary file and closed afterwards.
+	 *
+	 * @param inter         The interface to query on.
+	 * @param handler       Receives all segments of a dump written to a temporary file.
+	 * @param streamHandler Receives the contents of all segments of a streamed dump.
+	 * @return Whether QEMU walked the page tables for this dump, which may differ from the current setting of ELFDump.
+	 * @throws IOException          An error occurred while communicating with QEMU or while handling a segment.
+	 * @throws InterruptedException This thread was interrupted while waiting for the QEMU-dump to finish.
+	 */
+	private static boolean dumpMemory(@NotNull QMPClient inter, @NotNull SegmentHandler handler, @NotNull ELFDump.SegmentHandler streamHandler) throws IOException, InterruptedException {
+		try (ELFDump elf = ELFDump.isStreaming() ? new ELFDump(inter, streamHandler) : new ELFDump(inter)) {
+			// QEMU answers as soon as the detached dump started, the dump itself is only awaited without deadline
+			inter.executeCommand(elf);
+			elf.awaitCompletion();
+			for (MemorySegment segment : elf.getSegments()) {
+				handler.accept(segment);
+				segment.close();
+			}
+			return elf.usesPaging();
+		}
+	}
+
+	/**
+	 * Stores a memory segment in the given directory and adds its location to the JSON describing it.
+	 * If a page store is given, only the manifest gets stored in the directory.
+	 * The hash tree of the segment always gets stored next to it.
+	 *
+	 * @param segment        The segment to store.
+	 * @param segmentJSON    The JSON describing the segment.
+	 * @param segmentStorage The directory to store the segment in.
+	 * @param pages          The page store to write the pages to, or null to store the segment as a whole.
+	 * @param compressor     The writer compressing the segment if it gets stored as a whole, or null to store it uncompressed.
+	 * @throws IOException When the segment could not be stored.
+	 */
+	private static void storeSegment(@NotNull MemorySegment segment, @NotNull JSONObject segmentJSON, @NotNull Path segmentStorage, @Nullable PageStore pages, @Nullable FrameWriter compressor) throws IOException {
+		String name = Long.toUnsignedString(segment.getStartPhysicalAddress());
+		if (pages != null) {
+			Path manifest = segmentStorage.resolve(name + PAGE_FILE_TYPE);
+			pages.store(segment, manifest);
+			segmentJSON.put(PAGE_MANIFEST, manifest.toAbsolutePath().toString());
+			segmentJSON.put(PAGE_SIZE_KEY, pages.getPageSize());
+		} else if (compressor != null) {
+			Path segmentLocation = segmentStorage.resolve(name + MEMORY_FILE_TYPE + COMPRESSED_FILE_TYPE);
+			segmentJSON.put(STORAGE_LOCATION, segmentLocation.toAbsolutePath().toString());
+			segmentJSON.put(COMPRESSION, compressor.getCodec().name());
+			compressor.write(segment, segmentLocation);
+		} else {
+			Path segmentLocation = segmentStorage.resolve(name + MEMORY_FILE_TYPE);
+			segmentJSON.put(STORAGE_LOCATION, segmentLocation.toAbsolutePath().toString());
+			writeSegment(segment, segmentLocation);
+		}
+		Path tree = segmentStorage.resolve(name + MERKLE_FILE_TYPE);
+		segment.getTree().write(tree);
+		segmentJSON.put(MERKLE_TREE, tree.toAbsolutePath().toString());
+	}
+
+	/**
+	 * Stores a segment while it gets streamed from the dump and describes it in JSON.
+	 * The contents pass through a single pipeline in buffers, which hashes them, finds their zero pages and stores them,
+	 * so the segment is never held in memory as a whole.
+	 * As the hash is only known once the segment was stored, an identical segment which was stored before
+	 * only gets linked afterwards, removing the new copy again.
+	 *
+	 * @param header         The program header of the segment.
+	 * @param content        The contents of the segment.
+	 * @param segmentStorage The directory to store the segment in.
+	 * @param pages          The page store to write the pages to, or null to store the segment as a whole.
+	 * @param compressor     The writer compressing the segment if it gets stored as a whole, or null to store it uncompressed.
+	 * @param stored         The segments stored by a previous checkpoint by their hash, or null to always keep the new copy.
+	 * @return The JSON describing the segment.
+	 * @throws IOException When the segment could not be read or stored.
+	 */
+	@NotNull
+	private static JSONObject storeStream(@NotNull ProgramHeader header, @NotNull ReadableByteChannel content, @NotNull Path segmentStorage, @Nullable PageStore pages, @Nullable FrameWriter compressor, @Nullable Map<String, JSONObject> stored) throws IOException {
+		String name = Long.toUnsignedString(header.physicalAddress());
+		SegmentCapture capture = new SegmentCapture(header.physicalAddress(), header.virtualAddress(), header.fileSize());
+		CapturePipeline pipeline = new CapturePipeline().then(capture);
+		JSONObject location = new JSONObject();
+		Path written = null;
+		if (pages != null) {
+			Path manifest = segmentStorage.resolve(name + PAGE_FILE_TYPE);
+			try (PageStore.Writer writer = pages.open(manifest, header.fileSize())) {
+				pipeline.then(writer).readFrom(content);
+			}
+			location.put(PAGE_MANIFEST, manifest.toAbsolutePath().toString());
+			location.put(PAGE_SIZE_KEY, pages.getPageSize());
+		} else if (compressor != null) {
+			written = segmentStorage.resolve(name + MEMORY_FILE_TYPE + COMPRESSED_FILE_TYPE);
+			try (FrameWriter.Output output = compressor.open(written, header.fileSize())) {
+				pipeline.then(output).readFrom(content);
+			}
+			location.put(STORAGE_LOCATION, written.toAbsolutePath().toString());
+			location.put(COMPRESSION, compressor.getCodec().name());
+		} else {
+			written = segmentStorage.resolve(name + MEMORY_FILE_TYPE);
+			writeStream(pipeline, capture, content, written);
+			location.put(STORAGE_LOCATION, written.toAbsolutePath().toString());
+		}
+		capture.finish();
+		JSONObject segmentJSON = capture.toJSON();
+		String hash = segmentJSON.getString(HASH);
+		if (written != null && stored != null && stored.containsKey(hash)) {
+			Files.delete(written);
+			linkStored(segmentJSON, stored.get(hash));
+			return segmentJSON;
+		}
+		for (String key : location.keySet()) segmentJSON.put(key, location.get(key));
+		Path tree = segmentStorage.resolve(name + MERKLE_FILE_TYPE);
+		capture.getTree().write(tree);
+		segmentJSON.put(MERKLE_TREE, tree.toAbsolutePath().toString());
+		return segmentJSON;
+	}
+
+	/**
+	 * Writes the contents of a streamed segment to a new file, leaving the pages only containing zeroes as holes.
+	 * The zero pages get taken from the capture, which therefore must come before the writing stage in the pipeline.
+	 *
+	 * @param pipeline The pipeline the contents pass through.
+	 * @param capture  The capture of the segment.
+	 * @param content  The contents of the segment.
+	 * @param target   The file to create.
+	 * @throws IOException When the contents could not be read or the file could not be written.
+	 */
+	private static void writeStream(@NotNull CapturePipeline pipeline, @NotNull SegmentCapture capture, @NotNull ReadableByteChannel content, @NotNull Path target) throws IOException {
+		int pageSize = MemorySegment.getZeroPageSize();
+		try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.SPARSE)) {
+			pipeline.then((position, buffer) -> {
+				// Buffers start at page boundaries, so only the last page of the segment may be incomplete
+				for (int offset = 0; offset < buffer.remaining(); offset += pageSize) {
+					if (capture.isZeroPage((position + offset) / pageSize)) continue;
+					ByteBuffer page = buffer.slice(buffer.position() + offset, Math.min(pageSize, buffer.remaining() - offset));
+					while (page.hasRemaining()) out.write(page, position + offset + page.position());
+				}
+			}).readFrom(content);
+			// A file ending in a hole still needs to be extended to its full size
+			long size = capture.getSize();
+			if (size > 0 && out.size() < size) {
+				ByteBuffer last = ByteBuffer.allocate(1);
+				while (last.hasRemaining()) out.write(last, size - 1);
+			}
+		}
+	}
+
+	/**
+	 * Points the JSON of an object to the files of an identical object which has already been stored.
+	 *
+	 * @param json   The JSON describing the new object.
+	 * @param stored The JSON describing the already stored object.
+	 */
+	private static void linkStored(@NotNull JSONObject json, @NotNull JSONObject stored) {
+		json.put(STORAGE_LOCATION, stored.getString(STORAGE_LOCATION));
+		if (stored.has(COMPRESSION)) json.put(COMPRESSION, stored.getString(COMPRESSION));
+		if (stored.has(MERKLE_TREE)) json.put(MERKLE_TREE, stored.getString(MERKLE_TREE));
+	}
+
+	/**
+	 * Writes the contents of a memory segment to a new file.
+	 * If the segment is still backed by the dump, the data gets copied between the files by the kernel.
+	 * Pages only containing zeroes are not written, leaving holes in the file.
+	 *
+	 * @param segment The segment to write.
+	 * @param target  The file to create.
+	 * @throws IOException When the file could not be written.
+	 */
+	private static void writeSegment(@NotNull MemorySegment segment, @NotNull Path target) throws IOException {
+		try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.SPARSE)) {
+			segment.writeTo(out);
 		}
-		return segments;
 	}
 
 	/**
@@ -326,18 +779,182 @@ public class Checkpoint {
 
 	/**
 	 * All data included in this checkpoint as JSON.
+	 * If the CPUs were stored in a binary snapshot, this only contains its location.
 	 *
 	 * @return All data included in this checkpoint as JSON.
+	 * @see #exportJson()
 	 */
 	@NotNull
 	public JSONObject getJson() {
 		return this.json;
 	}
 
+	/**
+	 * All data included in this checkpoint as JSON, including the CPUs even if they were stored in a binary snapshot.
+	 *
+	 * @return All data included in this checkpoint as JSON.
+	 */
+	@NotNull
+	public JSONObject exportJson() {
+		JSONObject result = new JSONObject(json.toMap());
+		if (!result.has(CPU)) result.put(CPU, toJSON(cpus));
+		return result;
+	}
+
+	/**
+	 * Whether QEMU walked the page tables while dumping the memory of this checkpoint.
+	 * If not, the memory segments only hold physical memory and the virtual mappings can be reconstructed using PageTableWalker.
+	 *
+	 * @return Whether the memory was dumped with paging.
+	 */
+	public boolean usesPaging() {
+		return json.optBoolean(PAGING, true);
+	}
+
+	/**
+	 * The CPUs of this checkpoint, including their registers.
+	 *
+	 * @return The CPUs of this checkpoint.
+	 */
+	@NotNull
+	public CPU @NotNull [] getCPUs() {
+		return Arrays.copyOf(cpus, cpus.length);
+	}
+
+	/**
+	 * Finds the parts of the memory which changed compared to another checkpoint.
+	 * Only the stored hash trees get compared, so the memory itself never has to be read
+	 * and subtrees which are identical in both checkpoints get skipped as a whole.
+	 * Segments which don't exist in the other checkpoint are reported as changed completely.
+	 *
+	 * @param other The checkpoint to compare to.
+	 * @return The offsets of all changed leaves in each segment, by the physical start address of the segment.
+	 * @throws IOException              When a hash tree could not be read.
+	 * @throws IllegalArgumentException When the trees of a segment were built with different digests or leaf sizes.
+	 */
+	@NotNull
+	public Map<Long, LongList> diffMemory(@NotNull Checkpoint other) throws IOException, IllegalArgumentException {
+		Map<Long, String> otherTrees = new HashMap<>();
+		for (Object current : other.json.getJSONArray(MEMORY)) {
+			JSONObject segment = (JSONObject) current;
+			if (segment.has(MERKLE_TREE)) otherTrees.put(segment.getLong(START_ADDRESS), segment.getString(MERKLE_TREE));
+		}
+		Map<Long, LongList> result = new HashMap<>();
+		for (Object current : json.getJSONArray(MEMORY)) {
+			JSONObject segment = (JSONObject) current;
+			if (!segment.has(MERKLE_TREE)) continue;
+			long address = segment.getLong(START_ADDRESS);
+			String treeFile = segment.getString(MERKLE_TREE);
+			String otherFile = otherTrees.get(address);
+			LongList changed = new LongArrayList();
+			// Linked segments share their tree file, so there is nothing to compare
+			if (!treeFile.equals(otherFile)) {
+				MerkleTree tree = MerkleTree.read(Path.of(treeFile));
+				if (otherFile == null) {
+					for (int leaf = 0; leaf < tree.getLeafCount(); leaf++) changed.add((long) leaf * tree.getLeafSize());
+				} else {
+					for (int leaf : tree.diff(MerkleTree.read(Path.of(otherFile)))) changed.add((long) leaf * tree.getLeafSize());
+				}
+			}
+			result.put(address, changed);
+		}
+		return result;
+	}
+
+	/**
+	 * Opens the memory of this checkpoint for reading by virtual address.
+	 * Segments stored as a whole get mapped from their files, so reading them only loads the parts which are accessed.
+	 * Compressed segments and segments stored page by page get restored into off-heap memory first.
+	 * The returned view must be closed after use.
+	 *
+	 * @param tlb Translates the virtual addresses, e.g. queried using QueryTLB when this checkpoint was created.
+	 * @return The view of the memory.
+	 * @throws IOException When the memory could not be read.
+	 */
+	@NotNull
+	public VirtualMemoryView openMemory(@NotNull TLB tlb) throws IOException {
+		return collectMemory().build(tlb);
+	}
+
+	/**
+	 * Opens the memory of this checkpoint for reading by the virtual addresses of a CPU.
+	 * If QEMU walked the page tables while dumping, the virtual addresses of the segments get used.
+	 * Otherwise, the mappings get reconstructed by walking the page tables of the CPU in the captured memory.
+	 * The returned view must be closed after use.
+	 *
+	 * @param cpu The CPU whose addresses to use, one of getCPUs().
+	 * @return The view of the memory.
+	 * @throws IOException              When the memory could not be read.
+	 * @throws IllegalArgumentException When the page tables of the CPU can not be walked, e.g. because it is no x86-64 CPU.
+	 */
+	@NotNull
+	public VirtualMemoryView openMemory(@NotNull CPU cpu) throws IOException, IllegalArgumentException {
+		if (usesPaging()) return openMemory(segmentMappings());
+		RegisterFile registers = cpu.getRegisterFile();
+		if (registers == null) throw new IllegalArgumentException("The registers of CPU " + cpu.getId() + " were not captured");
+		VirtualMemoryView.Builder builder = collectMemory();
+		try {
+			return builder.build(registers);
+		} catch (RuntimeException e) {
+			builder.discard();
+			throw e;
+		}
+	}
+
+	/**
+	 * Collects the physical memory of all segments of this checkpoint.
+	 *
+	 * @return The builder holding the memory.
+	 * @throws IOException When the memory could not be read.
+	 */
+	@NotNull
+	private VirtualMemoryView.Builder collectMemory() throws IOException {
+		VirtualMemoryView.Builder builder = new VirtualMemoryView.Builder();
+		try {
+			for (Object current : json.getJSONArray(MEMORY)) {
+				JSONObject segment = (JSONObject) current;
+				long address = segment.getLong(START_ADDRESS);
+				long size = segment.getLong(SIZE);
+				if (segment.has(PAGE_MANIFEST)) {
+					PageStore pages = openPageStore(location.getParent(), segment.getInt(PAGE_SIZE_KEY));
+					try (WritableByteChannel target = builder.allocate(address, size)) {
+						pages.restore(Path.of(segment.getString(PAGE_MANIFEST)), target);
+					}
+				} else if (segment.has(COMPRESSION)) {
+					try (FramedFile file = new FramedFile(Path.of(segment.getString(STORAGE_LOCATION)));
+						 WritableByteChannel target = builder.allocate(address, size)) {
+						file.transferTo(target);
+					}
+				} else builder.map(address, Path.of(segment.getString(STORAGE_LOCATION)), size);
+			}
+		} catch (IOException | RuntimeException e) {
+			builder.discard();
+			throw e;
+		}
+		return builder;
+	}
+
+	/**
+	 * The mappings QEMU found when walking the page tables while dumping, which are stored as the virtual addresses of the segments.
+	 *
+	 * @return The TLB holding the mapping of every segment.
+	 */
+	@NotNull
+	private TLB segmentMappings() {
+		TLB.Builder builder = new TLB.Builder();
+		for (Object current : json.getJSONArray(MEMORY)) {
+			JSONObject segment = (JSONObject) current;
+			builder.add(segment.getLong(START_VIRTUAL_ADDRESS), segment.getLong(START_ADDRESS), segment.getLong(SIZE), "");
+		}
+		return builder.build();
+	}
+
 	/**
 	 * Create a new Checkpoint that is a successor to this checkpoint.
 	 * It checks whether memory regions or blockdevices are still identical to preserve space,
 	 * however for this it only tracks the full file, so if a single bit changes, the complete file gets saved again.
+	 * If a page size was set, memory gets deduplicated page by page instead.
+	 * If the CPUs get stored in binary snapshots, only the registers which changed get stored.
 	 *
 	 * @param qmpInterface The interface to query the current VM on.
 	 * @return The newly created checkpoint.
@@ -345,21 +962,22 @@ public class Checkpoint {
 	 * @throws InterruptedException If this thread got interrupted for some reason.
 	 * @throws ExecutionException   When an exception occurred in another thread affecting this thread.
 	 */
-	public Checkpoint createFollowUp(@NotNull QMPInterface qmpInterface) throws IOException, InterruptedException, ExecutionException {
+	public Checkpoint createFollowUp(@NotNull QMPClient qmpInterface) throws IOException, InterruptedException, ExecutionException {
 		long timestamp = stopExecution(qmpInterface);
 
-		// Parse the registers
-		FutureTask<JSONArray> futureCPUs = new FutureTask<>(() -> parseCPU(qmpInterface));
-		Thread.ofPlatform().name(CPU).start(futureCPUs);
+		// Query the registers, which only waits for QEMU and doesn't need a thread
+		CompletableFuture<CPU[]> futureCPUs = parseCPU(qmpInterface);
 
 		Path subfolder = location.getParent().resolve(Long.toUnsignedString(timestamp));
 		Files.createDirectory(subfolder);
 
-		// Parse memory and blockdevices. Not yet sure whether virtual Threads are really a good idea here.
-		FutureTask<JSONArray> futureBlocks = new FutureTask<>(() -> parseBlocksCheckDuplicates(qmpInterface, subfolder));
-		FutureTask<JSONArray> futureMemory = new FutureTask<>(() -> parseMemoryCheckDuplicates(qmpInterface, subfolder));
-		Thread.ofPlatform().name(MEMORY).start(futureMemory);
-		Thread.ofVirtual().name(BLOCK).start(futureBlocks);
+		// Parse memory and blockdevices. Only storing the data blocks, which happens on virtual threads.
+		PageStore pages = openPageStore(location.getParent());
+		ChunkStore chunks = openChunkStore(location.getParent());
+		FrameWriter compressor = COMPRESSOR;
+		CompletableFuture<JSONArray> futureBlocks = qmpInterface.executeAsync(new QueryBlock())
+				.thenApplyAsync(query -> unchecked(() -> parseBlocksCheckDuplicates(query.getResult(), subfolder, chunks, compressor)), STORAGE);
+		CompletableFuture<MemoryDump> futureMemory = CompletableFuture.supplyAsync(() -> unchecked(() -> parseMemoryCheckDuplicates(qmpInterface, subfolder, pages, compressor)), STORAGE);
 
 		// Create the descriptor file
 		Path descriptorFile = subfolder.resolve(JSON_FILE);
@@ -367,40 +985,45 @@ public class Checkpoint {
 		fullJSON.put(TIMESTAMP, timestamp);
 
 		// Put the results into JSON
-		fullJSON.put(CPU, futureCPUs.get());
-		fullJSON.put(MEMORY, futureMemory.get());
+		CPU[] cpus = futureCPUs.get();
+		MemoryDump memory = futureMemory.get();
+		fullJSON.put(MEMORY, memory.segments());
+		fullJSON.put(PAGING, memory.paging());
 		fullJSON.put(BLOCK, futureBlocks.get());
 
 		qmpInterface.executeCommand(Continue.INSTANCE);
+		storeCPUs(cpus, fullJSON, subfolder, registerSnapshot, this.cpus);
 		Files.writeString(descriptorFile, fullJSON.toString());
-		return new Checkpoint(subfolder, descriptorFile, timestamp, fullJSON);
+		return new Checkpoint(subfolder, descriptorFile, timestamp, fullJSON, cpus);
 	}
 
 	/**
 	 * Parses block devices and checks whether those have changed. If no changes were detected,
 	 * the reference points to the already existing file.
+	 * When a chunk store is used, it takes care of the deduplication instead.
 	 *
-	 * @param inter     The interface to query QEMU on.
-	 * @param directory Where this checkpoint gets stored.
+	 * @param devices    The blockdevices QEMU reported.
+	 * @param directory  Where this checkpoint gets stored.
+	 * @param chunks     The chunk store to write the images to, or null to copy them as a whole.
+	 * @param compressor The writer compressing images which are copied as a whole, or null to copy them uncompressed.
 	 * @return A JSON Array containing the metadata about the block devices.
-	 * @throws IOException When something went wrong during IO or while communicating with QEMU.
+	 * @throws IOException When something went wrong during IO.
 	 */
 	@NotNull
-	private JSONArray parseBlocksCheckDuplicates(@NotNull QMPInterface inter, @NotNull Path directory) throws IOException {
+	private JSONArray parseBlocksCheckDuplicates(@NotNull Blockdevice[] devices, @NotNull Path directory, @Nullable ChunkStore chunks, @Nullable FrameWriter compressor) throws IOException {
 		JSONArray result = new JSONArray();
 		Path subfolder = directory.resolve(BLOCK);
 		Files.createDirectory(subfolder);
-		Blockdevice[] devices = getBlockdevices(inter);
 		for (Blockdevice device : devices) {
 			JSONObject deviceJSON = device.toJSON();
 			if (device.hasMedia()) {
-				assert device.getPath() != null;
-				if (blockHashes.containsKey(deviceJSON.getString(HASH))) {
-					deviceJSON.put(STORAGE_LOCATION, blockHashes.get(deviceJSON.getString(HASH)).toAbsolutePath().toString());
+				// Deciding whether the image changed requires its hash before storing it
+				String hash = chunks == null ? Base64.getEncoder().encodeToString(device.getHash()) : null;
+				if (hash != null && blockHashes.containsKey(hash)) {
+					deviceJSON.put(HASH, hash);
+					linkStored(deviceJSON, blockHashes.get(hash));
 				} else {
-					Path target = subfolder.resolve(device.getPath().getFileName());
-					deviceJSON.put(STORAGE_LOCATION, target.toAbsolutePath().toString());
-					Files.copy(device.getPath(), target);
+					storeBlock(device, deviceJSON, subfolder, chunks, compressor);
 				}
 				result.put(deviceJSON);
 			}
@@ -411,41 +1034,54 @@ public class Checkpoint {
 	/**
 	 * Parses memory and checks whether its segments have changed. If no changes are detected,
 	 * the reference points to the already existing files.
+	 * When a page store is used, it takes care of the deduplication instead.
 	 *
-	 * @param inter     The interface to query QEMU on.
-	 * @param directory Where this checkpoint gets stored.
-	 * @return A JSON Array containing the metadata about the memory segments.
+	 * @param inter      The interface to query QEMU on.
+	 * @param directory  Where this checkpoint gets stored.
+	 * @param pages      The page store to write the memory to, or null to store segments as a whole.
+	 * @param compressor The writer compressing segments which are stored as a whole, or null to store them uncompressed.
+	 * @return A JSON Array containing the metadata about the memory segments, and whether the dump used paging.
 	 * @throws IOException When something went wrong during IO or while communicating with QEMU.
 	 */
 	@NotNull
-	private JSONArray parseMemoryCheckDuplicates(@NotNull QMPInterface inter, @NotNull Path directory) throws IOException, InterruptedException {
+	private MemoryDump parseMemoryCheckDuplicates(@NotNull QMPClient inter, @NotNull Path directory, @Nullable PageStore pages, @Nullable FrameWriter compressor) throws IOException, InterruptedException {
 		JSONArray segments = new JSONArray();
-		ELFDump elf = new ELFDump(inter);
-		inter.executeCommand(elf);
-		elf.awaitCompletion();
 		Path segmentStorage = directory.resolve(MEMORY);
 		Files.createDirectory(segmentStorage);
-		for (MemorySegment segment : elf.getSegments()) {
+		boolean paging = dumpMemory(inter, segment -> {
 			JSONObject segmentJSON = segment.toJSON();
-			if (segmentHashes.containsKey(segmentJSON.getString(HASH))) {
-				segmentJSON.put(STORAGE_LOCATION, segmentHashes.get(segmentJSON.getString(HASH)).toAbsolutePath().toString());
+			if (pages == null && segmentHashes.containsKey(segmentJSON.getString(HASH))) {
+				linkStored(segmentJSON, segmentHashes.get(segmentJSON.getString(HASH)));
 			} else {
-				Path segmentLocation = segmentStorage.resolve(Long.toUnsignedString(segment.getStartPhysicalAddress()) + MEMORY_FILE_TYPE);
-				segmentJSON.put(STORAGE_LOCATION, segmentLocation.toAbsolutePath().toString());
-				segment.getInputStream().transferTo(Files.newOutputStream(segmentLocation));
+				storeSegment(segment, segmentJSON, segmentStorage, pages, compressor);
 			}
 			segments.put(segmentJSON);
-		}
-		return segments;
+		}, (header, content) -> segments.put(storeStream(header, content, segmentStorage, pages, compressor, segmentHashes)));
+		return new MemoryDump(segments, paging);
 	}
 
 	/**
-	 * Simply stores a long that can be updated at will.
+	 * The stored memory of a checkpoint.
+	 *
+	 * @param segments The JSON describing the stored segments.
+	 * @param paging   Whether QEMU walked the page tables while dumping.
 	 */
-	private static final class LongContainer {
+	private record MemoryDump(@NotNull JSONArray segments, boolean paging) {
+	}
+
+	/**
+	 * Receives the segments of a dump which was written to a temporary file.
+	 */
+	@FunctionalInterface
+	private interface SegmentHandler {
+
 		/**
-		 * The stored long.
+		 * Handles a single segment, e.g. by storing it.
+		 * The segment gets closed afterwards, so it must not be used after this call.
+		 *
+		 * @param segment The segment which was read from the dump.
+		 * @throws IOException When the segment could not be handled.
 		 */
-		public long value;
+		void accept(@NotNull MemorySegment segment) throws IOException;
 	}
 }
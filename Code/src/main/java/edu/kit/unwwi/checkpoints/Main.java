@@ -1,7 +1,10 @@
 package edu.kit.unwwi.checkpoints;
 
+import edu.kit.unwwi.checkpoints.qmp.QMPClient;
 import edu.kit.unwwi.checkpoints.qmp.QMPInterface;
+import edu.kit.unwwi.checkpoints.qmp.QMPPool;
 import edu.kit.unwwi.checkpoints.qmp.commands.ELFDump;
+import edu.kit.unwwi.checkpoints.storage.Codec;
 import org.apache.commons.cli.*;
 import org.jetbrains.annotations.Nullable;
 
@@ -10,6 +13,9 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Locale;
 import java.util.concurrent.ExecutionException;
 
 /**
@@ -38,8 +44,28 @@ public final class Main {
 		if (cmd == null) return;
 
 		Path target = Paths.get(cmd.getOptionValue("d"));
-		QMPInterface inter = new QMPInterface(cmd.getOptionValue("h"), Integer.parseInt(cmd.getOptionValue("p")));
+		QMPClient inter;
+		if (cmd.hasOption("q")) QMPInterface.setTimeout(Duration.ofMillis(Long.parseLong(cmd.getOptionValue("q"))));
+		// Several monitors of the same instance get used as a pool
+		if (cmd.hasOption("u")) {
+			Path[] sockets = Arrays.stream(cmd.getOptionValue("u").split(",")).map(Paths::get).toArray(Path[]::new);
+			inter = sockets.length == 1 ? new QMPInterface(sockets[0]) : new QMPPool(sockets);
+		} else {
+			int[] ports = Arrays.stream(cmd.getOptionValue("p").split(",")).mapToInt(Integer::parseInt).toArray();
+			inter = ports.length == 1 ? new QMPInterface(cmd.getOptionValue("h"), ports[0]) : new QMPPool(cmd.getOptionValue("h"), ports);
+		}
 		if (cmd.hasOption("t")) ELFDump.setTemp(Paths.get(cmd.getOptionValue("t")));
+		if (cmd.hasOption("o")) ELFDump.setMapping(false);
+		if (cmd.hasOption("f")) ELFDump.setStreaming(true);
+		if (cmd.hasOption("n")) ELFDump.setPaging(false);
+		if (cmd.hasOption("s")) Checkpoint.setPageSize(Integer.parseInt(cmd.getOptionValue("s")));
+		if (cmd.hasOption("c")) Checkpoint.setChunkSize(Integer.parseInt(cmd.getOptionValue("c")));
+		if (cmd.hasOption("r")) Checkpoint.setBinaryRegisters(true);
+		if (cmd.hasOption("z")) {
+			String[] compression = cmd.getOptionValue("z").split(":", 2);
+			Codec codec = Codec.valueOf(compression[0].toUpperCase(Locale.ROOT));
+			Checkpoint.setCompression(codec, compression.length > 1 ? Integer.parseInt(compression[1]) : codec.getDefaultLevel());
+		}
 
 		if (!cmd.hasOption("a") && !cmd.hasOption("m")) singleCheckpoint(inter, target);
 		else if (cmd.hasOption("a") && !cmd.hasOption("m")) {
@@ -63,12 +89,21 @@ public final class Main {
 		Options options = new Options();
 
 		options.addOption("t", "temp", true, "Specify a temp directory in case the System-default does not work. E.g. Linux /tmp is often too small to be used.");
+		options.addOption("o", "offHeap", false, "Copy memory to off-heap memory instead of mapping it from the temporary dump. Frees the temporary file earlier, but requires as much memory as the guest has.");
+		options.addOption("f", "fifo", false, "Stream the memory dump through a named pipe and store the segments while QEMU is still dumping, so no temporary file is needed. Requires QEMU to run on the same machine.");
+		options.addOption("n", "noPaging", false, "Dump only the physical memory without letting QEMU walk the page tables, which is far faster and keeps the VM paused for a shorter time. The virtual mappings of x86-64 guests can be reconstructed afterwards from the registers.");
 		options.addOption("d", "directory", true, "Specifies the directory where checkpoints should be stored.");
 		options.addOption("m", "manual", false, "Manual mode, meaning checkpoints are only created when explicitly requested on the command line.");
 		options.addOption("a", "automatic", true, "Specifies automatic mode, in which checkpoints get created every amount of milliseconds specified here.");
+		options.addOption("s", "pageSize", true, "Store memory page by page in a store shared by all checkpoints, so only pages that were never seen before get written. Specifies the page size in bytes, e.g. 4096.");
+		options.addOption("c", "chunkSize", true, "Store blockdevice images in content-defined chunks in a store shared by all checkpoints, so only chunks that were never seen before get written. Specifies the average chunk size in bytes as a power of 2, e.g. 65536.");
+		options.addOption("z", "compression", true, "Compress memory segments and blockdevice images which are stored as a whole in independent frames. Specifies the codec and optionally the level, e.g. deflate:6.");
+		options.addOption("r", "binaryRegisters", false, "Store the CPUs and their registers in a binary file next to the JSON-file instead of inside it. Follow-up checkpoints then only store the registers which changed.");
 		options.addOption("i", "ignoreDuplicates", false, "If this flag is set, the program will not check for duplicates, but create a completely new checkpoint everytime.");
 		options.addOption("h", "host", true, "The hostname of the targeted QEMU-instance.");
-		options.addOption("p", "port", true, "The port of the targeted QEMU-instance.");
+		options.addOption("p", "port", true, "The port of the targeted QEMU-instance. Several ports of monitors of the same instance may be given separated by commas, so commands get spread over several connections. QEMU still executes the commands one at a time, so this only saves the wait between a command being answered and the next one being sent.");
+		options.addOption("q", "qmpTimeout", true, "How many milliseconds QEMU may take to answer a command before the checkpoint fails. Defaults to 60 seconds. Does not limit the memory dump, which runs detached.");
+		options.addOption("u", "unixSocket", true, "The Unix domain socket of the targeted QEMU-instance, used instead of host and port. Several sockets may be given separated by commas, like ports, with the same limits: QEMU still executes the commands one at a time.");
 		options.addOption("h", "help", false, "Print this message.");
 
 		CommandLine result = new DefaultParser().parse(options, args);
@@ -87,7 +122,7 @@ public final class Main {
 	 * @throws ExecutionException   Something went wrong in another thread, usually happens when an error occurs while trying to access the target or temporary directory.
 	 * @throws InterruptedException Shouldn't occur.
 	 */
-	private static void singleCheckpoint(QMPInterface inter, Path target) throws IOException, ExecutionException, InterruptedException {
+	private static void singleCheckpoint(QMPClient inter, Path target) throws IOException, ExecutionException, InterruptedException {
 		Checkpoint.createCheckpoint(target, inter);
 	}
 
@@ -100,7 +135,7 @@ public final class Main {
 	 * @param pause          How long to wait between checkpoints.
 	 * @param keepDuplicates Whether new checkpoints should check for duplicates.
 	 */
-	private static void automaticMode(QMPInterface inter, Path target, long pause, boolean keepDuplicates) {
+	private static void automaticMode(QMPClient inter, Path target, long pause, boolean keepDuplicates) {
 		Thread.ofPlatform().name("Runner").start(() -> {
 			try {
 				if (keepDuplicates) {
@@ -142,7 +177,7 @@ public final class Main {
 	 * @throws ExecutionException   Something happened in another thread. Often a weird OutOfBoundsException.
 	 * @throws InterruptedException Should not occur.
 	 */
-	private static void manualMode(QMPInterface inter, Path target, boolean keepDuplicates) throws IOException, ExecutionException, InterruptedException {
+	private static void manualMode(QMPClient inter, Path target, boolean keepDuplicates) throws IOException, ExecutionException, InterruptedException {
 		BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
 		Checkpoint checkpoint = null;
 		do {
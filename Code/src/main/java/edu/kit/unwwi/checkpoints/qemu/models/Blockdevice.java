@@ -1,7 +1,8 @@
 package edu.kit.unwwi.checkpoints.qemu.models;
 
 import edu.kit.unwwi.JSONable;
-import org.apache.commons.codec.digest.DigestUtils;
+import edu.kit.unwwi.checkpoints.storage.CapturePipeline;
+import edu.kit.unwwi.checkpoints.storage.MerkleTree;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.json.JSONObject;
@@ -9,10 +10,11 @@ import org.json.JSONObject;
 import java.io.IOException;
 import java.io.Serializable;
 import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.MessageDigest;
-import java.util.Arrays;
+import java.nio.file.StandardOpenOption;
 import java.util.Base64;
 
 /**
@@ -53,9 +55,11 @@ public class Blockdevice implements Serializable, JSONable {
 	 */
 	private final boolean hasMedia;
 	/**
-	 * The hash of the media in this device.
+	 * The hash tree over the media in this device, whose root serves as its hash.
+	 * Null until the media was captured or the hash was requested,
+	 * so the hash can be computed in the same pass as storing the media.
 	 */
-	private byte[] hash;
+	private MerkleTree tree;
 
 	/**
 	 * Create a new Blockdevice.
@@ -68,16 +72,6 @@ public class Blockdevice implements Serializable, JSONable {
 	 */
 	public Blockdevice(@NotNull String device, @NotNull String qdev, @Nullable Path path, long virtualSize, long actualSize) {
 		this.hasMedia = path != null && Files.exists(path);
-		if (this.hasMedia) {
-			try {
-				MessageDigest digest = DigestUtils.getDigest(DIGEST);
-				this.hash = DigestUtils.digest(digest, Files.newInputStream(path));
-			} catch (IOException e) {
-				throw new UncheckedIOException(e);
-
-			}
-		}
-
 		this.device = device;
 		this.qdev = qdev;
 		this.path = path;
@@ -94,6 +88,16 @@ public class Blockdevice implements Serializable, JSONable {
 		DIGEST = digest;
 	}
 
+	/**
+	 * Returns the hash algorithm currently used for comparing images.
+	 *
+	 * @return The name of the digest.
+	 */
+	@NotNull
+	public static String getHashAlgorithm() {
+		return DIGEST;
+	}
+
 	/**
 	 * Returns the name of this blockdevice.
 	 *
@@ -159,12 +163,77 @@ public class Blockdevice implements Serializable, JSONable {
 	 * All instances of Blockdevice share the same algorithm,
 	 * as one probably wants to compare the files later on.
 	 *
+	 * If the medium was not captured yet, it gets read to compute the hash.
+	 *
 	 * @return The hash of the associated medium
 	 * @throws IllegalStateException Gets thrown if this device doesn't have any medium associated with it, and therefore doesn't have a hash.
+	 * @throws UncheckedIOException  When the medium could not be read.
+	 */
+	public byte[] getHash() throws IllegalStateException, UncheckedIOException {
+		if (!this.hasMedia) throw new IllegalStateException("This blockdevice has no media, and therefore no associated hash");
+		return getTree().getRoot();
+	}
+
+	/**
+	 * Returns the hash tree over the medium associated with this blockdevice,
+	 * which allows finding the parts that changed compared to another medium.
+	 * If the medium was not captured yet, it gets mapped and all leaves get hashed in parallel.
+	 *
+	 * @return The hash tree of the associated medium.
+	 * @throws IllegalStateException Gets thrown if this device doesn't have any medium associated with it.
+	 * @throws UncheckedIOException  When the medium could not be read.
+	 */
+	@NotNull
+	public MerkleTree getTree() throws IllegalStateException, UncheckedIOException {
+		if (!this.hasMedia) throw new IllegalStateException("This blockdevice has no media, and therefore no associated hash");
+		if (this.tree == null) {
+			try (FileChannel in = FileChannel.open(this.path, StandardOpenOption.READ); Arena arena = Arena.ofShared()) {
+				this.tree = MerkleTree.of(DIGEST, MerkleTree.DEFAULT_LEAF_SIZE, in.map(FileChannel.MapMode.READ_ONLY, 0, in.size(), arena));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		return this.tree;
+	}
+
+	/**
+	 * Hands the medium of this device to a task storing it.
+	 * If the hash of the medium is not known yet, the task also has to hand the medium to a builder of its hash tree,
+	 * so the medium only gets read once.
+	 *
+	 * @param task The task storing the medium.
+	 * @throws IOException           When the task failed.
+	 * @throws IllegalStateException When this device has no medium.
+	 */
+	public void capture(@NotNull CaptureTask task) throws IOException, IllegalStateException {
+		if (!this.hasMedia) throw new IllegalStateException("This blockdevice has no media to capture");
+		MerkleTree.Builder builder = this.tree == null ? new MerkleTree.Builder(DIGEST, MerkleTree.DEFAULT_LEAF_SIZE, Files.size(this.path)) : null;
+		task.capture(this.path, builder);
+		if (builder != null) this.tree = builder.build();
+	}
+
+	/**
+	 * Copies the medium of this device to a new file.
+	 * If the hash is not known yet, it gets computed while copying.
+	 * Otherwise, the copy is left to the operating system.
+	 *
+	 * @param target The file to create.
+	 * @throws IOException           When copying failed.
+	 * @throws IllegalStateException When this device has no medium.
 	 */
-	public byte[] getHash() throws IllegalStateException {
-		if (this.hasMedia) return Arrays.copyOf(this.hash, this.hash.length);
-		else throw new IllegalStateException("This blockdevice has no media, and therefore no associated hash");
+	public void copyTo(@NotNull Path target) throws IOException, IllegalStateException {
+		capture((source, builder) -> {
+			if (builder == null) {
+				Files.copy(source, target);
+				return;
+			}
+			try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+			     FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+				new CapturePipeline().then((position, buffer) -> builder.update(buffer)).then((position, buffer) -> {
+					while (buffer.hasRemaining()) out.write(buffer);
+				}).readFrom(in);
+			}
+		});
 	}
 
 	@Override
@@ -182,10 +251,25 @@ public class Blockdevice implements Serializable, JSONable {
 		result.put("actualSize", this.actualSize);
 		result.put("hasMedia", this.hasMedia);
 		if (hasMedia) {
-			String hash = Base64.getEncoder().encodeToString(this.hash);
 			result.put("originalPath", this.path.toAbsolutePath().toString());
-			result.put("hash", hash);
+			if (this.tree != null) result.put("hash", Base64.getEncoder().encodeToString(this.tree.getRoot()));
 		}
 		return result;
 	}
+
+	/**
+	 * A task storing the medium of a blockdevice.
+	 */
+	@FunctionalInterface
+	public interface CaptureTask {
+
+		/**
+		 * Stores the medium.
+		 *
+		 * @param source  The file backing the device.
+		 * @param builder The builder all read data has to be handed to, or null if the hash is already known.
+		 * @throws IOException When storing the medium failed.
+		 */
+		void capture(@NotNull Path source, @Nullable MerkleTree.Builder builder) throws IOException;
+	}
 }
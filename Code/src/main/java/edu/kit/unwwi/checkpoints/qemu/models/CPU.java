@@ -2,6 +2,7 @@ package edu.kit.unwwi.checkpoints.qemu.models;
 
 import edu.kit.unwwi.JSONable;
 import edu.kit.unwwi.checkpoints.qemu.models.registers.Register;
+import edu.kit.unwwi.checkpoints.qemu.models.registers.RegisterFile;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.json.JSONArray;
@@ -28,9 +29,9 @@ public class CPU implements Serializable, JSONable {
 	 */
 	private final String architecture;
 	/**
-	 * The registers of this CPU.
+	 * The registers of this CPU, or null if they were not queried.
 	 */
-	private final Register[] registers;
+	private final RegisterFile registers;
 	/**
 	 * Any flags set for this CPU
 	 */
@@ -46,11 +47,24 @@ public class CPU implements Serializable, JSONable {
 	 * @param flags        The flags set in this CPU
 	 */
 	public CPU(int id, String architecture, int hostId, @NotNull Register @Nullable [] registers, char @Nullable [] flags) {
+		this(id, architecture, hostId, registers == null ? null : RegisterFile.of(registers), flags);
+	}
+
+	/**
+	 * Create a new CPU from the given data.
+	 * As a RegisterFile never changes, it gets used without copying it.
+	 *
+	 * @param id           The ID of this CPU (core).
+	 * @param architecture The architecture of this CPU.
+	 * @param hostId       The thread of the host emulating this CPU.
+	 * @param registers    The registers present in this CPU.
+	 * @param flags        The flags set in this CPU
+	 */
+	public CPU(int id, String architecture, int hostId, @Nullable RegisterFile registers, char @Nullable [] flags) {
 		this.id = id;
 		this.architecture = architecture;
 		this.hostId = hostId;
-		if (registers == null) this.registers = new Register[0];
-		else this.registers = Arrays.copyOf(registers, registers.length);
+		this.registers = registers;
 		if (flags == null) this.flags = null;
 		else this.flags = Arrays.copyOf(flags, flags.length);
 	}
@@ -58,7 +72,7 @@ public class CPU implements Serializable, JSONable {
 	@Override
 	public @NotNull JSONObject toJSON() {
 		JSONArray registers = new JSONArray();
-		for (Register current : this.registers) {
+		for (Register current : getRegisters()) {
 			registers.put(current.toJSON());
 		}
 		JSONObject result = new JSONObject();
@@ -106,7 +120,25 @@ public class CPU implements Serializable, JSONable {
 	 */
 	public @NotNull Register @NotNull [] getRegisters() {
 		if (this.registers == null) return new Register[0];
-		else return Arrays.copyOf(this.registers, this.registers.length);
+		else return this.registers.toArray();
+	}
+
+	/**
+	 * The registers of this CPU, all stored in a single RegisterFile.
+	 *
+	 * @return The registers of this CPU, or null if they were not queried.
+	 */
+	public @Nullable RegisterFile getRegisterFile() {
+		return this.registers;
+	}
+
+	/**
+	 * Whether flags were queried for this CPU.
+	 *
+	 * @return Whether this CPU has flags.
+	 */
+	public boolean hasFlags() {
+		return this.flags != null;
 	}
 
 	/**
@@ -20,11 +20,11 @@ public class MemoryMapping implements Comparable<MemoryMapping>, Serializable {
 	/**
 	 * The starting address of the physical frame of this mapping.
 	 */
-	private final long physicalAddress;
+	final long physicalAddress;
 	/**
 	 * How large this page/frame is.
 	 */
-	private final long size;
+	final long size;
 	/**
 	 * The flags set for this region.
 	 */
@@ -1,31 +1,61 @@
 package edu.kit.unwwi.checkpoints.qemu.models.memory;
 
 import edu.kit.unwwi.JSONable;
-import edu.kit.unwwi.collections.big.BigByteArrayInputStream;
+import edu.kit.unwwi.checkpoints.storage.CapturePipeline;
+import edu.kit.unwwi.checkpoints.storage.MerkleTree;
+import edu.kit.unwwi.collections.big.ForeignMemoryInputStream;
 import it.unimi.dsi.fastutil.BigArrays;
 import it.unimi.dsi.fastutil.bytes.ByteBigArrays;
-import org.apache.commons.codec.digest.DigestUtils;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.json.JSONObject;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.Serializable;
-import java.io.UncheckedIOException;
-import java.security.MessageDigest;
-import java.util.Arrays;
+import java.io.*;
+import java.lang.foreign.Arena;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.Base64;
+import java.util.BitSet;
+import java.util.stream.IntStream;
 
 /**
- * A class representing a memory segment read from an ELF dump
+ * A class representing a memory segment read from an ELF dump.
+ * The contents are not stored on the heap, but either in off-heap memory or mapped directly from the dump.
+ * This memory gets freed when the segment gets closed, after which its contents may no longer be accessed.
+ * When mapped from a file, writing the segment copies directly between the files.
+ * Pages only containing zeroes are detected when the segment gets created and are left as holes when writing the segment to a file.
  */
-public class MemorySegment implements Serializable, JSONable {
+public class MemorySegment implements Serializable, JSONable, AutoCloseable {
 
 	/**
 	 * The digest to use when computing the hash of a memory segment.
 	 * SHA256 by default, can be changed using static method.
 	 */
 	private static String DIGEST = "SHA256";
+	/**
+	 * The size of the buffer used when reading a segment from a stream.
+	 * Segments may be far larger than any array, so they get copied in pieces.
+	 */
+	private static final int BUFFER_SIZE = 1 << 20;
+	/**
+	 * The granularity in which pages only containing zeroes are detected.
+	 */
+	private static final int ZERO_PAGE_SIZE = 4096;
+	/**
+	 * A page of zeroes the contents get compared against.
+	 */
+	private static final java.lang.foreign.MemorySegment ZEROES = Arena.global().allocate(ZERO_PAGE_SIZE);
+	/**
+	 * The size of the leaves of the hash tree.
+	 * Covers as many pages as a word has bits, so the zero pages of each leaf can be stored by the task hashing it.
+	 */
+	static final int LEAF_SIZE = Long.SIZE * ZERO_PAGE_SIZE;
+	/**
+	 * How many leaves get read from a stream before they get hashed in parallel.
+	 */
+	private static final int CAPTURE_BATCH = 64;
 
 	/**
 	 * The start address of the contents in this segment in physical  memory.
@@ -39,15 +69,33 @@ public class MemorySegment implements Serializable, JSONable {
 	 * The size of this segment.
 	 */
 	private final long size;
+	/**
+	 * The hash tree over the contents of this segment.
+	 * Its root serves as the hash of this segment.
+	 */
+	private final MerkleTree tree;
+	/**
+	 * Which pages of this segment only contain zeroes.
+	 */
+	private final BitSet zeroPages;
+	/**
+	 * The arena owning the contents of this segment.
+	 * Closing it frees the off-heap memory or removes the mapping.
+	 */
+	private transient Arena arena;
 	/**
 	 * The actual content of this segment.
-	 * 2D-array because ints.
 	 */
-	private final byte[][] content;
+	private transient java.lang.foreign.MemorySegment content;
 	/**
-	 * The hash of this segment.
+	 * The file the contents of this segment were mapped from, if any.
+	 * Allows copying the contents between files without them passing through this process.
 	 */
-	private final byte[] hash;
+	private transient FileChannel source;
+	/**
+	 * The offset of the contents inside the source file.
+	 */
+	private transient long sourceOffset;
 
 	/**
 	 * Create a new memory segment from an already existing 2D array.
@@ -55,23 +103,30 @@ public class MemorySegment implements Serializable, JSONable {
 	 * @param startPhysicalAddress The start address of the segment in physical memory.
 	 * @param startVirtualAddress  The start address of the segment in virtual memory.
 	 * @param size                 The size of this segment.
-	 * @param content              The contents to copy to this segment.
+	 * @param content              The contents to copy to this segment, as a big array like returned by getContent().
 	 */
 	public MemorySegment(long startPhysicalAddress, long startVirtualAddress, long size, byte[][] content) {
 		this.startPhysicalAddress = startPhysicalAddress;
 		this.startVirtualAddress = startVirtualAddress;
 		this.size = size;
-		this.content = BigArrays.copy(content, 0, size);
+		this.arena = Arena.ofShared();
+		MerkleTree.Builder builder = new MerkleTree.Builder(DIGEST, LEAF_SIZE, size);
+		long[] zeroWords = new long[MerkleTree.leafCount(size, LEAF_SIZE)];
 		try {
-			MessageDigest digest = DigestUtils.getDigest(DIGEST);
-			this.hash = DigestUtils.digest(digest, this.getInputStream());
-		} catch (IOException e) {
-			throw new UncheckedIOException(e);
+			this.content = arena.allocate(size);
+			captureLeaves(builder, zeroWords, 0, zeroWords.length, (offset, length) ->
+					java.lang.foreign.MemorySegment.copy(content[BigArrays.segment(offset)], BigArrays.displacement(offset), this.content, ValueLayout.JAVA_BYTE, offset, length));
+		} catch (RuntimeException e) {
+			arena.close();
+			throw e;
 		}
+		this.tree = builder.build();
+		this.zeroPages = BitSet.valueOf(zeroWords);
 	}
 
 	/**
 	 * Create a new segment which reads data from an Input Stream.
+	 * The data gets copied to off-heap memory.
 	 *
 	 * @param startPhysicalAddress The start address of this segment in actual memory.
 	 * @param startVirtualAddress  The start address of the segment in virtual memory.
@@ -83,23 +138,107 @@ public class MemorySegment implements Serializable, JSONable {
 		this.startPhysicalAddress = startPhysicalAddress;
 		this.startVirtualAddress = startVirtualAddress;
 		this.size = size;
-		this.content = ByteBigArrays.newBigArray(size);
-		int bufferSize = Integer.MAX_VALUE;
-		if (size < bufferSize) bufferSize = (int) size;
-		byte[] buffer = new byte[bufferSize];
-		int read;
-		long position = 0;
-		do {
-			read = input.read(buffer);
-			BigArrays.copyToBig(buffer, 0, this.content, position, read);
-			position = position + read;
-		} while (read != -1 && position < size);
+		this.arena = Arena.ofShared();
+		MerkleTree.Builder builder = new MerkleTree.Builder(DIGEST, LEAF_SIZE, size);
+		long[] zeroWords = new long[MerkleTree.leafCount(size, LEAF_SIZE)];
+		int[] captured = {0};
 		try {
-			MessageDigest DIGEST = DigestUtils.getSha256Digest();
-			this.hash = DigestUtils.digest(DIGEST, this.getInputStream());
-		} catch (IOException e) {
-			throw new UncheckedIOException(e);
+			this.content = arena.allocate(size);
+			// Complete leaves get hashed in batches while they are still cached
+			new CapturePipeline().then((position, buffer) -> {
+				int complete = (int) ((position + buffer.remaining()) / LEAF_SIZE);
+				if (complete - captured[0] >= CAPTURE_BATCH) {
+					captureLeaves(builder, zeroWords, captured[0], complete, null);
+					captured[0] = complete;
+				}
+			}).readFrom(Channels.newChannel(input), this.content);
+		} catch (IOException | RuntimeException e) {
+			arena.close();
+			throw e;
 		}
+		captureLeaves(builder, zeroWords, captured[0], zeroWords.length, null);
+		this.tree = builder.build();
+		this.zeroPages = BitSet.valueOf(zeroWords);
+	}
+
+	/**
+	 * Create a new segment from memory that has already been mapped or allocated.
+	 * The segment takes ownership of the arena and closes it when itself gets closed,
+	 * so the arena should not be shared with anything else.
+	 *
+	 * @param startPhysicalAddress The start address of this segment in actual memory.
+	 * @param startVirtualAddress  The start address of the segment in virtual memory.
+	 * @param content              The contents of this segment.
+	 * @param arena                The arena owning the contents.
+	 */
+	public MemorySegment(long startPhysicalAddress, long startVirtualAddress, @NotNull java.lang.foreign.MemorySegment content, @NotNull Arena arena) {
+		this(startPhysicalAddress, startVirtualAddress, content, arena, null, 0L);
+	}
+
+	/**
+	 * Create a new segment from memory that has been mapped from a file.
+	 * Knowing the file allows writing the segment using range copies between files, which never touch the contents in this process.
+	 * The channel must stay open as long as this segment gets written, it does not get closed by the segment.
+	 *
+	 * @param startPhysicalAddress The start address of this segment in actual memory.
+	 * @param startVirtualAddress  The start address of the segment in virtual memory.
+	 * @param content              The contents of this segment.
+	 * @param arena                The arena owning the contents.
+	 * @param source               The file the contents were mapped from.
+	 * @param sourceOffset         Where the contents are located in the file.
+	 */
+	public MemorySegment(long startPhysicalAddress, long startVirtualAddress, @NotNull java.lang.foreign.MemorySegment content, @NotNull Arena arena, @Nullable FileChannel source, long sourceOffset) {
+		this.startPhysicalAddress = startPhysicalAddress;
+		this.startVirtualAddress = startVirtualAddress;
+		this.size = content.byteSize();
+		this.arena = arena;
+		this.content = content;
+		this.source = source;
+		this.sourceOffset = sourceOffset;
+		MerkleTree.Builder builder = new MerkleTree.Builder(DIGEST, LEAF_SIZE, size);
+		long[] zeroWords = new long[MerkleTree.leafCount(size, LEAF_SIZE)];
+		captureLeaves(builder, zeroWords, 0, zeroWords.length, null);
+		this.tree = builder.build();
+		this.zeroPages = BitSet.valueOf(zeroWords);
+	}
+
+	/**
+	 * Hashes the given leaves of this segment and finds their zero pages.
+	 * Each leaf gets handled by a single task, so its contents only have to be loaded once,
+	 * and the leaves get distributed over all cores.
+	 *
+	 * @param builder   The builder collecting the hashes of the leaves.
+	 * @param zeroWords The bitmap of zero pages, which has one word per leaf.
+	 * @param from      The first leaf to capture.
+	 * @param to        The leaf after the last one to capture.
+	 * @param fill      Fills the contents of a leaf before it gets captured, or null if the contents are already present.
+	 */
+	private void captureLeaves(@NotNull MerkleTree.Builder builder, long @NotNull [] zeroWords, int from, int to, @Nullable LeafFiller fill) {
+		IntStream.range(from, to).parallel().forEach(leaf -> {
+			long offset = (long) leaf * LEAF_SIZE;
+			int length = (int) Math.min(LEAF_SIZE, size - offset);
+			if (fill != null) fill.fill(offset, length);
+			java.lang.foreign.MemorySegment data = content.asSlice(offset, length);
+			builder.hashLeaf(leaf, data.asByteBuffer());
+			zeroWords[leaf] = scanZeroPages(data);
+		});
+	}
+
+	/**
+	 * Finds all pages of a leaf which only contain zeroes.
+	 * The comparison uses the vectorized mismatch of the JDK.
+	 *
+	 * @param data The contents of the leaf.
+	 * @return A word where each set bit marks a page only containing zeroes.
+	 */
+	static long scanZeroPages(@NotNull java.lang.foreign.MemorySegment data) {
+		long bits = 0;
+		for (int page = 0; (long) page * ZERO_PAGE_SIZE < data.byteSize(); page++) {
+			long offset = (long) page * ZERO_PAGE_SIZE;
+			long length = Math.min(ZERO_PAGE_SIZE, data.byteSize() - offset);
+			if (data.asSlice(offset, length).mismatch(ZEROES.asSlice(0, length)) == -1) bits |= 1L << page;
+		}
+		return bits;
 	}
 
 	/**
@@ -111,6 +250,25 @@ public class MemorySegment implements Serializable, JSONable {
 		DIGEST = digest;
 	}
 
+	/**
+	 * Returns the hash algorithm currently used for segment comparison.
+	 *
+	 * @return The name of the digest.
+	 */
+	@NotNull
+	public static String getHashAlgorithm() {
+		return DIGEST;
+	}
+
+	/**
+	 * Returns the size of the pages which get checked for only containing zeroes.
+	 *
+	 * @return The size of a zero page.
+	 */
+	public static int getZeroPageSize() {
+		return ZERO_PAGE_SIZE;
+	}
+
 	/**
 	 * Returns the address where this segment starts in physical memory.
 	 * If this is the same as the virtual address,
@@ -142,6 +300,25 @@ public class MemorySegment implements Serializable, JSONable {
 		return size;
 	}
 
+	/**
+	 * Checks whether a page of this segment only contains zeroes.
+	 *
+	 * @param page The number of the page, using the size returned by getZeroPageSize().
+	 * @return Whether the page only contains zeroes.
+	 */
+	public boolean isZeroPage(long page) {
+		return page < Integer.MAX_VALUE && zeroPages.get((int) page);
+	}
+
+	/**
+	 * How many pages of this segment only contain zeroes.
+	 *
+	 * @return The number of zero pages.
+	 */
+	public int getZeroPageCount() {
+		return zeroPages.cardinality();
+	}
+
 	/**
 	 * Returns a copy of the contents of this segment.
 	 * Changes to the returned array are isolated from this object.
@@ -149,7 +326,13 @@ public class MemorySegment implements Serializable, JSONable {
 	 * @return The contents of this array as a 2D-array.
 	 */
 	public byte @NotNull [] @NotNull [] getContent() {
-		return BigArrays.copy(this.content);
+		byte[][] result = ByteBigArrays.newBigArray(size);
+		long position = 0;
+		for (byte[] current : result) {
+			java.lang.foreign.MemorySegment.copy(this.content, ValueLayout.JAVA_BYTE, position, current, 0, current.length);
+			position += current.length;
+		}
+		return result;
 	}
 
 	/**
@@ -159,7 +342,18 @@ public class MemorySegment implements Serializable, JSONable {
 	 * @return The byte at given position.
 	 */
 	public byte getByAddress(long address) {
-		return BigArrays.get(this.content, address - this.startPhysicalAddress);
+		return this.content.get(ValueLayout.JAVA_BYTE, address - this.startPhysicalAddress);
+	}
+
+	/**
+	 * Returns the contents of this segment without copying them.
+	 * They are only valid until this segment gets closed.
+	 *
+	 * @return The contents.
+	 */
+	@NotNull
+	java.lang.foreign.MemorySegment getContents() {
+		return this.content;
 	}
 
 	/**
@@ -169,16 +363,41 @@ public class MemorySegment implements Serializable, JSONable {
 	 * @return The byte from the given offset.
 	 */
 	public byte getByOffset(long offset) {
-		return BigArrays.get(this.content, offset);
+		return this.content.get(ValueLayout.JAVA_BYTE, offset);
+	}
+
+	/**
+	 * Returns a read-only view of a part of this segment.
+	 * The contents do not get copied, so the view is only valid until this segment gets closed.
+	 *
+	 * @param offset The offset in this segment where the view starts.
+	 * @param length The length of the view.
+	 * @return A buffer containing the requested part of this segment.
+	 */
+	@NotNull
+	public ByteBuffer slice(long offset, int length) {
+		return this.content.asSlice(offset, length).asByteBuffer().asReadOnlyBuffer();
 	}
 
 	/**
 	 * Return the hash of this memory region according to the provided digest.
+	 * This is the root of the hash tree over this segment.
 	 *
 	 * @return The hash of this segment.
 	 */
 	public byte[] getHash() {
-		return Arrays.copyOf(hash, hash.length);
+		return tree.getRoot();
+	}
+
+	/**
+	 * Returns the hash tree over the contents of this segment,
+	 * which allows finding the parts that changed compared to another segment.
+	 *
+	 * @return The hash tree of this segment.
+	 */
+	@NotNull
+	public MerkleTree getTree() {
+		return tree;
 	}
 
 	/**
@@ -189,17 +408,142 @@ public class MemorySegment implements Serializable, JSONable {
 	 */
 	@NotNull
 	public InputStream getInputStream() {
-		return new BigByteArrayInputStream(this.content);
+		return new ForeignMemoryInputStream(this.content);
+	}
+
+	/**
+	 * Writes the contents of this segment to the current position of the given channel.
+	 * If the segment was mapped from a file, the data gets copied by the kernel from that file,
+	 * e.g. using copy_file_range on Linux. Otherwise, it gets written directly from the off-heap memory.
+	 * In neither case the contents get copied onto the heap.
+	 * Pages only containing zeroes get skipped, so they become holes if the target is a sparse file.
+	 * Therefore, the target must not contain any data in the written range yet.
+	 *
+	 * @param target The channel to write to.
+	 * @throws IOException When writing failed.
+	 */
+	public void writeTo(@NotNull FileChannel target) throws IOException {
+		long start = target.position();
+		int pages = (int) Math.ceilDiv(size, ZERO_PAGE_SIZE);
+		for (int page = zeroPages.nextClearBit(0); page < pages; ) {
+			int end = zeroPages.nextSetBit(page);
+			if (end == -1 || end > pages) end = pages;
+			long from = (long) page * ZERO_PAGE_SIZE;
+			writeRange(target, start, from, Math.min((long) end * ZERO_PAGE_SIZE, size));
+			page = zeroPages.nextClearBit(end);
+		}
+		// A file ending in a hole still needs to be extended to its full size
+		if (size > 0 && target.size() < start + size) {
+			ByteBuffer last = ByteBuffer.allocate(1);
+			while (last.hasRemaining()) target.write(last, start + size - 1);
+		}
+		target.position(start + size);
+	}
+
+	/**
+	 * Writes a part of the contents of this segment to the channel.
+	 *
+	 * @param target The channel to write to.
+	 * @param start  The position in the channel where the segment starts.
+	 * @param from   The offset in this segment where the part starts.
+	 * @param to     The offset in this segment where the part ends.
+	 * @throws IOException When writing failed.
+	 */
+	private void writeRange(@NotNull FileChannel target, long start, long from, long to) throws IOException {
+		long position = from;
+		if (source != null) {
+			target.position(start + position);
+			long transferred;
+			do {
+				transferred = source.transferTo(sourceOffset + position, to - position, target);
+				position += transferred;
+			} while (position < to && transferred > 0);
+		}
+		// Also used as fallback in case the source did not transfer everything
+		while (position < to) {
+			position += target.write(content.asSlice(position, Math.min(BUFFER_SIZE, to - position)).asByteBuffer(), start + position);
+		}
+	}
+
+	/**
+	 * Frees the memory holding the contents of this segment.
+	 * Afterwards, only the metadata like addresses and hash may be accessed,
+	 * trying to read the contents results in an IllegalStateException.
+	 */
+	@Override
+	public void close() {
+		if (arena != null) arena.close();
+		arena = null;
+	}
+
+	/**
+	 * Writes the contents of this segment after the metadata, as the memory itself is not serializable.
+	 *
+	 * @param out The stream to write to.
+	 * @throws IOException When writing failed.
+	 */
+	@Serial
+	private void writeObject(@NotNull ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		getInputStream().transferTo(out);
+	}
+
+	/**
+	 * Reads the contents of this segment into off-heap memory.
+	 *
+	 * @param in The stream to read from.
+	 * @throws IOException            When reading failed.
+	 * @throws ClassNotFoundException When the stream contains unknown classes.
+	 */
+	@Serial
+	private void readObject(@NotNull ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		this.arena = Arena.ofShared();
+		this.content = arena.allocate(size);
+		new CapturePipeline().readFrom(Channels.newChannel(in), content);
 	}
 
 	@Override
 	public @NotNull JSONObject toJSON() {
-		String hash = Base64.getEncoder().encodeToString(this.hash);
+		return toJSON(startPhysicalAddress, startVirtualAddress, size, tree, zeroPages);
+	}
+
+	/**
+	 * Describes a segment in JSON, no matter whether its contents are held in memory or were only streamed.
+	 *
+	 * @param startPhysicalAddress The start address of the segment in physical memory.
+	 * @param startVirtualAddress  The start address of the segment in virtual memory.
+	 * @param size                 The size of the segment.
+	 * @param tree                 The hash tree over the contents of the segment.
+	 * @param zeroPages            Which pages of the segment only contain zeroes.
+	 * @return The JSON describing the segment.
+	 */
+	@NotNull
+	static JSONObject toJSON(long startPhysicalAddress, long startVirtualAddress, long size, @NotNull MerkleTree tree, @NotNull BitSet zeroPages) {
+		String hash = Base64.getEncoder().encodeToString(tree.getRoot());
 		JSONObject result = new JSONObject();
 		result.put("startPhysicalAddress", startPhysicalAddress);
 		result.put("startVirtualAddress", startVirtualAddress);
 		result.put("size", size);
 		result.put("hash", hash);
+		result.put("leafSize", LEAF_SIZE);
+		result.put("zeroPageSize", ZERO_PAGE_SIZE);
+		result.put("zeroPages", Base64.getEncoder().encodeToString(zeroPages.toByteArray()));
 		return result;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Fills a part of the contents of a segment.
+	 */
+	@FunctionalInterface
+	private interface LeafFiller {
+
+		/**
+		 * Fills the given part of the contents.
+		 *
+		 * @param offset Where the part starts.
+		 * @param length The length of the part.
+		 */
+		void fill(long offset, int length);
+	}
+}
@@ -0,0 +1,233 @@
+package edu.kit.unwwi.checkpoints.qemu.models.memory;
+
+import edu.kit.unwwi.checkpoints.qemu.models.registers.RegisterFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.CharBuffer;
+
+/**
+ * Reconstructs the virtual mappings of an x86-64 guest by walking its page tables in a dump of its physical memory.
+ * This allows dumping the memory without paging, which is far faster and keeps the pause of the VM short,
+ * and creating the TLB afterwards from the captured registers and memory.
+ * The walk starts at the table referenced by CR3 and supports 4- and 5-level paging including large pages.
+ * The flags of each mapping are those of its last entry, in the same format QEMU uses for "info tlb".
+ * Entries pointing to memory which was not captured are treated as not present.
+ */
+public final class PageTableWalker {
+
+	/**
+	 * Marks an entry as present.
+	 */
+	private static final long PRESENT = 1L;
+	/**
+	 * Marks a page as writable.
+	 */
+	private static final long WRITABLE = 1L << 1;
+	/**
+	 * Marks a page as accessible from user mode.
+	 */
+	private static final long USER = 1L << 2;
+	/**
+	 * Marks a page as write-through.
+	 */
+	private static final long WRITE_THROUGH = 1L << 3;
+	/**
+	 * Marks a page as not cacheable.
+	 */
+	private static final long CACHE_DISABLE = 1L << 4;
+	/**
+	 * Set by the CPU when a page was accessed.
+	 */
+	private static final long ACCESSED = 1L << 5;
+	/**
+	 * Set by the CPU when a page was written.
+	 */
+	private static final long DIRTY = 1L << 6;
+	/**
+	 * Marks an entry of a higher level as mapping a large page instead of referencing a table.
+	 */
+	private static final long LARGE = 1L << 7;
+	/**
+	 * Marks a page as global, i.e. shared by all address spaces.
+	 */
+	private static final long GLOBAL = 1L << 8;
+	/**
+	 * Marks a page as not executable.
+	 */
+	private static final long NO_EXECUTE = 1L << 63;
+	/**
+	 * The bits of an entry holding the physical address of the next table or the page.
+	 */
+	private static final long ADDRESS_MASK = 0x000F_FFFF_FFFF_F000L;
+	/**
+	 * How many entries a table has.
+	 */
+	private static final int ENTRIES = 512;
+	/**
+	 * The size of an entry in bytes.
+	 */
+	private static final int ENTRY_SIZE = 8;
+
+	/**
+	 * The captured physical memory.
+	 */
+	private final PhysicalMemory memory;
+	/**
+	 * How many bits a virtual address has, the upper ones being copies of the highest of them.
+	 */
+	private final int addressBits;
+	/**
+	 * Collects the mappings found.
+	 */
+	private final TLB.Builder builder = new TLB.Builder();
+	/**
+	 * The flags of the current mapping, reused for every mapping.
+	 */
+	private final char[] flags = new char[9];
+	/**
+	 * A view of the flags, to hand them to the builder.
+	 */
+	private final CharBuffer flagView = CharBuffer.wrap(flags);
+	/**
+	 * The range the last entry was read from, as the entries of a table are read one after another.
+	 */
+	private int lastRange = -1;
+
+	/**
+	 * Create a new walker.
+	 *
+	 * @param memory      The captured physical memory.
+	 * @param addressBits How many bits a virtual address has.
+	 */
+	private PageTableWalker(@NotNull PhysicalMemory memory, int addressBits) {
+		this.memory = memory;
+		this.addressBits = addressBits;
+	}
+
+	/**
+	 * Reconstructs the mappings of a CPU from its registers.
+	 * Which kind of paging is used gets read from CR0, CR4 and EFER, see PagingMode.
+	 *
+	 * @param memory    The segments of a dump without paging, i.e. the physical memory.
+	 * @param registers The registers of the CPU.
+	 * @return The TLB holding all mappings of the CPU.
+	 * @throws IllegalArgumentException When the registers don't belong to an x86-64 CPU in long mode with paging enabled.
+	 */
+	@NotNull
+	public static TLB walk(@NotNull MemorySegment @NotNull [] memory, @NotNull RegisterFile registers) throws IllegalArgumentException {
+		return walk(PhysicalMemory.of(memory), registers);
+	}
+
+	/**
+	 * Reconstructs the mappings of an address space.
+	 *
+	 * @param memory     The segments of a dump without paging, i.e. the physical memory.
+	 * @param cr3        The value of CR3, pointing to the top-level table.
+	 * @param fiveLevels Whether 5-level paging is used instead of 4-level paging.
+	 * @return The TLB holding all mappings of the address space.
+	 */
+	@NotNull
+	public static TLB walk(@NotNull MemorySegment @NotNull [] memory, long cr3, boolean fiveLevels) {
+		return walk(PhysicalMemory.of(memory), cr3, fiveLevels);
+	}
+
+	/**
+	 * Reconstructs the mappings of a CPU from its registers.
+	 *
+	 * @param memory    The physical memory.
+	 * @param registers The registers of the CPU.
+	 * @return The TLB holding all mappings of the CPU.
+	 * @throws IllegalArgumentException When the registers don't belong to an x86-64 CPU in long mode with paging enabled.
+	 */
+	@NotNull
+	static TLB walk(@NotNull PhysicalMemory memory, @NotNull RegisterFile registers) throws IllegalArgumentException {
+		PagingMode mode = PagingMode.of(registers);
+		if (mode == PagingMode.NONE) throw new IllegalArgumentException("Paging is disabled");
+		if (mode != PagingMode.FOUR_LEVEL && mode != PagingMode.FIVE_LEVEL)
+			throw new IllegalArgumentException("Only 4- and 5-level paging of x86-64 is supported");
+		return walk(memory, PagingMode.register(registers, "CR3"), mode == PagingMode.FIVE_LEVEL);
+	}
+
+	/**
+	 * Reconstructs the mappings of an address space.
+	 *
+	 * @param memory     The physical memory.
+	 * @param cr3        The value of CR3, pointing to the top-level table.
+	 * @param fiveLevels Whether 5-level paging is used instead of 4-level paging.
+	 * @return The TLB holding all mappings of the address space.
+	 */
+	@NotNull
+	static TLB walk(@NotNull PhysicalMemory memory, long cr3, boolean fiveLevels) {
+		int levels = fiveLevels ? 5 : 4;
+		PageTableWalker walker = new PageTableWalker(memory, shift(levels) + 9);
+		walker.walkTable(cr3 & ADDRESS_MASK, levels, 0);
+		return walker.builder.build();
+	}
+
+	/**
+	 * How many bits of a virtual address lie below the index into a table of the given level.
+	 *
+	 * @param level The level of the table, 1 being the tables referencing 4 KiB pages.
+	 * @return The size of the memory covered by an entry, as power of 2.
+	 */
+	private static int shift(int level) {
+		return 12 + 9 * (level - 1);
+	}
+
+	/**
+	 * Adds all mappings of a table and the tables referenced by it.
+	 * The entries get visited in ascending order, so the mappings are found sorted by their virtual address.
+	 *
+	 * @param table   The physical address of the table.
+	 * @param level   The level of the table.
+	 * @param virtual The virtual address covered by the first entry of the table.
+	 */
+	private void walkTable(long table, int level, long virtual) {
+		int shift = shift(level);
+		for (int i = 0; i < ENTRIES; i++) {
+			long entry = readEntry(table + (long) i * ENTRY_SIZE);
+			if ((entry & PRESENT) == 0) continue;
+			long address = virtual | ((long) i << shift);
+			if (level == 1) addPage(address, entry & ADDRESS_MASK, 1L << shift, entry);
+			else if (level <= 3 && (entry & LARGE) != 0) addPage(address, entry & ADDRESS_MASK & -(1L << shift), 1L << shift, entry);
+			else walkTable(entry & ADDRESS_MASK, level - 1, address);
+		}
+	}
+
+	/**
+	 * Adds a single page to the TLB.
+	 *
+	 * @param virtual  The virtual address of the page, without its upper bits.
+	 * @param physical The physical address of the page.
+	 * @param size     The size of the page.
+	 * @param entry    The entry mapping the page.
+	 */
+	private void addPage(long virtual, long physical, long size, long entry) {
+		flags[0] = (entry & NO_EXECUTE) != 0 ? 'X' : '-';
+		flags[1] = (entry & GLOBAL) != 0 ? 'G' : '-';
+		// The same bit means PAT for 4 KiB pages, but QEMU and TLBScanner expect it to mark large pages
+		flags[2] = size > 1L << 12 ? 'P' : '-';
+		flags[3] = (entry & DIRTY) != 0 ? 'D' : '-';
+		flags[4] = (entry & ACCESSED) != 0 ? 'A' : '-';
+		flags[5] = (entry & CACHE_DISABLE) != 0 ? 'C' : '-';
+		flags[6] = (entry & WRITE_THROUGH) != 0 ? 'T' : '-';
+		flags[7] = (entry & USER) != 0 ? 'U' : '-';
+		flags[8] = (entry & WRITABLE) != 0 ? 'W' : '-';
+		long canonical = virtual << (Long.SIZE - addressBits) >> (Long.SIZE - addressBits);
+		builder.add(canonical, physical, size, flagView);
+	}
+
+	/**
+	 * Reads an entry of a page table.
+	 *
+	 * @param address The physical address of the entry.
+	 * @return The entry, or 0 if the memory containing it was not captured.
+	 */
+	private long readEntry(long address) {
+		if (!memory.contains(lastRange, address)) {
+			lastRange = memory.indexOf(address);
+			if (lastRange < 0) return 0;
+		}
+		return memory.readLong(lastRange, address);
+	}
+}
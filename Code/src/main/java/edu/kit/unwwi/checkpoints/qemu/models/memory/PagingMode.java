@@ -0,0 +1,80 @@
+package edu.kit.unwwi.checkpoints.qemu.models.memory;
+
+import edu.kit.unwwi.checkpoints.qemu.models.registers.RegisterFile;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The kinds of paging an x86 CPU may use, which decide the layout of the page tables and the sizes of large pages.
+ */
+public enum PagingMode {
+
+	/**
+	 * Paging is disabled, so virtual addresses are physical addresses.
+	 */
+	NONE,
+	/**
+	 * 32-bit paging without PAE, whose large pages have 4 MiB.
+	 */
+	LEGACY,
+	/**
+	 * 32-bit paging with PAE, whose large pages have 2 MiB.
+	 */
+	PAE,
+	/**
+	 * 4-level paging of x86-64, whose large pages have 2 MiB or 1 GiB.
+	 */
+	FOUR_LEVEL,
+	/**
+	 * 5-level paging of x86-64, whose large pages have 2 MiB or 1 GiB.
+	 */
+	FIVE_LEVEL;
+
+	/**
+	 * The paging-flag of CR0.
+	 */
+	private static final long CR0_PG = 1L << 31;
+	/**
+	 * The flag of CR4 enabling physical address extension, required for 64-bit paging.
+	 */
+	private static final long CR4_PAE = 1L << 5;
+	/**
+	 * The flag of CR4 enabling 5-level paging.
+	 */
+	private static final long CR4_LA57 = 1L << 12;
+	/**
+	 * The flag of EFER showing that long mode is active.
+	 */
+	private static final long EFER_LMA = 1L << 10;
+
+	/**
+	 * Reads the paging mode of a CPU from CR0, CR4 and EFER.
+	 *
+	 * @param registers The registers of the CPU.
+	 * @return The paging mode the CPU uses.
+	 * @throws IllegalArgumentException When the registers don't belong to an x86 CPU.
+	 */
+	@NotNull
+	public static PagingMode of(@NotNull RegisterFile registers) throws IllegalArgumentException {
+		long cr0 = register(registers, "CR0");
+		long cr4 = register(registers, "CR4");
+		long efer = register(registers, "EFER");
+		if ((cr0 & CR0_PG) == 0) return NONE;
+		if ((cr4 & CR4_PAE) == 0) return LEGACY;
+		if ((efer & EFER_LMA) == 0) return PAE;
+		return (cr4 & CR4_LA57) != 0 ? FIVE_LEVEL : FOUR_LEVEL;
+	}
+
+	/**
+	 * Reads the value of a register.
+	 *
+	 * @param registers The registers.
+	 * @param name      The name of the register.
+	 * @return Its value.
+	 * @throws IllegalArgumentException When there is no such register.
+	 */
+	static long register(@NotNull RegisterFile registers, @NotNull String name) throws IllegalArgumentException {
+		int index = registers.getLayout().indexOf(name);
+		if (index < 0) throw new IllegalArgumentException("The registers contain no " + name + ", which only exists on x86");
+		return registers.getValue(index);
+	}
+}
@@ -0,0 +1,127 @@
+package edu.kit.unwwi.checkpoints.qemu.models.memory;
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+/**
+ * The captured physical memory of a guest, made up of ranges which each start at a physical address.
+ * The ranges are sorted by their address, so the range containing an address is found by a binary search.
+ * Only views of the contents are held, so they must stay valid as long as this memory gets read.
+ */
+final class PhysicalMemory {
+
+	/**
+	 * The layout of a little-endian long at any address, like an entry of an x86 page table.
+	 */
+	private static final ValueLayout.OfLong LITTLE_ENDIAN_LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+	/**
+	 * The physical addresses the ranges start at, in ascending order.
+	 */
+	private final long[] starts;
+	/**
+	 * The contents of the ranges, in the same order.
+	 */
+	private final java.lang.foreign.MemorySegment[] contents;
+
+	/**
+	 * Create the memory from unsorted ranges.
+	 *
+	 * @param starts   The physical addresses the ranges start at.
+	 * @param contents The contents of the ranges.
+	 */
+	PhysicalMemory(long @NotNull [] starts, @NotNull java.lang.foreign.MemorySegment @NotNull [] contents) {
+		int[] order = new int[starts.length];
+		for (int i = 0; i < order.length; i++) order[i] = i;
+		IntArrays.mergeSort(order, (a, b) -> Long.compare(starts[a], starts[b]));
+		this.starts = new long[order.length];
+		this.contents = new java.lang.foreign.MemorySegment[order.length];
+		for (int i = 0; i < order.length; i++) {
+			this.starts[i] = starts[order[i]];
+			this.contents[i] = contents[order[i]];
+		}
+	}
+
+	/**
+	 * Create the memory from the segments of a dump without paging.
+	 *
+	 * @param segments The segments, which must not be closed while this memory gets read.
+	 * @return The memory made up of the segments.
+	 */
+	@NotNull
+	static PhysicalMemory of(@NotNull MemorySegment @NotNull ... segments) {
+		long[] starts = new long[segments.length];
+		java.lang.foreign.MemorySegment[] contents = new java.lang.foreign.MemorySegment[segments.length];
+		for (int i = 0; i < segments.length; i++) {
+			starts[i] = segments[i].getStartPhysicalAddress();
+			contents[i] = segments[i].getContents();
+		}
+		return new PhysicalMemory(starts, contents);
+	}
+
+	/**
+	 * Finds the range containing an address.
+	 *
+	 * @param address The physical address.
+	 * @return The index of the range, or -1 if the address was not captured.
+	 */
+	int indexOf(long address) {
+		int low = 0;
+		int high = starts.length - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (starts[middle] <= address) low = middle + 1;
+			else high = middle - 1;
+		}
+		if (contains(high, address)) return high;
+		else return -1;
+	}
+
+	/**
+	 * Whether a range contains an address.
+	 *
+	 * @param index   The index of the range.
+	 * @param address The physical address.
+	 * @return Whether the address lies inside the range.
+	 */
+	boolean contains(int index, long address) {
+		return index >= 0 && address >= starts[index] && address - starts[index] < contents[index].byteSize();
+	}
+
+	/**
+	 * The physical address a range starts at.
+	 *
+	 * @param index The index of the range.
+	 * @return The first address of the range.
+	 */
+	long getStart(int index) {
+		return starts[index];
+	}
+
+	/**
+	 * The contents of a range.
+	 *
+	 * @param index The index of the range.
+	 * @return The contents.
+	 */
+	@NotNull
+	java.lang.foreign.MemorySegment getContents(int index) {
+		return contents[index];
+	}
+
+	/**
+	 * Reads a little-endian long from a range.
+	 *
+	 * @param index   The index of the range, as returned by indexOf.
+	 * @param address The physical address of the long.
+	 * @return The long, or 0 if it does not lie completely inside the range.
+	 */
+	long readLong(int index, long address) {
+		long offset = address - starts[index];
+		if (offset < 0 || offset > contents[index].byteSize() - Long.BYTES) return 0;
+		return contents[index].get(LITTLE_ENDIAN_LONG, offset);
+	}
+}
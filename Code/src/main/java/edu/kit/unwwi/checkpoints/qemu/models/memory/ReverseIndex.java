@@ -0,0 +1,262 @@
+package edu.kit.unwwi.checkpoints.qemu.models.memory;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Serializable;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Finds all virtual pages which map to a physical range, i.e. the reverse of a TLB.
+ * Several virtual pages may alias the same physical frame, and pages of different sizes may overlap,
+ * so the mappings are stored as intervals sorted by their physical start address.
+ * The sorted arrays form an implicit binary search tree, in which every node also stores the largest end address of its subtree,
+ * so a query only visits subtrees which may contain an overlapping interval.
+ */
+public final class ReverseIndex implements Serializable {
+
+	/**
+	 * The starting addresses of the physical frames, in ascending order.
+	 */
+	private final long[] physicalAddresses;
+	/**
+	 * The starting addresses of the virtual pages, in the same order.
+	 */
+	private final long[] virtualAddresses;
+	/**
+	 * The sizes of the mappings, in the same order.
+	 */
+	private final long[] sizes;
+	/**
+	 * The largest physical end address in the subtree of each node of the implicit tree.
+	 */
+	private final long[] maxEnds;
+	/**
+	 * The level of the root of the implicit tree.
+	 */
+	private final int levels;
+
+	/**
+	 * Create a new index from unsorted mappings.
+	 *
+	 * @param physicalAddresses The starting addresses of the physical frames.
+	 * @param virtualAddresses  The starting addresses of the virtual pages.
+	 * @param sizes             The sizes of the mappings.
+	 */
+	private ReverseIndex(long @NotNull [] physicalAddresses, long @NotNull [] virtualAddresses, long @NotNull [] sizes) {
+		int count = physicalAddresses.length;
+		int[] order = new int[count];
+		for (int i = 0; i < count; i++) order[i] = i;
+		IntArrays.parallelQuickSort(order, (a, b) -> Long.compare(physicalAddresses[a], physicalAddresses[b]));
+		this.physicalAddresses = new long[count];
+		this.virtualAddresses = new long[count];
+		this.sizes = new long[count];
+		IntStream.range(0, count).parallel().forEach(i -> {
+			this.physicalAddresses[i] = physicalAddresses[order[i]];
+			this.virtualAddresses[i] = virtualAddresses[order[i]];
+			this.sizes[i] = sizes[order[i]];
+		});
+		this.maxEnds = new long[count];
+		this.levels = buildTree();
+	}
+
+	/**
+	 * Creates the index of all mappings of a TLB.
+	 *
+	 * @param tlb The TLB.
+	 * @return The created index.
+	 */
+	@NotNull
+	public static ReverseIndex of(@NotNull TLB tlb) {
+		int count = tlb.size();
+		long[] physical = new long[count];
+		long[] virtual = new long[count];
+		long[] sizes = new long[count];
+		IntStream.range(0, count).parallel().forEach(i -> {
+			physical[i] = tlb.getPhysicalAddress(i);
+			virtual[i] = tlb.getVirtualAddress(i);
+			sizes[i] = tlb.getSize(i);
+		});
+		return new ReverseIndex(physical, virtual, sizes);
+	}
+
+	/**
+	 * Creates the index of the virtual and physical addresses of memory segments, as reported by a dump with paging enabled.
+	 *
+	 * @param segments The segments.
+	 * @return The created index.
+	 */
+	@NotNull
+	public static ReverseIndex of(@NotNull MemorySegment @NotNull ... segments) {
+		long[] physical = new long[segments.length];
+		long[] virtual = new long[segments.length];
+		long[] sizes = new long[segments.length];
+		for (int i = 0; i < segments.length; i++) {
+			physical[i] = segments[i].getStartPhysicalAddress();
+			virtual[i] = segments[i].getStartVirtualAddress();
+			sizes[i] = segments[i].getSize();
+		}
+		return new ReverseIndex(physical, virtual, sizes);
+	}
+
+	/**
+	 * Computes the largest end address of every subtree.
+	 * Leaves are at the even indices, the nodes of level k at the indices whose lowest k bits are set,
+	 * so the root is the node at index 2^levels - 1, which may lie behind the end of the arrays.
+	 *
+	 * @return The level of the root.
+	 */
+	private int buildTree() {
+		int count = physicalAddresses.length;
+		if (count == 0) return 0;
+		// The largest end of the last subtree, which may not be complete
+		long last = 0;
+		int lastIndex = 0;
+		for (int i = 0; i < count; i += 2) {
+			lastIndex = i;
+			maxEnds[i] = last = end(i);
+		}
+		int level = 1;
+		for (; 1L << level <= count; level++) {
+			int half = 1 << (level - 1);
+			for (int i = (half << 1) - 1; i < count; i += half << 2) {
+				long left = maxEnds[i - half];
+				long right = i + half < count ? maxEnds[i + half] : last;
+				maxEnds[i] = Math.max(end(i), Math.max(left, right));
+			}
+			lastIndex = ((lastIndex >> level) & 1) != 0 ? lastIndex - half : lastIndex + half;
+			if (lastIndex < count && maxEnds[lastIndex] > last) last = maxEnds[lastIndex];
+		}
+		return level - 1;
+	}
+
+	/**
+	 * Where the physical frame of a mapping ends.
+	 *
+	 * @param index The index of the mapping.
+	 * @return The first physical address behind the mapping.
+	 */
+	private long end(int index) {
+		return physicalAddresses[index] + sizes[index];
+	}
+
+	/**
+	 * Hands the index of every mapping overlapping a physical range to an action, in ascending order of their physical start.
+	 *
+	 * @param from   The first physical address of the range.
+	 * @param to     The first physical address behind the range.
+	 * @param action Receives the indices of the mappings.
+	 */
+	public void forEach(long from, long to, @NotNull IntConsumer action) {
+		int count = physicalAddresses.length;
+		if (count == 0 || from >= to) return;
+		// Each entry holds the index of a node, its level and whether its left subtree was already visited
+		long[] stack = new long[2 * (levels + 2)];
+		int top = 0;
+		stack[top++] = node((1 << levels) - 1, levels, false);
+		while (top > 0) {
+			long current = stack[--top];
+			int index = (int) (current >>> 32);
+			int level = (int) (current >>> 1) & 0xff;
+			boolean visited = (current & 1) != 0;
+			if (level <= 3) {
+				// Small subtrees get scanned linearly
+				int start = index >> level << level;
+				int end = Math.min(count, start + (1 << (level + 1)) - 1);
+				for (int i = start; i < end && physicalAddresses[i] < to; i++) {
+					if (from < end(i)) action.accept(i);
+				}
+			} else if (!visited) {
+				int left = index - (1 << (level - 1));
+				stack[top++] = node(index, level, true);
+				if (left >= count || maxEnds[left] > from) stack[top++] = node(left, level - 1, false);
+			} else if (index < count && physicalAddresses[index] < to) {
+				if (from < end(index)) action.accept(index);
+				stack[top++] = node(index + (1 << (level - 1)), level - 1, false);
+			}
+		}
+	}
+
+	/**
+	 * Packs a node of the implicit tree into a single entry of the stack.
+	 *
+	 * @param index   The index of the node.
+	 * @param level   The level of the node.
+	 * @param visited Whether its left subtree was already visited.
+	 * @return The entry.
+	 */
+	private static long node(int index, int level, boolean visited) {
+		return ((long) index << 32) | ((long) level << 1) | (visited ? 1 : 0);
+	}
+
+	/**
+	 * Finds all mappings overlapping a physical range.
+	 *
+	 * @param from The first physical address of the range.
+	 * @param to   The first physical address behind the range.
+	 * @return The indices of the mappings, in ascending order of their physical start.
+	 */
+	@NotNull
+	public IntList query(long from, long to) {
+		IntList result = new IntArrayList();
+		forEach(from, to, result::add);
+		return result;
+	}
+
+	/**
+	 * Finds all virtual addresses which map to a physical address.
+	 *
+	 * @param physicalAddress The physical address.
+	 * @return The virtual addresses aliasing it.
+	 */
+	@NotNull
+	public LongList virtualAliases(long physicalAddress) {
+		LongList result = new LongArrayList();
+		forEach(physicalAddress, physicalAddress + 1, i -> result.add(virtualAddresses[i] + (physicalAddress - physicalAddresses[i])));
+		return result;
+	}
+
+	/**
+	 * How many mappings this index holds.
+	 *
+	 * @return The number of mappings.
+	 */
+	public int size() {
+		return physicalAddresses.length;
+	}
+
+	/**
+	 * The starting address of the physical frame of a mapping.
+	 *
+	 * @param index The index of the mapping.
+	 * @return The physical address.
+	 */
+	public long getPhysicalAddress(int index) {
+		return physicalAddresses[index];
+	}
+
+	/**
+	 * The starting address of the virtual page of a mapping.
+	 *
+	 * @param index The index of the mapping.
+	 * @return The virtual address.
+	 */
+	public long getVirtualAddress(int index) {
+		return virtualAddresses[index];
+	}
+
+	/**
+	 * The size of a mapping.
+	 *
+	 * @param index The index of the mapping.
+	 * @return The size of the mapping.
+	 */
+	public long getSize(int index) {
+		return sizes[index];
+	}
+}
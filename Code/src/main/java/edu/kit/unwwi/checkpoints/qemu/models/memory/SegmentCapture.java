@@ -0,0 +1,146 @@
+package edu.kit.unwwi.checkpoints.qemu.models.memory;
+
+import edu.kit.unwwi.JSONable;
+import edu.kit.unwwi.checkpoints.storage.CapturePipeline;
+import edu.kit.unwwi.checkpoints.storage.MerkleTree;
+import org.jetbrains.annotations.NotNull;
+import org.json.JSONObject;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.stream.IntStream;
+
+/**
+ * Captures the hash tree and the zero pages of a memory segment while its contents pass through a CapturePipeline.
+ * In contrast to a MemorySegment, the contents are never held in memory as a whole,
+ * so segments of any size can be stored while they get read from a stream.
+ * Stages added to the pipeline after this one may already ask whether a page of the current buffer only contains zeroes.
+ * The buffers must start at the boundaries of the leaves, which holds for all buffers read by the pipeline itself.
+ */
+public class SegmentCapture implements CapturePipeline.Stage, JSONable {
+
+	/**
+	 * The start address of the segment in physical memory.
+	 */
+	private final long startPhysicalAddress;
+	/**
+	 * The start address of the segment in virtual memory.
+	 */
+	private final long startVirtualAddress;
+	/**
+	 * The size of the segment.
+	 */
+	private final long size;
+	/**
+	 * Collects the hashes of the leaves.
+	 */
+	private final MerkleTree.Builder builder;
+	/**
+	 * The bitmap of zero pages, which has one word per leaf.
+	 */
+	private final long[] zeroWords;
+
+	/**
+	 * How many bytes were captured.
+	 */
+	private long captured;
+	/**
+	 * The hash tree, once all contents were captured.
+	 */
+	private MerkleTree tree;
+
+	/**
+	 * Prepares capturing a segment, using the digest currently set for memory segments.
+	 *
+	 * @param startPhysicalAddress The start address of the segment in physical memory.
+	 * @param startVirtualAddress  The start address of the segment in virtual memory.
+	 * @param size                 The size of the segment.
+	 */
+	public SegmentCapture(long startPhysicalAddress, long startVirtualAddress, long size) {
+		this.startPhysicalAddress = startPhysicalAddress;
+		this.startVirtualAddress = startVirtualAddress;
+		this.size = size;
+		this.builder = new MerkleTree.Builder(MemorySegment.getHashAlgorithm(), MemorySegment.LEAF_SIZE, size);
+		this.zeroWords = new long[MerkleTree.leafCount(size, MemorySegment.LEAF_SIZE)];
+	}
+
+	/**
+	 * Hashes all leaves of the buffer in parallel and finds their zero pages.
+	 *
+	 * @param position The position of the buffer in the segment.
+	 * @param buffer   The contents, which get consumed.
+	 * @throws IOException           When the buffer exceeds the segment.
+	 * @throws IllegalStateException When the buffer does not start at a leaf or does not follow the previous buffer.
+	 */
+	@Override
+	public void accept(long position, @NotNull ByteBuffer buffer) throws IOException, IllegalStateException {
+		if (position % MemorySegment.LEAF_SIZE != 0 || position != captured)
+			throw new IllegalStateException("Buffers must follow each other and start at a leaf");
+		if (position + buffer.remaining() > size) throw new IOException("Segment is larger than " + size + " bytes");
+		int first = (int) (position / MemorySegment.LEAF_SIZE);
+		int count = Math.ceilDiv(buffer.remaining(), MemorySegment.LEAF_SIZE);
+		ByteBuffer data = buffer.slice();
+		IntStream.range(0, count).parallel().forEach(i -> {
+			int offset = i * MemorySegment.LEAF_SIZE;
+			ByteBuffer leaf = data.slice(offset, Math.min(MemorySegment.LEAF_SIZE, data.limit() - offset));
+			zeroWords[first + i] = MemorySegment.scanZeroPages(java.lang.foreign.MemorySegment.ofBuffer(leaf));
+			builder.hashLeaf(first + i, leaf);
+		});
+		captured += buffer.remaining();
+		buffer.position(buffer.limit());
+	}
+
+	/**
+	 * Completes the hash tree once all contents passed the pipeline.
+	 *
+	 * @throws EOFException When fewer bytes than the size of the segment were captured.
+	 */
+	public void finish() throws EOFException {
+		if (captured != size) throw new EOFException("Captured " + captured + " of " + size + " bytes");
+		this.tree = builder.build();
+	}
+
+	/**
+	 * Checks whether a page which already passed this stage only contains zeroes.
+	 *
+	 * @param page The number of the page, using the size returned by MemorySegment.getZeroPageSize().
+	 * @return Whether the page only contains zeroes.
+	 */
+	public boolean isZeroPage(long page) {
+		return (zeroWords[(int) (page / Long.SIZE)] & (1L << (page % Long.SIZE))) != 0;
+	}
+
+	/**
+	 * The size of the captured segment.
+	 *
+	 * @return The size of the segment.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the hash tree over the contents of the segment.
+	 *
+	 * @return The hash tree.
+	 * @throws IllegalStateException When the capture was not finished yet.
+	 */
+	@NotNull
+	public MerkleTree getTree() throws IllegalStateException {
+		if (tree == null) throw new IllegalStateException("The capture was not finished yet");
+		return tree;
+	}
+
+	/**
+	 * Returns the same JSON a MemorySegment with the captured contents would return.
+	 *
+	 * @return The JSON describing the segment.
+	 * @throws IllegalStateException When the capture was not finished yet.
+	 */
+	@Override
+	public @NotNull JSONObject toJSON() throws IllegalStateException {
+		return MemorySegment.toJSON(startPhysicalAddress, startVirtualAddress, size, getTree(), BitSet.valueOf(zeroWords));
+	}
+}
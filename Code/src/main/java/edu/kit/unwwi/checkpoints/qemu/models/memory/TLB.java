@@ -1,28 +1,137 @@
 package edu.kit.unwwi.checkpoints.qemu.models.memory;
 
+import it.unimi.dsi.fastutil.ints.IntArrays;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.Serializable;
 import java.util.Arrays;
-import java.util.HashMap;
 
 /**
  * A class representing a TLB able to convert addresses from the guest memory space to the QEMU-internal memory space.
+ * The mappings are stored in arrays sorted by their virtual address, so an address gets translated
+ * by a binary search without creating any objects.
+ * The flags of a mapping are stored as a bitmask, bit i meaning the flag at position i is set.
+ * As every position always holds the same flag, the character of each flag is only stored once per TLB.
  */
 public class TLB implements Serializable {
 
 	/**
-	 * The map used for finding the memory mappings.
+	 * Gets returned by translate for addresses which are not contained in the TLB.
 	 */
-	private final HashMap<Long, MemoryMapping> mappings = new HashMap<>();
+	public static final long UNMAPPED = -1L;
+
+	/**
+	 * The starting addresses of the virtual pages, in ascending order when treated as unsigned.
+	 */
+	private final long[] virtualAddresses;
+	/**
+	 * The starting addresses of the physical frames, in the same order.
+	 */
+	private final long[] physicalAddresses;
+	/**
+	 * The sizes of the pages, in the same order.
+	 */
+	private final long[] sizes;
+	/**
+	 * The flags set for each mapping, one bit per position.
+	 */
+	private final long[] flags;
+	/**
+	 * The character of the flag at each position, or a null-char if no mapping has it set.
+	 */
+	private final char[] flagNames;
 
 	/**
 	 * Create a new TLB from the mappings provided.
+	 * If several mappings start at the same virtual address, the last one is used.
+	 *
+	 * @param mappings The mappings.
+	 * @throws IllegalArgumentException When the flags of the mappings don't use the same positions.
+	 */
+	public TLB(@NotNull MemoryMapping... mappings) throws IllegalArgumentException {
+		this(build(mappings));
+	}
+
+	/**
+	 * Create a new TLB from a builder.
+	 *
+	 * @param builder The builder holding the mappings.
+	 */
+	private TLB(@NotNull Builder builder) {
+		int count = builder.count;
+		int[] order = new int[count];
+		for (int i = 0; i < count; i++) order[i] = i;
+		long[] starts = builder.virtualAddresses;
+		// The mappings usually arrive in order, so sorting can be skipped
+		boolean sorted = true;
+		for (int i = 1; i < count && sorted; i++) sorted = Long.compareUnsigned(starts[i - 1], starts[i]) < 0;
+		if (!sorted) {
+			// Stable, so the last of several mappings with the same address stays last
+			IntArrays.mergeSort(order, (a, b) -> Long.compareUnsigned(starts[a], starts[b]));
+		}
+		int unique = 0;
+		for (int i = 0; i < count; i++) {
+			if (i + 1 < count && starts[order[i]] == starts[order[i + 1]]) continue;
+			order[unique++] = order[i];
+		}
+		this.virtualAddresses = new long[unique];
+		this.physicalAddresses = new long[unique];
+		this.sizes = new long[unique];
+		this.flags = new long[unique];
+		for (int i = 0; i < unique; i++) {
+			int source = order[i];
+			virtualAddresses[i] = starts[source];
+			physicalAddresses[i] = builder.physicalAddresses[source];
+			sizes[i] = builder.sizes[source];
+			flags[i] = builder.flags[source];
+		}
+		this.flagNames = Arrays.copyOf(builder.flagNames, builder.flagCount);
+	}
+
+	/**
+	 * Collects mappings in a builder.
 	 *
 	 * @param mappings The mappings.
+	 * @return The builder holding all mappings.
+	 * @throws IllegalArgumentException When the flags of the mappings don't use the same positions.
 	 */
-	public TLB(@NotNull MemoryMapping... mappings) {
-		for (MemoryMapping mapping : mappings) this.mappings.put(mapping.virtualAddress, mapping);
+	@NotNull
+	private static Builder build(@NotNull MemoryMapping @NotNull [] mappings) throws IllegalArgumentException {
+		Builder builder = new Builder();
+		for (MemoryMapping mapping : mappings) {
+			builder.add(mapping.virtualAddress, mapping.physicalAddress, mapping.size, new String(mapping.getFlags()));
+		}
+		return builder;
+	}
+
+	/**
+	 * Finds the mapping containing an address.
+	 *
+	 * @param address The virtual address.
+	 * @return The index of the mapping, or -1 if no mapping contains the address.
+	 */
+	public int indexOf(long address) {
+		int low = 0;
+		int high = virtualAddresses.length - 1;
+		// Finds the last mapping starting at or before the address
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (Long.compareUnsigned(virtualAddresses[middle], address) <= 0) low = middle + 1;
+			else high = middle - 1;
+		}
+		if (high >= 0 && contains(high, address)) return high;
+		else return -1;
+	}
+
+	/**
+	 * Whether a mapping contains an address.
+	 *
+	 * @param index   The index of the mapping.
+	 * @param address The virtual address.
+	 * @return Whether the address lies inside the mapping.
+	 */
+	private boolean contains(int index, long address) {
+		return Long.compareUnsigned(address, virtualAddresses[index]) >= 0 && Long.compareUnsigned(address - virtualAddresses[index], sizes[index]) < 0;
 	}
 
 	/**
@@ -33,24 +142,220 @@ public class TLB implements Serializable {
 	 * @throws IllegalArgumentException If this address is not contained in the TLB.
 	 */
 	public long translateAddress(final long address) throws IllegalArgumentException {
-		long shifted = address;
-		long shifter = -1;
-		while (!mappings.containsKey(shifted) && shifter != 0) {    //TODO: This will always return the zero mapping if nothing gets found.
-			shifter = shifter << 1;
-			shifted = address & shifter;
+		int index = indexOf(address);
+		if (index < 0)
+			throw new IllegalArgumentException("Address " + Long.toUnsignedString(address, 16) + " is not contained in the TLB");
+		return physicalAddresses[index] + (address - virtualAddresses[index]);
+	}
+
+	/**
+	 * Translates many virtual addresses at once.
+	 * Consecutive addresses often lie in the same page, so the mapping of the previous address gets checked first.
+	 *
+	 * @param in  The virtual addresses to translate.
+	 * @param out Where to write the physical addresses to, at the same indices.
+	 *            Addresses not contained in the TLB become UNMAPPED.
+	 * @return How many addresses were contained in the TLB.
+	 * @throws IllegalArgumentException When the output is shorter than the input.
+	 */
+	public int translate(long @NotNull [] in, long @NotNull [] out) throws IllegalArgumentException {
+		if (out.length < in.length) throw new IllegalArgumentException("Output is shorter than input");
+		int found = 0;
+		int index = -1;
+		for (int i = 0; i < in.length; i++) {
+			long address = in[i];
+			if (index < 0 || !contains(index, address)) index = indexOf(address);
+			if (index < 0) {
+				out[i] = UNMAPPED;
+			} else {
+				out[i] = physicalAddresses[index] + (address - virtualAddresses[index]);
+				found++;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * How many mappings this TLB holds.
+	 *
+	 * @return The number of mappings.
+	 */
+	public int size() {
+		return virtualAddresses.length;
+	}
+
+	/**
+	 * The starting address of the virtual page of a mapping.
+	 *
+	 * @param index The index of the mapping.
+	 * @return The virtual address.
+	 */
+	public long getVirtualAddress(int index) {
+		return virtualAddresses[index];
+	}
+
+	/**
+	 * The starting address of the physical frame of a mapping.
+	 *
+	 * @param index The index of the mapping.
+	 * @return The physical address.
+	 */
+	public long getPhysicalAddress(int index) {
+		return physicalAddresses[index];
+	}
+
+	/**
+	 * The size of a mapping.
+	 *
+	 * @param index The index of the mapping.
+	 * @return The size of the page.
+	 */
+	public long getSize(int index) {
+		return sizes[index];
+	}
+
+	/**
+	 * Check whether a flag is set for a mapping.
+	 *
+	 * @param index The index of the mapping.
+	 * @param flag  The flag to test.
+	 * @return Whether it's set.
+	 */
+	public boolean flagSet(int index, char flag) {
+		for (int i = 0; i < flagNames.length; i++) {
+			if (flagNames[i] == flag && (flags[index] & (1L << i)) != 0) return true;
 		}
-		return mappings.get(shifted).translateAddress(address);
+		return false;
 	}
 
 	/**
 	 * Returns the current mappings of the TLB as an array.
+	 * They are ordered by their virtual address, treating addresses as unsigned.
 	 *
 	 * @return The current TLB mappings.
 	 */
 	@NotNull
 	public MemoryMapping @NotNull [] getMappings() {
-		MemoryMapping[] result = mappings.values().toArray(new MemoryMapping[0]);
-		Arrays.sort(result);
+		MemoryMapping[] result = new MemoryMapping[virtualAddresses.length];
+		for (int i = 0; i < result.length; i++) {
+			char[] names = new char[flagNames.length];
+			for (int position = 0; position < names.length; position++) {
+				if ((flags[i] & (1L << position)) != 0) names[position] = flagNames[position];
+			}
+			result[i] = new MemoryMapping(virtualAddresses[i], physicalAddresses[i], sizes[i], names);
+		}
 		return result;
 	}
+
+	/**
+	 * Collects mappings one after another and creates a TLB from them.
+	 */
+	public static final class Builder {
+
+		/**
+		 * The starting addresses of the virtual pages added so far.
+		 */
+		private long[] virtualAddresses = new long[256];
+		/**
+		 * The starting addresses of the physical frames added so far.
+		 */
+		private long[] physicalAddresses = new long[256];
+		/**
+		 * The sizes of the pages added so far.
+		 */
+		private long[] sizes = new long[256];
+		/**
+		 * The flags of the pages added so far.
+		 */
+		private long[] flags = new long[256];
+		/**
+		 * How many mappings were added.
+		 */
+		private int count;
+		/**
+		 * The character of the flag at each position.
+		 */
+		private final char[] flagNames = new char[Long.SIZE];
+		/**
+		 * The number of positions any added mapping had.
+		 */
+		private int flagCount;
+
+		/**
+		 * Adds a mapping.
+		 *
+		 * @param virtualAddress  The starting address of the virtual page.
+		 * @param physicalAddress The starting address of the physical frame.
+		 * @param size            The size of the page.
+		 * @param flags           The flags of the page, with a '-' or null-char for every flag that isn't set.
+		 * @return This builder.
+		 * @throws IllegalArgumentException When a position holds a different flag than in the mappings added before,
+		 *                                  or there are more than 64 positions.
+		 */
+		@NotNull
+		public Builder add(long virtualAddress, long physicalAddress, long size, @NotNull CharSequence flags) throws IllegalArgumentException {
+			return add(virtualAddress, physicalAddress, size, flags, 0, flags.length());
+		}
+
+		/**
+		 * Adds a mapping whose flags are a part of a longer text.
+		 *
+		 * @param virtualAddress  The starting address of the virtual page.
+		 * @param physicalAddress The starting address of the physical frame.
+		 * @param size            The size of the page.
+		 * @param text            The text containing the flags.
+		 * @param start           Where the flags start.
+		 * @param end             Where the flags end.
+		 * @return This builder.
+		 * @throws IllegalArgumentException When a position holds a different flag than in the mappings added before,
+		 *                                  or there are more than 64 positions.
+		 */
+		@NotNull
+		public Builder add(long virtualAddress, long physicalAddress, long size, @NotNull CharSequence text, int start, int end) throws IllegalArgumentException {
+			if (end - start > Long.SIZE) throw new IllegalArgumentException("More than " + Long.SIZE + " flags");
+			long bits = 0;
+			for (int i = start; i < end; i++) {
+				char flag = text.charAt(i);
+				if (flag == '-' || flag == '\0') continue;
+				int position = i - start;
+				if (flagNames[position] == '\0') flagNames[position] = flag;
+				else if (flagNames[position] != flag)
+					throw new IllegalArgumentException("Flag " + flag + " at position " + position + " where other mappings have " + flagNames[position]);
+				bits |= 1L << position;
+			}
+			flagCount = Math.max(flagCount, end - start);
+			if (count == virtualAddresses.length) {
+				int capacity = count * 2;
+				virtualAddresses = Arrays.copyOf(virtualAddresses, capacity);
+				physicalAddresses = Arrays.copyOf(physicalAddresses, capacity);
+				sizes = Arrays.copyOf(sizes, capacity);
+				this.flags = Arrays.copyOf(this.flags, capacity);
+			}
+			virtualAddresses[count] = virtualAddress;
+			physicalAddresses[count] = physicalAddress;
+			sizes[count] = size;
+			this.flags[count] = bits;
+			count++;
+			return this;
+		}
+
+		/**
+		 * How many mappings were added so far.
+		 *
+		 * @return The number of mappings.
+		 */
+		public int size() {
+			return count;
+		}
+
+		/**
+		 * Creates the TLB from all mappings added so far.
+		 *
+		 * @return The created TLB.
+		 */
+		@NotNull
+		public TLB build() {
+			return new TLB(this);
+		}
+	}
 }
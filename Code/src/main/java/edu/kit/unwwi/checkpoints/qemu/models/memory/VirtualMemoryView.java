@@ -0,0 +1,364 @@
+package edu.kit.unwwi.checkpoints.qemu.models.memory;
+
+import edu.kit.unwwi.checkpoints.qemu.models.registers.RegisterFile;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the captured memory of a guest by virtual address.
+ * Addresses get translated using a TLB, either queried from QEMU or reconstructed from the page tables,
+ * and the data gets copied directly from the captured physical memory, one run of consecutive physical memory at a time.
+ * Memory stored in files gets mapped instead of being read, so only the parts which are actually accessed get loaded.
+ * Closing the view unmaps these files and frees any memory allocated for it.
+ */
+public final class VirtualMemoryView implements AutoCloseable {
+
+	/**
+	 * The layout of a little-endian long at any address.
+	 */
+	private static final ValueLayout.OfLong LITTLE_ENDIAN_LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+	/**
+	 * The layout of a big-endian long at any address.
+	 */
+	private static final ValueLayout.OfLong BIG_ENDIAN_LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+	/**
+	 * Translates the virtual addresses.
+	 */
+	private final TLB tlb;
+	/**
+	 * The captured physical memory.
+	 */
+	private final PhysicalMemory memory;
+	/**
+	 * Owns the mapped files and allocated memory of this view.
+	 */
+	private final Arena arena;
+
+	/**
+	 * Create a new view.
+	 *
+	 * @param tlb    Translates the virtual addresses.
+	 * @param memory The captured physical memory.
+	 * @param arena  Owns the mapped files and allocated memory.
+	 */
+	private VirtualMemoryView(@NotNull TLB tlb, @NotNull PhysicalMemory memory, @NotNull Arena arena) {
+		this.tlb = tlb;
+		this.memory = memory;
+		this.arena = arena;
+	}
+
+	/**
+	 * Create a view of segments which are still held in memory.
+	 * The segments must not be closed while the view is used, closing the view does not close them.
+	 *
+	 * @param tlb      Translates the virtual addresses.
+	 * @param segments The segments of a dump without paging, i.e. the physical memory.
+	 * @return The created view.
+	 */
+	@NotNull
+	public static VirtualMemoryView of(@NotNull TLB tlb, @NotNull MemorySegment @NotNull ... segments) {
+		return new VirtualMemoryView(tlb, PhysicalMemory.of(segments), Arena.ofShared());
+	}
+
+	/**
+	 * The TLB used to translate the virtual addresses.
+	 *
+	 * @return The TLB.
+	 */
+	@NotNull
+	public TLB getTLB() {
+		return tlb;
+	}
+
+	/**
+	 * Reads memory starting at a virtual address until the buffer is full,
+	 * or an address is reached which is not mapped or whose physical memory was not captured.
+	 * Consecutive pages mapped to consecutive physical memory get copied at once.
+	 *
+	 * @param address The virtual address to start at.
+	 * @param target  The buffer to fill, starting at its position.
+	 * @return How many bytes were read, which is 0 if the first address could not be read.
+	 */
+	public int read(long address, @NotNull ByteBuffer target) {
+		int read = 0;
+		while (target.hasRemaining()) {
+			long current = address + read;
+			int page = tlb.indexOf(current);
+			if (page < 0) break;
+			long physical = tlb.getPhysicalAddress(page) + (current - tlb.getVirtualAddress(page));
+			int range = memory.indexOf(physical);
+			if (range < 0) break;
+			int length = (int) contiguous(page, current, range, physical, target.remaining());
+			target.put(memory.getContents(range).asSlice(physical - memory.getStart(range), length).asByteBuffer());
+			read += length;
+		}
+		return read;
+	}
+
+	/**
+	 * Returns a read-only view of the memory starting at a virtual address, without copying it.
+	 * This is only possible if the whole part lies in consecutive physical memory,
+	 * which is always the case if it doesn't cross a page boundary.
+	 * The view is only valid until this view gets closed.
+	 *
+	 * @param address The virtual address to start at.
+	 * @param length  The length of the part.
+	 * @return The view of the part, or null if it is not mapped, not captured completely, or not consecutive in physical memory.
+	 */
+	@Nullable
+	public ByteBuffer slice(long address, int length) {
+		int page = tlb.indexOf(address);
+		if (page < 0) return null;
+		long physical = tlb.getPhysicalAddress(page) + (address - tlb.getVirtualAddress(page));
+		int range = memory.indexOf(physical);
+		if (range < 0 || contiguous(page, address, range, physical, length) < length) return null;
+		return memory.getContents(range).asSlice(physical - memory.getStart(range), length).asByteBuffer().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Reads a single byte.
+	 *
+	 * @param address The virtual address of the byte.
+	 * @return The byte.
+	 * @throws IllegalArgumentException When the address is not mapped or its physical memory was not captured.
+	 */
+	public byte getByte(long address) throws IllegalArgumentException {
+		int page = tlb.indexOf(address);
+		if (page >= 0) {
+			long physical = tlb.getPhysicalAddress(page) + (address - tlb.getVirtualAddress(page));
+			int range = memory.indexOf(physical);
+			if (range >= 0) return memory.getContents(range).get(ValueLayout.JAVA_BYTE, physical - memory.getStart(range));
+		}
+		throw new IllegalArgumentException("Address " + Long.toUnsignedString(address, 16) + " can not be read");
+	}
+
+	/**
+	 * Reads a long, e.g. a pointer to follow.
+	 *
+	 * @param address The virtual address of the long.
+	 * @param order   The byte order of the guest.
+	 * @return The long.
+	 * @throws IllegalArgumentException When any of its addresses is not mapped or its physical memory was not captured.
+	 */
+	public long getLong(long address, @NotNull ByteOrder order) throws IllegalArgumentException {
+		int page = tlb.indexOf(address);
+		if (page >= 0) {
+			long physical = tlb.getPhysicalAddress(page) + (address - tlb.getVirtualAddress(page));
+			int range = memory.indexOf(physical);
+			if (range >= 0 && contiguous(page, address, range, physical, Long.BYTES) == Long.BYTES) {
+				ValueLayout.OfLong layout = order == ByteOrder.LITTLE_ENDIAN ? LITTLE_ENDIAN_LONG : BIG_ENDIAN_LONG;
+				return memory.getContents(range).get(layout, physical - memory.getStart(range));
+			}
+		}
+		// The long is split between pages which are not consecutive in physical memory
+		ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES).order(order);
+		if (read(address, buffer) < Long.BYTES)
+			throw new IllegalArgumentException("Address " + Long.toUnsignedString(address, 16) + " can not be read");
+		return buffer.getLong(0);
+	}
+
+	/**
+	 * How many bytes starting at an address lie in consecutive physical memory of the same range.
+	 * Following pages are included if they are mapped directly behind the physical memory of the page before.
+	 *
+	 * @param page     The index of the page containing the address.
+	 * @param address  The virtual address.
+	 * @param range    The index of the range containing the physical address.
+	 * @param physical The physical address the virtual address gets translated to.
+	 * @param limit    The most bytes needed.
+	 * @return The number of consecutive bytes, at most the limit.
+	 */
+	private long contiguous(int page, long address, int range, long physical, long limit) {
+		long length = Math.min(limit, memory.getContents(range).byteSize() - (physical - memory.getStart(range)));
+		long pageEnd = tlb.getVirtualAddress(page) + tlb.getSize(page);
+		long available = pageEnd - address;
+		while (available < length && page + 1 < tlb.size() && tlb.getVirtualAddress(page + 1) == pageEnd
+				&& tlb.getPhysicalAddress(page + 1) == physical + available) {
+			page++;
+			pageEnd += tlb.getSize(page);
+			available += tlb.getSize(page);
+		}
+		return Math.min(length, available);
+	}
+
+	/**
+	 * Unmaps all files and frees all memory allocated for this view.
+	 * Buffers returned by slice may not be used anymore afterwards.
+	 */
+	@Override
+	public void close() {
+		arena.close();
+	}
+
+	/**
+	 * Collects the physical memory of a view from files and streams.
+	 * If the builder does not get built, it must be discarded to release the memory collected so far.
+	 */
+	public static final class Builder {
+
+		/**
+		 * Owns the mapped files and the allocated memory.
+		 */
+		private final Arena arena = Arena.ofShared();
+		/**
+		 * The physical addresses the ranges start at.
+		 */
+		private final LongArrayList starts = new LongArrayList();
+		/**
+		 * The contents of the ranges.
+		 */
+		private final List<java.lang.foreign.MemorySegment> contents = new ArrayList<>();
+
+		/**
+		 * Adds physical memory stored in a file, which gets mapped instead of being read.
+		 * Only the parts of the file which are accessed get loaded by the operating system.
+		 *
+		 * @param physicalAddress The physical address the memory starts at.
+		 * @param file            The file holding the memory.
+		 * @param size            The size of the memory.
+		 * @return This builder.
+		 * @throws IOException When the file could not be mapped.
+		 */
+		@NotNull
+		public Builder map(long physicalAddress, @NotNull Path file, long size) throws IOException {
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				// The mapping stays valid after the channel got closed
+				return add(physicalAddress, channel.map(FileChannel.MapMode.READ_ONLY, 0, size, arena));
+			}
+		}
+
+		/**
+		 * Adds physical memory which has to be restored first, e.g. because it was compressed.
+		 * The memory gets allocated off-heap and is filled by writing to the returned channel.
+		 *
+		 * @param physicalAddress The physical address the memory starts at.
+		 * @param size            The size of the memory.
+		 * @return The channel to write the contents to.
+		 */
+		@NotNull
+		public WritableByteChannel allocate(long physicalAddress, long size) {
+			java.lang.foreign.MemorySegment content = arena.allocate(size);
+			add(physicalAddress, content);
+			return new Filler(content);
+		}
+
+		/**
+		 * Adds a range of physical memory.
+		 *
+		 * @param physicalAddress The physical address the memory starts at.
+		 * @param content         The contents.
+		 * @return This builder.
+		 */
+		@NotNull
+		private Builder add(long physicalAddress, @NotNull java.lang.foreign.MemorySegment content) {
+			starts.add(physicalAddress);
+			contents.add(content);
+			return this;
+		}
+
+		/**
+		 * Creates the view of the memory collected so far.
+		 *
+		 * @param tlb Translates the virtual addresses.
+		 * @return The created view, which owns all memory of this builder.
+		 */
+		@NotNull
+		public VirtualMemoryView build(@NotNull TLB tlb) {
+			return new VirtualMemoryView(tlb, memory(), arena);
+		}
+
+		/**
+		 * Creates the view of the memory collected so far,
+		 * reconstructing the mappings of a CPU by walking the page tables in this memory.
+		 *
+		 * @param registers The registers of the CPU.
+		 * @return The created view, which owns all memory of this builder.
+		 * @throws IllegalArgumentException When the registers don't belong to an x86-64 CPU in long mode with paging enabled.
+		 */
+		@NotNull
+		public VirtualMemoryView build(@NotNull RegisterFile registers) throws IllegalArgumentException {
+			PhysicalMemory memory = memory();
+			return new VirtualMemoryView(PageTableWalker.walk(memory, registers), memory, arena);
+		}
+
+		/**
+		 * Releases all memory collected so far, if the builder does not get built.
+		 */
+		public void discard() {
+			arena.close();
+		}
+
+		/**
+		 * The memory collected so far.
+		 *
+		 * @return The physical memory.
+		 */
+		@NotNull
+		private PhysicalMemory memory() {
+			return new PhysicalMemory(starts.toLongArray(), contents.toArray(java.lang.foreign.MemorySegment[]::new));
+		}
+	}
+
+	/**
+	 * Fills allocated memory from the data written to it.
+	 */
+	private static final class Filler implements WritableByteChannel {
+
+		/**
+		 * The memory to fill.
+		 */
+		private final java.lang.foreign.MemorySegment target;
+		/**
+		 * How many bytes were written so far.
+		 */
+		private long position;
+		/**
+		 * Whether this channel was closed.
+		 */
+		private boolean closed;
+
+		/**
+		 * Create a new channel filling the given memory.
+		 *
+		 * @param target The memory to fill.
+		 */
+		private Filler(@NotNull java.lang.foreign.MemorySegment target) {
+			this.target = target;
+		}
+
+		@Override
+		public int write(@NotNull ByteBuffer source) throws IOException {
+			if (closed) throw new ClosedChannelException();
+			int length = source.remaining();
+			if (length > target.byteSize() - position) throw new IOException("More data than the size of the memory");
+			target.asSlice(position, length).asByteBuffer().put(source);
+			position += length;
+			return length;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return !closed;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+}
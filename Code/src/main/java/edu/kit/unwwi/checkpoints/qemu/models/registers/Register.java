@@ -44,6 +44,15 @@ public abstract class Register implements Serializable, Comparable<Register>, JS
 		this.registerNumber = registerNumber;
 	}
 
+	/**
+	 * The number used to order registers of the same name.
+	 *
+	 * @return The number of this register, or -1 if it has none.
+	 */
+	int getRegisterNumber() {
+		return registerNumber;
+	}
+
 	/**
 	 * The contents of this register as a byte array.3
 	 * Values get returned in big-endian order
@@ -0,0 +1,557 @@
+package edu.kit.unwwi.checkpoints.qemu.models.registers;
+
+import edu.kit.unwwi.checkpoints.qemu.models.registers.RegisterLayout.Kind;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * All registers of a single CPU, stored in a single array of longs.
+ * The names and widths of the registers are kept in a RegisterLayout shared by all CPUs of the same architecture,
+ * so a snapshot only costs its values.
+ * Single registers can be read through lightweight Register objects which read their value from this file,
+ * which look exactly like the Register classes made for the respective width.
+ * As a file never changes, two files can be compared value by value without looking at the registers themselves.
+ */
+public final class RegisterFile implements Serializable {
+
+	/**
+	 * The names and widths of the registers.
+	 */
+	private final RegisterLayout layout;
+	/**
+	 * The values of all registers, at the offsets given by the layout.
+	 */
+	private final long[] values;
+
+	/**
+	 * Create a new file from its values.
+	 *
+	 * @param layout The names and widths of the registers.
+	 * @param values The values of all registers, which must not be changed afterwards.
+	 */
+	private RegisterFile(@NotNull RegisterLayout layout, long @NotNull [] values) {
+		this.layout = layout;
+		this.values = values;
+	}
+
+	/**
+	 * Copies single registers into a new file.
+	 * Registers of the classes made for a specific width and registers of other files keep their exact representation,
+	 * any other register gets stored like a RegisterFlexible of its size.
+	 *
+	 * @param registers The registers to copy.
+	 * @return The created file.
+	 */
+	@NotNull
+	public static RegisterFile of(@NotNull Register @NotNull ... registers) {
+		Builder builder = new Builder();
+		for (Register register : registers) {
+			if (register instanceof View view) {
+				builder.copy(view.file(), view.index);
+				continue;
+			}
+			String name = register.name;
+			int number = register.getRegisterNumber();
+			byte[] contents = register.contents();
+			switch (register) {
+				case FlagRegister _ -> builder.addFlag(name, number, contents[0] != 0);
+				case Register4Bit _, Register8Bit _, Register16Bit _, Register32Bit _, Register64Bit _ -> {
+					long value = 0;
+					for (byte current : contents) value = (value << 8) | (current & 0xff);
+					builder.add(name, number, register.size(), value);
+				}
+				case Register80Bit _ -> {
+					ByteBuffer buffer = ByteBuffer.wrap(contents);
+					builder.add(name, number, 80, buffer.getLong(), buffer.getShort());
+				}
+				case Register128Bit _ -> {
+					// A Register128Bit returns both halves in little-endian order
+					ByteBuffer buffer = ByteBuffer.wrap(contents).order(ByteOrder.LITTLE_ENDIAN);
+					builder.add(name, number, 128, buffer.getLong(), buffer.getLong());
+				}
+				case Register256Bit _, Register512Bit _ -> {
+					long[] words = new long[contents.length / 8];
+					ByteBuffer.wrap(contents).asLongBuffer().get(words);
+					builder.add(name, number, register.size(), words);
+				}
+				default -> builder.add(name, number, register.size(), contents);
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * The names and widths of the registers in this file.
+	 *
+	 * @return The layout of this file.
+	 */
+	@NotNull
+	public RegisterLayout getLayout() {
+		return layout;
+	}
+
+	/**
+	 * How many registers this file holds.
+	 *
+	 * @return The number of registers.
+	 */
+	public int size() {
+		return layout.size();
+	}
+
+	/**
+	 * A single register of this file.
+	 * The returned object reads its value from this file and only gets created when requested.
+	 *
+	 * @param index The index of the register.
+	 * @return The register.
+	 */
+	@NotNull
+	public Register get(int index) {
+		return new View(index);
+	}
+
+	/**
+	 * The first register of this file with the given name.
+	 *
+	 * @param name The name of the register.
+	 * @return The register, or null if there is none with this name.
+	 */
+	@Nullable
+	public Register get(@NotNull String name) {
+		int index = layout.indexOf(name);
+		if (index < 0) return null;
+		else return new View(index);
+	}
+
+	/**
+	 * The value of a register of up to 64 bits as a number, e.g. to use the address held by a control register.
+	 *
+	 * @param index The index of the register.
+	 * @return The value of the register.
+	 * @throws IllegalArgumentException When the register is wider than 64 bits or has no standard width.
+	 */
+	public long getValue(int index) throws IllegalArgumentException {
+		return switch (layout.getKind(index)) {
+			case FLAG, BITS_4, BITS_8, BITS_16, BITS_32, BITS_64 -> values[layout.getOffset(index)];
+			default -> throw new IllegalArgumentException("Register " + layout.getName(index) + " has more than 64 bits");
+		};
+	}
+
+	/**
+	 * All registers of this file, in the order they were added in.
+	 *
+	 * @return The registers.
+	 */
+	@NotNull
+	public Register @NotNull [] toArray() {
+		Register[] result = new Register[layout.size()];
+		for (int i = 0; i < result.length; i++) result[i] = new View(i);
+		return result;
+	}
+
+	/**
+	 * Whether a single register has the same value in this and another file.
+	 *
+	 * @param other The file to compare to, which must have the same layout.
+	 * @param index The index of the register.
+	 * @return Whether the values are equal.
+	 */
+	public boolean registerEquals(@NotNull RegisterFile other, int index) {
+		int from = layout.getOffset(index);
+		int to = layout.getEnd(index);
+		return Arrays.equals(values, from, to, other.values, from, to);
+	}
+
+	/**
+	 * Finds all registers whose values differ between this and another file.
+	 * Files with equal values are detected with a single comparison of both arrays.
+	 *
+	 * @param other The file to compare to.
+	 * @return The indices of all registers which differ, in ascending order.
+	 * @throws IllegalArgumentException When the files have different layouts.
+	 */
+	@NotNull
+	public IntList diff(@NotNull RegisterFile other) throws IllegalArgumentException {
+		if (!layout.equals(other.layout))
+			throw new IllegalArgumentException("Register files with different layouts cannot be compared");
+		IntList result = new IntArrayList();
+		if (Arrays.equals(values, other.values)) return result;
+		for (int i = 0; i < layout.size(); i++) {
+			if (!registerEquals(other, i)) result.add(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Writes the values of all registers, without the layout.
+	 *
+	 * @param out Where to write the values to.
+	 * @throws IOException When writing failed.
+	 */
+	public void write(@NotNull DataOutput out) throws IOException {
+		for (long value : values) out.writeLong(value);
+	}
+
+	/**
+	 * Reads the values written by write.
+	 *
+	 * @param layout The layout of the written file.
+	 * @param in     Where to read the values from.
+	 * @return The read file.
+	 * @throws IOException When reading failed.
+	 */
+	@NotNull
+	public static RegisterFile read(@NotNull RegisterLayout layout, @NotNull DataInput in) throws IOException {
+		long[] values = new long[layout.words()];
+		for (int i = 0; i < values.length; i++) values[i] = in.readLong();
+		return new RegisterFile(layout, values);
+	}
+
+	/**
+	 * Writes only the registers which changed compared to an older file with the same layout.
+	 * The older file is required to read them again using readDelta.
+	 *
+	 * @param base The older file.
+	 * @param out  Where to write the changes to.
+	 * @throws IOException              When writing failed.
+	 * @throws IllegalArgumentException When the files have different layouts.
+	 */
+	public void writeDelta(@NotNull RegisterFile base, @NotNull DataOutput out) throws IOException, IllegalArgumentException {
+		IntList changed = diff(base);
+		out.writeInt(changed.size());
+		for (int index : changed) {
+			out.writeInt(index);
+			for (int i = layout.getOffset(index); i < layout.getEnd(index); i++) out.writeLong(values[i]);
+		}
+	}
+
+	/**
+	 * Reads the changes written by writeDelta and applies them to this file, which must be the one they were written against.
+	 *
+	 * @param in Where to read the changes from.
+	 * @return A new file holding the changed values.
+	 * @throws IOException When reading failed or a change refers to a register this file doesn't have.
+	 */
+	@NotNull
+	public RegisterFile readDelta(@NotNull DataInput in) throws IOException {
+		long[] result = Arrays.copyOf(values, values.length);
+		int changed = in.readInt();
+		for (int i = 0; i < changed; i++) {
+			int index = in.readInt();
+			if (index < 0 || index >= layout.size()) throw new IOException("Change of unknown register " + index);
+			for (int word = layout.getOffset(index); word < layout.getEnd(index); word++) result[word] = in.readLong();
+		}
+		return new RegisterFile(layout, result);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (!(o instanceof RegisterFile file)) return false;
+		return layout.equals(file.layout) && Arrays.equals(values, file.values);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * layout.hashCode() + Arrays.hashCode(values);
+	}
+
+	/**
+	 * Appends a number as hex, padded with zeros to the given amount of digits.
+	 *
+	 * @param builder Where to append the number.
+	 * @param value   The number, treated as unsigned.
+	 * @param digits  How many digits to print at least.
+	 */
+	private static void appendHex(@NotNull StringBuilder builder, long value, int digits) {
+		String hex = Long.toHexString(value);
+		builder.repeat('0', digits - hex.length());
+		builder.append(hex);
+	}
+
+	/**
+	 * A single register of a RegisterFile.
+	 * It only knows its index and reads everything else from the file.
+	 */
+	private final class View extends Register {
+
+		/**
+		 * The index of this register in the file.
+		 */
+		private final int index;
+
+		/**
+		 * Create a new view of a register.
+		 *
+		 * @param index The index of the register.
+		 */
+		private View(int index) {
+			super(layout.getName(index), layout.getRegisterNumber(index));
+			this.index = index;
+		}
+
+		/**
+		 * The file this register belongs to.
+		 *
+		 * @return The file.
+		 */
+		@NotNull
+		private RegisterFile file() {
+			return RegisterFile.this;
+		}
+
+		/**
+		 * The contents of this register as a byte array, ordered like the Register class for this width does.
+		 *
+		 * @return The contents of this register.
+		 */
+		@Override
+		public byte @NotNull [] contents() {
+			int offset = layout.getOffset(index);
+			int width = layout.getWidth(index);
+			return switch (layout.getKind(index)) {
+				case FLAG, BITS_4, BITS_8 -> new byte[]{(byte) values[offset]};
+				case BITS_16 -> ByteBuffer.allocate(2).putShort((short) values[offset]).array();
+				case BITS_32 -> ByteBuffer.allocate(4).putInt((int) values[offset]).array();
+				case BITS_64 -> ByteBuffer.allocate(8).putLong(values[offset]).array();
+				case BITS_80 -> ByteBuffer.allocate(10).putLong(values[offset]).putShort((short) values[offset + 1]).array();
+				case BITS_128 -> {
+					// Both halves in little-endian order, just like Register128Bit
+					byte[] out = new byte[16];
+					for (int i = 0; i < 16; i++) out[i] = (byte) (values[offset + i / 8] >>> ((i % 8) * 8));
+					yield out;
+				}
+				case BITS_256, BITS_512 -> {
+					ByteBuffer buffer = ByteBuffer.allocate(width / 8);
+					for (int i = offset; i < layout.getEnd(index); i++) buffer.putLong(values[i]);
+					yield buffer.array();
+				}
+				case FLEXIBLE -> flexibleBytes();
+			};
+		}
+
+		/**
+		 * Unpacks the bytes of a register of any width, which are right-aligned in its longs.
+		 *
+		 * @return The contents of the register.
+		 */
+		private byte @NotNull [] flexibleBytes() {
+			int offset = layout.getOffset(index);
+			int words = layout.getEnd(index) - offset;
+			byte[] out = new byte[Math.ceilDiv(layout.getWidth(index), 8)];
+			int skip = words * 8 - out.length;
+			for (int i = 0; i < out.length; i++) {
+				int position = skip + i;
+				out[i] = (byte) (values[offset + position / 8] >>> ((7 - position % 8) * 8));
+			}
+			return out;
+		}
+
+		@Override
+		public int size() {
+			return layout.getWidth(index);
+		}
+
+		/**
+		 * Formats the contents of this register exactly like the Register class for this width does.
+		 *
+		 * @return The contents of this register as hex.
+		 */
+		@Override
+		public @NotNull String toHexString() {
+			int offset = layout.getOffset(index);
+			StringBuilder builder = new StringBuilder(18 + layout.getWidth(index) / 4);
+			// A Register512Bit prefixes every long, all others only the whole value
+			if (layout.getKind(index) != Kind.BITS_512) builder.append("0x");
+			switch (layout.getKind(index)) {
+				case FLAG, BITS_4 -> builder.append(Long.toHexString(values[offset]));
+				case BITS_8 -> appendHex(builder, values[offset], 2);
+				case BITS_16 -> appendHex(builder, values[offset], 4);
+				case BITS_32 -> appendHex(builder, values[offset], 8);
+				case BITS_64 -> appendHex(builder, values[offset], 16);
+				case BITS_80 -> {
+					appendHex(builder, values[offset], 16);
+					appendHex(builder, values[offset + 1], 4);
+				}
+				case BITS_128, BITS_256 -> {
+					for (int i = offset; i < layout.getEnd(index); i++) appendHex(builder, values[i], 16);
+				}
+				case BITS_512 -> {
+					for (int i = offset; i < layout.getEnd(index); i++) {
+						builder.append("0x");
+						appendHex(builder, values[i], 16);
+					}
+				}
+				case FLEXIBLE -> {
+					// Like RegisterFlexible, the first byte only gets a single digit if the width leaves half a byte
+					boolean first = (layout.getWidth(index) % 8) >= 4;
+					for (byte current : flexibleBytes()) {
+						if (first) {
+							builder.append(Integer.toHexString(current & 0xff));
+							first = false;
+						} else appendHex(builder, current & 0xff, 2);
+					}
+				}
+			}
+			return builder.toString();
+		}
+	}
+
+	/**
+	 * Collects registers one after another and creates a RegisterFile from them.
+	 */
+	public static final class Builder {
+
+		/**
+		 * The names of the registers added so far.
+		 */
+		private final List<String> names = new ArrayList<>();
+		/**
+		 * The numbers of the registers added so far.
+		 */
+		private final IntList numbers = new IntArrayList();
+		/**
+		 * The widths of the registers added so far.
+		 */
+		private final IntList widths = new IntArrayList();
+		/**
+		 * The kinds of the registers added so far.
+		 */
+		private final List<Kind> kinds = new ArrayList<>();
+		/**
+		 * The values of the registers added so far.
+		 */
+		private long[] values = new long[64];
+		/**
+		 * How many longs of the values are used.
+		 */
+		private int length;
+
+		/**
+		 * Adds a register of one of the widths there is a Register class for.
+		 * Values of up to 64 bits are given as a single long, wider values as longs starting with the most significant one.
+		 * An 80-bit register is given as its lower 64 and its upper 16 bits, just like for a Register80Bit.
+		 *
+		 * @param name           The name of the register.
+		 * @param registerNumber The number used to order registers of the same name, or -1.
+		 * @param width          The width of the register, which must be 4, 8, 16, 32, 64, 80, 128, 256 or 512.
+		 * @param words          The value of the register.
+		 * @return This builder.
+		 * @throws IllegalArgumentException When there is no Register class for this width or the wrong number of longs is given.
+		 */
+		@NotNull
+		public Builder add(@NotNull String name, int registerNumber, int width, long @NotNull ... words) throws IllegalArgumentException {
+			Kind kind = Kind.forWidth(width);
+			if (kind == Kind.FLEXIBLE) throw new IllegalArgumentException("Registers of width " + width + " need to be given as bytes");
+			if (words.length != kind.words(width)) throw new IllegalArgumentException("Wrong number of values for width " + width);
+			int offset = append(name, registerNumber, width, kind);
+			System.arraycopy(words, 0, values, offset, words.length);
+			// The narrow widths are kept in the same types the Register classes use
+			switch (kind) {
+				case BITS_4, BITS_8 -> values[offset] &= 0xff;
+				case BITS_16 -> values[offset] &= 0xffff;
+				case BITS_32 -> values[offset] &= 0xffffffffL;
+				case BITS_80 -> values[offset + 1] &= 0xffff;
+				default -> {
+				}
+			}
+			return this;
+		}
+
+		/**
+		 * Adds a register of any width, given as big-endian bytes like for a RegisterFlexible.
+		 *
+		 * @param name           The name of the register.
+		 * @param registerNumber The number used to order registers of the same name, or -1.
+		 * @param width          The width of the register in bits.
+		 * @param content        The value of the register, which may have less bytes than the width requires.
+		 * @return This builder.
+		 * @throws IllegalArgumentException When the content doesn't fit into the width.
+		 */
+		@NotNull
+		public Builder add(@NotNull String name, int registerNumber, int width, byte @NotNull [] content) throws IllegalArgumentException {
+			int byteSize = Math.ceilDiv(width, 8);
+			if (byteSize < content.length) throw new IllegalArgumentException("Content does not fit in specified register width");
+			int offset = append(name, registerNumber, width, Kind.FLEXIBLE);
+			int end = offset + Kind.FLEXIBLE.words(width);
+			// Right-aligned, so the last byte ends up in the lowest bits of the last long
+			for (int i = 0; i < content.length; i++) {
+				int position = (end - offset) * 8 - content.length + i;
+				values[offset + position / 8] |= (content[i] & 0xffL) << ((7 - position % 8) * 8);
+			}
+			return this;
+		}
+
+		/**
+		 * Adds a single bit, like a FlagRegister.
+		 *
+		 * @param name           The name of the register.
+		 * @param registerNumber The number used to order registers of the same name, or -1.
+		 * @param flag           Whether the bit is set.
+		 * @return This builder.
+		 */
+		@NotNull
+		public Builder addFlag(@NotNull String name, int registerNumber, boolean flag) {
+			int offset = append(name, registerNumber, 1, Kind.FLAG);
+			values[offset] = flag ? 1 : 0;
+			return this;
+		}
+
+		/**
+		 * Adds a register of another file without changing its representation.
+		 *
+		 * @param file  The file holding the register.
+		 * @param index The index of the register.
+		 */
+		private void copy(@NotNull RegisterFile file, int index) {
+			RegisterLayout layout = file.layout;
+			int offset = append(layout.getName(index), layout.getRegisterNumber(index), layout.getWidth(index), layout.getKind(index));
+			System.arraycopy(file.values, layout.getOffset(index), values, offset, layout.getEnd(index) - layout.getOffset(index));
+		}
+
+		/**
+		 * Adds a register to the layout and reserves space for its value.
+		 *
+		 * @param name           The name of the register.
+		 * @param registerNumber The number of the register.
+		 * @param width          The width of the register.
+		 * @param kind           How the value gets stored.
+		 * @return Where the value of the register starts.
+		 */
+		private int append(@NotNull String name, int registerNumber, int width, @NotNull Kind kind) {
+			names.add(name);
+			numbers.add(registerNumber);
+			widths.add(width);
+			kinds.add(kind);
+			int offset = length;
+			length += kind.words(width);
+			if (length > values.length) values = Arrays.copyOf(values, Math.max(length, values.length * 2));
+			return offset;
+		}
+
+		/**
+		 * Creates the file from all registers added so far.
+		 * The layout gets shared with all other files with the same registers.
+		 *
+		 * @return The created file.
+		 */
+		@NotNull
+		public RegisterFile build() {
+			RegisterLayout layout = RegisterLayout.of(names.toArray(String[]::new), numbers.toIntArray(), widths.toIntArray(), kinds.toArray(Kind[]::new));
+			return new RegisterFile(layout, Arrays.copyOf(values, length));
+		}
+	}
+}
@@ -0,0 +1,330 @@
+package edu.kit.unwwi.checkpoints.qemu.models.registers;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serial;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The names, widths and positions of all registers of a CPU, as used by a RegisterFile.
+ * All CPUs of the same architecture print the same registers, so layouts get interned
+ * and every RegisterFile of such a CPU shares a single layout, only adding its own values.
+ */
+public final class RegisterLayout implements Serializable {
+
+	/**
+	 * All layouts created so far.
+	 */
+	private static final Map<RegisterLayout, RegisterLayout> LAYOUTS = new ConcurrentHashMap<>();
+
+	/**
+	 * The names of the registers.
+	 */
+	private final String[] names;
+	/**
+	 * The numbers used to order registers of the same name, or -1 for registers without one.
+	 */
+	private final int[] numbers;
+	/**
+	 * The widths of the registers in bits.
+	 */
+	private final int[] widths;
+	/**
+	 * How the values of the registers are stored.
+	 */
+	private final Kind[] kinds;
+	/**
+	 * Where the value of each register starts in the values of a RegisterFile.
+	 * Holds one more entry for the end of the last register.
+	 */
+	private final int[] offsets;
+	/**
+	 * The hash of this layout, as layouts are mostly used as keys.
+	 */
+	private final int hash;
+
+	/**
+	 * Create a new layout.
+	 *
+	 * @param names   The names of the registers.
+	 * @param numbers The numbers of the registers.
+	 * @param widths  The widths of the registers in bits.
+	 * @param kinds   How the values of the registers are stored.
+	 */
+	private RegisterLayout(@NotNull String @NotNull [] names, int @NotNull [] numbers, int @NotNull [] widths, @NotNull Kind @NotNull [] kinds) {
+		this.names = names;
+		this.numbers = numbers;
+		this.widths = widths;
+		this.kinds = kinds;
+		this.offsets = new int[names.length + 1];
+		for (int i = 0; i < names.length; i++) offsets[i + 1] = offsets[i] + kinds[i].words(widths[i]);
+		this.hash = 31 * (31 * (31 * Arrays.hashCode(names) + Arrays.hashCode(numbers)) + Arrays.hashCode(widths)) + Arrays.hashCode(kinds);
+	}
+
+	/**
+	 * Get the layout with the given registers, which is only created if no equal one exists yet.
+	 *
+	 * @param names   The names of the registers.
+	 * @param numbers The numbers of the registers.
+	 * @param widths  The widths of the registers in bits.
+	 * @param kinds   How the values of the registers are stored.
+	 * @return The shared layout.
+	 */
+	@NotNull
+	static RegisterLayout of(@NotNull String @NotNull [] names, int @NotNull [] numbers, int @NotNull [] widths, @NotNull Kind @NotNull [] kinds) {
+		return LAYOUTS.computeIfAbsent(new RegisterLayout(names, numbers, widths, kinds), layout -> layout);
+	}
+
+	/**
+	 * How many registers this layout has.
+	 *
+	 * @return The number of registers.
+	 */
+	public int size() {
+		return names.length;
+	}
+
+	/**
+	 * How many longs the values of all registers take up.
+	 *
+	 * @return The length of the values of a RegisterFile with this layout.
+	 */
+	public int words() {
+		return offsets[names.length];
+	}
+
+	/**
+	 * The name of a register.
+	 *
+	 * @param index The index of the register.
+	 * @return The name of the register.
+	 */
+	@NotNull
+	public String getName(int index) {
+		return names[index];
+	}
+
+	/**
+	 * The number used to order registers of the same name.
+	 *
+	 * @param index The index of the register.
+	 * @return The number of the register, or -1 if it has none.
+	 */
+	public int getRegisterNumber(int index) {
+		return numbers[index];
+	}
+
+	/**
+	 * The width of a register.
+	 *
+	 * @param index The index of the register.
+	 * @return The width of the register in bits.
+	 */
+	public int getWidth(int index) {
+		return widths[index];
+	}
+
+	/**
+	 * Finds the first register with the given name.
+	 *
+	 * @param name The name of the register.
+	 * @return The index of the register, or -1 if there is none.
+	 */
+	public int indexOf(@NotNull String name) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(name)) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * How the value of a register is stored.
+	 *
+	 * @param index The index of the register.
+	 * @return The kind of the register.
+	 */
+	@NotNull
+	Kind getKind(int index) {
+		return kinds[index];
+	}
+
+	/**
+	 * Where the value of a register starts.
+	 *
+	 * @param index The index of the register.
+	 * @return The index of the first long of the register.
+	 */
+	int getOffset(int index) {
+		return offsets[index];
+	}
+
+	/**
+	 * Where the value of a register ends.
+	 *
+	 * @param index The index of the register.
+	 * @return The index after the last long of the register.
+	 */
+	int getEnd(int index) {
+		return offsets[index + 1];
+	}
+
+	/**
+	 * Writes this layout in a compact binary form, which can be read again using read.
+	 *
+	 * @param out Where to write the layout to.
+	 * @throws IOException When writing failed.
+	 */
+	public void write(@NotNull DataOutput out) throws IOException {
+		out.writeInt(names.length);
+		for (int i = 0; i < names.length; i++) {
+			out.writeUTF(names[i]);
+			out.writeInt(numbers[i]);
+			out.writeInt(widths[i]);
+			out.writeByte(kinds[i].ordinal());
+		}
+	}
+
+	/**
+	 * Reads a layout written by write.
+	 *
+	 * @param in Where to read the layout from.
+	 * @return The shared layout with the read registers.
+	 * @throws IOException When reading failed or the data is no valid layout.
+	 */
+	@NotNull
+	public static RegisterLayout read(@NotNull DataInput in) throws IOException {
+		int size = in.readInt();
+		if (size < 0) throw new IOException("Invalid number of registers: " + size);
+		String[] names = new String[size];
+		int[] numbers = new int[size];
+		int[] widths = new int[size];
+		Kind[] kinds = new Kind[size];
+		Kind[] known = Kind.values();
+		for (int i = 0; i < size; i++) {
+			names[i] = in.readUTF();
+			numbers[i] = in.readInt();
+			widths[i] = in.readInt();
+			int kind = in.readUnsignedByte();
+			if (kind >= known.length) throw new IOException("Unknown kind of register: " + kind);
+			kinds[i] = known[kind];
+		}
+		return of(names, numbers, widths, kinds);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (!(o instanceof RegisterLayout layout)) return false;
+		return hash == layout.hash && Arrays.equals(names, layout.names) && Arrays.equals(numbers, layout.numbers)
+				&& Arrays.equals(widths, layout.widths) && Arrays.equals(kinds, layout.kinds);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	/**
+	 * Replaces a deserialized layout with the shared one.
+	 *
+	 * @return The shared layout.
+	 */
+	@Serial
+	private Object readResolve() {
+		return LAYOUTS.computeIfAbsent(this, layout -> layout);
+	}
+
+	/**
+	 * How the value of a register gets stored, mirroring the classes used for single registers.
+	 */
+	enum Kind {
+		/**
+		 * A single bit, stored as 0 or 1, like a FlagRegister.
+		 */
+		FLAG,
+		/**
+		 * Like a Register4Bit.
+		 */
+		BITS_4,
+		/**
+		 * Like a Register8Bit.
+		 */
+		BITS_8,
+		/**
+		 * Like a Register16Bit.
+		 */
+		BITS_16,
+		/**
+		 * Like a Register32Bit.
+		 */
+		BITS_32,
+		/**
+		 * Like a Register64Bit.
+		 */
+		BITS_64,
+		/**
+		 * The lower 64 bits followed by the upper 16 bits, like a Register80Bit.
+		 */
+		BITS_80,
+		/**
+		 * Two longs, like a Register128Bit.
+		 */
+		BITS_128,
+		/**
+		 * Four longs, like a Register256Bit.
+		 */
+		BITS_256,
+		/**
+		 * Eight longs, like a Register512Bit.
+		 */
+		BITS_512,
+		/**
+		 * Any other width, stored as big-endian bytes packed into as few longs as possible, like a RegisterFlexible.
+		 */
+		FLEXIBLE;
+
+		/**
+		 * The kind a register of the given width gets parsed as.
+		 *
+		 * @param width The width in bits.
+		 * @return The kind of the register.
+		 */
+		@NotNull
+		static Kind forWidth(int width) {
+			return switch (width) {
+				case 4 -> BITS_4;
+				case 8 -> BITS_8;
+				case 16 -> BITS_16;
+				case 32 -> BITS_32;
+				case 64 -> BITS_64;
+				case 80 -> BITS_80;
+				case 128 -> BITS_128;
+				case 256 -> BITS_256;
+				case 512 -> BITS_512;
+				default -> FLEXIBLE;
+			};
+		}
+
+		/**
+		 * How many longs a register of this kind takes up.
+		 *
+		 * @param width The width of the register in bits.
+		 * @return The number of longs.
+		 */
+		int words(int width) {
+			return switch (this) {
+				case FLAG, BITS_4, BITS_8, BITS_16, BITS_32, BITS_64 -> 1;
+				case BITS_80, BITS_128 -> 2;
+				case BITS_256 -> 4;
+				case BITS_512 -> 8;
+				case FLEXIBLE -> Math.max(1, Math.ceilDiv(Math.ceilDiv(width, 8), 8));
+			};
+		}
+	}
+}
@@ -28,4 +28,15 @@ public interface Command {
 	default void receiveResult(@NotNull Object result) throws IllegalStateException {
 		// Nothing ever happens
 	}
+
+	/**
+	 * Whether this command uses the result QEMU answers with.
+	 * Results of commands which don't need them never get decoded, instead these commands receive JSONObject.NULL.
+	 * Results which are strings get handed over as a CharSequence instead of a String.
+	 *
+	 * @return Whether the result needs to be decoded.
+	 */
+	default boolean needsResult() {
+		return true;
+	}
 }
@@ -0,0 +1,92 @@
+package edu.kit.unwwi.checkpoints.qmp;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The future of a command which was sent to QEMU without waiting for its answer.
+ * It completes with the command once the command received its result.
+ * Cancelling it or letting its deadline pass stops waiting for the answer, which gets discarded should it arrive later.
+ * It also measures how long QEMU took to answer.
+ *
+ * @param <C> The type of the command.
+ */
+public final class CommandFuture<C extends Command> extends CompletableFuture<C> {
+
+	/**
+	 * The command this future completes with.
+	 */
+	private final C command;
+	/**
+	 * When the command was sent, as given by System.nanoTime().
+	 */
+	private final long sent = System.nanoTime();
+	/**
+	 * When the answer arrived, or 0 as long as it didn't.
+	 */
+	private volatile long answered;
+
+	/**
+	 * Create a new future for a command which is about to be sent.
+	 *
+	 * @param command The command to complete with.
+	 */
+	CommandFuture(@NotNull C command) {
+		this.command = command;
+	}
+
+	/**
+	 * Notes that the answer to the command arrived.
+	 * Gets called by the thread reading from QEMU, so it must not do anything else.
+	 */
+	void answered() {
+		answered = System.nanoTime();
+	}
+
+	/**
+	 * Hands the answer to the command and completes this future.
+	 * Does nothing if this future was already cancelled or timed out.
+	 *
+	 * @param result  The result QEMU answered with, or null if the command failed.
+	 * @param failure Why the command failed, or null.
+	 */
+	void receive(@Nullable Object result, @Nullable Throwable failure) {
+		if (isDone()) return;
+		if (failure != null) {
+			completeExceptionally(failure);
+			return;
+		}
+		try {
+			command.receiveResult(result);
+			complete(command);
+		} catch (RuntimeException e) {
+			completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * The command this future completes with.
+	 *
+	 * @return The command.
+	 */
+	@NotNull
+	public C getCommand() {
+		return command;
+	}
+
+	/**
+	 * How long it took from sending the command until its answer arrived.
+	 * Decoding the answer is not included.
+	 *
+	 * @return The latency of the command, or null if no answer arrived yet.
+	 */
+	@Nullable
+	public Duration getLatency() {
+		long answered = this.answered;
+		if (answered == 0) return null;
+		return Duration.ofNanos(answered - sent);
+	}
+}
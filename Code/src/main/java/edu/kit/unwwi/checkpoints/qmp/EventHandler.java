@@ -10,6 +10,8 @@ public interface EventHandler {
 
 	/**
 	 * The method that gets called when the specified event gets received.
+	 * Handlers of all connections of an event loop share a few threads, so this must return quickly.
+	 * Lengthy work has to be left to the thread waiting for the event.
 	 *
 	 * @param event The data of the event.
 	 */
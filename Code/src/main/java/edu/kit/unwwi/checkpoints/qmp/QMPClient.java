@@ -0,0 +1,86 @@
+package edu.kit.unwwi.checkpoints.qmp;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
+
+/**
+ * Anything commands can be sent to and events can be received from, all concerning a single QEMU-instance.
+ * This is either a single connection to a QMP server or a pool of several connections to the same instance.
+ */
+public interface QMPClient {
+
+	/**
+	 * Execute the given command. The command itself will contain the result once this method finishes executing.
+	 * This method itself doesn't check for errors in the data, that's up to the implementation of a command.
+	 * Other threads may execute commands at the same time, which get sent without waiting for this one to be answered.
+	 *
+	 * @param command The command to execute.
+	 * @throws IOException When something went wrong during transmission, QEMU answered with an error
+	 *                     or didn't answer before the default deadline.
+	 */
+	default void executeCommand(@NotNull Command command) throws IOException {
+		QMPInterface.await(executeAsync(command));
+	}
+
+	/**
+	 * Sends the given command without waiting for its answer, using the default deadline.
+	 *
+	 * @param command The command to execute.
+	 * @param <C>     The type of the command.
+	 * @return A future completing with the command once it received its result.
+	 * @see #executeAsync(Command, Duration)
+	 */
+	@NotNull
+	<C extends Command> CommandFuture<C> executeAsync(@NotNull C command);
+
+	/**
+	 * Sends the given command without waiting for its answer.
+	 * Cancelling the future stops waiting for the answer, which then gets discarded.
+	 *
+	 * @param command The command to execute.
+	 * @param timeout How long QEMU may take to answer, or null to wait forever.
+	 * @param <C>     The type of the command.
+	 * @return A future completing with the command once it received its result,
+	 * exceptionally with a TimeoutException when the deadline passed,
+	 * or exceptionally with an IOException when it could not be sent or QEMU answered with an error.
+	 */
+	@NotNull
+	<C extends Command> CommandFuture<C> executeAsync(@NotNull C command, @Nullable Duration timeout);
+
+	/**
+	 * Add a handler which receives specific asynchronous events from the QEMU-instance.
+	 *
+	 * @param handler The receiving handler.
+	 */
+	void registerEventHandler(@NotNull EventHandler handler);
+
+	/**
+	 * Remove a previously added handler from this QEMU-instance.
+	 *
+	 * @param handler The handler to remove.
+	 */
+	void unregisterEventHandler(@NotNull EventHandler handler);
+
+	/**
+	 * Waits for the next event with the given name which matches the filter.
+	 * The handler waiting for the event gets removed as soon as the future completes, no matter how.
+	 * It must be called before the action causing the event, otherwise the event may be missed.
+	 *
+	 * @param name    The name of the event.
+	 * @param filter  Decides whether an event is the one waited for.
+	 * @param timeout How long to wait at most.
+	 * @return A future completing with the event, or exceptionally with a TimeoutException.
+	 */
+	@NotNull
+	CompletableFuture<Event> awaitEvent(@NotNull String name, @NotNull Predicate<Event> filter, @NotNull Duration timeout);
+
+	/**
+	 * Closes all connections to the QEMU-instance, no matter what kind of data is being transmitted.
+	 */
+	void exit();
+}
@@ -0,0 +1,176 @@
+package edu.kit.unwwi.checkpoints.qmp;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single thread serving the connections of many QMPInterfaces using a selector.
+ * This way the monitors of dozens of virtual machines don't require a thread each.
+ * All changes to the registered channels get executed by the thread itself, so it never has to be blocked.
+ * Events get handed to their handlers by a small pool of threads, so slow handlers never delay reading.
+ */
+public class QMPEventLoop implements Closeable {
+
+	/**
+	 * The loop used by all interfaces which were not given one explicitly.
+	 */
+	private static QMPEventLoop SHARED;
+	/**
+	 * How many threads may run event handlers at the same time.
+	 */
+	private static final int DISPATCHER_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * The selector waiting for the channels to become ready.
+	 */
+	private final Selector selector;
+	/**
+	 * Tasks which have to be executed by the thread of this loop.
+	 */
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	/**
+	 * Runs the event handlers of all connections of this loop.
+	 * Its threads get created when needed and end when they were idle for a while.
+	 */
+	private final ThreadPoolExecutor dispatcher = new ThreadPoolExecutor(DISPATCHER_THREADS, DISPATCHER_THREADS, 30, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<>(), Thread.ofPlatform().name("qmp-event-dispatcher-", 0).daemon(true).factory());
+
+	/**
+	 * Whether this loop is still running.
+	 */
+	private volatile boolean running = true;
+
+	/**
+	 * Create a new event loop and start its thread.
+	 *
+	 * @throws IOException When the selector could not be opened.
+	 */
+	public QMPEventLoop() throws IOException {
+		this.selector = Selector.open();
+		dispatcher.allowCoreThreadTimeOut(true);
+		Thread.ofPlatform().name("qmp-event-loop").daemon(true).start(this::run);
+	}
+
+	/**
+	 * Returns the loop used by all interfaces which were not given one explicitly.
+	 * It gets created when it is needed for the first time.
+	 *
+	 * @return The shared event loop.
+	 * @throws IOException When the loop had to be created, but its selector could not be opened.
+	 */
+	@NotNull
+	public static synchronized QMPEventLoop shared() throws IOException {
+		if (SHARED == null) SHARED = new QMPEventLoop();
+		return SHARED;
+	}
+
+	/**
+	 * Executes a task on the thread of this loop.
+	 *
+	 * @param task The task to execute.
+	 */
+	void execute(@NotNull Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs an event handler on one of the dispatcher threads.
+	 *
+	 * @param handler The handler to run.
+	 */
+	void dispatch(@NotNull Runnable handler) {
+		dispatcher.execute(handler);
+	}
+
+	/**
+	 * Registers a connection with this loop, which reads from it from then on.
+	 * The channel must be non-blocking.
+	 *
+	 * @param channel    The channel of the connection.
+	 * @param connection Gets informed when the channel is ready.
+	 * @return A future completing with the key of the channel once it was registered.
+	 */
+	@NotNull
+	CompletableFuture<SelectionKey> register(@NotNull SocketChannel channel, @NotNull Connection connection) {
+		CompletableFuture<SelectionKey> result = new CompletableFuture<>();
+		execute(() -> {
+			try {
+				result.complete(channel.register(selector, SelectionKey.OP_READ, connection));
+			} catch (IOException | RuntimeException e) {
+				result.completeExceptionally(e);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Changes the operations the loop waits for on a channel.
+	 *
+	 * @param key The key of the channel.
+	 * @param ops The operations to wait for.
+	 */
+	void interest(@NotNull SelectionKey key, int ops) {
+		execute(() -> {
+			if (key.isValid()) key.interestOps(ops);
+		});
+	}
+
+	/**
+	 * Waits for channels to become ready and informs their connections until this loop gets closed.
+	 */
+	private void run() {
+		try (selector) {
+			while (running) {
+				selector.select();
+				Runnable task;
+				while ((task = tasks.poll()) != null) task.run();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid()) ((Connection) key.attachment()).ready(key);
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Stops this loop. The connections registered with it don't receive anything afterwards.
+	 */
+	@Override
+	public void close() {
+		running = false;
+		selector.wakeup();
+		dispatcher.shutdown();
+	}
+
+	/**
+	 * A connection served by an event loop.
+	 */
+	interface Connection {
+
+		/**
+		 * Gets called by the loop when the channel of this connection can be read or written without blocking.
+		 * Must never block or throw, as this would stop all other connections of the loop.
+		 *
+		 * @param key The key of the channel, which tells what it is ready for.
+		 */
+		void ready(@NotNull SelectionKey key);
+	}
+}
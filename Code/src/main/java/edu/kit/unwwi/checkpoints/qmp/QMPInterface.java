@@ -1,105 +1,305 @@
 package edu.kit.unwwi.checkpoints.qmp;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.json.JSONObject;
 
-import java.io.*;
-import java.net.Socket;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.Collection;
-import java.util.Vector;
-import java.util.concurrent.locks.Condition;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
 /**
  * The class representing the connection to the QMP server.
  * Sends requests and handles all incoming data, including asynchronous events which may occur.
- * For this, it uses a pure socket which uses Telnet to communicate with the host.
+ * The server may either listen on TCP or on a Unix domain socket.
+ * Every request gets tagged with an id, which QEMU copies to its response.
+ * This way many commands of different threads may be in flight at once and their results get matched by the id.
+ * The incoming data gets read by an event loop, which may serve the connections to many QEMU-instances with a single thread.
  */
-public class QMPInterface {
+public final class QMPInterface implements QMPClient, QMPEventLoop.Connection {
 
 	/**
-	 * The socket used for the Telnet-connection.
-	 * Is kept for closing the connection.
+	 * The size of the buffer the incoming data gets read into.
 	 */
-	private final Socket socket;
+	private static final int INPUT_BUFFER_SIZE = 1 << 16;
 	/**
-	 * The OutputStream for sending commands to the server.
+	 * How long commands may take to be answered unless a different deadline was given.
+	 * Null if commands may take forever.
 	 */
-	private final OutputStream out;
+	private static Duration TIMEOUT = Duration.ofSeconds(60);
+
 	/**
-	 * The lock used to make sure only one command accesses the OutputStream at a time.
+	 * The channel connected to the server.
 	 */
-	private final Lock accessLock = new ReentrantLock();
+	private final SocketChannel channel;
 	/**
-	 * The lock used to wait for an answer from QEMU.
+	 * The event loop reading from the channel.
 	 */
-	private final Lock answerLock = new ReentrantLock();
+	private final QMPEventLoop loop;
 	/**
-	 * Condition used for waiting on server replies.
+	 * The key of the channel in the selector of the event loop.
 	 */
-	private final Condition awaitAnswer = answerLock.newCondition();
+	private final SelectionKey key;
 	/**
-	 * All handlers currently registered to listen for events.
+	 * The buffer the incoming data gets read into, which is reused for every read.
 	 */
-	private final Collection<EventHandler> handlers = new Vector<>();
-
+	private final ByteBuffer input = ByteBuffer.allocateDirect(INPUT_BUFFER_SIZE);
+	/**
+	 * The requests which could not yet be sent because the socket buffer was full, in order.
+	 */
+	private final Queue<ByteBuffer> output = new ArrayDeque<>();
+	/**
+	 * The lock used to make sure only one command writes to the channel at a time.
+	 * It only gets held while sending, not while waiting for the answer.
+	 */
+	private final Lock accessLock = new ReentrantLock();
+	/**
+	 * All handlers currently registered to listen for events, by the name of the event.
+	 * Handlers may be added or removed while an event gets dispatched.
+	 */
+	private final Map<String, Set<EventHandler>> handlers = new ConcurrentHashMap<>();
 	/**
-	 * The last result which was received.
+	 * The id the next request gets tagged with.
 	 */
-	private volatile Object lastResult;
+	private final AtomicLong nextId = new AtomicLong();
+	/**
+	 * The results of all requests which were sent but not yet answered, by their id.
+	 */
+	private final Map<Long, Request> pending = new ConcurrentHashMap<>();
+
 	/**
 	 * Whether the client is to be terminated.
 	 */
 	private volatile boolean exit = false;
+	/**
+	 * Whether the connection was lost, after which no request can be answered anymore.
+	 */
+	private volatile boolean closed = false;
+	/**
+	 * The line which is currently received, as long as it is split between several reads.
+	 * Only used by the event loop.
+	 */
+	private byte[] line = new byte[INPUT_BUFFER_SIZE];
+	/**
+	 * How many bytes of the current line were received.
+	 */
+	private int lineLength;
 
 	/**
+	 * Connects to a QMP server listening on TCP.
+	 *
 	 * @param host The host where the QMP server runs. Is probably localhost in most cases.
 	 * @param port The port the host listens on.
 	 * @throws IOException When the connection couldn't be established.
 	 */
 	public QMPInterface(@NotNull String host, int port) throws IOException {
-		socket = new Socket(host, port);
-		out = socket.getOutputStream();
-		out.write("{ \"execute\": \"qmp_capabilities\" }".getBytes(StandardCharsets.UTF_8));
-		answerLock.lock();
-		Thread listener = new Thread(new Reader(socket.getInputStream()));
-		listener.setDaemon(true);
-		listener.start();
-		awaitAnswer.awaitUninterruptibly();
-		answerLock.unlock();
+		this(new InetSocketAddress(host, port), QMPEventLoop.shared());
+	}
+
+	/**
+	 * Connects to a QMP server listening on a Unix domain socket, as created by "-qmp unix:PATH,server".
+	 *
+	 * @param socket The path of the socket.
+	 * @throws IOException When the connection couldn't be established.
+	 */
+	public QMPInterface(@NotNull Path socket) throws IOException {
+		this(UnixDomainSocketAddress.of(socket), QMPEventLoop.shared());
+	}
+
+	/**
+	 * Connects to a QMP server at the given address.
+	 *
+	 * @param address The address of the server, either an InetSocketAddress or a UnixDomainSocketAddress.
+	 * @param loop    The event loop reading from the connection.
+	 * @throws IOException When the connection couldn't be established.
+	 */
+	public QMPInterface(@NotNull SocketAddress address, @NotNull QMPEventLoop loop) throws IOException {
+		this.channel = SocketChannel.open(address);
+		this.loop = loop;
+		try {
+			channel.configureBlocking(false);
+			this.key = loop.register(channel, this).join();
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		} catch (CompletionException e) {
+			channel.close();
+			if (e.getCause() instanceof IOException io) throw io;
+			else throw e;
+		}
+		await(send("{ \"execute\": \"qmp_capabilities\" }", false));
+	}
+
+	@Override
+	@NotNull
+	public <C extends Command> CommandFuture<C> executeAsync(@NotNull C command) {
+		return executeAsync(command, TIMEOUT);
 	}
 
 	/**
-	 * Execute the given command. The command itself will contain the result once this method finishes executing.
-	 * This method itself doesn't check for errors in the data, that's up to the implementation of a command.
+	 * Sends the given command without waiting for its answer.
+	 * Once the answer arrived, it gets handed to the command outside the thread reading from QEMU,
+	 * so parsing large answers never delays the answers of other commands.
+	 * Cancelling the future stops waiting for the answer, which then gets discarded.
 	 *
 	 * @param command The command to execute.
-	 * @throws IOException When something went wrong during transmission.
+	 * @param timeout How long QEMU may take to answer, or null to wait forever.
+	 * @param <C>     The type of the command.
+	 * @return A future completing with the command once it received its result,
+	 * exceptionally with a TimeoutException when the deadline passed,
+	 * or exceptionally with an IOException when it could not be sent or QEMU answered with an error.
+	 */
+	@Override
+	@NotNull
+	public <C extends Command> CommandFuture<C> executeAsync(@NotNull C command, @Nullable Duration timeout) {
+		CommandFuture<C> future = new CommandFuture<>(command);
+		try {
+			CompletableFuture<Object> answer = send(command.toJson(), command.needsResult());
+			// The deadline only covers waiting for QEMU, not decoding the answer
+			if (timeout != null) answer.orTimeout(timeout.toNanos(), TimeUnit.NANOSECONDS);
+			answer.whenComplete((_, failure) -> {
+				if (failure == null) future.answered();
+			});
+			answer.whenCompleteAsync(future::receive);
+			// Stops waiting for the answer when the future got cancelled
+			future.whenComplete((_, _) -> answer.cancel(false));
+		} catch (IOException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Sets how long commands may take to be answered unless a different deadline was given.
+	 * Applies to all interfaces.
+	 *
+	 * @param timeout The default deadline, or null to wait forever.
 	 */
-	public void executeCommand(@NotNull Command command) throws IOException {
-		byte[] request = command.toJson().getBytes(StandardCharsets.UTF_8);
+	public static void setTimeout(@Nullable Duration timeout) {
+		if (timeout != null && (timeout.isNegative() || timeout.isZero()))
+			throw new IllegalArgumentException("Timeout must be positive");
+		TIMEOUT = timeout;
+	}
+
+	/**
+	 * Tags a request with a new id and sends it.
+	 *
+	 * @param request     The JSON of the request, which must be an object.
+	 * @param needsResult Whether the result of the request has to be decoded.
+	 * @return The future receiving the answer to the request.
+	 * @throws IOException When the request could not be sent.
+	 */
+	@NotNull
+	private CompletableFuture<Object> send(@NotNull String request, boolean needsResult) throws IOException {
+		String json = request.strip();
+		if (!json.startsWith("{")) throw new IllegalArgumentException("A request must be a JSON object: " + json);
+		long id = nextId.getAndIncrement();
+		CompletableFuture<Object> result = new CompletableFuture<>();
+		pending.put(id, new Request(result, needsResult));
+		// Requests which were cancelled must not wait for their answer anymore
+		result.whenComplete((_, _) -> pending.remove(id));
+		// The reader fails all pending requests after setting closed, so this request either gets failed there or here
+		if (closed) {
+			pending.remove(id);
+			throw new IOException("The connection to QEMU was closed");
+		}
+		ByteBuffer bytes = ByteBuffer.wrap(("{ \"id\": " + id + ", " + json.substring(1)).getBytes(StandardCharsets.UTF_8));
 		accessLock.lock();
-		answerLock.lock();
-		out.write(request);
-		awaitAnswer.awaitUninterruptibly();
-		Object result = lastResult;
-		answerLock.unlock();
-		accessLock.unlock();
-		command.receiveResult(result);
+		try {
+			if (output.isEmpty()) channel.write(bytes);
+			if (bytes.hasRemaining()) {
+				// The socket buffer is full, so the event loop sends the rest once it was drained
+				if (output.isEmpty()) loop.interest(key, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				output.add(bytes);
+			}
+		} catch (IOException e) {
+			pending.remove(id);
+			throw e;
+		} finally {
+			accessLock.unlock();
+		}
+		return result;
+	}
+
+	/**
+	 * Waits for the answer to a request without being interruptible, just like a blocking read.
+	 *
+	 * @param result The future receiving the answer.
+	 * @param <T>    The type of the answer.
+	 * @return The answer of QEMU.
+	 * @throws IOException When the connection was lost, QEMU answered with an error or didn't answer in time.
+	 */
+	static <T> T await(@NotNull CompletableFuture<T> result) throws IOException {
+		try {
+			return result.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof IOException io) throw io;
+			else if (e.getCause() instanceof TimeoutException) throw new IOException("QEMU did not answer in time", e.getCause());
+			else throw e;
+		}
 	}
 
 	/**
 	 * Informs this Interface to shut down.
 	 * Calling this method will lead this interface to kill the connections, no matter what kind of data is being transmitted.
 	 */
+	@Override
 	public void exit() {
 		exit = true;
+		close(null);
+	}
+
+	/**
+	 * How many requests were sent on this connection, but not yet answered.
+	 *
+	 * @return The number of pending requests.
+	 */
+	int pendingRequests() {
+		return pending.size();
+	}
+
+	/**
+	 * Whether this connection was closed, after which it can't send any requests anymore.
+	 *
+	 * @return Whether the connection is closed.
+	 */
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Closes the connection and fails all requests which are still waiting for an answer.
+	 *
+	 * @param cause Why the connection was closed, or null if it was closed on purpose.
+	 */
+	private void close(@Nullable IOException cause) {
+		if (closed) return;
+		closed = true;
 		try {
-			socket.close();
+			channel.close();
 		} catch (IOException _) {
 		}
+		IOException failure = new IOException("The connection to QEMU was closed", cause);
+		pending.values().forEach(request -> request.result().completeExceptionally(failure));
+		pending.clear();
 	}
 
 	/**
@@ -107,8 +307,13 @@ public class QMPInterface {
 	 *
 	 * @param handler The receiving handler.
 	 */
+	@Override
 	public void registerEventHandler(@NotNull EventHandler handler) {
-		this.handlers.add(handler);
+		handlers.compute(handler.eventName(), (_, registered) -> {
+			if (registered == null) registered = ConcurrentHashMap.newKeySet();
+			registered.add(handler);
+			return registered;
+		});
 	}
 
 	/**
@@ -116,62 +321,160 @@ public class QMPInterface {
 	 *
 	 * @param handler The handler to remove.
 	 */
+	@Override
 	public void unregisterEventHandler(@NotNull EventHandler handler) {
-		this.handlers.remove(handler);
+		handlers.computeIfPresent(handler.eventName(), (_, registered) -> {
+			registered.remove(handler);
+			return registered.isEmpty() ? null : registered;
+		});
 	}
 
 	/**
-	 * Reads the input asynchronously to receive asynchronous events sent by QEMU.
+	 * Waits for the next event with the given name which matches the filter.
+	 * The handler waiting for the event gets removed as soon as the future completes, no matter how.
+	 * It must be called before the action causing the event, otherwise the event may be missed.
+	 *
+	 * @param name    The name of the event.
+	 * @param filter  Decides whether an event is the one waited for.
+	 * @param timeout How long to wait at most.
+	 * @return A future completing with the event, or exceptionally with a TimeoutException.
 	 */
-	private class Reader implements Runnable {
+	@Override
+	@NotNull
+	public CompletableFuture<Event> awaitEvent(@NotNull String name, @NotNull Predicate<Event> filter, @NotNull Duration timeout) {
+		CompletableFuture<Event> result = new CompletableFuture<>();
+		EventHandler handler = new EventHandler() {
+			@Override
+			public void handleEvent(@NotNull Event event) {
+				try {
+					if (filter.test(event)) result.complete(event);
+				} catch (RuntimeException e) {
+					result.completeExceptionally(e);
+				}
+			}
 
-		/**
-		 * The buffer to read from input.
-		 */
-		private final BufferedReader in;
+			@Override
+			public @NotNull String eventName() {
+				return name;
+			}
+		};
+		registerEventHandler(handler);
+		result.orTimeout(timeout.toNanos(), TimeUnit.NANOSECONDS).whenComplete((_, _) -> unregisterEventHandler(handler));
+		return result;
+	}
 
-		/**
-		 * Constructs a new asynchronous reader, which then must be started.
-		 *
-		 * @param in The InputStream to read from.
-		 */
-		Reader(@NotNull InputStream in) {
-			this.in = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+	@Override
+	public void ready(@NotNull SelectionKey key) {
+		try {
+			if (key.isWritable()) flush();
+			if (key.isReadable()) read();
+		} catch (IOException e) {
+			close(e);
+		} catch (RuntimeException e) {
+			close(new IOException("Received invalid data from QEMU", e));
 		}
+	}
 
-		/**
-		 * Keeps reading data from the socket until exit gets set.
-		 */
-		@Override
-		public void run() {
-			while (!exit) {
-				try {
-					String response = in.readLine();
-					answerLock.lock();
-					JSONObject json = new JSONObject(response);
-					if (json.has("return")) {
-						lastResult = json.get("return");
-						awaitAnswer.signalAll();
-					} else if (json.has("event")) {
-						String name = json.getString("event");
-						JSONObject data = null;
-						if (json.has("data")) data = json.getJSONObject("data");
-						long seconds = json.getJSONObject("timestamp").getLong("seconds");
-						int microseconds = json.getJSONObject("timestamp").getInt("microseconds");
-						Event event = new Event(name, data, seconds, microseconds);
-						new Thread(() -> handleEvent(event)).start();
-					} else if (json.has("error")) {
-						System.err.println(json.get("error"));
+	/**
+	 * Sends the requests which did not fit into the socket buffer before.
+	 * Once all were sent, the event loop stops waiting for the channel to become writable.
+	 *
+	 * @throws IOException When writing failed.
+	 */
+	private void flush() throws IOException {
+		accessLock.lock();
+		try {
+			while (!output.isEmpty()) {
+				channel.write(output.peek());
+				if (output.peek().hasRemaining()) return;
+				output.remove();
+			}
+			key.interestOps(SelectionKey.OP_READ);
+		} finally {
+			accessLock.unlock();
+		}
+	}
+
+	/**
+	 * Reads everything currently available from the channel and handles every complete line.
+	 * Lines which arrived in a single read get decoded directly from the input buffer,
+	 * only lines which are split between reads get collected until they are complete.
+	 *
+	 * @throws IOException When reading failed.
+	 */
+	private void read() throws IOException {
+		int read;
+		while ((read = channel.read(input.clear())) > 0) {
+			input.flip();
+			int start = 0;
+			for (int i = 0; i < input.limit(); i++) {
+				if (input.get(i) == '\n') {
+					if (lineLength == 0) {
+						handleMessage(input.slice(start, i - start));
+					} else {
+						append(start, i - start);
+						handleMessage(ByteBuffer.wrap(line, 0, lineLength));
+						lineLength = 0;
 					}
-					answerLock.unlock();
-				} catch (IOException e) {
-					throw new UncheckedIOException(e);
+					start = i + 1;
 				}
 			}
+			append(start, input.limit() - start);
 		}
+		if (read < 0) close(exit ? null : new EOFException("QEMU closed the connection"));
+	}
 
-		private void handleEvent(Event event) {
-			handlers.stream().filter(x -> x.eventName().equals(event.getName())).forEach(handler -> Thread.ofVirtual().start(() -> handler.handleEvent(event)));
+	/**
+	 * Appends a part of the input buffer to the current line.
+	 *
+	 * @param start  Where the part starts in the input buffer.
+	 * @param length The length of the part.
+	 */
+	private void append(int start, int length) {
+		if (lineLength + length > line.length) line = Arrays.copyOf(line, Math.max(lineLength + length, 2 * line.length));
+		input.get(start, line, lineLength, length);
+		lineLength += length;
+	}
+
+	/**
+	 * Handles a single message received from QEMU.
+	 * Answers complete the request waiting for them, events get handed to all registered handlers.
+	 * Only the parts of the message which are needed get decoded.
+	 *
+	 * @param bytes The message, which is a JSON object.
+	 */
+	private void handleMessage(@NotNull ByteBuffer bytes) {
+		if (QMPMessage.isBlank(bytes)) return;
+		QMPMessage message = new QMPMessage(bytes);
+		if (message.has(QMPMessage.Key.RETURN) || message.has(QMPMessage.Key.ERROR)) {
+			Request request = message.has(QMPMessage.Key.ID) ? pending.remove(message.getLong(QMPMessage.Key.ID)) : null;
+			if (message.has(QMPMessage.Key.RETURN)) {
+				if (request != null) request.result().complete(request.needsResult() ? message.getValue(QMPMessage.Key.RETURN) : JSONObject.NULL);
+			} else {
+				JSONObject error = (JSONObject) message.getValue(QMPMessage.Key.ERROR);
+				// Errors without a known id, like errors for unparseable requests, get printed and discarded
+				if (request == null) System.err.println(error);
+				else request.result().completeExceptionally(new IOException("QEMU answered with " + error.optString("class") + ": " + error.optString("desc")));
+			}
+		} else if (message.has(QMPMessage.Key.EVENT)) {
+			String name = message.getString(QMPMessage.Key.EVENT).toString();
+			JSONObject data = null;
+			if (message.has(QMPMessage.Key.DATA)) data = (JSONObject) message.getValue(QMPMessage.Key.DATA);
+			JSONObject timestamp = (JSONObject) message.getValue(QMPMessage.Key.TIMESTAMP);
+			Event event = new Event(name, data, timestamp.getLong("seconds"), timestamp.getInt("microseconds"));
+			Set<EventHandler> registered = handlers.get(name);
+			if (registered != null) {
+				for (EventHandler handler : registered) loop.dispatch(() -> handler.handleEvent(event));
+			}
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * A request which was sent but not yet answered.
+	 *
+	 * @param result      The future receiving the answer.
+	 * @param needsResult Whether the result has to be decoded.
+	 */
+	private record Request(@NotNull CompletableFuture<Object> result, boolean needsResult) {
+	}
+}
@@ -0,0 +1,344 @@
+package edu.kit.unwwi.checkpoints.qmp;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONTokener;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A single message received from QEMU, decoded directly from the bytes it arrived in.
+ * When the message gets created, only its top-level keys get decoded and the positions of their values get noted.
+ * Each value then only gets decoded when it is requested, so values nobody needs are skipped entirely
+ * and strings get decoded into a single character array without building a tree of JSON objects first.
+ * The message is only valid as long as the buffer it was read from does not change,
+ * which is why every decoded value gets copied out of the buffer.
+ */
+final class QMPMessage {
+
+	/**
+	 * The bytes of the message.
+	 */
+	private final ByteBuffer data;
+	/**
+	 * Where the value of each key starts, or -1 if the message does not contain the key.
+	 */
+	private final int[] starts = new int[Key.values().length];
+	/**
+	 * Where the value of each key ends.
+	 */
+	private final int[] ends = new int[Key.values().length];
+
+	/**
+	 * Locates the values of all top-level keys of a message.
+	 *
+	 * @param data The bytes of the message, from the position to the limit of the buffer.
+	 * @throws IllegalArgumentException When the message is no JSON object.
+	 */
+	QMPMessage(@NotNull ByteBuffer data) throws IllegalArgumentException {
+		this.data = data;
+		Arrays.fill(starts, -1);
+		int position = skipWhitespace(data.position());
+		expect(position++, '{');
+		position = skipWhitespace(position);
+		if (position < data.limit() && data.get(position) == '}') return;
+		while (true) {
+			position = skipWhitespace(position);
+			int keyStart = position;
+			position = skipString(position);
+			Key key = Key.find(data, keyStart + 1, position - 1);
+			position = skipWhitespace(position);
+			expect(position++, ':');
+			position = skipWhitespace(position);
+			int valueStart = position;
+			position = skipValue(position);
+			if (key != null) {
+				starts[key.ordinal()] = valueStart;
+				ends[key.ordinal()] = position;
+			}
+			position = skipWhitespace(position);
+			if (position < data.limit() && data.get(position) == ',') position++;
+			else {
+				expect(position, '}');
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Whether a line contains nothing but whitespace.
+	 *
+	 * @param data The line, from the position to the limit of the buffer.
+	 * @return Whether the line is blank.
+	 */
+	static boolean isBlank(@NotNull ByteBuffer data) {
+		for (int i = data.position(); i < data.limit(); i++) {
+			byte current = data.get(i);
+			if (current != ' ' && current != '\t' && current != '\r' && current != '\n') return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Whether the message contains the given key.
+	 *
+	 * @param key The key to look for.
+	 * @return Whether the key is present.
+	 */
+	boolean has(@NotNull Key key) {
+		return starts[key.ordinal()] >= 0;
+	}
+
+	/**
+	 * Whether the value of a key is a string.
+	 *
+	 * @param key The key to check.
+	 * @return Whether the key is present and its value is a string.
+	 */
+	boolean isString(@NotNull Key key) {
+		return has(key) && data.get(starts[key.ordinal()]) == '"';
+	}
+
+	/**
+	 * Decodes the value of a key which is an integer.
+	 *
+	 * @param key The key to decode.
+	 * @return The value of the key.
+	 * @throws NumberFormatException When the value is no integer.
+	 */
+	long getLong(@NotNull Key key) throws NumberFormatException {
+		int start = starts[key.ordinal()];
+		if (start < 0) throw new IllegalArgumentException("Message contains no " + key.name);
+		return Long.parseLong(text(start, ends[key.ordinal()]));
+	}
+
+	/**
+	 * Decodes the value of a key which is a string.
+	 * The string gets decoded straight from the bytes of the message into a single character array,
+	 * which gets returned without copying it into a String.
+	 * Decoding lazily over the bytes instead would save this one copy, but the result gets handed to the thread
+	 * waiting for the command while the reading thread already fills the same input buffer with the next messages.
+	 * This copy is therefore the only one the string ever gets, as long as the command parses it as a CharSequence.
+	 *
+	 * @param key The key to decode.
+	 * @return The decoded string.
+	 * @throws IllegalArgumentException When the value is no string.
+	 */
+	@NotNull
+	CharSequence getString(@NotNull Key key) throws IllegalArgumentException {
+		if (!isString(key)) throw new IllegalArgumentException("The value of " + key.name + " is no string");
+		int end = ends[key.ordinal()] - 1;
+		// Every byte becomes at most a single character
+		char[] result = new char[end - starts[key.ordinal()] - 1];
+		int length = 0;
+		for (int i = starts[key.ordinal()] + 1; i < end; i++) {
+			int current = data.get(i);
+			if (current == '\\') {
+				char escaped = (char) data.get(++i);
+				result[length++] = switch (escaped) {
+					case 'b' -> '\b';
+					case 'f' -> '\f';
+					case 'n' -> '\n';
+					case 'r' -> '\r';
+					case 't' -> '\t';
+					case 'u' -> {
+						char unicode = (char) Integer.parseInt(text(i + 1, i + 5), 16);
+						i += 4;
+						yield unicode;
+					}
+					default -> escaped;
+				};
+			} else if (current >= 0) {
+				result[length++] = (char) current;
+			} else {
+				// Multibyte characters are rare, so they get decoded by the JDK
+				int size = (current & 0xe0) == 0xc0 ? 2 : (current & 0xf0) == 0xe0 ? 3 : 4;
+				String character = text(i, Math.min(end, i + size));
+				character.getChars(0, character.length(), result, length);
+				length += character.length();
+				i += size - 1;
+			}
+		}
+		return CharBuffer.wrap(result, 0, length);
+	}
+
+	/**
+	 * Decodes the value of a key as JSON.
+	 * Strings get decoded as a CharSequence like getString() does, everything else gets decoded by org.json.
+	 *
+	 * @param key The key to decode.
+	 * @return The decoded value.
+	 */
+	@NotNull
+	Object getValue(@NotNull Key key) {
+		if (isString(key)) return getString(key);
+		int start = starts[key.ordinal()];
+		if (start < 0) throw new IllegalArgumentException("Message contains no " + key.name);
+		return new JSONTokener(text(start, ends[key.ordinal()])).nextValue();
+	}
+
+	/**
+	 * Decodes a range of the message as it is.
+	 *
+	 * @param start The start of the range.
+	 * @param end   The end of the range.
+	 * @return The range as a String.
+	 */
+	@NotNull
+	private String text(int start, int end) {
+		byte[] bytes = new byte[end - start];
+		data.get(start, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Makes sure the message contains the expected character at the given position.
+	 *
+	 * @param position The position to check.
+	 * @param expected The character which must be there.
+	 * @throws IllegalArgumentException When the character is missing.
+	 */
+	private void expect(int position, char expected) throws IllegalArgumentException {
+		if (position >= data.limit() || data.get(position) != expected)
+			throw new IllegalArgumentException("Expected '" + expected + "' at " + position);
+	}
+
+	/**
+	 * Finds the first character which is no whitespace.
+	 *
+	 * @param position Where to start searching.
+	 * @return The position of the next character which is no whitespace, or the end of the message.
+	 */
+	private int skipWhitespace(int position) {
+		while (position < data.limit()) {
+			byte current = data.get(position);
+			if (current != ' ' && current != '\t' && current != '\r' && current != '\n') break;
+			position++;
+		}
+		return position;
+	}
+
+	/**
+	 * Skips a string including its quotes.
+	 *
+	 * @param position The position of the opening quote.
+	 * @return The position behind the closing quote.
+	 * @throws IllegalArgumentException When there is no string at the position or it is not terminated.
+	 */
+	private int skipString(int position) throws IllegalArgumentException {
+		expect(position++, '"');
+		while (position < data.limit()) {
+			byte current = data.get(position++);
+			if (current == '\\') position++;
+			else if (current == '"') return position;
+		}
+		throw new IllegalArgumentException("Unterminated string");
+	}
+
+	/**
+	 * Skips a value of any type.
+	 * Objects and arrays get skipped by counting their brackets, without looking at their contents.
+	 *
+	 * @param position The position where the value starts.
+	 * @return The position behind the value.
+	 * @throws IllegalArgumentException When the value is not terminated.
+	 */
+	private int skipValue(int position) throws IllegalArgumentException {
+		if (position >= data.limit()) throw new IllegalArgumentException("Missing value");
+		byte first = data.get(position);
+		if (first == '"') return skipString(position);
+		if (first != '{' && first != '[') {
+			// Numbers and literals end at the next delimiter
+			while (position < data.limit()) {
+				byte current = data.get(position);
+				if (current == ',' || current == '}' || current == ']' || current <= ' ') break;
+				position++;
+			}
+			return position;
+		}
+		int depth = 0;
+		while (position < data.limit()) {
+			byte current = data.get(position);
+			if (current == '"') {
+				position = skipString(position);
+				continue;
+			}
+			if (current == '{' || current == '[') depth++;
+			else if ((current == '}' || current == ']') && --depth == 0) return position + 1;
+			position++;
+		}
+		throw new IllegalArgumentException("Unterminated value");
+	}
+
+	/**
+	 * The top-level keys a message from QEMU may contain.
+	 */
+	enum Key {
+
+		/**
+		 * The result of a successful command.
+		 */
+		RETURN("return"),
+		/**
+		 * The description of a failed command.
+		 */
+		ERROR("error"),
+		/**
+		 * The id the answered request was tagged with.
+		 */
+		ID("id"),
+		/**
+		 * The name of an event.
+		 */
+		EVENT("event"),
+		/**
+		 * The data attached to an event.
+		 */
+		DATA("data"),
+		/**
+		 * When an event occurred.
+		 */
+		TIMESTAMP("timestamp");
+
+		/**
+		 * The name of the key in the message.
+		 */
+		private final String name;
+		/**
+		 * The encoded name, which gets compared to the keys found in the messages.
+		 */
+		private final byte[] encoded;
+
+		/**
+		 * Create a new key.
+		 *
+		 * @param name The name of the key in the message.
+		 */
+		Key(@NotNull String name) {
+			this.name = name;
+			this.encoded = name.getBytes(StandardCharsets.US_ASCII);
+		}
+
+		/**
+		 * Finds the key with the given name.
+		 *
+		 * @param data  The message containing the name.
+		 * @param start Where the name starts.
+		 * @param end   Where the name ends.
+		 * @return The key with that name, or null if it is not of interest.
+		 */
+		@Nullable
+		static Key find(@NotNull ByteBuffer data, int start, int end) {
+			for (Key key : values()) {
+				if (key.encoded.length != end - start) continue;
+				boolean equal = true;
+				for (int i = 0; i < key.encoded.length && equal; i++) equal = data.get(start + i) == key.encoded[i];
+				if (equal) return key;
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package edu.kit.unwwi.checkpoints.qmp;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Several connections to different QMP monitors of the same QEMU-instance, as created by passing "-qmp" multiple times.
+ * The pool hands every command to the monitor with the fewest unanswered requests.
+ * This does not make QEMU execute commands in parallel: all commands which are not out-of-band get executed
+ * one after another on the main loop of QEMU, no matter which monitor they arrive on.
+ * It only spreads the requests over several connections, so a large answer being transferred on one connection
+ * doesn't hold up the others and the limited request queue of a single monitor fills up less often.
+ * Fewer round trips are what actually speeds up slow commands, e.g. querying all CPUs with "info registers -a".
+ * QEMU sends every event to all monitors, so event handlers only get registered with the first one.
+ */
+public final class QMPPool implements QMPClient {
+
+	/**
+	 * The connections to the monitors.
+	 */
+	private final QMPInterface[] monitors;
+	/**
+	 * Where to start looking for the least busy monitor, so monitors which are equally busy get used in turn.
+	 */
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * Connects to several QMP monitors listening on TCP.
+	 *
+	 * @param host  The host where QEMU runs.
+	 * @param ports The ports the monitors listen on.
+	 * @throws IOException When any connection couldn't be established.
+	 */
+	public QMPPool(@NotNull String host, int... ports) throws IOException {
+		this(Arrays.stream(ports).mapToObj(port -> new InetSocketAddress(host, port)).toList(), QMPEventLoop.shared());
+	}
+
+	/**
+	 * Connects to several QMP monitors listening on Unix domain sockets.
+	 *
+	 * @param sockets The paths of the sockets.
+	 * @throws IOException When any connection couldn't be established.
+	 */
+	public QMPPool(@NotNull Path... sockets) throws IOException {
+		this(Arrays.stream(sockets).map(UnixDomainSocketAddress::of).toList(), QMPEventLoop.shared());
+	}
+
+	/**
+	 * Connects to several QMP monitors of the same QEMU-instance.
+	 * If any connection fails, all connections established before get closed again.
+	 *
+	 * @param addresses The addresses of the monitors.
+	 * @param loop      The event loop reading from all connections.
+	 * @throws IOException When any connection couldn't be established.
+	 */
+	public QMPPool(@NotNull List<? extends SocketAddress> addresses, @NotNull QMPEventLoop loop) throws IOException {
+		if (addresses.isEmpty()) throw new IllegalArgumentException("A pool requires at least one monitor");
+		this.monitors = new QMPInterface[addresses.size()];
+		try {
+			for (int i = 0; i < monitors.length; i++) monitors[i] = new QMPInterface(addresses.get(i), loop);
+		} catch (IOException e) {
+			exit();
+			throw e;
+		}
+	}
+
+	/**
+	 * Finds the monitor with the fewest unanswered requests.
+	 * Monitors whose connection was lost only get used if no other one is left, so the command fails.
+	 *
+	 * @return The monitor to send the next command to.
+	 */
+	@NotNull
+	private QMPInterface select() {
+		int start = Math.floorMod(next.getAndIncrement(), monitors.length);
+		QMPInterface best = monitors[start];
+		for (int i = 1; i < monitors.length; i++) {
+			QMPInterface current = monitors[(start + i) % monitors.length];
+			if (current.isClosed()) continue;
+			if (best.isClosed() || current.pendingRequests() < best.pendingRequests()) best = current;
+		}
+		return best;
+	}
+
+	@Override
+	@NotNull
+	public <C extends Command> CommandFuture<C> executeAsync(@NotNull C command) {
+		return select().executeAsync(command);
+	}
+
+	@Override
+	@NotNull
+	public <C extends Command> CommandFuture<C> executeAsync(@NotNull C command, @Nullable Duration timeout) {
+		return select().executeAsync(command, timeout);
+	}
+
+	@Override
+	public void registerEventHandler(@NotNull EventHandler handler) {
+		monitors[0].registerEventHandler(handler);
+	}
+
+	@Override
+	public void unregisterEventHandler(@NotNull EventHandler handler) {
+		monitors[0].unregisterEventHandler(handler);
+	}
+
+	@Override
+	@NotNull
+	public CompletableFuture<Event> awaitEvent(@NotNull String name, @NotNull Predicate<Event> filter, @NotNull Duration timeout) {
+		return monitors[0].awaitEvent(name, filter, timeout);
+	}
+
+	@Override
+	public void exit() {
+		for (QMPInterface monitor : monitors) {
+			if (monitor != null) monitor.exit();
+		}
+	}
+
+	/**
+	 * How many monitors this pool is connected to.
+	 *
+	 * @return The number of monitors.
+	 */
+	public int getSize() {
+		return monitors.length;
+	}
+}
@@ -23,4 +23,9 @@ public class Continue implements Command {
 	public @NotNull String toJson() {
 		return "{ \"execute\": \"cont\" }";
 	}
+
+	@Override
+	public boolean needsResult() {
+		return false;
+	}
 }
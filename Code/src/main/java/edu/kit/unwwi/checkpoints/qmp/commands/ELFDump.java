@@ -4,20 +4,29 @@ import edu.kit.unwwi.checkpoints.qemu.models.memory.MemorySegment;
 import edu.kit.unwwi.checkpoints.qmp.Command;
 import edu.kit.unwwi.checkpoints.qmp.Event;
 import edu.kit.unwwi.checkpoints.qmp.EventHandler;
-import edu.kit.unwwi.checkpoints.qmp.QMPInterface;
-import net.fornwall.jelf.ElfFile;
-import net.fornwall.jelf.ElfSegment;
+import edu.kit.unwwi.checkpoints.qmp.QMPClient;
+import edu.kit.unwwi.elf.ElfFile;
+import edu.kit.unwwi.elf.ElfStream;
+import edu.kit.unwwi.elf.ProgramHeader;
 import org.apache.commons.text.StringEscapeUtils;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.json.JSONObject;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.util.Arrays;
+import java.util.Objects;
 import java.util.Random;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
@@ -26,17 +35,37 @@ import java.util.stream.IntStream;
 
 /**
  * This class dumps the current memory data from a QEMU-instance to disk in ELF format.
+ * Closing the dump frees the memory of all segments and removes the temporary file if it still exists.
+ * When a handler for the segments is given, QEMU writes the dump to a named pipe instead,
+ * and the contents of every segment get handed to the handler while the dump is still running.
  */
-public class ELFDump implements EventHandler, Command {
+public class ELFDump implements EventHandler, Command, AutoCloseable {
 
 	/**
 	 * This gets used to generate names for the temporary files.
 	 */
 	private static final Random NAME_GENERATOR = new Random();
+	/**
+	 * How long to wait for the reader of a named pipe to give up before trying to release it again.
+	 */
+	private static final Duration RELEASE_INTERVAL = Duration.ofMillis(10);
 	/**
 	 * Where to store the temporary files.
 	 */
 	private static Path TEMPORARY_PATH = Paths.get(System.getProperty("java.io.tmpdir"));
+	/**
+	 * Whether the segments get mapped directly from the temporary file instead of being copied to off-heap memory.
+	 * In that case the temporary file is kept until this dump gets closed, which allows copying segments directly from it.
+	 */
+	private static boolean MAP_SEGMENTS = true;
+	/**
+	 * Whether dumps should be streamed through a named pipe instead of a temporary file.
+	 */
+	private static boolean STREAM_SEGMENTS = false;
+	/**
+	 * Whether QEMU should walk the page tables of the guest while dumping.
+	 */
+	private static boolean PAGING = true;
 
 	/**
 	 * Where to store the dump to.
@@ -45,7 +74,7 @@ public class ELFDump implements EventHandler, Command {
 	/**
 	 * The instance to wait for.
 	 */
-	private final QMPInterface instance;
+	private final QMPClient instance;
 	/**
 	 * Lock used to await the completion of the dump.
 	 */
@@ -54,6 +83,22 @@ public class ELFDump implements EventHandler, Command {
 	 * Condition to await the completion of the dump.
 	 */
 	private final Condition awaitCompletion = completionLock.newCondition();
+	/**
+	 * Whether this dump maps its segments instead of copying them.
+	 */
+	private final boolean mapSegments = MAP_SEGMENTS;
+	/**
+	 * Whether this dump lets QEMU walk the page tables.
+	 */
+	private final boolean paging = PAGING;
+	/**
+	 * Receives the segments while they get streamed, or null if the dump gets written to a temporary file.
+	 */
+	private final SegmentHandler handler;
+	/**
+	 * The thread reading the named pipe, or null if the dump gets written to a temporary file.
+	 */
+	private final Thread reader;
 
 	/**
 	 * Whether the command was executed.
@@ -67,6 +112,26 @@ public class ELFDump implements EventHandler, Command {
 	 * The memory segments extracted from the dump.
 	 */
 	private MemorySegment[] result;
+	/**
+	 * The opened dump, which is kept open while segments are mapped from it.
+	 */
+	private ElfFile dump;
+	/**
+	 * Whether the reader opened the named pipe, after which it no longer blocks without a writer.
+	 */
+	private volatile boolean opened;
+	/**
+	 * Whether the named pipe was read to its end.
+	 */
+	private boolean streamed;
+	/**
+	 * Whether QEMU reported the end of the dump.
+	 */
+	private boolean reported;
+	/**
+	 * The first error which occurred while dumping, reading or streaming the dump.
+	 */
+	private IOException failure;
 
 	/**
 	 * Creates a new ELFDump object which can be executed later.
@@ -75,10 +140,33 @@ public class ELFDump implements EventHandler, Command {
 	 *
 	 * @param instance The QMPinterface to receive the event from.
 	 */
-	public ELFDump(@NotNull QMPInterface instance) {
+	public ELFDump(@NotNull QMPClient instance) {
 		String filename = NAME_GENERATOR.nextLong() + ".dmp";
 		this.target = TEMPORARY_PATH.resolve(filename);
 		this.instance = instance;
+		this.handler = null;
+		this.reader = null;
+	}
+
+	/**
+	 * Creates a new ELFDump object which streams the dump through a named pipe.
+	 * The pipe gets read by its own thread, which parses the dump while QEMU writes it,
+	 * so no space for a temporary file is needed and every byte only gets read once.
+	 * The contents of each segment get handed to the handler as a channel, which reads them straight from the pipe,
+	 * so no segment ever has to be held in memory as a whole.
+	 *
+	 * @param instance The QMPinterface to receive the event from.
+	 * @param handler  Receives all segments in the order QEMU writes them.
+	 * @throws IOException When the named pipe could not be created.
+	 */
+	public ELFDump(@NotNull QMPClient instance, @NotNull SegmentHandler handler) throws IOException {
+		String filename = NAME_GENERATOR.nextLong() + ".fifo";
+		this.target = TEMPORARY_PATH.resolve(filename);
+		this.instance = instance;
+		this.handler = handler;
+		createPipe(target);
+		// The thread blocks until QEMU opens the pipe, so it must not keep the program alive
+		this.reader = Thread.ofPlatform().name("dump-stream").daemon(true).start(this::readStream);
 	}
 
 	/**
@@ -91,8 +179,76 @@ public class ELFDump implements EventHandler, Command {
 		TEMPORARY_PATH = temp;
 	}
 
+	/**
+	 * Sets whether the segments should be mapped from the temporary file instead of being copied to off-heap memory.
+	 * Mapping avoids holding a second copy of the guest memory, but keeps the temporary file until the dump gets closed.
+	 *
+	 * @param map Whether to map the segments.
+	 */
+	public static void setMapping(boolean map) {
+		MAP_SEGMENTS = map;
+	}
+
+	/**
+	 * Sets whether dumps should be streamed through a named pipe instead of being written to a temporary file.
+	 * This only changes the return of isStreaming(), as streaming requires a handler for the segments.
+	 *
+	 * @param stream Whether to stream the dumps.
+	 */
+	public static void setStreaming(boolean stream) {
+		STREAM_SEGMENTS = stream;
+	}
+
+	/**
+	 * Whether dumps should be streamed through a named pipe instead of being written to a temporary file.
+	 *
+	 * @return Whether to stream the dumps.
+	 */
+	public static boolean isStreaming() {
+		return STREAM_SEGMENTS;
+	}
+
+	/**
+	 * Sets whether QEMU should walk the page tables of the guest while dumping, so the segments get virtual addresses.
+	 * This happens while the VM is stopped and splits the memory into many small segments.
+	 * Without paging, the dump only contains the physical memory in a few large segments and completes far faster.
+	 * The virtual mappings of an x86-64 guest can then be reconstructed afterwards using PageTableWalker.
+	 *
+	 * @param paging Whether QEMU should walk the page tables.
+	 */
+	public static void setPaging(boolean paging) {
+		PAGING = paging;
+	}
+
+	/**
+	 * Whether QEMU walks the page tables of the guest while dumping.
+	 *
+	 * @return Whether new dumps use paging.
+	 */
+	public static boolean isPaging() {
+		return PAGING;
+	}
+
+	/**
+	 * Creates a named pipe, as there is no way to do this in Java itself.
+	 *
+	 * @param pipe Where to create the pipe.
+	 * @throws IOException When the pipe could not be created.
+	 */
+	private static void createPipe(@NotNull Path pipe) throws IOException {
+		try {
+			Process process = new ProcessBuilder("mkfifo", "-m", "600", pipe.toAbsolutePath().toString()).redirectErrorStream(true).start();
+			if (process.waitFor() != 0)
+				throw new IOException("Could not create the pipe " + pipe + ": " + new String(process.getInputStream().readAllBytes()).trim());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while creating the pipe " + pipe);
+		}
+	}
+
 	/**
 	 * Whether the dump operation has completed.
+	 * A dump written to a temporary file only completes once it was read by awaitCompletion().
 	 *
 	 * @return Whether the dump is done.
 	 */
@@ -113,81 +269,289 @@ public class ELFDump implements EventHandler, Command {
 
 	/**
 	 * In case this dump has not yet completed, this method waits until the dump has been completed.
+	 * A streamed dump is only complete when QEMU reported its end and all segments were handled.
+	 * A dump written to a temporary file gets read by the first thread awaiting it once QEMU reported its end.
 	 *
 	 * @throws InterruptedException If this thread got interrupted during wait.
+	 * @throws IOException          When the dump could not be read or handled, or QEMU failed to dump.
 	 */
-	public void awaitCompletion() throws InterruptedException {
-		if (isDone()) return;
-		completionLock.lock();
-		if (!isDone()) awaitCompletion.await();
-		completionLock.unlock();
+	public void awaitCompletion() throws InterruptedException, IOException {
+		completionLock.lockInterruptibly();
+		try {
+			while (!isDone() && !(handler == null && reported)) awaitCompletion.await();
+			if (!isDone()) readDump();
+		} finally {
+			completionLock.unlock();
+		}
+		if (failure != null) throw failure;
+	}
+
+	/**
+	 * Whether QEMU walks the page tables for this dump.
+	 * If not, the virtual addresses of the segments are meaningless.
+	 *
+	 * @return Whether this dump uses paging.
+	 */
+	public boolean usesPaging() {
+		return this.paging;
 	}
 
+	/**
+	 * Returns the segments of the completed dump.
+	 * When the dump was streamed, the segments were already handed to the handler, so none are returned.
+	 *
+	 * @return The segments of the dump.
+	 * @throws IllegalStateException Gets thrown when the dump operation has not yet completed.
+	 */
 	public MemorySegment[] getSegments() throws IllegalStateException {
 		if (!done) throw new IllegalStateException("The operation has not yet completed");
 		else return this.result;
 	}
 
+	/**
+	 * The dump runs detached, so QEMU answers right away and the deadline of the command never covers the dump itself.
+	 * Its end only gets reported by the DUMP_COMPLETED event, which may take arbitrarily long for large guests.
+	 *
+	 * @return JSON representation of this command.
+	 */
 	@Override
 	public @NotNull String toJson() {
 		instance.registerEventHandler(this);
-		return "{ \"execute\": \"dump-guest-memory\", \"arguments\": { \"paging\": true, \"protocol\": \"file:" + StringEscapeUtils.escapeJson(target.toAbsolutePath().toString()) + "\", \"format\": \"elf\" } }";
+		return "{ \"execute\": \"dump-guest-memory\", \"arguments\": { \"paging\": " + paging + ", \"detach\": true, \"protocol\": \"file:" + StringEscapeUtils.escapeJson(target.toAbsolutePath().toString()) + "\", \"format\": \"elf\" } }";
+	}
+
+	@Override
+	public boolean needsResult() {
+		return false;
 	}
 
+	/**
+	 * Only records the outcome of the dump, as events get handled on the shared dispatcher of the event loop.
+	 * Reading a dump written to a temporary file is left to the thread awaiting it,
+	 * so other events, like the STOP of another VM, never have to wait for the guest memory to be read.
+	 *
+	 * @param event The DUMP_COMPLETED event.
+	 */
 	@Override
 	public void handleEvent(@NotNull Event event) {
 		instance.unregisterEventHandler(this);
 		assert event.getData() != null;
 		JSONObject data = event.getData().getJSONObject("result");
-		if (data.getString("status").equals("completed")) {
-			this.size = data.getLong("total");
+		completionLock.lock();
+		try {
+			if (data.getString("status").equals("completed")) this.size = data.getLong("total");
+			else fail(new IOException("QEMU failed to dump the memory: " + event.getData().optString("error", data.getString("status"))));
+			this.reported = true;
+			if (handler != null) finishStream();
+			else awaitCompletion.signalAll();
+		} finally {
+			completionLock.unlock();
+		}
+	}
+
+	/**
+	 * Reads the segments of a dump written to a temporary file after QEMU reported its end.
+	 * Must be called while holding the completion lock.
+	 */
+	private void readDump() {
+		ElfFile elf = null;
+		try {
+			if (failure == null) {
+				elf = ElfFile.open(target);
+				this.result = readSegments(elf);
+			}
+		} catch (IOException e) {
+			fail(e);
+		} catch (UncheckedIOException e) {
+			fail(e.getCause());
+		} catch (RuntimeException e) {
+			fail(new IOException(e));
+		} finally {
+			// When mapping, the file must stay open so the segments can be copied from it later.
+			if (mapSegments && result != null) this.dump = elf;
+			else closeTemporaryFile(elf);
+			this.done = true;
+			awaitCompletion.signalAll();
+		}
+	}
+
+	/**
+	 * Creates the memory segments from all PT_LOAD segments of the dump.
+	 * Every segment gets read using positional reads or mappings on the same channel, so this can safely run in parallel.
+	 * If any segment fails, all segments which were already created get closed again, so none of their memory leaks.
+	 *
+	 * @param elf The dump to read from.
+	 * @return The segments contained in the dump.
+	 * @throws IOException When any segment could not be read.
+	 */
+	@NotNull
+	private MemorySegment @NotNull [] readSegments(@NotNull ElfFile elf) throws IOException {
+		ProgramHeader[] headers = elf.getProgramHeaders(ElfFile.PT_LOAD);
+		MemorySegment[] segments = new MemorySegment[headers.length];
+		Exception[] errors = new Exception[headers.length];
+		// Errors are collected instead of thrown, so no task may still be creating a segment once they get handled
+		IntStream.range(0, headers.length).parallel().forEach(i -> {
+			try {
+				segments[i] = readSegment(elf, headers[i]);
+			} catch (IOException | RuntimeException e) {
+				errors[i] = e;
+			}
+		});
+		Exception error = Arrays.stream(errors).filter(Objects::nonNull).findFirst().orElse(null);
+		if (error == null) return segments;
+		for (MemorySegment segment : segments) {
+			if (segment != null) segment.close();
+		}
+		if (error instanceof IOException io) throw io;
+		else throw (RuntimeException) error;
+	}
+
+	/**
+	 * Creates a single memory segment, either by mapping it or by copying it to off-heap memory.
+	 *
+	 * @param elf     The dump to read from.
+	 * @param segment The program header of the segment.
+	 * @return The segment.
+	 * @throws IOException When the segment could not be read.
+	 */
+	@NotNull
+	private MemorySegment readSegment(@NotNull ElfFile elf, @NotNull ProgramHeader segment) throws IOException {
+		if (mapSegments) {
+			Arena arena = Arena.ofShared();
+			try {
+				return new MemorySegment(segment.physicalAddress(), segment.virtualAddress(), elf.map(segment, arena), arena, elf.getChannel(), segment.offset());
+			} catch (IOException | RuntimeException e) {
+				arena.close();
+				throw e;
+			}
+		} else try (InputStream segmentStream = elf.newInputStream(segment)) {
+			return new MemorySegment(segment.physicalAddress(), segment.virtualAddress(), segment.fileSize(), segmentStream);
+		}
+	}
+
+	/**
+	 * Reads the dump from the named pipe and hands every segment to the handler.
+	 * The pipe always gets read to its end, so QEMU never fails because it got cut off.
+	 * When anything fails, the pipe gets closed early, which makes QEMU abort the dump.
+	 */
+	private void readStream() {
+		try (FileChannel pipe = FileChannel.open(target, StandardOpenOption.READ)) {
+			this.opened = true;
+			ElfStream elf = new ElfStream(pipe);
+			elf.readSegments(ElfFile.PT_LOAD, handler::accept);
+			elf.skipRemaining();
+		} catch (IOException e) {
+			fail(e);
+		} catch (RuntimeException e) {
+			fail(new IOException(e));
+		} finally {
 			completionLock.lock();
-			try (InputStream fileInput = Files.newInputStream(target)) {
-				ElfFile elf = ElfFile.from(fileInput);
-
-				// This is split into 2 stream because performing parallel operations on the ElfFile-object heavily corrupts the used InputStream.
-				BasicSegmentData[] segments = IntStream.range(0, elf.e_phnum).filter(x -> elf.getProgramHeader(x).p_type == ElfSegment.PT_LOAD)
-						.mapToObj(x -> {
-							ElfSegment programHeader = elf.getProgramHeader(x);
-							return new BasicSegmentData(programHeader.p_offset, programHeader.p_filesz, programHeader.p_paddr, programHeader.p_vaddr);
-						}).toArray(BasicSegmentData[]::new);
-				this.result = Arrays.stream(segments).parallel().map(segment -> {
-					try (InputStream segmentStream = Files.newInputStream(target)) {
-						segmentStream.skipNBytes(segment.offset);
-						return new MemorySegment(segment.pAddress, segment.vAddress, segment.size, segmentStream);
-					} catch (IOException e) {
-						throw new UncheckedIOException(e);
-					}
-				}).toArray(MemorySegment[]::new);
-
-			} catch (IOException e) {
-				throw new UncheckedIOException(e);
+			try {
+				this.streamed = true;
+				finishStream();
 			} finally {
-				this.done = true;
-				awaitCompletion.signalAll();
 				completionLock.unlock();
-				try {
-					Files.delete(target);
+			}
+		}
+	}
+
+	/**
+	 * Records an error of the dump, unless an earlier one was recorded already.
+	 *
+	 * @param error The error that occurred.
+	 */
+	private void fail(@NotNull IOException error) {
+		completionLock.lock();
+		try {
+			if (failure == null) failure = error;
+		} finally {
+			completionLock.unlock();
+		}
+	}
+
+	/**
+	 * Completes a streamed dump once the pipe was read and QEMU reported the end of the dump.
+	 * Must be called while holding the completion lock.
+	 */
+	private void finishStream() {
+		if (streamed && reported) {
+			this.result = new MemorySegment[0];
+			this.done = true;
+			awaitCompletion.signalAll();
+		}
+	}
+
+	/**
+	 * Closes and deletes the temporary file QEMU dumped to.
+	 *
+	 * @param elf The opened dump, if it was opened.
+	 */
+	private void closeTemporaryFile(@Nullable ElfFile elf) {
+		try {
+			if (elf != null) elf.close();
+			Files.deleteIfExists(target);
+		} catch (IOException _) {
+			// ignored
+		}
+	}
+
+	/**
+	 * Lets the thread reading the named pipe terminate if QEMU never opened the pipe, e.g. because the command failed.
+	 * Opening a pipe for reading and writing never blocks on Linux and wakes up a reader waiting for a writer.
+	 * As no writer is left once it gets closed again, the reader sees the end of the pipe and terminates.
+	 * This gets repeated until the reader opened the pipe, as it may not have started waiting yet.
+	 */
+	private void releaseReader() {
+		try {
+			while (!opened && reader.isAlive()) {
+				try (FileChannel _ = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+					// Only opening the pipe is needed
 				} catch (IOException _) {
-					// ignored
+					return;
 				}
+				reader.join(RELEASE_INTERVAL);
 			}
+		} catch (InterruptedException _) {
+			Thread.currentThread().interrupt();
 		}
 	}
 
+	/**
+	 * Frees the memory of all segments of this dump and deletes the temporary file or the named pipe.
+	 * If QEMU never started writing to the pipe, the thread waiting for it gets released first.
+	 * The segments may not be read anymore afterwards.
+	 */
+	@Override
+	public void close() {
+		// Does nothing if QEMU reported the end of the dump, otherwise the handler would stay registered forever
+		instance.unregisterEventHandler(this);
+		if (reader != null) releaseReader();
+		if (result != null) {
+			for (MemorySegment segment : result) segment.close();
+		}
+		closeTemporaryFile(dump);
+		dump = null;
+	}
+
 	@Override
 	public @NotNull String eventName() {
 		return "DUMP_COMPLETED";
 	}
 
 	/**
-	 * This record gets used to store address data from ELF which later on gets used to actually create the segment objects.
-	 *
-	 * @param offset   The offset inside the ELF-File.
-	 * @param size     The size of the segment in the file.
-	 * @param pAddress The physical address of the segment.
-	 * @param vAddress The virtual address of the segment.
+	 * Receives the segments of a streamed dump.
 	 */
-	private record BasicSegmentData(long offset, long size, long pAddress, long vAddress) {
+	@FunctionalInterface
+	public interface SegmentHandler {
+
+		/**
+		 * Handles a single segment, e.g. by storing it while reading it.
+		 * Whatever the handler does not read gets skipped afterwards.
+		 *
+		 * @param header  The program header of the segment.
+		 * @param content The contents of the segment, which are only valid during this call.
+		 * @throws IOException When the segment could not be handled.
+		 */
+		void accept(@NotNull ProgramHeader header, @NotNull ReadableByteChannel content) throws IOException;
 	}
 }
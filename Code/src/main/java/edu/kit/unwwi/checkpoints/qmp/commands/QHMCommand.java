@@ -13,8 +13,8 @@ public abstract class QHMCommand extends StatefulCommand {
 
 	@Override
 	protected void processResult(@NotNull Object result) {
-		assert result instanceof String;
-		receiveResult((String) result);
+		assert result instanceof CharSequence;
+		receiveResult((CharSequence) result);
 	}
 
 	@Override
@@ -53,5 +53,21 @@ public abstract class QHMCommand extends StatefulCommand {
 		return Map.of();
 	}
 
+	/**
+	 * Receives the output of the command as it was decoded from the answer of QEMU.
+	 * Commands parsing large outputs may override this to work on the decoded characters directly,
+	 * by default they get copied to a String.
+	 *
+	 * @param result The output of the command.
+	 */
+	protected void receiveResult(@NotNull CharSequence result) {
+		receiveResult(result.toString());
+	}
+
+	/**
+	 * Receives the output of the command as a String.
+	 *
+	 * @param result The output of the command.
+	 */
 	protected abstract void receiveResult(@NotNull String result);
 }
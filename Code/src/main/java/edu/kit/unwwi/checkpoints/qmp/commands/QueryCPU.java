@@ -1,6 +1,7 @@
 package edu.kit.unwwi.checkpoints.qmp.commands;
 
 import edu.kit.unwwi.checkpoints.qemu.models.CPU;
+import edu.kit.unwwi.checkpoints.qemu.models.registers.RegisterFile;
 import org.jetbrains.annotations.NotNull;
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -62,7 +63,7 @@ public class QueryCPU extends StatefulCommand {
 		this.result = new CPU[cpus.length()];
 		IntStream.range(0, cpus.length()).parallel().forEach(i -> {
 			JSONObject cpu = cpus.getJSONObject(i);
-			this.result[i] = new CPU(cpu.getInt("cpu-index"), cpu.getString("target"), cpu.getInt("thread-id"), null, null);
+			this.result[i] = new CPU(cpu.getInt("cpu-index"), cpu.getString("target"), cpu.getInt("thread-id"), (RegisterFile) null, null);
 		});
 	}
 }
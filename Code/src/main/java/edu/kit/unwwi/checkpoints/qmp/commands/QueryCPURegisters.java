@@ -1,15 +1,22 @@
 package edu.kit.unwwi.checkpoints.qmp.commands;
 
 import edu.kit.unwwi.checkpoints.qemu.models.CPU;
-import edu.kit.unwwi.checkpoints.qmp.QMPInterface;
+import edu.kit.unwwi.checkpoints.qmp.QMPClient;
+import edu.kit.unwwi.checkpoints.qmp.commands.qhm.QueryAllRegisters;
 import edu.kit.unwwi.checkpoints.qmp.commands.qhm.QueryRegisters;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
 
 /**
  * This class queries all the CPUs existing in a QEMU-instance as well as all the registers associated with it.
+ * The registers of all CPUs get queried with a single command, only CPUs missing from its answer get queried one by one.
+ * Executing this command only queries the CPUs, their registers get queried by the future returned from queryRegisters().
  */
 public class QueryCPURegisters extends QueryCPU {
 
@@ -17,7 +24,7 @@ public class QueryCPURegisters extends QueryCPU {
 	 * The interface to query against.
 	 * Is required for the later queries asking for registers.
 	 */
-	private final QMPInterface inter;
+	private final QMPClient inter;
 
 	/**
 	 * Create a new query.
@@ -25,21 +32,72 @@ public class QueryCPURegisters extends QueryCPU {
 	 *
 	 * @param qmpInterface The QMPInterface to query against.
 	 */
-	public QueryCPURegisters(@NotNull QMPInterface qmpInterface) {
+	public QueryCPURegisters(@NotNull QMPClient qmpInterface) {
 		this.inter = qmpInterface;
 	}
 
-	@Override
-	public void processResult(@NotNull Object Result) {
-		super.processResult(Result);
-		super.result = Arrays.stream(super.result).parallel().map(cpu -> {
-			QueryRegisters query = new QueryRegisters(cpu.getId());
-			try {
-				inter.executeCommand(query);
-				return new CPU(cpu.getId(), cpu.getArchitecture(), cpu.getHostThreadId(), query.getResult(), query.flags());
-			} catch (IOException e) {
-				return cpu;
+	/**
+	 * Queries the registers of all CPUs after this command was executed.
+	 * No thread waits for QEMU meanwhile, the queries for the registers only get composed with each other.
+	 * Once the future completed, getResult() returns the CPUs including their registers.
+	 *
+	 * @return A future completing with all CPUs including their registers,
+	 * or exceptionally with an IOException if the registers of any CPU could not be queried.
+	 * @throws IllegalStateException When this command wasn't executed yet.
+	 */
+	@NotNull
+	public CompletableFuture<CPU[]> queryRegisters() throws IllegalStateException {
+		if (!executed) throw new IllegalStateException("Command hasn't been queried");
+		return inter.executeAsync(new QueryAllRegisters())
+				.handle((query, e) -> {
+					if (e == null) return query.getResult();
+					// Falls back to querying every CPU by itself
+					if (isQueryFailure(e)) return Map.<Integer, QueryRegisters>of();
+					else throw e instanceof CompletionException completion ? completion : new CompletionException(e);
+				})
+				.thenCompose(this::queryMissing);
+	}
+
+	/**
+	 * Queries the registers of all CPUs missing from the combined answer, all those queries get sent at once.
+	 *
+	 * @param captured The registers of the CPUs which were part of the combined answer, by the ID of the CPU.
+	 * @return A future completing with all CPUs including their registers.
+	 */
+	@NotNull
+	private CompletableFuture<CPU[]> queryMissing(@NotNull Map<Integer, QueryRegisters> captured) {
+		Map<Integer, CompletableFuture<QueryRegisters>> queries = new HashMap<>();
+		for (CPU cpu : super.result) {
+			if (!captured.containsKey(cpu.getId())) queries.put(cpu.getId(), inter.executeAsync(new QueryRegisters(cpu.getId())));
+		}
+		// Only continues once all queries are done, so none of them gets waited for afterwards
+		return CompletableFuture.allOf(queries.values().toArray(CompletableFuture[]::new)).handle((_, _) -> {
+			for (int i = 0; i < super.result.length; i++) {
+				CPU cpu = super.result[i];
+				QueryRegisters query = captured.get(cpu.getId());
+				if (query == null) {
+					try {
+						query = queries.get(cpu.getId()).join();
+					} catch (CompletionException e) {
+						// A CPU without registers would make the checkpoint look complete when it is not
+						if (!isQueryFailure(e)) throw e;
+						throw new CompletionException(new IOException("Registers of CPU " + cpu.getId() + " could not be queried", e.getCause()));
+					}
+				}
+				super.result[i] = new CPU(cpu.getId(), cpu.getArchitecture(), cpu.getHostThreadId(), query.getRegisterFile(), query.hasFlags() ? query.flags() : null);
 			}
-		}).toArray(CPU[]::new);
+			return super.result;
+		});
+	}
+
+	/**
+	 * Checks whether a query failed because QEMU could not be asked or didn't answer in time.
+	 *
+	 * @param e The exception the query completed with.
+	 * @return Whether the query failed, as opposed to an error while parsing its answer.
+	 */
+	private static boolean isQueryFailure(@NotNull Throwable e) {
+		Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+		return cause instanceof IOException || cause instanceof TimeoutException;
 	}
 }
@@ -23,4 +23,9 @@ public class Stop implements Command {
 	public @NotNull String toJson() {
 		return "{ \"execute\": \"stop\" }";
 	}
+
+	@Override
+	public boolean needsResult() {
+		return false;
+	}
 }
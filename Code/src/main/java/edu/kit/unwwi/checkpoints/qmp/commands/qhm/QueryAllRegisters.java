@@ -0,0 +1,85 @@
+package edu.kit.unwwi.checkpoints.qmp.commands.qhm;
+
+import edu.kit.unwwi.checkpoints.qmp.commands.QHMCommand;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.CharBuffer;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+/**
+ * This command uses "info registers -a" from the human-monitor-interface to read the registers of all CPUs at once.
+ * This only takes a single round trip no matter how many CPUs the VM has.
+ * The answer gets split at the "CPU#n" line QEMU puts in front of every CPU and the CPUs then get parsed in parallel,
+ * each exactly like QueryRegisters parses a single CPU.
+ */
+public class QueryAllRegisters extends QHMCommand {
+
+	/**
+	 * Matches the line QEMU puts in front of the registers of every CPU.
+	 */
+	private static final Pattern CPU_MARKER = Pattern.compile("^CPU#(\\d+)", Pattern.MULTILINE);
+
+	/**
+	 * The parsed registers of each CPU, by the ID of the CPU.
+	 */
+	private Map<Integer, QueryRegisters> registers;
+
+	/**
+	 * Get the registers of all CPUs after querying.
+	 * CPUs which were not part of the answer, e.g. because QEMU doesn't support "-a", are missing.
+	 *
+	 * @return The parsed registers of each CPU, by the ID of the CPU.
+	 */
+	public @NotNull Map<Integer, QueryRegisters> getResult() {
+		if (executed) return registers;
+		else throw new IllegalStateException("Command hasn't been queried");
+	}
+
+	@Override
+	public @NotNull String commandName() {
+		return "info registers -a";
+	}
+
+	/**
+	 * Splits the output at the CPU markers and parses all CPUs in parallel.
+	 * The output of each CPU gets handed to its parser as a part of the decoded characters without copying them.
+	 *
+	 * @param input The result to parse.
+	 */
+	@Override
+	protected void receiveResult(@NotNull CharSequence input) {
+		List<Integer> ids = new ArrayList<>();
+		List<Integer> markers = new ArrayList<>();
+		List<Integer> starts = new ArrayList<>();
+		Matcher marker = CPU_MARKER.matcher(input);
+		while (marker.find()) {
+			ids.add(Integer.parseInt(marker.group(1)));
+			markers.add(marker.start());
+			// The marker itself is not handed to the parser
+			starts.add(marker.end());
+		}
+		markers.add(input.length());
+		QueryRegisters[] parsed = new QueryRegisters[ids.size()];
+		IntStream.range(0, parsed.length).parallel().forEach(i -> {
+			parsed[i] = new QueryRegisters(ids.get(i));
+			// Handed over as an Object, so the query gets marked as executed
+			parsed[i].receiveResult((Object) CharBuffer.wrap(input, starts.get(i), markers.get(i + 1)));
+		});
+		Map<Integer, QueryRegisters> result = new HashMap<>();
+		for (QueryRegisters query : parsed) result.put(query.getId(), query);
+		this.registers = Collections.unmodifiableMap(result);
+	}
+
+	/**
+	 * Used by subclasses to parse the received result.
+	 *
+	 * @param input The result to parse.
+	 */
+	@Override
+	protected void receiveResult(@NotNull String input) {
+		receiveResult((CharSequence) input);
+	}
+}
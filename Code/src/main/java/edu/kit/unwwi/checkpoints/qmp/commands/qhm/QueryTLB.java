@@ -1,22 +1,53 @@
 package edu.kit.unwwi.checkpoints.qmp.commands.qhm;
 
-import edu.kit.unwwi.checkpoints.qemu.models.memory.MemoryMapping;
+import edu.kit.unwwi.checkpoints.qemu.models.memory.PagingMode;
 import edu.kit.unwwi.checkpoints.qemu.models.memory.TLB;
+import edu.kit.unwwi.checkpoints.qemu.models.registers.RegisterFile;
 import edu.kit.unwwi.checkpoints.qmp.commands.QHMCommand;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.stream.IntStream;
-
 /**
  * The command to query the QEMU-TLB and allow for finding of memory regions.
+ * QEMU prints the TLB of the current CPU of the monitor, whose paging mode decides the sizes of large pages.
  */
 public class QueryTLB extends QHMCommand {
 
+	/**
+	 * The paging mode of the CPU whose TLB gets queried.
+	 */
+	private final PagingMode mode;
+
 	/**
 	 * Storage for the result after the execution of the command.
 	 */
 	private TLB tlb;
 
+	/**
+	 * Creates a new query for the TLB of an x86-64 CPU in long mode, or of a CPU of another architecture.
+	 */
+	public QueryTLB() {
+		this(PagingMode.FOUR_LEVEL);
+	}
+
+	/**
+	 * Creates a new query for the TLB of a CPU using the given paging mode.
+	 *
+	 * @param mode The paging mode of the CPU.
+	 */
+	public QueryTLB(@NotNull PagingMode mode) {
+		this.mode = mode;
+	}
+
+	/**
+	 * Creates a new query for the TLB of an x86 CPU, whose paging mode gets read from its captured registers.
+	 *
+	 * @param registers The registers of the CPU.
+	 * @throws IllegalArgumentException When the registers don't belong to an x86 CPU.
+	 */
+	public QueryTLB(@NotNull RegisterFile registers) throws IllegalArgumentException {
+		this(PagingMode.of(registers));
+	}
+
 	/**
 	 * Return the TLB that was created from querying QEMU.
 	 *
@@ -33,6 +64,16 @@ public class QueryTLB extends QHMCommand {
 		return "info tlb";
 	}
 
+	/**
+	 * Parses the output of the command directly from the decoded characters.
+	 *
+	 * @param input The result to parse.
+	 */
+	@Override
+	protected void receiveResult(@NotNull CharSequence input) {
+		this.tlb = new TLBScanner(input, mode).scan();
+	}
+
 	/**
 	 * Used by subclasses to parse the received result.
 	 *
@@ -40,19 +81,6 @@ public class QueryTLB extends QHMCommand {
 	 */
 	@Override
 	protected void receiveResult(@NotNull String result) {
-		String[] mappings = result.split(System.lineSeparator());
-		this.tlb = new TLB(IntStream.range(0, mappings.length).parallel().mapToObj(x -> {
-			String[] split = mappings[x].split(" ");
-			long virtualAddress = Long.parseUnsignedLong(split[0].replace(":", ""), 16);
-			long physicalAddress = Long.parseUnsignedLong(split[1], 16);
-			char[] flags = split[2].toCharArray();
-			long size;
-			if (x == mappings.length - 1) {
-				size = virtualAddress - Long.parseUnsignedLong(mappings[x - 1].split(" ")[0].replace(":", ""), 16); // This is just a hack under the assumption that the size of this page is the same as before.
-			} else {
-				size = Long.parseUnsignedLong(mappings[x + 1].split(" ")[0].replace(":", ""), 16) - virtualAddress;
-			}
-			return new MemoryMapping(virtualAddress, physicalAddress, size, flags);
-		}).toList().toArray(new MemoryMapping[0]));
+		receiveResult((CharSequence) result);
 	}
 }
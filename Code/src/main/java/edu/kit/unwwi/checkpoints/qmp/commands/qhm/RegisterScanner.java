@@ -0,0 +1,338 @@
+package edu.kit.unwwi.checkpoints.qmp.commands.qhm;
+
+import edu.kit.unwwi.checkpoints.qemu.models.registers.RegisterFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Splits the output of "info registers" into registers in a single pass over its characters.
+ * QEMU formats all the registers rather randomly, so the output gets normalized while it is scanned:
+ * Any kind and amount of whitespace separates tokens, whitespace around equals-signs gets removed
+ * and hex-numbers split by whitespace get joined.
+ * Every token matching "name=value" then becomes a register, the first token in square brackets holds the flags.
+ * Only the names of the registers become Strings, values get parsed from the characters of the token directly
+ * into a RegisterFile, so no object gets created for a single register.
+ * This works for ARM and x86, other architectures may need further testing (and perhaps changes).
+ */
+final class RegisterScanner {
+
+	/**
+	 * The output to scan.
+	 */
+	private final CharSequence input;
+	/**
+	 * Where the CPU identifier starts, which gets ignored, or -1 if there is none.
+	 */
+	private final int identifierStart;
+	/**
+	 * Where the CPU identifier ends.
+	 */
+	private final int identifierEnd;
+	/**
+	 * The normalized characters of the current token.
+	 */
+	private final char[] token;
+	/**
+	 * How many characters the current token has.
+	 */
+	private int length;
+	/**
+	 * How many tokens were completed, which is also the number of the next register.
+	 */
+	private int tokens;
+	/**
+	 * Collects all registers found so far, in the order they appeared in.
+	 */
+	private final RegisterFile.Builder registers = new RegisterFile.Builder();
+	/**
+	 * The flags, or null if none were found so far.
+	 */
+	private char[] flags;
+
+	/**
+	 * Create a new scanner for the output of "info registers" for a single CPU.
+	 *
+	 * @param input The output to scan.
+	 */
+	RegisterScanner(@NotNull CharSequence input) {
+		this.input = input;
+		this.token = new char[input.length()];
+		int start = indexOfIdentifier(input);
+		this.identifierStart = start;
+		int end = start;
+		if (start >= 0) {
+			end += 4;
+			while (end < input.length() && isDigit(input.charAt(end))) end++;
+		}
+		this.identifierEnd = end;
+	}
+
+	/**
+	 * Scans the whole output.
+	 *
+	 * @return This scanner, which now holds the registers and flags.
+	 * @throws NumberFormatException When the value of a register is no valid hex-number.
+	 */
+	@NotNull
+	RegisterScanner scan() throws NumberFormatException {
+		// Whether whitespace was skipped since the last character
+		boolean separated = false;
+		// The last character, no matter to which token it belongs
+		char previous = ' ';
+		// The last character of the current word, a word being split by whitespace unless it is next to an equals-sign
+		char wordPrevious = ' ';
+		// How many hex-digits the current word ends with and whether they started at a word boundary
+		int hexRun = 0;
+		boolean hexBounded = false;
+		for (int i = 0; i < input.length(); i++) {
+			if (i == identifierStart) {
+				i = identifierEnd - 1;
+				continue;
+			}
+			char current = input.charAt(i);
+			if (isWhitespace(current)) {
+				separated = true;
+				continue;
+			}
+			if (separated) {
+				separated = false;
+				if (current != '=' && previous != '=') {
+					// Hex-numbers split by whitespace get joined, otherwise the whitespace ends the token
+					if (!(isHex(current) && hexRun > 0 && hexBounded)) endToken();
+					wordPrevious = ' ';
+					hexRun = 0;
+				}
+			}
+			if (isHex(current)) {
+				if (hexRun++ == 0) hexBounded = !isWordCharacter(wordPrevious);
+			} else hexRun = 0;
+			token[length++] = current;
+			previous = current;
+			wordPrevious = current;
+		}
+		endToken();
+		return this;
+	}
+
+	/**
+	 * The registers which were found, in the order they appeared in.
+	 *
+	 * @return The registers.
+	 */
+	@NotNull
+	RegisterFile getRegisters() {
+		return registers.build();
+	}
+
+	/**
+	 * The flags which were found.
+	 * Flags which aren't set are represented as a null-char.
+	 *
+	 * @return The flags, or null if there were none.
+	 */
+	char @Nullable [] getFlags() {
+		return flags;
+	}
+
+	/**
+	 * Handles the current token once it is complete and starts the next one.
+	 *
+	 * @throws NumberFormatException When the token is a register, but its value is no valid hex-number.
+	 */
+	private void endToken() throws NumberFormatException {
+		if (length == 0) return;
+		int number = tokens++;
+		if (flags == null && isFlags()) {
+			flags = new char[length - 2];
+			for (int i = 1; i < length - 1; i++) flags[i - 1] = token[i] == '-' ? '\0' : token[i];
+		} else if (isRegister()) {
+			parseRegister(number);
+		}
+		length = 0;
+	}
+
+	/**
+	 * Whether the current token looks like "[ZC-]".
+	 *
+	 * @return Whether the token holds the flags.
+	 */
+	private boolean isFlags() {
+		if (length < 2 || token[0] != '[' || token[length - 1] != ']') return false;
+		for (int i = 1; i < length - 1; i++) {
+			char current = token[i];
+			if (!(current >= 'A' && current <= 'Z') && !(current >= 'a' && current <= 'z') && current != '-') return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Whether the current token ends with an equals-sign followed by a hex-number.
+	 *
+	 * @return Whether the token is a register.
+	 */
+	private boolean isRegister() {
+		int i = length - 1;
+		while (i >= 0 && (isHex(token[i]) || token[i] == ',')) i--;
+		return i >= 0 && i < length - 1 && token[i] == '=';
+	}
+
+	/**
+	 * Adds the current token, which matches "name=content", to the registers.
+	 * Like the Register classes do, only registers of up to 32 bits keep their number.
+	 *
+	 * @param registerNumber The number of the token, used to order registers of the same name.
+	 * @throws NumberFormatException When the value is no valid hex-number.
+	 */
+	private void parseRegister(int registerNumber) throws NumberFormatException {
+		int separator = 0;
+		while (token[separator] != '=') separator++;
+		String name = new String(token, 0, separator);
+		int start = separator + 1;
+		int end = start;
+		while (end < length && token[end] != '=') end++;
+		int size = (end - start) * 4;
+
+		switch (size) {
+			case 4, 8, 16, 32 -> registers.add(name, registerNumber, size, parseHex(start, end));
+			case 64 -> registers.add(name, -1, size, parseHex(start, end));
+			case 80 -> registers.add(name, -1, size, parseHex(start, start + 16), parseHex(start + 16, end));
+			case 128, 256, 512 -> {
+				long[] content = new long[size / 64];
+				for (int i = 0; i < content.length; i++) content[i] = parseHex(start + i * 16, start + (i + 1) * 16);
+				registers.add(name, -1, size, content);
+			}
+			default -> {
+				if (size == 0) throw new NumberFormatException("Register " + name + " has no value");
+				byte[] bytes;
+				if (isHex(start, end)) bytes = parseBytes(start, end);
+				else {
+					bytes = new BigInteger(new String(token, start, end - start), 16).toByteArray();
+					// Only the sign-byte toByteArray() puts in front gets removed, never a byte of the value
+					if (bytes.length > 1 && bytes[0] == 0) bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+				}
+				registers.add(name, -1, size, bytes);
+			}
+		}
+	}
+
+	/**
+	 * Parses a part of the current token as an unsigned hex-number of at most 16 digits.
+	 *
+	 * @param start Where the number starts.
+	 * @param end   Where the number ends.
+	 * @return The parsed number.
+	 * @throws NumberFormatException When the part contains something else than hex-digits.
+	 */
+	private long parseHex(int start, int end) throws NumberFormatException {
+		// A plus-sign is accepted just like Long.parseUnsignedLong() does
+		if (end - start > 1 && token[start] == '+') start++;
+		long result = 0;
+		for (int i = start; i < end; i++) result = (result << 4) | digit(token[i]);
+		return result;
+	}
+
+	/**
+	 * Whether a part of the current token only consists of hex-digits.
+	 *
+	 * @param start Where the part starts.
+	 * @param end   Where the part ends.
+	 * @return Whether the part is a plain hex-number.
+	 */
+	private boolean isHex(int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (!isHex(token[i]) && !(token[i] >= 'A' && token[i] <= 'F')) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Parses a part of the current token as a big-endian number of arbitrary length.
+	 *
+	 * @param start Where the number starts.
+	 * @param end   Where the number ends.
+	 * @return The bytes of the number.
+	 * @throws NumberFormatException When the part contains something else than hex-digits.
+	 */
+	private byte @NotNull [] parseBytes(int start, int end) throws NumberFormatException {
+		int digits = end - start;
+		byte[] result = new byte[(digits + 1) / 2];
+		// An odd number of digits means the first byte only has a single digit
+		int offset = digits % 2;
+		for (int i = 0; i < digits; i++) {
+			int index = (i + offset) / 2;
+			result[index] = (byte) ((result[index] << 4) | digit(token[start + i]));
+		}
+		return result;
+	}
+
+	/**
+	 * The value of a single hex-digit.
+	 *
+	 * @param digit The digit.
+	 * @return The value of the digit.
+	 * @throws NumberFormatException When the character is no hex-digit.
+	 */
+	private static int digit(char digit) throws NumberFormatException {
+		if (isDigit(digit)) return digit - '0';
+		else if (digit >= 'a' && digit <= 'f') return digit - 'a' + 10;
+		else if (digit >= 'A' && digit <= 'F') return digit - 'A' + 10;
+		else throw new NumberFormatException("Invalid hex-digit: " + digit);
+	}
+
+	/**
+	 * Finds the identifier "CPU#n" QEMU puts in front of the registers.
+	 *
+	 * @param input The output to search.
+	 * @return Where the identifier starts, or -1 if there is none.
+	 */
+	private static int indexOfIdentifier(@NotNull CharSequence input) {
+		for (int i = 0; i + 4 < input.length(); i++) {
+			if (input.charAt(i) == 'C' && input.charAt(i + 1) == 'P' && input.charAt(i + 2) == 'U' && input.charAt(i + 3) == '#' && isDigit(input.charAt(i + 4)))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Whether a character is whitespace as defined by regular expressions.
+	 *
+	 * @param character The character to check.
+	 * @return Whether the character is whitespace.
+	 */
+	private static boolean isWhitespace(char character) {
+		return character == ' ' || character == '\t' || character == '\n' || character == '\u000B' || character == '\f' || character == '\r';
+	}
+
+	/**
+	 * Whether a character is a decimal digit.
+	 *
+	 * @param character The character to check.
+	 * @return Whether the character is a digit.
+	 */
+	private static boolean isDigit(char character) {
+		return character >= '0' && character <= '9';
+	}
+
+	/**
+	 * Whether a character is a lowercase hex-digit, as QEMU prints them.
+	 *
+	 * @param character The character to check.
+	 * @return Whether the character is a hex-digit.
+	 */
+	private static boolean isHex(char character) {
+		return isDigit(character) || (character >= 'a' && character <= 'f');
+	}
+
+	/**
+	 * Whether a character is part of a word as defined by regular expressions.
+	 *
+	 * @param character The character to check.
+	 * @return Whether the character is a letter, a digit or an underscore.
+	 */
+	private static boolean isWordCharacter(char character) {
+		return isDigit(character) || (character >= 'a' && character <= 'z') || (character >= 'A' && character <= 'Z') || character == '_';
+	}
+}
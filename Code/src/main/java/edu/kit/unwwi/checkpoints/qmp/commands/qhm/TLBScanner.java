@@ -0,0 +1,269 @@
+package edu.kit.unwwi.checkpoints.qmp.commands.qhm;
+
+import edu.kit.unwwi.checkpoints.qemu.models.memory.PagingMode;
+import edu.kit.unwwi.checkpoints.qemu.models.memory.TLB;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Parses the output of "info tlb" in a single pass over its characters.
+ * Every line has the form "virtual: physical flags" and describes a single page,
+ * which gets added to a TLB as soon as the size of the page is known.
+ * QEMU doesn't print the size of a page, so it gets inferred:
+ * On x86, whose flags look like "XGPDACTUW", a page without the PSE-flag has 4 KiB.
+ * The size of a page with the PSE-flag depends on the paging mode of the CPU, as QEMU prints all modes alike:
+ * 32-bit paging without PAE has large pages of 4 MiB, 32-bit paging with PAE has large pages of 2 MiB.
+ * With 4- or 5-level paging, a large page has 2 MiB, or 1 GiB if its addresses are aligned to that
+ * and either the next page starts exactly 1 GiB later or the previous page was a 1 GiB page ending where this one starts.
+ * This is only a heuristic, as the output doesn't tell a 1 GiB page from a 2 MiB page followed by an unmapped gap:
+ * A 2 MiB page on a 1 GiB boundary followed by a page exactly 1 GiB later is recorded as a 1 GiB page,
+ * and an isolated 1 GiB page without such a neighbour is recorded as a 2 MiB page.
+ * For other flags, a page is assumed to reach up to the next page, and the last page to be as large as the one before.
+ * Lines not looking like a page get skipped.
+ */
+final class TLBScanner {
+
+	/**
+	 * The size of a regular x86 page.
+	 */
+	private static final long SMALL_PAGE = 1L << 12;
+	/**
+	 * The size of a large x86 page.
+	 */
+	private static final long LARGE_PAGE = 1L << 21;
+	/**
+	 * The size of a large x86 page when using 32-bit paging without PAE.
+	 */
+	private static final long LEGACY_LARGE_PAGE = 1L << 22;
+	/**
+	 * The size of a huge x86 page.
+	 */
+	private static final long HUGE_PAGE = 1L << 30;
+	/**
+	 * How many flags QEMU prints for x86.
+	 */
+	private static final int X86_FLAGS = 9;
+	/**
+	 * The position of the PSE-flag in the x86 flags, marking pages larger than 4 KiB.
+	 */
+	private static final int PSE_POSITION = 2;
+
+	/**
+	 * The output to scan.
+	 */
+	private final CharSequence input;
+	/**
+	 * The paging mode of the CPU whose TLB gets scanned.
+	 */
+	private final PagingMode mode;
+	/**
+	 * Collects the pages whose size is known.
+	 */
+	private final TLB.Builder builder = new TLB.Builder();
+	/**
+	 * The position of the next character to read.
+	 */
+	private int position;
+	/**
+	 * Whether a page was read whose size is not yet known.
+	 */
+	private boolean pending;
+	/**
+	 * The virtual address of the pending page.
+	 */
+	private long pendingVirtual;
+	/**
+	 * The physical address of the pending page.
+	 */
+	private long pendingPhysical;
+	/**
+	 * Where the flags of the pending page start.
+	 */
+	private int pendingFlagStart;
+	/**
+	 * Where the flags of the pending page end.
+	 */
+	private int pendingFlagEnd;
+	/**
+	 * The size of the page added last, or 0 if none was added yet.
+	 */
+	private long previousSize;
+	/**
+	 * The virtual address of the page added last.
+	 */
+	private long previousVirtual;
+
+	/**
+	 * Create a new scanner for the output of "info tlb".
+	 *
+	 * @param input The output to scan.
+	 * @param mode  The paging mode of the CPU the output belongs to.
+	 */
+	TLBScanner(@NotNull CharSequence input, @NotNull PagingMode mode) {
+		this.input = input;
+		this.mode = mode;
+	}
+
+	/**
+	 * Scans the whole output.
+	 *
+	 * @return The TLB holding all pages.
+	 */
+	@NotNull
+	TLB scan() {
+		while (position < input.length()) scanLine();
+		if (pending) {
+			if (isX86(pendingFlagStart, pendingFlagEnd)) add(x86Size(-1));
+			else if (previousSize != 0) add(previousSize);
+			else add(SMALL_PAGE);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Reads a single line and moves to the start of the next one.
+	 */
+	private void scanLine() {
+		skipSpaces();
+		int start = position;
+		long virtual = parseHex();
+		if (position == start || position - start > 16 || !consume(':')) {
+			skipLine();
+			return;
+		}
+		skipSpaces();
+		start = position;
+		long physical = parseHex();
+		if (position == start || position - start > 16 || !skipSpaces()) {
+			skipLine();
+			return;
+		}
+		int flagStart = position;
+		while (position < input.length() && !isWhitespace(input.charAt(position))) position++;
+		int flagEnd = position;
+		skipLine();
+		if (flagStart == flagEnd) return;
+		// The next page tells how large the pending one is
+		if (pending) add(isX86(pendingFlagStart, pendingFlagEnd) ? x86Size(virtual) : virtual - pendingVirtual);
+		pending = true;
+		pendingVirtual = virtual;
+		pendingPhysical = physical;
+		pendingFlagStart = flagStart;
+		pendingFlagEnd = flagEnd;
+	}
+
+	/**
+	 * Adds the pending page to the TLB.
+	 *
+	 * @param size The size of the page.
+	 */
+	private void add(long size) {
+		builder.add(pendingVirtual, pendingPhysical, size, input, pendingFlagStart, pendingFlagEnd);
+		previousSize = size;
+		previousVirtual = pendingVirtual;
+		pending = false;
+	}
+
+	/**
+	 * Whether the flags of a page are those of an x86 page.
+	 *
+	 * @param start Where the flags start.
+	 * @param end   Where the flags end.
+	 * @return Whether the flags look like those printed for x86.
+	 */
+	private boolean isX86(int start, int end) {
+		if (end - start != X86_FLAGS) return false;
+		for (int i = start; i < end; i++) {
+			if ("XGPDACTUW".charAt(i - start) != input.charAt(i) && input.charAt(i) != '-') return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The size of the pending x86 page, which depends on its PSE-flag, the paging mode and its neighbours.
+	 *
+	 * @param next The virtual address of the next page, or -1 if there is none.
+	 * @return The size of the page.
+	 */
+	private long x86Size(long next) {
+		if (input.charAt(pendingFlagStart + PSE_POSITION) != 'P') return SMALL_PAGE;
+		return switch (mode) {
+			case LEGACY -> LEGACY_LARGE_PAGE;
+			case FOUR_LEVEL, FIVE_LEVEL -> longModeSize(next);
+			default -> LARGE_PAGE;
+		};
+	}
+
+	/**
+	 * The size of the pending large page when using 4- or 5-level paging, which depends on its neighbours.
+	 *
+	 * @param next The virtual address of the next page, or -1 if there is none.
+	 * @return The size of the page.
+	 */
+	private long longModeSize(long next) {
+		boolean aligned = (pendingVirtual & (HUGE_PAGE - 1)) == 0 && (pendingPhysical & (HUGE_PAGE - 1)) == 0;
+		if (!aligned) return LARGE_PAGE;
+		// Alignment alone doesn't rule out a 2 MiB page, so one of the neighbours must continue a run of 1 GiB pages
+		boolean nextAdjacent = next != -1 && next - pendingVirtual == HUGE_PAGE;
+		boolean previousAdjacent = previousSize == HUGE_PAGE && pendingVirtual - previousVirtual == HUGE_PAGE;
+		return nextAdjacent || previousAdjacent ? HUGE_PAGE : LARGE_PAGE;
+	}
+
+	/**
+	 * Parses the hex-number starting at the current position.
+	 *
+	 * @return The parsed number, which may have overflown if it has more than 16 digits.
+	 */
+	private long parseHex() {
+		long result = 0;
+		while (position < input.length()) {
+			int digit = Character.digit(input.charAt(position), 16);
+			if (digit < 0) break;
+			result = (result << 4) | digit;
+			position++;
+		}
+		return result;
+	}
+
+	/**
+	 * Skips the given character if it is the next one.
+	 *
+	 * @param expected The character to skip.
+	 * @return Whether the character was skipped.
+	 */
+	private boolean consume(char expected) {
+		if (position < input.length() && input.charAt(position) == expected) {
+			position++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Skips spaces and tabs, but no line breaks.
+	 *
+	 * @return Whether anything was skipped.
+	 */
+	private boolean skipSpaces() {
+		int start = position;
+		while (position < input.length() && (input.charAt(position) == ' ' || input.charAt(position) == '\t')) position++;
+		return position > start;
+	}
+
+	/**
+	 * Moves to the start of the next line.
+	 */
+	private void skipLine() {
+		while (position < input.length() && input.charAt(position) != '\n' && input.charAt(position) != '\r') position++;
+		while (position < input.length() && (input.charAt(position) == '\n' || input.charAt(position) == '\r')) position++;
+	}
+
+	/**
+	 * Whether a character separates the parts of a line.
+	 *
+	 * @param character The character to check.
+	 * @return Whether the character is whitespace.
+	 */
+	private static boolean isWhitespace(char character) {
+		return character == ' ' || character == '\t' || character == '\n' || character == '\r';
+	}
+}
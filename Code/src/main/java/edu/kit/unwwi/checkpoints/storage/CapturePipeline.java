@@ -0,0 +1,127 @@
+package edu.kit.unwwi.checkpoints.storage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Processes captured data in a single pass.
+ * The data gets read in buffers small enough to stay in the cache of the CPU,
+ * and each buffer gets handed to all stages before the next one gets read.
+ * This way, every byte only has to be loaded from memory once, no matter how many stages the pipeline has.
+ * This is a not thread-safe implementation.
+ */
+public class CapturePipeline {
+
+	/**
+	 * The size of the buffers the data gets processed in.
+	 * Must be a multiple of the page size, so stages working on pages never see a page split between buffers.
+	 */
+	public static final int BUFFER_SIZE = 1 << 20;
+
+	/**
+	 * All stages each buffer gets handed to, in order.
+	 */
+	private final List<Stage> stages = new ArrayList<>();
+	/**
+	 * How many bytes have been processed.
+	 */
+	private long position;
+
+	/**
+	 * Adds a stage to the end of this pipeline.
+	 *
+	 * @param stage The stage to add.
+	 * @return This pipeline.
+	 */
+	@NotNull
+	public CapturePipeline then(@NotNull Stage stage) {
+		stages.add(stage);
+		return this;
+	}
+
+	/**
+	 * Hands a buffer to all stages.
+	 * Each stage receives its own view of the buffer, so the position of the buffer does not change.
+	 *
+	 * @param buffer The data to process.
+	 * @throws IOException When a stage failed.
+	 */
+	public void process(@NotNull ByteBuffer buffer) throws IOException {
+		for (Stage stage : stages) stage.accept(position, buffer.duplicate());
+		position += buffer.remaining();
+	}
+
+	/**
+	 * Processes data which is already in memory, e.g. because it was mapped from a file.
+	 *
+	 * @param content The data to process.
+	 * @throws IOException When a stage failed.
+	 */
+	public void process(@NotNull MemorySegment content) throws IOException {
+		for (long offset = 0; offset < content.byteSize(); offset += BUFFER_SIZE) {
+			process(content.asSlice(offset, Math.min(BUFFER_SIZE, content.byteSize() - offset)).asByteBuffer());
+		}
+	}
+
+	/**
+	 * Reads data from a channel directly into the given memory and processes it while it is still cached.
+	 *
+	 * @param source The channel to read from.
+	 * @param target The memory to fill, which determines how much gets read.
+	 * @throws IOException  When reading or a stage failed.
+	 * @throws EOFException When the channel ended before the memory was filled.
+	 */
+	public void readFrom(@NotNull ReadableByteChannel source, @NotNull MemorySegment target) throws IOException {
+		for (long offset = 0; offset < target.byteSize(); offset += BUFFER_SIZE) {
+			ByteBuffer buffer = target.asSlice(offset, Math.min(BUFFER_SIZE, target.byteSize() - offset)).asByteBuffer();
+			while (buffer.hasRemaining()) {
+				if (source.read(buffer) < 0)
+					throw new EOFException("Source ended after " + (offset + buffer.position()) + " of " + target.byteSize() + " bytes");
+			}
+			process(buffer.flip());
+		}
+	}
+
+	/**
+	 * Reads a channel until it ends and processes its data.
+	 *
+	 * @param source The channel to read from.
+	 * @return How many bytes were read.
+	 * @throws IOException When reading or a stage failed.
+	 */
+	public long readFrom(@NotNull ReadableByteChannel source) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		long read = 0;
+		boolean end = false;
+		while (!end) {
+			buffer.clear();
+			while (!end && buffer.hasRemaining()) end = source.read(buffer) < 0;
+			read += buffer.position();
+			if (buffer.position() > 0) process(buffer.flip());
+		}
+		return read;
+	}
+
+	/**
+	 * A single stage of the pipeline, which gets every buffer in order.
+	 */
+	@FunctionalInterface
+	public interface Stage {
+
+		/**
+		 * Processes a buffer.
+		 *
+		 * @param position The position of the buffer in the processed data.
+		 * @param buffer   The data, which may be consumed by the stage.
+		 * @throws IOException When the stage failed.
+		 */
+		void accept(long position, @NotNull ByteBuffer buffer) throws IOException;
+	}
+}
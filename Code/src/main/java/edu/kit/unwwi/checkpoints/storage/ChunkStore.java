@@ -0,0 +1,209 @@
+package edu.kit.unwwi.checkpoints.storage;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.stream.IntStream;
+
+/**
+ * Stores files like the images of block devices in content-defined chunks.
+ * For each file a manifest gets written which lists the hashes of all its chunks,
+ * while the chunks themselves only get written to the store if they have never been seen before.
+ * As the chunk boundaries depend on the content, data which only moved inside an image still gets deduplicated.
+ */
+public class ChunkStore implements Closeable {
+
+	/**
+	 * The name of the underlying content store.
+	 */
+	private static final String STORE_NAME = "chunks";
+	/**
+	 * The default preferred size of the read buffer.
+	 * Gets increased if two chunks of maximum size wouldn't fit.
+	 */
+	private static final int BUFFER_SIZE = 1 << 26;
+
+	/**
+	 * The store holding the chunks.
+	 */
+	private final ContentStore store;
+	/**
+	 * The chunker determining the chunk boundaries.
+	 */
+	private final FastCDC chunker;
+	/**
+	 * The name of the digest used to hash the chunks.
+	 */
+	private final String digest;
+	/**
+	 * One digest per thread, as digests are not thread-safe.
+	 */
+	private final ThreadLocal<MessageDigest> digests;
+	/**
+	 * The preferred size of the read buffer.
+	 */
+	private final int bufferSize;
+
+	/**
+	 * Opens the chunk store in the given directory, creating it if it does not yet exist.
+	 *
+	 * @param directory   The directory to store the chunks in.
+	 * @param averageSize The average size of a chunk, must be a power of 2.
+	 * @param digest      The name of the digest used to identify the chunks.
+	 * @throws IOException When the store could not be opened.
+	 */
+	public ChunkStore(@NotNull Path directory, int averageSize, @NotNull String digest) throws IOException {
+		this(directory, averageSize, digest, BUFFER_SIZE);
+	}
+
+	/**
+	 * Opens the chunk store in the given directory with a read buffer of a different size.
+	 *
+	 * @param directory   The directory to store the chunks in.
+	 * @param averageSize The average size of a chunk, must be a power of 2.
+	 * @param digest      The name of the digest used to identify the chunks.
+	 * @param bufferSize  The preferred size of the read buffer.
+	 * @throws IOException When the store could not be opened.
+	 */
+	ChunkStore(@NotNull Path directory, int averageSize, @NotNull String digest, int bufferSize) throws IOException {
+		this.bufferSize = bufferSize;
+		this.chunker = new FastCDC(averageSize);
+		this.digest = digest;
+		this.digests = ThreadLocal.withInitial(() -> DigestUtils.getDigest(digest));
+		this.store = new ContentStore(directory, STORE_NAME, digest, digests.get().getDigestLength());
+	}
+
+	/**
+	 * Creates a chunk store cutting files into chunks of a different average size, but sharing the files of another store.
+	 *
+	 * @param shared      The store whose files to use.
+	 * @param averageSize The average size of a chunk, must be a power of 2.
+	 */
+	private ChunkStore(@NotNull ChunkStore shared, int averageSize) {
+		this.bufferSize = shared.bufferSize;
+		this.chunker = new FastCDC(averageSize);
+		this.digest = shared.digest;
+		this.digests = shared.digests;
+		this.store = shared.store;
+	}
+
+	/**
+	 * Returns a store cutting files into chunks of the given average size, which shares the files of this store.
+	 * As every chunk is stored with its own length and manifests only list hashes,
+	 * manifests can be restored by any store sharing the files, no matter which chunk size they were written with.
+	 * Closing any of the stores closes the files for all of them.
+	 *
+	 * @param averageSize The average size of a chunk, must be a power of 2.
+	 * @return This store if it already uses the chunk size, otherwise a new store sharing its files.
+	 */
+	@NotNull
+	public ChunkStore withAverageSize(int averageSize) {
+		if (averageSize == chunker.getAverageSize()) return this;
+		else return new ChunkStore(this, averageSize);
+	}
+
+	/**
+	 * Splits a file into chunks, writes all chunks that are not yet known to the store and creates a manifest for the file.
+	 * The file gets read in large blocks. All chunks inside a block get hashed in parallel.
+	 *
+	 * @param file       The file to store.
+	 * @param manifest   The file the manifest gets written to.
+	 * @param tree       A builder of a hash tree to hand the complete contents of the file to while reading it, or null.
+	 * @return How many bytes were actually written to the store.
+	 * @throws IOException When reading the file or writing the chunks or the manifest failed.
+	 */
+	public long store(@NotNull Path file, @NotNull Path manifest, @Nullable MerkleTree.Builder tree) throws IOException {
+		byte[] buffer = new byte[Math.max(bufferSize, 2 * chunker.getMaxSize())];
+		int[] boundaries = new int[buffer.length / chunker.getMinSize() + 2];
+		byte[][] hashes = new byte[boundaries.length][];
+		long written = 0;
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+		     DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(manifest, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)))) {
+			out.writeUTF(digest);
+			out.writeInt(chunker.getAverageSize());
+			out.writeLong(in.size());
+			int available = 0;
+			boolean end = false;
+			while (!end || available > 0) {
+				// Fill the buffer
+				ByteBuffer wrapper = ByteBuffer.wrap(buffer, available, buffer.length - available);
+				while (!end && wrapper.hasRemaining()) end = in.read(wrapper) < 0;
+				if (tree != null) tree.update(buffer, available, wrapper.position() - available);
+				available = wrapper.position();
+
+				// Find all chunks in the buffer, the last incomplete one only gets cut at the end of the file
+				int count = 0;
+				int position = 0;
+				while (position < available && (end || available - position >= chunker.getMaxSize())) {
+					position += chunker.cut(buffer, position, available - position);
+					boundaries[++count] = position;
+				}
+
+				final int chunks = count;
+				IntStream.range(0, chunks).parallel().forEach(i -> {
+					MessageDigest chunkDigest = digests.get();
+					chunkDigest.update(buffer, boundaries[i], boundaries[i + 1] - boundaries[i]);
+					hashes[i] = chunkDigest.digest();
+				});
+				for (int i = 0; i < chunks; i++) {
+					int length = boundaries[i + 1] - boundaries[i];
+					if (store.put(hashes[i], ByteBuffer.wrap(buffer, boundaries[i], length))) written += length;
+					out.write(hashes[i]);
+				}
+
+				// Move the remaining data to the front
+				System.arraycopy(buffer, position, buffer, 0, available - position);
+				available -= position;
+			}
+		}
+		store.force();
+		return written;
+	}
+
+	/**
+	 * Restores the contents of a file from its manifest.
+	 *
+	 * @param manifest The manifest of the file.
+	 * @param target   Where to write the contents to.
+	 * @throws IOException When the manifest or a chunk could not be read, or the target could not be written.
+	 */
+	public void restore(@NotNull Path manifest, @NotNull WritableByteChannel target) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifest)))) {
+			String manifestDigest = in.readUTF();
+			if (!manifestDigest.equals(digest))
+				throw new IOException("Manifest uses " + manifestDigest + " while the store uses " + digest);
+			in.readInt();
+			long remaining = in.readLong();
+			byte[] hash = new byte[digests.get().getDigestLength()];
+			while (remaining > 0) {
+				in.readFully(hash);
+				ByteBuffer chunk = store.read(hash);
+				remaining -= chunk.remaining();
+				while (chunk.hasRemaining()) target.write(chunk);
+			}
+		}
+	}
+
+	/**
+	 * The average size of the chunks created by this store.
+	 *
+	 * @return The average chunk size in bytes.
+	 */
+	public int getAverageSize() {
+		return chunker.getAverageSize();
+	}
+
+	@Override
+	public void close() throws IOException {
+		store.close();
+	}
+}
@@ -0,0 +1,92 @@
+package edu.kit.unwwi.checkpoints.storage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.zip.Deflater;
+
+/**
+ * The codecs which may be used to compress the frames of a framed file.
+ * The identifier of a codec gets stored in the files, so it must never change.
+ */
+public enum Codec {
+
+	/**
+	 * Deflate as implemented by zlib, which is the only codec shipped with the JDK.
+	 */
+	DEFLATE((byte) 1, Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION, Deflater.DEFAULT_COMPRESSION);
+
+	/**
+	 * The identifier of this codec stored in the header of a file.
+	 */
+	private final byte id;
+	/**
+	 * The lowest level accepted by this codec.
+	 */
+	private final int minLevel;
+	/**
+	 * The highest level accepted by this codec.
+	 */
+	private final int maxLevel;
+	/**
+	 * The level used if none was specified.
+	 */
+	private final int defaultLevel;
+
+	/**
+	 * Create a new codec.
+	 *
+	 * @param id           The identifier stored in the files.
+	 * @param minLevel     The lowest accepted level.
+	 * @param maxLevel     The highest accepted level.
+	 * @param defaultLevel The level used if none was specified.
+	 */
+	Codec(byte id, int minLevel, int maxLevel, int defaultLevel) {
+		this.id = id;
+		this.minLevel = minLevel;
+		this.maxLevel = maxLevel;
+		this.defaultLevel = defaultLevel;
+	}
+
+	/**
+	 * Returns the identifier of this codec stored in the files.
+	 *
+	 * @return The identifier of this codec.
+	 */
+	public byte getId() {
+		return id;
+	}
+
+	/**
+	 * Checks whether this codec supports the given compression level.
+	 *
+	 * @param level The level to check.
+	 * @return Whether the level may be used.
+	 */
+	public boolean isValidLevel(int level) {
+		return level >= minLevel && level <= maxLevel;
+	}
+
+	/**
+	 * Returns the level used if none was specified.
+	 *
+	 * @return The default level of this codec.
+	 */
+	public int getDefaultLevel() {
+		return defaultLevel;
+	}
+
+	/**
+	 * Returns the codec with the given identifier.
+	 *
+	 * @param id The identifier read from a file.
+	 * @return The codec with this identifier.
+	 * @throws IllegalArgumentException When no codec has this identifier.
+	 */
+	@NotNull
+	public static Codec byId(byte id) throws IllegalArgumentException {
+		for (Codec codec : values()) {
+			if (codec.id == id) return codec;
+		}
+		throw new IllegalArgumentException("Unknown codec " + id);
+	}
+}
@@ -0,0 +1,394 @@
+package edu.kit.unwwi.checkpoints.storage;
+
+import it.unimi.dsi.fastutil.BigArrays;
+import it.unimi.dsi.fastutil.bytes.ByteBigArrayBigList;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongBigArrayBigList;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A content-addressed store which keeps blobs of data identified by their hash.
+ * Each blob only gets stored once, no matter how often it gets added.
+ * All blobs get appended to a single pack file, as storing millions of pages as separate files would overwhelm any filesystem.
+ * The hashes and positions of the blobs get appended to an index file, which gets read into memory when the store gets opened.
+ * The index starts with a header naming the digest and the length of its hashes,
+ * so a store never gets read using hashes of a different length.
+ * This class is thread-safe.
+ */
+public class ContentStore implements Closeable {
+
+	/**
+	 * The file ending of the file containing the data.
+	 */
+	private static final String PACK = ".pack";
+	/**
+	 * The file ending of the file containing the index.
+	 */
+	private static final String INDEX = ".idx";
+	/**
+	 * The magic number at the start of every index file.
+	 */
+	private static final int MAGIC = 0x51434b49;
+	/**
+	 * The size of the buffers collecting writes before they get written to disk.
+	 */
+	private static final int BUFFER_SIZE = 1 << 20;
+	/**
+	 * The value returned when a hash is not contained in this store.
+	 */
+	public static final long MISSING = -1L;
+
+	/**
+	 * The file containing the blobs, each prefixed by its length.
+	 */
+	private final FileChannel pack;
+	/**
+	 * The file containing the hashes and offsets of all blobs.
+	 */
+	private final FileChannel index;
+	/**
+	 * The length of the hashes used as keys.
+	 */
+	private final int hashLength;
+	/**
+	 * Maps the first 8 bytes of a hash to the first entry starting with these bytes.
+	 * Storing the full hashes as objects would take up far more memory than the hashes themselves.
+	 */
+	private final Long2LongOpenHashMap first = new Long2LongOpenHashMap();
+	/**
+	 * For each entry the next entry sharing the same first 8 bytes of its hash, or MISSING.
+	 */
+	private final LongBigArrayBigList next = new LongBigArrayBigList();
+	/**
+	 * For each entry the offset of its blob in the pack file.
+	 */
+	private final LongBigArrayBigList offsets = new LongBigArrayBigList();
+	/**
+	 * The full hashes of all entries, one after another.
+	 */
+	private final ByteBigArrayBigList hashes = new ByteBigArrayBigList();
+	/**
+	 * Collects data to be appended to the pack file.
+	 */
+	private final ByteBuffer packBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	/**
+	 * Collects entries to be appended to the index file.
+	 */
+	private final ByteBuffer indexBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	/**
+	 * The size of the pack file including the data which is still buffered.
+	 */
+	private long packSize;
+
+	/**
+	 * Opens a store in the given directory, creating it if it does not yet exist.
+	 *
+	 * @param directory  The directory containing the store.
+	 * @param name       The name of the store, which is used as the name of its files.
+	 * @param digest     The name of the digest used to identify the blobs.
+	 * @param hashLength The length of the hashes created by the digest.
+	 * @throws IOException When the files of the store could not be opened or read, or the store uses a different digest.
+	 */
+	public ContentStore(@NotNull Path directory, @NotNull String name, @NotNull String digest, int hashLength) throws IOException {
+		this.hashLength = hashLength;
+		this.first.defaultReturnValue(MISSING);
+		Files.createDirectories(directory);
+		Path indexFile = directory.resolve(name + INDEX);
+		this.pack = FileChannel.open(directory.resolve(name + PACK), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			this.index = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		} catch (IOException e) {
+			pack.close();
+			throw e;
+		}
+		try {
+			this.packSize = pack.size();
+			pack.position(packSize);
+			readIndex(indexFile, digest);
+		} catch (IOException | RuntimeException e) {
+			pack.close();
+			index.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks the header of the index file, or writes it if the index is new.
+	 *
+	 * @param indexFile The path of the index, for error messages.
+	 * @param digest    The name of the digest the store is expected to use.
+	 * @return Where the entries of the index start.
+	 * @throws IOException When the header could not be read or written, or does not match the digest.
+	 */
+	private long readHeader(@NotNull Path indexFile, @NotNull String digest) throws IOException {
+		byte[] name = digest.getBytes(StandardCharsets.UTF_8);
+		if (index.size() == 0) {
+			ByteBuffer header = ByteBuffer.allocate(Integer.BYTES + Short.BYTES + name.length + Integer.BYTES);
+			header.putInt(MAGIC).putShort((short) name.length).put(name).putInt(hashLength).flip();
+			while (header.hasRemaining()) index.write(header, header.position());
+			index.force(false);
+			return header.capacity();
+		}
+		ByteBuffer start = ByteBuffer.allocate(Integer.BYTES + Short.BYTES);
+		readFully(index, start, 0);
+		if (start.getInt(0) != MAGIC) throw new IOException(indexFile + " is no index of a content store");
+		int nameLength = Short.toUnsignedInt(start.getShort(Integer.BYTES));
+		ByteBuffer rest = ByteBuffer.allocate(nameLength + Integer.BYTES);
+		readFully(index, rest, start.capacity());
+		String storedDigest = new String(rest.array(), 0, nameLength, StandardCharsets.UTF_8);
+		int storedLength = rest.getInt(nameLength);
+		if (!storedDigest.equals(digest) || storedLength != hashLength)
+			throw new IOException(indexFile + " uses " + storedDigest + " with hashes of " + storedLength + " bytes, not " + digest + " with hashes of " + hashLength + " bytes");
+		return start.capacity() + rest.capacity();
+	}
+
+	/**
+	 * Loads all entries of the index file into memory.
+	 * As the pack gets written before the index, only the last entries may point beyond the end of the pack file.
+	 * These were not completely written and get cut off together with an incomplete last entry.
+	 * Nothing gets cut off unless the header matched and all entries in front were read.
+	 *
+	 * @param indexFile The path of the index, for error messages.
+	 * @param digest    The name of the digest the store is expected to use.
+	 * @throws IOException When the index could not be read or uses a different digest.
+	 */
+	private void readIndex(@NotNull Path indexFile, @NotNull String digest) throws IOException {
+		long start = readHeader(indexFile, digest);
+		int entrySize = hashLength + Long.BYTES;
+		long entries = (index.size() - start) / entrySize;
+		ByteBuffer buffer = ByteBuffer.allocate(entrySize * (BUFFER_SIZE / entrySize));
+		byte[] hash = new byte[hashLength];
+		long position = start;
+		boolean complete = true;
+		for (long read = 0; read < entries && complete; ) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), (entries - read) * entrySize));
+			readFully(index, buffer, position);
+			position += buffer.limit();
+			buffer.flip();
+			while (buffer.hasRemaining() && complete) {
+				buffer.get(hash);
+				long offset = buffer.getLong();
+				complete = offset < packSize;
+				if (complete) addEntry(hash, offset);
+				read++;
+			}
+		}
+		index.truncate(start + offsets.size64() * entrySize);
+		index.position(index.size());
+	}
+
+	/**
+	 * Adds an entry to the in-memory index.
+	 *
+	 * @param hash   The hash of the blob.
+	 * @param offset Where the blob is stored in the pack file.
+	 */
+	private void addEntry(byte @NotNull [] hash, long offset) {
+		long entry = offsets.size64();
+		offsets.add(offset);
+		next.add(first.put(prefix(hash), entry));
+		hashes.size(hashes.size64() + hashLength);
+		BigArrays.copyToBig(hash, 0, hashes.elements(), entry * hashLength, hashLength);
+	}
+
+	/**
+	 * Returns the first 8 bytes of a hash as a long.
+	 *
+	 * @param hash The hash.
+	 * @return The first 8 bytes of the hash.
+	 */
+	private static long prefix(byte @NotNull [] hash) {
+		long result = 0;
+		for (int i = 0; i < Math.min(Long.BYTES, hash.length); i++) {
+			result = (result << 8) | (hash[i] & 0xff);
+		}
+		return result;
+	}
+
+	/**
+	 * Searches for the entry with the given hash.
+	 *
+	 * @param hash The hash to search for.
+	 * @return The number of the entry or MISSING.
+	 */
+	private long findEntry(byte @NotNull [] hash) {
+		byte[][] stored = hashes.elements();
+		for (long entry = first.get(prefix(hash)); entry != MISSING; entry = next.getLong(entry)) {
+			boolean equal = true;
+			for (int i = 0; i < hashLength && equal; i++) {
+				equal = BigArrays.get(stored, entry * hashLength + i) == hash[i];
+			}
+			if (equal) return entry;
+		}
+		return MISSING;
+	}
+
+	/**
+	 * Checks whether a blob with the given hash is stored.
+	 *
+	 * @param hash The hash to check.
+	 * @return Whether the blob is stored.
+	 */
+	public synchronized boolean contains(byte @NotNull [] hash) {
+		return findEntry(hash) != MISSING;
+	}
+
+	/**
+	 * Returns where the blob with the given hash is located in the pack file.
+	 *
+	 * @param hash The hash of the blob.
+	 * @return The offset of the blob or MISSING if it isn't stored.
+	 */
+	public synchronized long find(byte @NotNull [] hash) {
+		long entry = findEntry(hash);
+		if (entry == MISSING) return MISSING;
+		else return offsets.getLong(entry);
+	}
+
+	/**
+	 * Adds a blob to this store if no blob with the same hash is stored yet.
+	 * The remaining content of the buffer gets stored, its position is not changed.
+	 *
+	 * @param hash The hash of the blob, which the caller is responsible for.
+	 * @param data The contents of the blob.
+	 * @return Whether the blob was new and has therefore been written.
+	 * @throws IOException When the blob could not be written.
+	 */
+	public synchronized boolean put(byte @NotNull [] hash, @NotNull ByteBuffer data) throws IOException {
+		if (hash.length != hashLength) throw new IllegalArgumentException("Hash has the wrong length");
+		if (findEntry(hash) != MISSING) return false;
+		long offset = packSize;
+		ByteBuffer source = data.duplicate();
+		if (packBuffer.remaining() < Integer.BYTES + source.remaining()) flushPack();
+		if (packBuffer.remaining() < Integer.BYTES + source.remaining()) {
+			// Too large to be buffered
+			ByteBuffer length = ByteBuffer.allocate(Integer.BYTES).putInt(0, source.remaining());
+			while (length.hasRemaining()) pack.write(length);
+			while (source.hasRemaining()) pack.write(source);
+		} else {
+			packBuffer.putInt(source.remaining());
+			packBuffer.put(source);
+		}
+		packSize += Integer.BYTES + data.remaining();
+
+		if (indexBuffer.remaining() < hashLength + Long.BYTES) flushIndex();
+		indexBuffer.put(hash);
+		indexBuffer.putLong(offset);
+		addEntry(hash, offset);
+		return true;
+	}
+
+	/**
+	 * Reads the blob with the given hash.
+	 *
+	 * @param hash The hash of the blob.
+	 * @return The contents of the blob.
+	 * @throws IOException              When the blob could not be read.
+	 * @throws IllegalArgumentException When the blob is not stored.
+	 */
+	@NotNull
+	public ByteBuffer read(byte @NotNull [] hash) throws IOException, IllegalArgumentException {
+		long offset = find(hash);
+		if (offset == MISSING) throw new IllegalArgumentException("Hash not contained in store");
+		return read(offset);
+	}
+
+	/**
+	 * Reads the blob at the given position of the pack file.
+	 *
+	 * @param offset The position of the blob.
+	 * @return The contents of the blob.
+	 * @throws IOException When the blob could not be read.
+	 */
+	@NotNull
+	public ByteBuffer read(long offset) throws IOException {
+		synchronized (this) {
+			if (offset >= packSize - packBuffer.position()) flushPack();
+		}
+		ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+		readFully(pack, length, offset);
+		ByteBuffer result = ByteBuffer.allocate(length.getInt(0));
+		readFully(pack, result, offset + Integer.BYTES);
+		return result.flip();
+	}
+
+	/**
+	 * Fills a buffer from the pack or the index file.
+	 *
+	 * @param file     The file to read from.
+	 * @param buffer   The buffer to fill.
+	 * @param position Where to start reading.
+	 * @throws IOException When the file ended early.
+	 */
+	private static void readFully(@NotNull FileChannel file, @NotNull ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = file.read(buffer, position + buffer.position());
+			if (read < 0) throw new EOFException("File of the store ended unexpectedly");
+		}
+	}
+
+	/**
+	 * How many blobs are stored.
+	 *
+	 * @return The amount of stored blobs.
+	 */
+	public synchronized long size() {
+		return offsets.size64();
+	}
+
+	/**
+	 * Writes the buffered data to the pack file.
+	 *
+	 * @throws IOException When writing failed.
+	 */
+	private void flushPack() throws IOException {
+		packBuffer.flip();
+		while (packBuffer.hasRemaining()) pack.write(packBuffer);
+		packBuffer.clear();
+	}
+
+	/**
+	 * Writes the buffered entries to the index file.
+	 * The pack gets written first, so an entry never points to data that isn't on disk.
+	 *
+	 * @throws IOException When writing failed.
+	 */
+	private void flushIndex() throws IOException {
+		flushPack();
+		indexBuffer.flip();
+		while (indexBuffer.hasRemaining()) index.write(indexBuffer);
+		indexBuffer.clear();
+	}
+
+	/**
+	 * Writes all buffered data and forces it to disk.
+	 *
+	 * @throws IOException When writing failed.
+	 */
+	public synchronized void force() throws IOException {
+		flushIndex();
+		pack.force(false);
+		index.force(false);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			force();
+		} finally {
+			pack.close();
+			index.close();
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package edu.kit.unwwi.checkpoints.storage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.SplittableRandom;
+
+/**
+ * A content-defined chunker based on FastCDC.
+ * Chunk boundaries are determined by a rolling gear hash over the data instead of fixed offsets,
+ * so inserting or removing bytes only changes the chunks around the modification,
+ * while all following chunks keep their boundaries and can still be deduplicated.
+ * Normalized chunking is used to keep the chunk sizes close to the average.
+ */
+public class FastCDC {
+
+	/**
+	 * The seed used to generate the gear table.
+	 * Must never change, as otherwise the boundaries of already stored chunks change as well.
+	 */
+	private static final long GEAR_SEED = 0x436865636b706f69L;
+	/**
+	 * The table of random values mixed into the hash for each byte value.
+	 */
+	private static final long[] GEAR = new long[256];
+
+	static {
+		SplittableRandom random = new SplittableRandom(GEAR_SEED);
+		for (int i = 0; i < GEAR.length; i++) GEAR[i] = random.nextLong();
+	}
+
+	/**
+	 * The minimum size of a chunk.
+	 */
+	private final int minSize;
+	/**
+	 * The average size of a chunk.
+	 */
+	private final int averageSize;
+	/**
+	 * The maximum size of a chunk.
+	 */
+	private final int maxSize;
+	/**
+	 * The mask used before the average size is reached.
+	 * Has more bits set than the average requires, making boundaries less likely.
+	 */
+	private final long smallMask;
+	/**
+	 * The mask used after the average size is reached.
+	 * Has fewer bits set than the average requires, making boundaries more likely.
+	 */
+	private final long largeMask;
+
+	/**
+	 * Create a new chunker with the given average chunk size.
+	 * The minimum size is a quarter of the average, the maximum size four times the average.
+	 *
+	 * @param averageSize The average size of a chunk, must be a power of 2 of at least 256.
+	 * @throws IllegalArgumentException When the average size is no power of 2 or too small.
+	 */
+	public FastCDC(int averageSize) throws IllegalArgumentException {
+		if (!isValidAverageSize(averageSize))
+			throw new IllegalArgumentException("Average chunk size must be a power of 2 between 256 and 2^24");
+		this.averageSize = averageSize;
+		this.minSize = averageSize / 4;
+		this.maxSize = averageSize * 4;
+		int bits = Integer.numberOfTrailingZeros(averageSize);
+		// The gear hash shifts left, so bit k only depends on the last k + 1 bytes.
+		// The masks use the upper bits, as only those depend on the whole window of 64 bytes.
+		this.smallMask = -1L << (Long.SIZE - bits - 2);
+		this.largeMask = -1L << (Long.SIZE - bits + 2);
+	}
+
+	/**
+	 * Checks whether a chunker can be created with the given average size.
+	 *
+	 * @param averageSize The average size of a chunk.
+	 * @return Whether the size is a power of 2 of reasonable size.
+	 */
+	public static boolean isValidAverageSize(int averageSize) {
+		return Integer.bitCount(averageSize) == 1 && averageSize >= 256 && averageSize <= (1 << 24);
+	}
+
+	/**
+	 * Finds the end of the next chunk.
+	 *
+	 * @param data   The data to chunk.
+	 * @param offset Where the chunk starts.
+	 * @param length How many bytes are available. If less than the maximum size, the end of the data is assumed to be reached.
+	 * @return The length of the next chunk.
+	 */
+	public int cut(byte @NotNull [] data, int offset, int length) {
+		if (length <= minSize) return length;
+		int normal = Math.min(averageSize, length);
+		int barrier = Math.min(maxSize, length);
+		long hash = 0;
+		int i = minSize;
+		for (; i < normal; i++) {
+			hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+			if ((hash & smallMask) == 0) return i + 1;
+		}
+		for (; i < barrier; i++) {
+			hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+			if ((hash & largeMask) == 0) return i + 1;
+		}
+		return barrier;
+	}
+
+	/**
+	 * The minimum size of a chunk.
+	 *
+	 * @return The minimum size.
+	 */
+	public int getMinSize() {
+		return minSize;
+	}
+
+	/**
+	 * The average size of a chunk.
+	 *
+	 * @return The average size.
+	 */
+	public int getAverageSize() {
+		return averageSize;
+	}
+
+	/**
+	 * The maximum size of a chunk.
+	 *
+	 * @return The maximum size.
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+}
@@ -0,0 +1,334 @@
+package edu.kit.unwwi.checkpoints.storage;
+
+import edu.kit.unwwi.checkpoints.qemu.models.memory.MemorySegment;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
+
+/**
+ * Writes data compressed in independent frames of fixed size, which can be read using a FramedFile.
+ * The frames get compressed in parallel batches and are then written in order.
+ * Frames which don't get smaller by compressing them are stored as they are.
+ */
+public class FrameWriter {
+
+	/**
+	 * The size of the frames the data gets split into before compression.
+	 * Reading a single byte requires decompressing a frame of this size.
+	 */
+	private static final int FRAME_SIZE = 1 << 18;
+	/**
+	 * How many frames get compressed in parallel before they get written.
+	 * Limits the memory required for the compressed frames.
+	 */
+	private static final int BATCH_SIZE = 4 * Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * The codec used to compress the frames.
+	 */
+	private final Codec codec;
+	/**
+	 * The compression level handed to the codec.
+	 */
+	private final int level;
+	/**
+	 * One compressor per thread, as compressors are not thread-safe.
+	 */
+	private final ThreadLocal<Deflater> deflaters;
+	/**
+	 * One input buffer per thread.
+	 * Deflater does not accept buffers backed by shared arenas, so each frame gets copied to the heap first.
+	 */
+	private final ThreadLocal<byte[]> inputs = ThreadLocal.withInitial(() -> new byte[FRAME_SIZE]);
+
+	/**
+	 * Create a new writer using the given codec.
+	 *
+	 * @param codec The codec to compress the frames with.
+	 * @param level The compression level, which must be valid for the codec.
+	 * @throws IllegalArgumentException When the level is not supported by the codec.
+	 */
+	public FrameWriter(@NotNull Codec codec, int level) throws IllegalArgumentException {
+		if (!codec.isValidLevel(level))
+			throw new IllegalArgumentException("Level " + level + " is not supported by " + codec);
+		this.codec = codec;
+		this.level = level;
+		this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+	}
+
+	/**
+	 * Writes the contents of a memory segment to a new framed file.
+	 *
+	 * @param segment The segment to write.
+	 * @param target  The file to create.
+	 * @throws IOException When the file could not be written.
+	 */
+	public void write(@NotNull MemorySegment segment, @NotNull Path target) throws IOException {
+		write(segment::slice, segment.getSize(), target, null);
+	}
+
+	/**
+	 * Writes the contents of a file to a new framed file.
+	 * The source gets mapped, so its contents get read by all compressing threads without copying.
+	 *
+	 * @param source The file to compress.
+	 * @param target The file to create.
+	 * @param tree   A builder of a hash tree to hand the complete contents of the source to while compressing it, or null.
+	 * @throws IOException When the source could not be read or the target could not be written.
+	 */
+	public void write(@NotNull Path source, @NotNull Path target, @Nullable MerkleTree.Builder tree) throws IOException {
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ); Arena arena = Arena.ofShared()) {
+			long size = in.size();
+			java.lang.foreign.MemorySegment content = in.map(FileChannel.MapMode.READ_ONLY, 0, size, arena);
+			write((offset, length) -> content.asSlice(offset, length).asByteBuffer(), size, target, tree);
+		}
+	}
+
+	/**
+	 * Creates a new framed file whose contents get handed over while they pass through a CapturePipeline.
+	 * Complete batches of frames get compressed in parallel and written right away,
+	 * so the contents never have to be held in memory as a whole.
+	 * Closing the output writes the index of the frames.
+	 *
+	 * @param target The file to create.
+	 * @param size   The size of the contents.
+	 * @return The stage receiving the contents.
+	 * @throws IOException When the file could not be created.
+	 */
+	@NotNull
+	public Output open(@NotNull Path target, long size) throws IOException {
+		return new Output(target, size);
+	}
+
+	/**
+	 * Writes the header of a framed file and moves the channel behind the index of the frames.
+	 *
+	 * @param out    The new file.
+	 * @param size   The size of the contents.
+	 * @param frames The number of frames.
+	 * @throws IOException When writing failed.
+	 */
+	private void writeHeader(@NotNull FileChannel out, long size, int frames) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(FramedFile.HEADER_SIZE);
+		header.putInt(FramedFile.MAGIC).put(codec.getId()).put((byte) level).putInt(FRAME_SIZE).putLong(size).flip();
+		while (header.hasRemaining()) out.write(header);
+		out.position(FramedFile.HEADER_SIZE + (long) frames * Integer.BYTES);
+	}
+
+	/**
+	 * Writes the index of the frames behind the header.
+	 *
+	 * @param out   The file.
+	 * @param index The compressed length of every frame.
+	 * @throws IOException When writing failed.
+	 */
+	private static void writeIndex(@NotNull FileChannel out, @NotNull ByteBuffer index) throws IOException {
+		index.flip();
+		long position = FramedFile.HEADER_SIZE;
+		while (index.hasRemaining()) position += out.write(index, position);
+	}
+
+	/**
+	 * Compresses all frames of the given source and writes them to a new file.
+	 *
+	 * @param source Provides the contents of the frames.
+	 * @param size   The size of the source.
+	 * @param target The file to create.
+	 * @param tree   A builder of a hash tree to hand all frames to, or null.
+	 * @throws IOException When the file could not be written.
+	 */
+	private void write(@NotNull FrameSource source, long size, @NotNull Path target, @Nullable MerkleTree.Builder tree) throws IOException {
+		// If the leaves match the frames, they get hashed by the same task compressing them
+		boolean hashFrames = tree != null && tree.getLeafSize() == FRAME_SIZE && tree.getSize() == size && size > 0;
+		int frames = FramedFile.frameCount(size, FRAME_SIZE);
+		ByteBuffer index = ByteBuffer.allocate(frames * Integer.BYTES);
+		ByteBuffer[] output = new ByteBuffer[BATCH_SIZE];
+		for (int i = 0; i < output.length; i++) output[i] = ByteBuffer.allocateDirect(FRAME_SIZE);
+		ByteBuffer[] results = new ByteBuffer[BATCH_SIZE];
+		try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			writeHeader(out, size, frames);
+			for (int start = 0; start < frames; start += BATCH_SIZE) {
+				final int first = start;
+				int count = Math.min(BATCH_SIZE, frames - start);
+				IntStream.range(0, count).parallel().forEach(i -> {
+					long offset = (long) (first + i) * FRAME_SIZE;
+					ByteBuffer frame = source.frame(offset, (int) Math.min(FRAME_SIZE, size - offset));
+					if (hashFrames) tree.hashLeaf(first + i, frame.duplicate());
+					results[i] = compress(frame, output[i].clear());
+				});
+				for (int i = 0; i < count; i++) {
+					if (tree != null && !hashFrames) {
+						long offset = (long) (first + i) * FRAME_SIZE;
+						tree.update(source.frame(offset, (int) Math.min(FRAME_SIZE, size - offset)));
+					}
+					index.putInt(results[i].remaining());
+					while (results[i].hasRemaining()) out.write(results[i]);
+				}
+			}
+			writeIndex(out, index);
+		}
+	}
+
+	/**
+	 * Compresses a single frame.
+	 *
+	 * @param frame  The contents of the frame.
+	 * @param output The buffer to compress into, which is as large as a frame.
+	 * @return The compressed frame, or the frame itself if compressing didn't make it smaller.
+	 */
+	@NotNull
+	private ByteBuffer compress(@NotNull ByteBuffer frame, @NotNull ByteBuffer output) {
+		Deflater deflater = deflaters.get();
+		byte[] input = inputs.get();
+		int length = frame.remaining();
+		frame.get(frame.position(), input, 0, length);
+		deflater.reset();
+		deflater.setInput(input, 0, length);
+		deflater.finish();
+		// Leave one byte free, so a compressed frame is always shorter than the original
+		output.limit(Math.max(0, length - 1));
+		while (!deflater.finished() && output.hasRemaining()) deflater.deflate(output);
+		if (deflater.finished()) return output.flip();
+		else return frame;
+	}
+
+	/**
+	 * The codec this writer compresses the frames with.
+	 *
+	 * @return The codec of this writer.
+	 */
+	@NotNull
+	public Codec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Writes a framed file while its contents pass through a CapturePipeline.
+	 * The contents get collected until a batch of frames is complete, which then gets compressed in parallel.
+	 */
+	public final class Output implements CapturePipeline.Stage, Closeable {
+
+		/**
+		 * The file being written.
+		 */
+		private final FileChannel out;
+		/**
+		 * The size of the contents.
+		 */
+		private final long size;
+		/**
+		 * The compressed length of every frame written so far.
+		 */
+		private final ByteBuffer index;
+		/**
+		 * Collects the frames of the current batch.
+		 */
+		private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_SIZE * FRAME_SIZE);
+		/**
+		 * The buffers the frames of a batch get compressed into.
+		 */
+		private final ByteBuffer[] output = new ByteBuffer[BATCH_SIZE];
+		/**
+		 * The compressed frames of a batch.
+		 */
+		private final ByteBuffer[] results = new ByteBuffer[BATCH_SIZE];
+		/**
+		 * How many bytes were handed over.
+		 */
+		private long received;
+
+		/**
+		 * Creates the file and writes its header.
+		 *
+		 * @param target The file to create.
+		 * @param size   The size of the contents.
+		 * @throws IOException When the file could not be created.
+		 */
+		private Output(@NotNull Path target, long size) throws IOException {
+			int frames = FramedFile.frameCount(size, FRAME_SIZE);
+			this.size = size;
+			this.index = ByteBuffer.allocate(frames * Integer.BYTES);
+			for (int i = 0; i < output.length; i++) output[i] = ByteBuffer.allocateDirect(FRAME_SIZE);
+			this.out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			try {
+				writeHeader(out, size, frames);
+			} catch (IOException e) {
+				out.close();
+				throw e;
+			}
+		}
+
+		@Override
+		public void accept(long position, @NotNull ByteBuffer buffer) throws IOException {
+			received += buffer.remaining();
+			if (received > size) throw new IOException("Contents are larger than " + size + " bytes");
+			while (buffer.hasRemaining()) {
+				int length = Math.min(buffer.remaining(), batch.remaining());
+				batch.put(batch.position(), buffer, buffer.position(), length);
+				batch.position(batch.position() + length);
+				buffer.position(buffer.position() + length);
+				if (!batch.hasRemaining()) writeBatch();
+			}
+		}
+
+		/**
+		 * Compresses all frames of the current batch in parallel and writes them in order.
+		 *
+		 * @throws IOException When writing failed.
+		 */
+		private void writeBatch() throws IOException {
+			ByteBuffer full = batch.flip();
+			int count = Math.ceilDiv(full.limit(), FRAME_SIZE);
+			IntStream.range(0, count).parallel().forEach(i -> {
+				int offset = i * FRAME_SIZE;
+				results[i] = compress(full.slice(offset, Math.min(FRAME_SIZE, full.limit() - offset)), output[i].clear());
+			});
+			for (int i = 0; i < count; i++) {
+				index.putInt(results[i].remaining());
+				while (results[i].hasRemaining()) out.write(results[i]);
+			}
+			batch.clear();
+		}
+
+		/**
+		 * Writes the last batch and the index of all frames.
+		 *
+		 * @throws IOException When writing failed or fewer bytes than the size of the contents were handed over.
+		 */
+		@Override
+		public void close() throws IOException {
+			try (out) {
+				if (batch.position() > 0) writeBatch();
+				if (received != size) throw new EOFException("Received " + received + " of " + size + " bytes");
+				writeIndex(out, index);
+			}
+		}
+	}
+
+	/**
+	 * Provides the contents of the frames to compress.
+	 */
+	@FunctionalInterface
+	private interface FrameSource {
+
+		/**
+		 * Returns the contents of a single frame.
+		 *
+		 * @param offset Where the frame starts.
+		 * @param length The length of the frame.
+		 * @return A buffer containing the contents of the frame.
+		 */
+		@NotNull
+		ByteBuffer frame(long offset, int length);
+	}
+}
@@ -0,0 +1,230 @@
+package edu.kit.unwwi.checkpoints.storage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A file containing data compressed in independent frames of fixed size, as written by a FrameWriter.
+ * The file starts with a header and the compressed length of each frame, followed by the frames themselves.
+ * As the frames are independent, any part of the data can be read by only decompressing the frames containing it.
+ * Frames which could not be compressed are stored as they are, which is recognizable by their length.
+ * This class is thread-safe.
+ */
+public class FramedFile implements Closeable {
+
+	/**
+	 * The magic number at the start of every framed file.
+	 */
+	static final int MAGIC = 0x51434b46;
+	/**
+	 * The size of the header, consisting of the magic number, the codec, the level, the frame size and the uncompressed size.
+	 */
+	static final int HEADER_SIZE = Integer.BYTES + 2 + Integer.BYTES + Long.BYTES;
+
+	/**
+	 * The file containing the frames.
+	 */
+	private final FileChannel channel;
+	/**
+	 * The codec the frames were compressed with.
+	 */
+	private final Codec codec;
+	/**
+	 * The size of the frames before compression.
+	 */
+	private final int frameSize;
+	/**
+	 * The size of the data before compression.
+	 */
+	private final long size;
+	/**
+	 * The position of each frame in the file, followed by the end of the last frame.
+	 */
+	private final long[] offsets;
+	/**
+	 * Used to decompress the frames.
+	 */
+	private final Inflater inflater = new Inflater();
+	/**
+	 * The frame which was decompressed last.
+	 */
+	private final ByteBuffer cache;
+	/**
+	 * The number of the frame currently held by the cache, or -1.
+	 */
+	private int cachedFrame = -1;
+
+	/**
+	 * Opens a framed file and reads its index.
+	 *
+	 * @param file The file to open.
+	 * @throws IOException When the file could not be read or is no framed file.
+	 */
+	public FramedFile(@NotNull Path file) throws IOException {
+		this.channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(header, 0);
+			header.flip();
+			if (header.getInt() != MAGIC) throw new IOException(file + " is no framed file");
+			this.codec = Codec.byId(header.get());
+			header.get();
+			this.frameSize = header.getInt();
+			this.size = header.getLong();
+			int frames = frameCount(size, frameSize);
+			ByteBuffer index = ByteBuffer.allocate(frames * Integer.BYTES);
+			readFully(index, HEADER_SIZE);
+			index.flip();
+			this.offsets = new long[frames + 1];
+			offsets[0] = HEADER_SIZE + (long) frames * Integer.BYTES;
+			for (int i = 0; i < frames; i++) offsets[i + 1] = offsets[i] + index.getInt();
+			this.cache = ByteBuffer.allocate(frameSize);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Calculates how many frames are needed for the given amount of data.
+	 *
+	 * @param size      The size of the data.
+	 * @param frameSize The size of the frames.
+	 * @return The number of frames.
+	 */
+	static int frameCount(long size, int frameSize) {
+		return Math.toIntExact(Math.ceilDiv(size, frameSize));
+	}
+
+	/**
+	 * Fills a buffer from the file.
+	 *
+	 * @param buffer   The buffer to fill.
+	 * @param position Where to start reading.
+	 * @throws IOException When the file ended early.
+	 */
+	private void readFully(@NotNull ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) throw new EOFException("Framed file ended unexpectedly");
+			position += read;
+		}
+	}
+
+	/**
+	 * Loads a frame into the cache, unless it already is.
+	 *
+	 * @param frame The number of the frame.
+	 * @throws IOException When the frame could not be read or decompressed.
+	 */
+	private void load(int frame) throws IOException {
+		if (frame == cachedFrame) return;
+		cachedFrame = -1;
+		int length = (int) Math.min(frameSize, size - (long) frame * frameSize);
+		int compressed = (int) (offsets[frame + 1] - offsets[frame]);
+		cache.clear().limit(length);
+		if (compressed == length) {
+			readFully(cache, offsets[frame]);
+		} else {
+			ByteBuffer input = ByteBuffer.allocate(compressed);
+			readFully(input, offsets[frame]);
+			inflater.reset();
+			inflater.setInput(input.flip());
+			try {
+				while (cache.hasRemaining() && !inflater.finished()) {
+					if (inflater.inflate(cache) == 0 && inflater.needsInput())
+						throw new EOFException("Frame " + frame + " ended unexpectedly");
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("Frame " + frame + " is corrupted", e);
+			}
+			if (cache.hasRemaining()) throw new EOFException("Frame " + frame + " is too short");
+		}
+		cachedFrame = frame;
+	}
+
+	/**
+	 * Returns a single byte of the uncompressed data.
+	 * Only the frame containing the byte gets decompressed.
+	 *
+	 * @param offset The offset of the byte in the uncompressed data.
+	 * @return The byte at the given offset.
+	 * @throws IOException When the frame could not be read.
+	 */
+	public synchronized byte get(long offset) throws IOException {
+		if (offset < 0 || offset >= size) throw new IndexOutOfBoundsException(offset);
+		load((int) (offset / frameSize));
+		return cache.get((int) (offset % frameSize));
+	}
+
+	/**
+	 * Reads uncompressed data starting at the given offset until the buffer is full or the end of the data is reached.
+	 *
+	 * @param offset The offset in the uncompressed data to start at.
+	 * @param target The buffer to fill.
+	 * @return How many bytes were read.
+	 * @throws IOException When the frames could not be read.
+	 */
+	public synchronized int read(long offset, @NotNull ByteBuffer target) throws IOException {
+		int read = 0;
+		while (target.hasRemaining() && offset < size) {
+			load((int) (offset / frameSize));
+			int start = (int) (offset % frameSize);
+			int length = Math.min(target.remaining(), cache.limit() - start);
+			target.put(target.position(), cache, start, length);
+			target.position(target.position() + length);
+			offset += length;
+			read += length;
+		}
+		return read;
+	}
+
+	/**
+	 * Writes the complete uncompressed data to a channel.
+	 *
+	 * @param target The channel to write to.
+	 * @throws IOException When reading or writing failed.
+	 */
+	public synchronized void transferTo(@NotNull WritableByteChannel target) throws IOException {
+		for (int frame = 0; frame < offsets.length - 1; frame++) {
+			load(frame);
+			ByteBuffer content = cache.duplicate().rewind();
+			while (content.hasRemaining()) target.write(content);
+		}
+	}
+
+	/**
+	 * The size of the data before compression.
+	 *
+	 * @return The uncompressed size.
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * The codec the data was compressed with.
+	 *
+	 * @return The codec of this file.
+	 */
+	@NotNull
+	public Codec getCodec() {
+		return codec;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		inflater.end();
+		channel.close();
+	}
+}
@@ -0,0 +1,419 @@
+package edu.kit.unwwi.checkpoints.storage;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * A hash tree over data split into leaves of fixed size.
+ * The leaves can be hashed independently of each other, so computing the tree scales with the number of cores,
+ * while a single hash over all data can only be computed by one core.
+ * Each inner node is the hash of its two children, a node without a sibling gets carried up unchanged.
+ * The root identifies the complete data, and comparing two trees only needs to descend into subtrees which differ.
+ */
+public class MerkleTree implements Serializable {
+
+	/**
+	 * The default size of a leaf.
+	 * Equals 64 pages of 4 KiB, so the zero pages of a leaf fill exactly one word of a bitmap.
+	 */
+	public static final int DEFAULT_LEAF_SIZE = 1 << 18;
+	/**
+	 * Gets prepended to the data of a leaf, so a leaf can never have the same hash as an inner node.
+	 */
+	private static final byte LEAF_PREFIX = 0;
+	/**
+	 * Gets prepended to the children of an inner node.
+	 */
+	private static final byte NODE_PREFIX = 1;
+
+	/**
+	 * The name of the digest used for all hashes of this tree.
+	 */
+	private final String digest;
+	/**
+	 * The size of the leaves.
+	 */
+	private final int leafSize;
+	/**
+	 * The size of the data this tree was computed over.
+	 */
+	private final long size;
+	/**
+	 * The length of a single hash.
+	 */
+	private final int hashLength;
+	/**
+	 * The hashes of all nodes, level by level starting with the leaves.
+	 * The last level only contains the root.
+	 */
+	private final byte[][] levels;
+
+	/**
+	 * Create a tree from the hashes of its leaves.
+	 *
+	 * @param digest     The name of the digest used.
+	 * @param leafSize   The size of the leaves.
+	 * @param size       The size of the data.
+	 * @param hashLength The length of a hash.
+	 * @param leaves     The hashes of all leaves, one after another.
+	 */
+	private MerkleTree(@NotNull String digest, int leafSize, long size, int hashLength, byte @NotNull [] leaves) {
+		this.digest = digest;
+		this.leafSize = leafSize;
+		this.size = size;
+		this.hashLength = hashLength;
+		ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> DigestUtils.getDigest(digest));
+		int height = 1;
+		for (int count = leaves.length / hashLength; count > 1; count = (count + 1) / 2) height++;
+		this.levels = new byte[height][];
+		levels[0] = leaves;
+		for (int level = 1; level < height; level++) {
+			byte[] children = levels[level - 1];
+			int childCount = children.length / hashLength;
+			byte[] parents = new byte[(childCount + 1) / 2 * hashLength];
+			IntStream.range(0, parents.length / hashLength).parallel().forEach(i -> {
+				if (2 * i + 1 == childCount) {
+					System.arraycopy(children, 2 * i * hashLength, parents, i * hashLength, hashLength);
+				} else {
+					MessageDigest nodeDigest = digests.get();
+					nodeDigest.update(NODE_PREFIX);
+					nodeDigest.update(children, 2 * i * hashLength, 2 * hashLength);
+					System.arraycopy(nodeDigest.digest(), 0, parents, i * hashLength, hashLength);
+				}
+			});
+			levels[level] = parents;
+		}
+	}
+
+	/**
+	 * Computes the tree over data which is already in memory, e.g. because it was mapped from a file.
+	 * All leaves get hashed in parallel.
+	 *
+	 * @param digest   The name of the digest to use.
+	 * @param leafSize The size of the leaves.
+	 * @param content  The data.
+	 * @return The tree over the data.
+	 */
+	@NotNull
+	public static MerkleTree of(@NotNull String digest, int leafSize, @NotNull MemorySegment content) {
+		long size = content.byteSize();
+		Builder builder = new Builder(digest, leafSize, size);
+		IntStream.range(0, leafCount(size, leafSize)).parallel().forEach(leaf -> {
+			long offset = (long) leaf * leafSize;
+			builder.hashLeaf(leaf, content.asSlice(offset, Math.min(leafSize, size - offset)).asByteBuffer());
+		});
+		return builder.build();
+	}
+
+	/**
+	 * Calculates how many leaves are needed for the given amount of data.
+	 * Even no data at all has a single, empty leaf.
+	 *
+	 * @param size     The size of the data.
+	 * @param leafSize The size of the leaves.
+	 * @return The number of leaves.
+	 */
+	public static int leafCount(long size, int leafSize) {
+		return Math.max(1, Math.toIntExact(Math.ceilDiv(size, leafSize)));
+	}
+
+	/**
+	 * Returns the root of this tree, which identifies the complete data.
+	 *
+	 * @return The hash of the root.
+	 */
+	public byte @NotNull [] getRoot() {
+		return levels[levels.length - 1].clone();
+	}
+
+	/**
+	 * The name of the digest used for all hashes of this tree.
+	 *
+	 * @return The name of the digest.
+	 */
+	@NotNull
+	public String getDigest() {
+		return digest;
+	}
+
+	/**
+	 * The size of the leaves.
+	 *
+	 * @return The size of a leaf in bytes.
+	 */
+	public int getLeafSize() {
+		return leafSize;
+	}
+
+	/**
+	 * The size of the data this tree was computed over.
+	 *
+	 * @return The size of the data.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * How many leaves this tree has.
+	 *
+	 * @return The number of leaves.
+	 */
+	public int getLeafCount() {
+		return levels[0].length / hashLength;
+	}
+
+	/**
+	 * Checks whether a node exists in both trees and has the same hash.
+	 *
+	 * @param other The other tree.
+	 * @param level The level of the node.
+	 * @param index The index of the node in its level.
+	 * @return Whether the node is equal.
+	 */
+	private boolean nodeEquals(@NotNull MerkleTree other, int level, int index) {
+		if (level >= levels.length || level >= other.levels.length) return false;
+		int from = index * hashLength;
+		int to = from + hashLength;
+		if (to > levels[level].length || to > other.levels[level].length) return false;
+		return Arrays.equals(levels[level], from, to, other.levels[level], from, to);
+	}
+
+	/**
+	 * Finds all leaves which differ between this and another tree.
+	 * Only subtrees whose roots differ get visited, so similar trees get compared quickly.
+	 * Leaves only present in one of the trees count as different.
+	 *
+	 * @param other The tree to compare to.
+	 * @return The numbers of all leaves which differ, in ascending order.
+	 * @throws IllegalArgumentException When the trees use different digests or leaf sizes.
+	 */
+	@NotNull
+	public IntList diff(@NotNull MerkleTree other) throws IllegalArgumentException {
+		if (!digest.equals(other.digest) || leafSize != other.leafSize)
+			throw new IllegalArgumentException("Trees with different digests or leaf sizes cannot be compared");
+		IntList result = new IntArrayList();
+		int leaves = Math.max(getLeafCount(), other.getLeafCount());
+		int top = Math.max(levels.length, other.levels.length) - 1;
+		// Each entry holds the level in the upper and the index in the lower half
+		LongArrayList stack = new LongArrayList();
+		stack.push((long) top << 32);
+		while (!stack.isEmpty()) {
+			long node = stack.popLong();
+			int level = (int) (node >>> 32);
+			int index = (int) node;
+			if ((long) index << level >= leaves || nodeEquals(other, level, index)) continue;
+			if (level == 0) {
+				result.add(index);
+			} else {
+				// Pushed in reverse, so the leaves get found in ascending order
+				stack.push(((long) (level - 1) << 32) | (2L * index + 1));
+				stack.push(((long) (level - 1) << 32) | (2L * index));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Writes the leaves of this tree to a file, from which the tree can be restored using read.
+	 *
+	 * @param file The file to create.
+	 * @throws IOException When writing failed.
+	 */
+	public void write(@NotNull Path file) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)))) {
+			out.writeUTF(digest);
+			out.writeInt(leafSize);
+			out.writeLong(size);
+			out.write(levels[0]);
+		}
+	}
+
+	/**
+	 * Reads a tree from a file created by write.
+	 * Only the leaves are stored, the inner nodes get computed again.
+	 *
+	 * @param file The file to read.
+	 * @return The tree stored in the file.
+	 * @throws IOException When reading failed.
+	 */
+	@NotNull
+	public static MerkleTree read(@NotNull Path file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			String digest = in.readUTF();
+			int leafSize = in.readInt();
+			long size = in.readLong();
+			int hashLength = DigestUtils.getDigest(digest).getDigestLength();
+			byte[] leaves = new byte[leafCount(size, leafSize) * hashLength];
+			in.readFully(leaves);
+			return new MerkleTree(digest, leafSize, size, hashLength, leaves);
+		}
+	}
+
+	/**
+	 * Collects the hashes of the leaves of a tree.
+	 * Leaves can either be hashed by their number from any thread, which requires the size of the data to be known,
+	 * or data can be handed to the builder in order, which hashes the leaves in parallel batches.
+	 * Both ways must not be mixed.
+	 */
+	public static final class Builder {
+
+		/**
+		 * How many leaves get collected before they get hashed in parallel when data is handed over in order.
+		 */
+		private static final int BATCH_LEAVES = 4 * Runtime.getRuntime().availableProcessors();
+
+		/**
+		 * The name of the digest to use.
+		 */
+		private final String digest;
+		/**
+		 * The size of the leaves.
+		 */
+		private final int leafSize;
+		/**
+		 * The length of a single hash.
+		 */
+		private final int hashLength;
+		/**
+		 * One digest per thread, as digests are not thread-safe.
+		 */
+		private final ThreadLocal<MessageDigest> digests;
+		/**
+		 * The hashes of the leaves, one after another.
+		 */
+		private byte[] leaves;
+		/**
+		 * The size of the data.
+		 */
+		private long size;
+		/**
+		 * Collects data handed over in order until a batch of leaves is complete.
+		 * Only allocated once it is needed.
+		 */
+		private ByteBuffer batch;
+
+		/**
+		 * Create a new builder.
+		 *
+		 * @param digest   The name of the digest to use.
+		 * @param leafSize The size of the leaves.
+		 * @param size     The size of the data, which is only required to be exact when hashing leaves by their number.
+		 */
+		public Builder(@NotNull String digest, int leafSize, long size) {
+			if (leafSize <= 0) throw new IllegalArgumentException("Leaf size must be positive");
+			this.digest = digest;
+			this.leafSize = leafSize;
+			this.digests = ThreadLocal.withInitial(() -> DigestUtils.getDigest(digest));
+			this.hashLength = digests.get().getDigestLength();
+			this.size = size;
+			this.leaves = new byte[leafCount(size, leafSize) * hashLength];
+		}
+
+		/**
+		 * The size of the leaves.
+		 *
+		 * @return The size of a leaf in bytes.
+		 */
+		public int getLeafSize() {
+			return leafSize;
+		}
+
+		/**
+		 * The size of the data, as far as it is known yet.
+		 *
+		 * @return The size given when creating this builder, or the size of the data handed over in order so far.
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * Hashes a single leaf. May be called from multiple threads at once, as long as each leaf only gets hashed once.
+		 *
+		 * @param leaf The number of the leaf.
+		 * @param data The contents of the leaf, which get consumed.
+		 */
+		public void hashLeaf(int leaf, @NotNull ByteBuffer data) {
+			MessageDigest leafDigest = digests.get();
+			leafDigest.update(LEAF_PREFIX);
+			leafDigest.update(data);
+			System.arraycopy(leafDigest.digest(), 0, leaves, leaf * hashLength, hashLength);
+		}
+
+		/**
+		 * Hands over the next part of the data in order.
+		 * Complete batches of leaves get hashed in parallel.
+		 *
+		 * @param data The data, which gets consumed.
+		 */
+		public void update(@NotNull ByteBuffer data) {
+			if (batch == null) {
+				batch = ByteBuffer.allocate(BATCH_LEAVES * leafSize);
+				size = 0;
+			}
+			while (data.hasRemaining()) {
+				int length = Math.min(data.remaining(), batch.remaining());
+				batch.put(batch.position(), data, data.position(), length);
+				batch.position(batch.position() + length);
+				data.position(data.position() + length);
+				if (!batch.hasRemaining()) hashBatch();
+			}
+		}
+
+		/**
+		 * Hands over the next part of the data in order.
+		 *
+		 * @param data   The array containing the data.
+		 * @param offset Where the data starts in the array.
+		 * @param length The length of the data.
+		 */
+		public void update(byte @NotNull [] data, int offset, int length) {
+			update(ByteBuffer.wrap(data, offset, length));
+		}
+
+		/**
+		 * Hashes all leaves collected in the batch in parallel.
+		 */
+		private void hashBatch() {
+			int first = Math.toIntExact(size / leafSize);
+			int count = Math.ceilDiv(batch.position(), leafSize);
+			int required = (first + count) * hashLength;
+			if (leaves.length < required) leaves = Arrays.copyOf(leaves, Math.max(required, 2 * leaves.length));
+			ByteBuffer full = batch.flip();
+			IntStream.range(0, count).parallel().forEach(i -> {
+				int offset = i * leafSize;
+				hashLeaf(first + i, full.slice(offset, Math.min(leafSize, full.limit() - offset)));
+			});
+			size += full.limit();
+			batch.clear();
+		}
+
+		/**
+		 * Computes the tree from all hashed leaves.
+		 *
+		 * @return The finished tree.
+		 */
+		@NotNull
+		public MerkleTree build() {
+			// The last leaf may be incomplete, an empty leaf only gets hashed if there was no data at all
+			if (batch != null && batch.position() > 0) hashBatch();
+			if (size == 0) hashLeaf(0, ByteBuffer.allocate(0));
+			int count = leafCount(size, leafSize);
+			return new MerkleTree(digest, leafSize, size, hashLength, Arrays.copyOf(leaves, count * hashLength));
+		}
+	}
+}
@@ -0,0 +1,328 @@
+package edu.kit.unwwi.checkpoints.storage;
+
+import edu.kit.unwwi.checkpoints.qemu.models.memory.MemorySegment;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.stream.IntStream;
+
+/**
+ * Stores memory segments page by page in a content-addressed store.
+ * For each segment a manifest gets written which lists the hashes of all its pages,
+ * while the pages themselves only get written to the store if they have never been seen before.
+ * This way, a follow-up checkpoint only takes up the space of the pages that actually changed.
+ */
+public class PageStore implements Closeable {
+
+	/**
+	 * The name of the underlying content store.
+	 */
+	private static final String STORE_NAME = "pages";
+	/**
+	 * How many pages get hashed in parallel before they get written to the store.
+	 * Limits the memory required for the hashes of large segments.
+	 */
+	private static final int BATCH_SIZE = 1 << 16;
+
+	/**
+	 * The store holding the pages.
+	 */
+	private final ContentStore store;
+	/**
+	 * The size of the pages in bytes.
+	 */
+	private final int pageSize;
+	/**
+	 * The name of the digest used to hash the pages.
+	 */
+	private final String digest;
+	/**
+	 * The length of the hashes created by the digest.
+	 */
+	private final int hashLength;
+	/**
+	 * One digest per thread, as digests are not thread-safe.
+	 */
+	private final ThreadLocal<MessageDigest> digests;
+	/**
+	 * The hash of a page only containing zeroes, if the pages of this store match the zero pages detected by the segments.
+	 * Saves hashing the pages segments already know to be empty.
+	 */
+	private final byte @Nullable [] zeroHash;
+
+	/**
+	 * Opens the page store in the given directory, creating it if it does not yet exist.
+	 *
+	 * @param directory The directory to store the pages in.
+	 * @param pageSize  The size of the pages segments get split into.
+	 * @param digest    The name of the digest used to identify the pages.
+	 * @throws IOException When the store could not be opened.
+	 */
+	public PageStore(@NotNull Path directory, int pageSize, @NotNull String digest) throws IOException {
+		if (pageSize <= 0) throw new IllegalArgumentException("Page size must be positive");
+		this.pageSize = pageSize;
+		this.digest = digest;
+		this.digests = ThreadLocal.withInitial(() -> DigestUtils.getDigest(digest));
+		this.hashLength = digests.get().getDigestLength();
+		if (pageSize == MemorySegment.getZeroPageSize()) this.zeroHash = digests.get().digest(new byte[pageSize]);
+		else this.zeroHash = null;
+		this.store = new ContentStore(directory, STORE_NAME, digest, hashLength);
+	}
+
+	/**
+	 * Creates a page store splitting segments into pages of a different size, but sharing the files of another store.
+	 *
+	 * @param shared   The store whose files to use.
+	 * @param pageSize The size of the pages segments get split into.
+	 */
+	private PageStore(@NotNull PageStore shared, int pageSize) {
+		if (pageSize <= 0) throw new IllegalArgumentException("Page size must be positive");
+		this.pageSize = pageSize;
+		this.digest = shared.digest;
+		this.digests = shared.digests;
+		this.hashLength = shared.hashLength;
+		if (pageSize == MemorySegment.getZeroPageSize()) this.zeroHash = digests.get().digest(new byte[pageSize]);
+		else this.zeroHash = null;
+		this.store = shared.store;
+	}
+
+	/**
+	 * Returns a store splitting segments into pages of the given size, which shares the files of this store.
+	 * As every page is stored with its own length, pages of different sizes can be kept in the same files,
+	 * and manifests can be restored by any store sharing them, no matter which page size they were written with.
+	 * Closing any of the stores closes the files for all of them.
+	 *
+	 * @param pageSize The size of the pages segments get split into.
+	 * @return This store if it already uses the page size, otherwise a new store sharing its files.
+	 */
+	@NotNull
+	public PageStore withPageSize(int pageSize) {
+		if (pageSize == this.pageSize) return this;
+		else return new PageStore(this, pageSize);
+	}
+
+	/**
+	 * Writes all pages of a segment that are not yet known to the store and creates a manifest for the segment.
+	 *
+	 * @param segment  The segment to store.
+	 * @param manifest The file the manifest gets written to.
+	 * @return How many pages were actually written to the store.
+	 * @throws IOException When writing the pages or the manifest failed.
+	 */
+	public long store(@NotNull MemorySegment segment, @NotNull Path manifest) throws IOException {
+		long size = segment.getSize();
+		long pages = Math.ceilDiv(size, pageSize);
+		long written = 0;
+		byte[][] hashes = new byte[(int) Math.min(BATCH_SIZE, pages)][];
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(manifest, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)))) {
+			out.writeUTF(digest);
+			out.writeInt(pageSize);
+			out.writeLong(size);
+			for (long start = 0; start < pages; start += BATCH_SIZE) {
+				final long first = start;
+				int count = (int) Math.min(BATCH_SIZE, pages - start);
+				IntStream.range(0, count).parallel().forEach(i -> {
+					long page = first + i;
+					if (zeroHash != null && segment.isZeroPage(page) && (page + 1) * pageSize <= size) {
+						hashes[i] = zeroHash;
+					} else {
+						MessageDigest pageDigest = digests.get();
+						pageDigest.update(page(segment, page));
+						hashes[i] = pageDigest.digest();
+					}
+				});
+				for (int i = 0; i < count; i++) {
+					if (store.put(hashes[i], page(segment, first + i))) written++;
+					out.write(hashes[i]);
+				}
+			}
+		}
+		store.force();
+		return written;
+	}
+
+	/**
+	 * Opens a manifest for a segment whose contents get handed over while they pass through a CapturePipeline.
+	 * Pages not yet known to the store get written as soon as they are complete,
+	 * so the segment never has to be held in memory.
+	 * Closing the writer completes the manifest.
+	 *
+	 * @param manifest The file the manifest gets written to.
+	 * @param size     The size of the segment.
+	 * @return The stage receiving the contents of the segment.
+	 * @throws IOException When the manifest could not be created.
+	 */
+	@NotNull
+	public Writer open(@NotNull Path manifest, long size) throws IOException {
+		return new Writer(manifest, size);
+	}
+
+	/**
+	 * Hashes a page, unless it only contains zeroes and the hash of such a page is known.
+	 *
+	 * @param page   The contents of the page, which do not get consumed.
+	 * @param zeroes A complete page of zeroes to compare against, or null to always hash the page.
+	 * @return The hash of the page.
+	 */
+	private byte @NotNull [] hash(@NotNull ByteBuffer page, @Nullable ByteBuffer zeroes) {
+		if (zeroHash != null && zeroes != null && page.remaining() == pageSize && page.mismatch(zeroes) == -1) return zeroHash;
+		MessageDigest pageDigest = digests.get();
+		pageDigest.update(page.duplicate());
+		return pageDigest.digest();
+	}
+
+	/**
+	 * Returns a view of a single page of a segment.
+	 *
+	 * @param segment The segment.
+	 * @param page    The number of the page.
+	 * @return The contents of the page.
+	 */
+	@NotNull
+	private ByteBuffer page(@NotNull MemorySegment segment, long page) {
+		long offset = page * pageSize;
+		return segment.slice(offset, (int) Math.min(pageSize, segment.getSize() - offset));
+	}
+
+	/**
+	 * Restores the contents of a segment from its manifest.
+	 * The manifest may have been written with any page size.
+	 *
+	 * @param manifest The manifest of the segment.
+	 * @param target   Where to write the contents to.
+	 * @throws IOException When the manifest or a page could not be read, or the target could not be written.
+	 */
+	public void restore(@NotNull Path manifest, @NotNull WritableByteChannel target) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifest)))) {
+			String manifestDigest = in.readUTF();
+			if (!manifestDigest.equals(digest))
+				throw new IOException("Manifest uses " + manifestDigest + " while the store uses " + digest);
+			int manifestPageSize = in.readInt();
+			long pages = Math.ceilDiv(in.readLong(), manifestPageSize);
+			byte[] hash = new byte[hashLength];
+			for (long i = 0; i < pages; i++) {
+				in.readFully(hash);
+				ByteBuffer page = store.read(hash);
+				while (page.hasRemaining()) target.write(page);
+			}
+		}
+	}
+
+	/**
+	 * The size of the pages this store splits segments into.
+	 *
+	 * @return The size of a page in bytes.
+	 */
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	@Override
+	public void close() throws IOException {
+		store.close();
+	}
+
+	/**
+	 * Writes the pages of a single segment while its contents pass through a CapturePipeline.
+	 * All complete pages of a buffer get hashed in parallel,
+	 * only a page split between two buffers gets collected until it is complete.
+	 */
+	public final class Writer implements CapturePipeline.Stage, Closeable {
+
+		/**
+		 * The manifest of the segment.
+		 */
+		private final DataOutputStream out;
+		/**
+		 * The size of the segment.
+		 */
+		private final long size;
+		/**
+		 * A page of zeroes to compare against, or null if the hash of an empty page is not known.
+		 */
+		private final ByteBuffer zeroes;
+		/**
+		 * Collects a page which is split between buffers.
+		 */
+		private final ByteBuffer partial;
+		/**
+		 * How many bytes were handed over.
+		 */
+		private long received;
+
+		/**
+		 * Creates the manifest and writes its header.
+		 *
+		 * @param manifest The file the manifest gets written to.
+		 * @param size     The size of the segment.
+		 * @throws IOException When the manifest could not be created.
+		 */
+		private Writer(@NotNull Path manifest, long size) throws IOException {
+			this.size = size;
+			this.zeroes = zeroHash == null ? null : ByteBuffer.allocate(pageSize);
+			this.partial = ByteBuffer.allocate(pageSize);
+			this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(manifest, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)));
+			out.writeUTF(digest);
+			out.writeInt(pageSize);
+			out.writeLong(size);
+		}
+
+		@Override
+		public void accept(long position, @NotNull ByteBuffer buffer) throws IOException {
+			received += buffer.remaining();
+			if (received > size) throw new IOException("Segment is larger than " + size + " bytes");
+			if (partial.position() > 0) {
+				int length = Math.min(partial.remaining(), buffer.remaining());
+				partial.put(partial.position(), buffer, buffer.position(), length);
+				partial.position(partial.position() + length);
+				buffer.position(buffer.position() + length);
+				if (!partial.hasRemaining()) writePage(partial.flip());
+			}
+			int pages = buffer.remaining() / pageSize;
+			ByteBuffer data = buffer.slice();
+			byte[][] hashes = new byte[pages][];
+			IntStream.range(0, pages).parallel().forEach(i -> hashes[i] = hash(data.slice(i * pageSize, pageSize), zeroes));
+			for (int i = 0; i < pages; i++) {
+				store.put(hashes[i], data.slice(i * pageSize, pageSize));
+				out.write(hashes[i]);
+			}
+			buffer.position(buffer.position() + pages * pageSize);
+			partial.put(buffer);
+		}
+
+		/**
+		 * Writes a single page collected between buffers and clears it.
+		 *
+		 * @param page The page.
+		 * @throws IOException When writing the page failed.
+		 */
+		private void writePage(@NotNull ByteBuffer page) throws IOException {
+			byte[] hash = hash(page, zeroes);
+			store.put(hash, page);
+			out.write(hash);
+			page.clear();
+		}
+
+		/**
+		 * Writes the last incomplete page and completes the manifest.
+		 *
+		 * @throws IOException When writing failed or fewer bytes than the size of the segment were handed over.
+		 */
+		@Override
+		public void close() throws IOException {
+			try (out) {
+				if (partial.position() > 0) writePage(partial.flip());
+				if (received != size) throw new EOFException("Received " + received + " of " + size + " bytes");
+			}
+			store.force();
+		}
+	}
+}
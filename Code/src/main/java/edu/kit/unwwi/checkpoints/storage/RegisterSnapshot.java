@@ -0,0 +1,201 @@
+package edu.kit.unwwi.checkpoints.storage;
+
+import edu.kit.unwwi.checkpoints.qemu.models.CPU;
+import edu.kit.unwwi.checkpoints.qemu.models.registers.RegisterFile;
+import edu.kit.unwwi.checkpoints.qemu.models.registers.RegisterLayout;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Stores the CPUs of a checkpoint and their registers in a compact binary file instead of JSON.
+ * The layout of the registers gets written once for all CPUs sharing it, followed by the raw values of each CPU.
+ * A snapshot may also be written relative to the snapshot of the previous checkpoint,
+ * in which case only the registers which changed since then get written.
+ * Reading such a snapshot requires all snapshots it was written relative to,
+ * so after a limited number of such snapshots a complete one gets written again.
+ */
+public final class RegisterSnapshot {
+
+	/**
+	 * How many snapshots may be written relative to each other before a complete one gets written again.
+	 */
+	private static final int MAX_DEPTH = 64;
+	/**
+	 * Marks a CPU whose registers were not queried.
+	 */
+	private static final byte NONE = 0;
+	/**
+	 * Marks a CPU whose registers are written completely.
+	 */
+	private static final byte FULL = 1;
+	/**
+	 * Marks a CPU of which only the changed registers are written.
+	 */
+	private static final byte DELTA = 2;
+
+	/**
+	 * No instances, only static methods.
+	 */
+	private RegisterSnapshot() {
+	}
+
+	/**
+	 * Writes the CPUs to a new file.
+	 * If the snapshot of the previous checkpoint is given, CPUs whose registers have the same layout as before
+	 * only get their changed registers written.
+	 *
+	 * @param cpus     The CPUs to write.
+	 * @param target   The file to create.
+	 * @param base     The snapshot of the previous checkpoint, or null to write a complete snapshot.
+	 * @param previous The CPUs stored in the previous snapshot, required if a previous snapshot is given.
+	 * @throws IOException When writing failed or the previous snapshot could not be read.
+	 */
+	public static void write(@NotNull CPU @NotNull [] cpus, @NotNull Path target, @Nullable Path base, @NotNull CPU @Nullable [] previous) throws IOException {
+		Map<Integer, RegisterFile> before = new HashMap<>();
+		int depth = 0;
+		if (base != null && previous != null) {
+			depth = depth(base) + 1;
+			if (depth > MAX_DEPTH) depth = 0;
+			else for (CPU cpu : previous) before.put(cpu.getId(), cpu.getRegisterFile());
+		}
+		// Every layout only gets written once, even if all CPUs use it
+		Map<RegisterLayout, Integer> layouts = new LinkedHashMap<>();
+		for (CPU cpu : cpus) {
+			RegisterFile registers = cpu.getRegisterFile();
+			if (registers != null && !canDelta(registers, before.get(cpu.getId())))
+				layouts.putIfAbsent(registers.getLayout(), layouts.size());
+		}
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)))) {
+			out.writeUTF(depth == 0 ? "" : base.toAbsolutePath().toString());
+			out.writeInt(depth);
+			out.writeInt(layouts.size());
+			for (RegisterLayout layout : layouts.keySet()) layout.write(out);
+			out.writeInt(cpus.length);
+			for (CPU cpu : cpus) {
+				out.writeInt(cpu.getId());
+				out.writeUTF(cpu.getArchitecture());
+				out.writeInt(cpu.getHostThreadId());
+				out.writeBoolean(cpu.hasFlags());
+				if (cpu.hasFlags()) out.writeUTF(new String(cpu.getFlags()));
+				RegisterFile registers = cpu.getRegisterFile();
+				RegisterFile old = before.get(cpu.getId());
+				if (registers == null) {
+					out.writeByte(NONE);
+				} else if (canDelta(registers, old)) {
+					out.writeByte(DELTA);
+					registers.writeDelta(old, out);
+				} else {
+					out.writeByte(FULL);
+					out.writeInt(layouts.get(registers.getLayout()));
+					registers.write(out);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the CPUs from a snapshot, including all snapshots it was written relative to.
+	 *
+	 * @param file The snapshot to read.
+	 * @return The CPUs stored in the snapshot.
+	 * @throws IOException When reading failed or a snapshot is missing or invalid.
+	 */
+	@NotNull
+	public static CPU @NotNull [] read(@NotNull Path file) throws IOException {
+		// Collect the chain of snapshots first, so they can be applied oldest first
+		Deque<Path> chain = new ArrayDeque<>();
+		for (Path current = file; current != null; current = base(current)) chain.push(current);
+		CPU[] result = new CPU[0];
+		while (!chain.isEmpty()) result = read(chain.pop(), result);
+		return result;
+	}
+
+	/**
+	 * Reads a single snapshot.
+	 *
+	 * @param file     The snapshot to read.
+	 * @param previous The CPUs of the snapshot it was written relative to.
+	 * @return The CPUs stored in the snapshot.
+	 * @throws IOException When reading failed or the snapshot is invalid.
+	 */
+	@NotNull
+	private static CPU @NotNull [] read(@NotNull Path file, @NotNull CPU @NotNull [] previous) throws IOException {
+		Map<Integer, RegisterFile> before = new HashMap<>();
+		for (CPU cpu : previous) before.put(cpu.getId(), cpu.getRegisterFile());
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			in.readUTF();
+			in.readInt();
+			RegisterLayout[] layouts = new RegisterLayout[in.readInt()];
+			for (int i = 0; i < layouts.length; i++) layouts[i] = RegisterLayout.read(in);
+			CPU[] result = new CPU[in.readInt()];
+			for (int i = 0; i < result.length; i++) {
+				int id = in.readInt();
+				String architecture = in.readUTF();
+				int hostId = in.readInt();
+				char[] flags = in.readBoolean() ? in.readUTF().toCharArray() : null;
+				RegisterFile registers = switch (in.readByte()) {
+					case NONE -> null;
+					case FULL -> {
+						int layout = in.readInt();
+						if (layout < 0 || layout >= layouts.length) throw new IOException("Unknown register layout " + layout);
+						yield RegisterFile.read(layouts[layout], in);
+					}
+					case DELTA -> {
+						RegisterFile old = before.get(id);
+						if (old == null) throw new IOException("Previous snapshot has no registers for CPU " + id);
+						yield old.readDelta(in);
+					}
+					default -> throw new IOException("Invalid register snapshot " + file);
+				};
+				result[i] = new CPU(id, architecture, hostId, registers, flags);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Whether only the changed registers can be written.
+	 *
+	 * @param registers The current registers.
+	 * @param old       The registers of the same CPU in the previous snapshot, or null.
+	 * @return Whether both have the same layout.
+	 */
+	private static boolean canDelta(@NotNull RegisterFile registers, @Nullable RegisterFile old) {
+		return old != null && old.getLayout().equals(registers.getLayout());
+	}
+
+	/**
+	 * The snapshot another snapshot was written relative to.
+	 *
+	 * @param file The snapshot.
+	 * @return The previous snapshot, or null if the snapshot is complete.
+	 * @throws IOException When the snapshot could not be read.
+	 */
+	@Nullable
+	private static Path base(@NotNull Path file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			String base = in.readUTF();
+			return base.isEmpty() ? null : Path.of(base);
+		}
+	}
+
+	/**
+	 * How many snapshots a snapshot was written relative to.
+	 *
+	 * @param file The snapshot.
+	 * @return 0 for a complete snapshot, otherwise the number of snapshots which are required to read it.
+	 * @throws IOException When the snapshot could not be read.
+	 */
+	private static int depth(@NotNull Path file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			in.readUTF();
+			return in.readInt();
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package edu.kit.unwwi.collections.big;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An InputStream backed by a foreign memory segment, which may be located off-heap or be mapped from a file.
+ * As such segments are addressed using longs, this stream can read more than 2GiB.
+ * This is a not thread-safe implementation.
+ */
+public class ForeignMemoryInputStream extends InputStream {
+
+	/**
+	 * How many bytes get handed to an OutputStream at once when transferring.
+	 */
+	private static final int TRANSFER_SIZE = 1 << 20;
+
+	/**
+	 * The segment backing this stream.
+	 */
+	private final MemorySegment segment;
+	/**
+	 * The current position of this stream.
+	 */
+	private long position;
+
+	/**
+	 * Create a new input stream from a provided segment.
+	 *
+	 * @param segment The segment backing this stream.
+	 */
+	public ForeignMemoryInputStream(@NotNull MemorySegment segment) {
+		this.segment = segment;
+		this.position = 0L;
+	}
+
+	@Override
+	public int available() {
+		return (int) Math.min(Integer.MAX_VALUE, segment.byteSize() - position);
+	}
+
+	@Override
+	public int read() {
+		if (position == segment.byteSize()) return -1;
+		else return Byte.toUnsignedInt(segment.get(ValueLayout.JAVA_BYTE, position++));
+	}
+
+	@Override
+	public int read(byte @NotNull [] buffer, int offset, int length) {
+		if (length == 0) return 0;
+		int copy = (int) Math.min(length, segment.byteSize() - position);
+		if (copy == 0) return -1;
+		MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, position, buffer, offset, copy);
+		position += copy;
+		return copy;
+	}
+
+	@Override
+	public void reset() {
+		this.position = 0L;
+	}
+
+	@Override
+	public long skip(long n) {
+		long skipped = Math.max(0, Math.min(n, segment.byteSize() - position));
+		position += skipped;
+		return skipped;
+	}
+
+	@Override
+	public void skipNBytes(long n) throws EOFException {
+		if (skip(n) != n) throw new EOFException();
+	}
+
+	@Override
+	public long transferTo(@NotNull OutputStream out) throws IOException {
+		// Wrapping the stream allows writing directly from the segment instead of copying to an array first.
+		WritableByteChannel channel = Channels.newChannel(out);
+		long start = position;
+		while (position < segment.byteSize()) {
+			long length = Math.min(TRANSFER_SIZE, segment.byteSize() - position);
+			position += channel.write(segment.asSlice(position, length).asByteBuffer());
+		}
+		return position - start;
+	}
+}
@@ -0,0 +1,375 @@
+package edu.kit.unwwi.elf;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A minimal reader for ELF64-files as they get created by the dump-guest-memory command of QEMU.
+ * In contrast to most libraries, this class never loads the file into memory.
+ * Only the headers get read, the segments themselves are handed out as views on the underlying channel,
+ * which means files of arbitrary size can be processed.
+ */
+public class ElfFile implements Closeable {
+
+	/**
+	 * The program header type of loadable segments.
+	 */
+	public static final int PT_LOAD = 1;
+	/**
+	 * The program header type of note segments.
+	 */
+	public static final int PT_NOTE = 4;
+
+	/**
+	 * The size of the ELF64 file header.
+	 */
+	static final int HEADER_SIZE = 64;
+	/**
+	 * The size of a section header entry in ELF64.
+	 */
+	static final int SECTION_HEADER_SIZE = 64;
+	/**
+	 * The value of e_phnum signaling that the actual amount of program headers is stored in the first section header.
+	 */
+	static final int PN_XNUM = 0xffff;
+	/**
+	 * The value of EI_CLASS for 64-bit files.
+	 */
+	private static final byte ELFCLASS64 = 2;
+	/**
+	 * The value of EI_DATA for little-endian files.
+	 */
+	private static final byte ELFDATA2LSB = 1;
+	/**
+	 * The value of EI_DATA for big-endian files.
+	 */
+	private static final byte ELFDATA2MSB = 2;
+
+	/**
+	 * The channel the file gets read from.
+	 */
+	private final FileChannel channel;
+	/**
+	 * The byte order used in this file.
+	 */
+	private final ByteOrder order;
+	/**
+	 * The type of this file, e.g. ET_CORE.
+	 */
+	private final int type;
+	/**
+	 * The architecture this file was created for.
+	 */
+	private final int machine;
+	/**
+	 * All program headers of this file.
+	 */
+	private final ProgramHeader[] programHeaders;
+
+	/**
+	 * Create a new ELF-reader on an already opened channel.
+	 * The channel gets closed when this file gets closed.
+	 *
+	 * @param channel The channel to read from.
+	 * @throws IOException When the file could not be read or is no valid ELF64-file.
+	 */
+	public ElfFile(@NotNull FileChannel channel) throws IOException {
+		this.channel = channel;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(header, 0);
+		this.order = checkIdentification(header);
+		header.order(order);
+		this.type = Short.toUnsignedInt(header.getShort(16));
+		this.machine = Short.toUnsignedInt(header.getShort(18));
+		long programHeaderOffset = header.getLong(32);
+		long sectionHeaderOffset = header.getLong(40);
+		int programHeaderSize = Short.toUnsignedInt(header.getShort(54));
+		int programHeaderCount = Short.toUnsignedInt(header.getShort(56));
+
+		if (programHeaderCount == PN_XNUM) {
+			// Too many segments for the header, the real amount is stored in sh_info of the first section header.
+			ByteBuffer section = ByteBuffer.allocate(SECTION_HEADER_SIZE).order(order);
+			readFully(section, sectionHeaderOffset);
+			programHeaderCount = section.getInt(44);
+		}
+		if (programHeaderCount > 0 && programHeaderSize < ProgramHeader.SIZE)
+			throw new IOException("Program headers are too small for ELF64");
+
+		ByteBuffer headers = ByteBuffer.allocate(Math.multiplyExact(programHeaderCount, programHeaderSize)).order(order);
+		readFully(headers, programHeaderOffset);
+		this.programHeaders = new ProgramHeader[programHeaderCount];
+		for (int i = 0; i < programHeaderCount; i++) {
+			headers.position(i * programHeaderSize);
+			programHeaders[i] = ProgramHeader.decode(headers);
+		}
+	}
+
+	/**
+	 * Open the ELF-file at the given location for reading.
+	 *
+	 * @param path The file to open.
+	 * @return The opened file.
+	 * @throws IOException When the file could not be read or is no valid ELF64-file.
+	 */
+	@NotNull
+	public static ElfFile open(@NotNull Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			return new ElfFile(channel);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks the identification bytes at the start of the file and returns the byte order of the file.
+	 *
+	 * @param header The buffer containing the file header.
+	 * @return The byte order of the file.
+	 * @throws IOException When the file is no ELF64-file.
+	 */
+	@NotNull
+	static ByteOrder checkIdentification(@NotNull ByteBuffer header) throws IOException {
+		if (header.get(0) != 0x7f || header.get(1) != 'E' || header.get(2) != 'L' || header.get(3) != 'F')
+			throw new IOException("Not an ELF file");
+		if (header.get(4) != ELFCLASS64) throw new IOException("Only ELF64 files are supported");
+		return switch (header.get(5)) {
+			case ELFDATA2LSB -> ByteOrder.LITTLE_ENDIAN;
+			case ELFDATA2MSB -> ByteOrder.BIG_ENDIAN;
+			default -> throw new IOException("Unknown data encoding");
+		};
+	}
+
+	/**
+	 * Decodes all notes stored in a buffer.
+	 *
+	 * @param buffer The buffer holding the contents of a note segment, with the byte order of the file set.
+	 * @return The notes in the buffer.
+	 * @throws IOException When a note is larger than the rest of the segment.
+	 */
+	@NotNull
+	static Note @NotNull [] decodeNotes(@NotNull ByteBuffer buffer) throws IOException {
+		List<Note> notes = new ArrayList<>();
+		while (buffer.remaining() >= 12) {
+			int nameSize = buffer.getInt();
+			int descriptorSize = buffer.getInt();
+			int noteType = buffer.getInt();
+			// Sizes are unsigned, so negative ones are too large as well. The padding of the last descriptor may be missing.
+			if (nameSize < 0 || descriptorSize < 0 || (long) nameSize + padding(nameSize) + descriptorSize > buffer.remaining())
+				throw new IOException("Note of type " + noteType + " is truncated");
+			byte[] name = new byte[nameSize];
+			buffer.get(name);
+			buffer.position(buffer.position() + padding(nameSize));
+			byte[] descriptor = new byte[descriptorSize];
+			buffer.get(descriptor);
+			buffer.position(Math.min(buffer.limit(), buffer.position() + padding(descriptorSize)));
+			// The name is null-terminated
+			int length = nameSize;
+			while (length > 0 && name[length - 1] == 0) length--;
+			notes.add(new Note(new String(name, 0, length, StandardCharsets.US_ASCII), noteType, descriptor));
+		}
+		return notes.toArray(new Note[0]);
+	}
+
+	/**
+	 * How many bytes are needed to align a field of a note to 4 bytes.
+	 *
+	 * @param size The size of the field.
+	 * @return The amount of padding bytes.
+	 */
+	private static int padding(int size) {
+		return (4 - (size & 3)) & 3;
+	}
+
+	/**
+	 * Fills the buffer with data from the given position of the file.
+	 *
+	 * @param buffer   The buffer to fill.
+	 * @param position Where to start reading.
+	 * @throws IOException When the file ended before the buffer was full.
+	 */
+	private void readFully(@NotNull ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) throw new EOFException("Unexpected end of ELF file");
+			position += read;
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * The byte order used in this file.
+	 *
+	 * @return The byte order of this file.
+	 */
+	@NotNull
+	public ByteOrder getByteOrder() {
+		return order;
+	}
+
+	/**
+	 * The type of this file as found in e_type.
+	 *
+	 * @return The type of this file.
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * The architecture of this file as found in e_machine.
+	 *
+	 * @return The architecture of this file.
+	 */
+	public int getMachine() {
+		return machine;
+	}
+
+	/**
+	 * Returns all program headers of this file.
+	 *
+	 * @return All program headers.
+	 */
+	@NotNull
+	public ProgramHeader @NotNull [] getProgramHeaders() {
+		return Arrays.copyOf(programHeaders, programHeaders.length);
+	}
+
+	/**
+	 * Returns all program headers of the given type.
+	 *
+	 * @param type The type to filter for.
+	 * @return All program headers of that type in the order they appear in the file.
+	 */
+	@NotNull
+	public ProgramHeader @NotNull [] getProgramHeaders(int type) {
+		return Arrays.stream(programHeaders).filter(x -> x.type() == type).toArray(ProgramHeader[]::new);
+	}
+
+	/**
+	 * Reads all notes from a PT_NOTE segment.
+	 *
+	 * @param header The header of the note segment.
+	 * @return All notes found in the segment.
+	 * @throws IOException When the segment could not be read or contains a truncated note.
+	 */
+	@NotNull
+	public Note @NotNull [] readNotes(@NotNull ProgramHeader header) throws IOException {
+		if (!header.isNote()) throw new IllegalArgumentException("Not a note segment");
+		ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(header.fileSize())).order(order);
+		readFully(buffer, header.offset());
+		return decodeNotes(buffer);
+	}
+
+	/**
+	 * Maps the contents of a segment into memory.
+	 * The mapping stays valid until the provided arena gets closed, the data never gets copied onto the heap.
+	 *
+	 * @param header The header of the segment to map.
+	 * @param arena  The arena controlling the lifetime of the mapping.
+	 * @return The contents of the segment.
+	 * @throws IOException When the segment could not be mapped.
+	 */
+	@NotNull
+	public MemorySegment map(@NotNull ProgramHeader header, @NotNull Arena arena) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, header.offset(), header.fileSize(), arena);
+	}
+
+	/**
+	 * Returns a stream only reading the contents of a given segment.
+	 * The stream uses positional reads, so multiple streams may be used concurrently.
+	 *
+	 * @param header The header of the segment to read.
+	 * @return A stream returning the contents of the segment.
+	 */
+	@NotNull
+	public InputStream newInputStream(@NotNull ProgramHeader header) {
+		return new SegmentInputStream(header.offset(), header.offset() + header.fileSize());
+	}
+
+	/**
+	 * Returns the channel backing this file.
+	 *
+	 * @return The channel of this file.
+	 */
+	@NotNull
+	public FileChannel getChannel() {
+		return channel;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * An input stream reading a range of the file using positional reads.
+	 */
+	private class SegmentInputStream extends InputStream {
+
+		/**
+		 * The position of the end of the range.
+		 */
+		private final long end;
+		/**
+		 * The current position in the file.
+		 */
+		private long position;
+
+		/**
+		 * Create a new stream reading the range between start and end.
+		 *
+		 * @param start The first byte to read.
+		 * @param end   The first byte not to read anymore.
+		 */
+		SegmentInputStream(long start, long end) {
+			this.position = start;
+			this.end = end;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			if (read(single, 0, 1) == -1) return -1;
+			else return Byte.toUnsignedInt(single[0]);
+		}
+
+		@Override
+		public int read(byte @NotNull [] buffer, int offset, int length) throws IOException {
+			if (position >= end) return -1;
+			int toRead = (int) Math.min(length, end - position);
+			int read = channel.read(ByteBuffer.wrap(buffer, offset, toRead), position);
+			if (read < 0) throw new EOFException("Unexpected end of ELF file");
+			position += read;
+			return read;
+		}
+
+		@Override
+		public long skip(long n) {
+			long skipped = Math.max(0, Math.min(n, end - position));
+			position += skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(Integer.MAX_VALUE, end - position);
+		}
+	}
+}
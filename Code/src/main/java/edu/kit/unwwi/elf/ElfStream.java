@@ -0,0 +1,277 @@
+package edu.kit.unwwi.elf;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A reader for ELF64-files which can only be read once from start to end, e.g. because they are written to a pipe.
+ * The headers get read when the stream gets opened, afterwards the segments can be read in the order they appear in the file.
+ * Everything between the segments gets skipped, so nothing besides the headers is ever held in memory.
+ * This class is not thread-safe.
+ */
+public class ElfStream implements Closeable {
+
+	/**
+	 * The size of the buffer used to skip data between segments.
+	 */
+	private static final int SKIP_BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * The channel the file gets read from.
+	 */
+	private final ReadableByteChannel channel;
+	/**
+	 * The byte order used in this file.
+	 */
+	private final ByteOrder order;
+	/**
+	 * The type of this file, e.g. ET_CORE.
+	 */
+	private final int type;
+	/**
+	 * The architecture this file was created for.
+	 */
+	private final int machine;
+	/**
+	 * All program headers of this file.
+	 */
+	private final ProgramHeader[] programHeaders;
+	/**
+	 * How many bytes of the file have been read.
+	 */
+	private long position;
+
+	/**
+	 * Create a new ELF-reader on the given channel and read the headers.
+	 * The headers must be located in front of all segments, which is the case for the dumps of QEMU.
+	 * The channel gets closed when this stream gets closed.
+	 *
+	 * @param channel The channel to read from.
+	 * @throws IOException When the file could not be read, is no valid ELF64-file or its headers are not in front of the data.
+	 */
+	public ElfStream(@NotNull ReadableByteChannel channel) throws IOException {
+		this.channel = channel;
+		ByteBuffer header = ByteBuffer.allocate(ElfFile.HEADER_SIZE);
+		readFully(header);
+		this.order = ElfFile.checkIdentification(header);
+		header.order(order);
+		this.type = Short.toUnsignedInt(header.getShort(16));
+		this.machine = Short.toUnsignedInt(header.getShort(18));
+		long programHeaderOffset = header.getLong(32);
+		long sectionHeaderOffset = header.getLong(40);
+		int programHeaderSize = Short.toUnsignedInt(header.getShort(54));
+		int programHeaderCount = Short.toUnsignedInt(header.getShort(56));
+
+		ByteBuffer buffered = null;
+		if (programHeaderCount == ElfFile.PN_XNUM) {
+			// Too many segments for the header, the real amount is stored in sh_info of the first section header.
+			ByteBuffer section;
+			if (sectionHeaderOffset < programHeaderOffset) {
+				section = ByteBuffer.allocate(ElfFile.SECTION_HEADER_SIZE);
+				skipTo(sectionHeaderOffset);
+				readFully(section);
+			} else {
+				// The section header follows the program headers, so everything up to it has to be kept
+				skipTo(programHeaderOffset);
+				buffered = ByteBuffer.allocate(Math.toIntExact(sectionHeaderOffset + ElfFile.SECTION_HEADER_SIZE - programHeaderOffset));
+				readFully(buffered);
+				section = buffered.slice((int) (sectionHeaderOffset - programHeaderOffset), ElfFile.SECTION_HEADER_SIZE);
+			}
+			programHeaderCount = section.order(order).getInt(44);
+		}
+		if (programHeaderCount > 0 && programHeaderSize < ProgramHeader.SIZE)
+			throw new IOException("Program headers are too small for ELF64");
+
+		ByteBuffer headers = ByteBuffer.allocate(Math.multiplyExact(programHeaderCount, programHeaderSize)).order(order);
+		if (buffered == null) skipTo(programHeaderOffset);
+		else headers.put(buffered.slice(0, Math.min(headers.capacity(), buffered.limit())));
+		readFully(headers);
+		this.programHeaders = new ProgramHeader[programHeaderCount];
+		for (int i = 0; i < programHeaderCount; i++) {
+			headers.position(i * programHeaderSize);
+			programHeaders[i] = ProgramHeader.decode(headers);
+		}
+	}
+
+	/**
+	 * Fills the buffer with the next bytes of the stream.
+	 *
+	 * @param buffer The buffer to fill.
+	 * @throws IOException When the stream ended before the buffer was full.
+	 */
+	private void readFully(@NotNull ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer);
+			if (read < 0) throw new EOFException("Unexpected end of ELF file");
+			position += read;
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * Discards everything up to the given offset of the file.
+	 *
+	 * @param offset The offset to skip to.
+	 * @throws IOException When the offset was already passed or the stream ended before it.
+	 */
+	private void skipTo(long offset) throws IOException {
+		if (offset < position)
+			throw new IOException("Offset " + offset + " was already passed at " + position + " and can not be read from a stream");
+		ByteBuffer discard = ByteBuffer.allocate((int) Math.min(SKIP_BUFFER_SIZE, offset - position));
+		while (position < offset) {
+			discard.clear().limit((int) Math.min(discard.capacity(), offset - position));
+			int read = channel.read(discard);
+			if (read < 0) throw new EOFException("Unexpected end of ELF file");
+			position += read;
+		}
+	}
+
+	/**
+	 * The byte order used in this file.
+	 *
+	 * @return The byte order of this file.
+	 */
+	@NotNull
+	public ByteOrder getByteOrder() {
+		return order;
+	}
+
+	/**
+	 * The type of this file as found in e_type.
+	 *
+	 * @return The type of this file.
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * The architecture of this file as found in e_machine.
+	 *
+	 * @return The architecture of this file.
+	 */
+	public int getMachine() {
+		return machine;
+	}
+
+	/**
+	 * Returns all program headers of this file.
+	 *
+	 * @return All program headers.
+	 */
+	@NotNull
+	public ProgramHeader @NotNull [] getProgramHeaders() {
+		return Arrays.copyOf(programHeaders, programHeaders.length);
+	}
+
+	/**
+	 * Reads all segments of the given type in the order they are stored in the file.
+	 * Each segment gets handed to the reader together with a channel only returning its contents.
+	 * Whatever the reader did not consume gets skipped before the next segment gets read.
+	 *
+	 * @param type   The type of the segments to read, e.g. PT_LOAD.
+	 * @param reader Receives the segments.
+	 * @throws IOException When the stream could not be read, segments overlap or the reader failed.
+	 */
+	public void readSegments(int type, @NotNull SegmentReader reader) throws IOException {
+		ProgramHeader[] segments = Arrays.stream(programHeaders).filter(x -> x.type() == type && x.fileSize() > 0)
+				.sorted(Comparator.comparingLong(ProgramHeader::offset)).toArray(ProgramHeader[]::new);
+		for (ProgramHeader segment : segments) {
+			skipTo(segment.offset());
+			reader.read(segment, new SegmentChannel(segment.offset() + segment.fileSize()));
+			skipTo(segment.offset() + segment.fileSize());
+		}
+	}
+
+	/**
+	 * Discards everything up to the end of the stream.
+	 * This way the writer never gets cut off, even if it writes further data behind the segments.
+	 *
+	 * @return The size of the whole file.
+	 * @throws IOException When the stream could not be read.
+	 */
+	public long skipRemaining() throws IOException {
+		ByteBuffer discard = ByteBuffer.allocate(SKIP_BUFFER_SIZE);
+		int read;
+		while ((read = channel.read(discard.clear())) >= 0) position += read;
+		return position;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Receives the segments of a stream in the order they are stored in the file.
+	 */
+	@FunctionalInterface
+	public interface SegmentReader {
+
+		/**
+		 * Reads a single segment.
+		 *
+		 * @param header  The header of the segment.
+		 * @param content A channel returning the contents of the segment, which is only valid during this call.
+		 * @throws IOException When the segment could not be read.
+		 */
+		void read(@NotNull ProgramHeader header, @NotNull ReadableByteChannel content) throws IOException;
+	}
+
+	/**
+	 * A channel reading the stream up to the end of the current segment.
+	 * Closing it does not close the stream, the rest of the segment gets skipped by the stream instead.
+	 */
+	private class SegmentChannel implements ReadableByteChannel {
+
+		/**
+		 * The position of the end of the segment.
+		 */
+		private final long end;
+		/**
+		 * Whether this channel was closed.
+		 */
+		private boolean open = true;
+
+		/**
+		 * Create a new channel reading up to the given end.
+		 *
+		 * @param end The first byte not to read anymore.
+		 */
+		SegmentChannel(long end) {
+			this.end = end;
+		}
+
+		@Override
+		public int read(@NotNull ByteBuffer buffer) throws IOException {
+			if (!open) throw new ClosedChannelException();
+			if (position >= end) return -1;
+			ByteBuffer target = buffer;
+			if (buffer.remaining() > end - position) target = buffer.slice(buffer.position(), (int) (end - position));
+			int read = channel.read(target);
+			if (read < 0) throw new EOFException("Unexpected end of ELF file");
+			if (target != buffer) buffer.position(buffer.position() + read);
+			position += read;
+			return read;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public void close() {
+			open = false;
+		}
+	}
+}
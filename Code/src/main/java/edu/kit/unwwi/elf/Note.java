@@ -0,0 +1,26 @@
+package edu.kit.unwwi.elf;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * A single note from a PT_NOTE segment.
+ * QEMU uses these to store the CPU state at the time of the dump.
+ *
+ * @param name       The name of the owner of this note, e.g. "CORE" or "QEMU".
+ * @param type       The type of the note as defined by the owner.
+ * @param descriptor The contents of the note.
+ */
+public record Note(@NotNull String name, int type, byte @NotNull [] descriptor) {
+
+	@Override
+	public byte @NotNull [] descriptor() {
+		return Arrays.copyOf(descriptor, descriptor.length);
+	}
+
+	@Override
+	public String toString() {
+		return name + " (" + type + "): " + descriptor.length + " bytes";
+	}
+}
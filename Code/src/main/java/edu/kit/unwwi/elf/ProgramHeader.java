@@ -0,0 +1,65 @@
+package edu.kit.unwwi.elf;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A single program header of an ELF64-file.
+ * All offsets and addresses are kept as 64-bit values and are to be treated as unsigned.
+ *
+ * @param type            The type of the segment, e.g. PT_LOAD or PT_NOTE.
+ * @param flags           The flags of the segment.
+ * @param offset          The offset of the segment inside the file.
+ * @param virtualAddress  The virtual address the segment is mapped to.
+ * @param physicalAddress The physical address the segment is mapped to.
+ * @param fileSize        How many bytes of the segment are stored in the file.
+ * @param memorySize      How many bytes the segment takes up in memory.
+ * @param alignment       The alignment of the segment.
+ */
+public record ProgramHeader(int type, int flags, long offset, long virtualAddress, long physicalAddress,
+                            long fileSize, long memorySize, long alignment) {
+
+	/**
+	 * The size of a program header entry in ELF64.
+	 */
+	static final int SIZE = 56;
+
+	/**
+	 * Reads a program header from the current position of the buffer.
+	 * The byte order of the buffer must already be set to the one of the file.
+	 *
+	 * @param buffer The buffer to read from.
+	 * @return The decoded program header.
+	 */
+	@NotNull
+	static ProgramHeader decode(@NotNull ByteBuffer buffer) {
+		int type = buffer.getInt();
+		int flags = buffer.getInt();
+		long offset = buffer.getLong();
+		long virtualAddress = buffer.getLong();
+		long physicalAddress = buffer.getLong();
+		long fileSize = buffer.getLong();
+		long memorySize = buffer.getLong();
+		long alignment = buffer.getLong();
+		return new ProgramHeader(type, flags, offset, virtualAddress, physicalAddress, fileSize, memorySize, alignment);
+	}
+
+	/**
+	 * Whether this segment gets loaded into memory.
+	 *
+	 * @return Whether this is a PT_LOAD segment.
+	 */
+	public boolean isLoad() {
+		return type == ElfFile.PT_LOAD;
+	}
+
+	/**
+	 * Whether this segment contains notes.
+	 *
+	 * @return Whether this is a PT_NOTE segment.
+	 */
+	public boolean isNote() {
+		return type == ElfFile.PT_NOTE;
+	}
+}
@@ -0,0 +1,224 @@
+package edu.kit.unwwi.checkpoints.qemu.models.memory;
+
+import edu.kit.unwwi.checkpoints.qemu.models.registers.RegisterFile;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Walks page tables built by hand in a small physical memory made up of two ranges.
+ * The 4-level tables map 4 KiB, 2 MiB and 1 GiB pages, both in the lower and in the upper half,
+ * and reference tables outside the captured memory, which must be skipped.
+ * The 5-level tables reuse the 4-level tables below their top level.
+ */
+class PageTableWalkerTest {
+
+	/**
+	 * Marks an entry as present.
+	 */
+	private static final long PRESENT = 1L;
+	/**
+	 * Marks a page as writable.
+	 */
+	private static final long WRITABLE = 1L << 1;
+	/**
+	 * Marks a page as accessible from user mode.
+	 */
+	private static final long USER = 1L << 2;
+	/**
+	 * Set by the CPU when a page was accessed.
+	 */
+	private static final long ACCESSED = 1L << 5;
+	/**
+	 * Set by the CPU when a page was written.
+	 */
+	private static final long DIRTY = 1L << 6;
+	/**
+	 * Marks a large page, or selects the PAT for 4 KiB pages.
+	 */
+	private static final long LARGE = 1L << 7;
+	/**
+	 * Marks a page as global.
+	 */
+	private static final long GLOBAL = 1L << 8;
+	/**
+	 * Selects the PAT for large pages, which isn't part of their address.
+	 */
+	private static final long LARGE_PAT = 1L << 12;
+	/**
+	 * Marks a page as not executable.
+	 */
+	private static final long NO_EXECUTE = 1L << 63;
+	/**
+	 * The top-level table of the 4-level tables.
+	 */
+	private static final long PML4 = 0x1000;
+	/**
+	 * The top-level table of the 5-level tables.
+	 */
+	private static final long PML5 = 0x8000;
+	/**
+	 * Where the second range of the memory starts.
+	 */
+	private static final long SECOND_RANGE = 0x8000;
+	/**
+	 * A physical address that was not captured.
+	 */
+	private static final long NOT_CAPTURED = 0x1_0000_0000L;
+
+	/**
+	 * The first range of the memory.
+	 */
+	private ByteBuffer low;
+	/**
+	 * The second range of the memory.
+	 */
+	private ByteBuffer high;
+
+	@BeforeEach
+	void buildTables() {
+		low = ByteBuffer.allocate((int) SECOND_RANGE).order(ByteOrder.LITTLE_ENDIAN);
+		high = ByteBuffer.allocate(0x2000).order(ByteOrder.LITTLE_ENDIAN);
+		// 4-level: PML4 at 0x1000, lower half below PDPT 0x2000, upper half below PDPT 0x6000
+		entry(PML4, 0, 0x2000 | PRESENT | WRITABLE | USER);
+		entry(PML4, 1, NOT_CAPTURED | PRESENT | WRITABLE);
+		entry(PML4, 511, 0x6000 | PRESENT | WRITABLE);
+		entry(0x2000, 0, 0x3000 | PRESENT | WRITABLE | USER);
+		entry(0x2000, 1, 0x40000000L | LARGE_PAT | LARGE | DIRTY | ACCESSED | PRESENT | WRITABLE);
+		entry(0x2000, 2, NOT_CAPTURED | PRESENT);
+		entry(0x3000, 0, 0x4000 | PRESENT | WRITABLE | USER);
+		entry(0x3000, 1, 0x600000 | LARGE_PAT | LARGE | GLOBAL | PRESENT);
+		entry(0x3000, 2, NOT_CAPTURED | PRESENT | WRITABLE);
+		// A large page whose address is not aligned has its lower bits ignored
+		entry(0x3000, 3, 0xa01000 | 0x10000 | LARGE | PRESENT);
+		entry(0x4000, 0x10, 0x5000 | NO_EXECUTE | ACCESSED | USER | WRITABLE | PRESENT);
+		// The same bit marking large pages selects the PAT for 4 KiB pages
+		entry(0x4000, 0x11, 0x7000 | LARGE | PRESENT);
+		entry(0x4000, 0x12, 0x9000);
+		entry(0x6000, 510, 0x80000000L | LARGE | GLOBAL | PRESENT | WRITABLE);
+		// 5-level: PML5 at 0x8000, the lower half reuses the PML4, the upper half has its own at 0x9000
+		entry(PML5, 0, PML4 | PRESENT | WRITABLE | USER);
+		entry(PML5, 511, 0x9000 | PRESENT | WRITABLE);
+		entry(0x9000, 511, 0x6000 | PRESENT | WRITABLE);
+	}
+
+	/**
+	 * Writes an entry of a table.
+	 *
+	 * @param table The physical address of the table.
+	 * @param index The index of the entry.
+	 * @param value The entry.
+	 */
+	private void entry(long table, int index, long value) {
+		long address = table + index * 8L;
+		if (address < SECOND_RANGE) low.putLong((int) address, value);
+		else high.putLong((int) (address - SECOND_RANGE), value);
+	}
+
+	/**
+	 * Creates the physical memory, whose ranges are given out of order.
+	 *
+	 * @return The memory.
+	 */
+	@NotNull
+	private PhysicalMemory memory() {
+		return new PhysicalMemory(new long[]{SECOND_RANGE, 0},
+				new java.lang.foreign.MemorySegment[]{java.lang.foreign.MemorySegment.ofArray(high.array()), java.lang.foreign.MemorySegment.ofArray(low.array())});
+	}
+
+	/**
+	 * Creates the control registers of an x86-64 CPU.
+	 *
+	 * @param cr3 The value of CR3.
+	 * @param cr4 The value of CR4.
+	 * @return The registers.
+	 */
+	@NotNull
+	private static RegisterFile registers(long cr3, long cr4) {
+		return new RegisterFile.Builder()
+				.add("CR0", -1, 64, 0x80050033L)
+				.add("CR3", -1, 64, cr3)
+				.add("CR4", -1, 64, cr4)
+				.add("EFER", -1, 64, 0xd01)
+				.build();
+	}
+
+	/**
+	 * Checks a single mapping of a TLB.
+	 *
+	 * @param tlb      The TLB.
+	 * @param index    The index of the mapping.
+	 * @param virtual  The expected virtual address.
+	 * @param physical The expected physical address.
+	 * @param size     The expected size.
+	 * @param flags    The expected flags.
+	 */
+	private static void assertMapping(@NotNull TLB tlb, int index, long virtual, long physical, long size, @NotNull String flags) {
+		String name = "Mapping " + index;
+		assertEquals(Long.toHexString(virtual), Long.toHexString(tlb.getVirtualAddress(index)), name);
+		assertEquals(Long.toHexString(physical), Long.toHexString(tlb.getPhysicalAddress(index)), name);
+		assertEquals(size, tlb.getSize(index), name);
+		for (int i = 0; i < flags.length(); i++) {
+			char flag = "XGPDACTUW".charAt(i);
+			assertEquals(flags.charAt(i) == flag, tlb.flagSet(index, flag), name + " flag " + flag);
+		}
+	}
+
+	@Test
+	void walksFourLevels() {
+		TLB tlb = PageTableWalker.walk(memory(), registers(PML4 | 0x18, 0x3506f0));
+		assertEquals(6, tlb.size());
+		assertMapping(tlb, 0, 0x10000, 0x5000, 1L << 12, "X---A--UW");
+		assertMapping(tlb, 1, 0x11000, 0x7000, 1L << 12, "---------");
+		assertMapping(tlb, 2, 0x200000, 0x600000, 1L << 21, "-GP------");
+		assertMapping(tlb, 3, 0x600000, 0xa00000, 1L << 21, "--P------");
+		assertMapping(tlb, 4, 0x40000000L, 0x40000000L, 1L << 30, "--PDA---W");
+		assertMapping(tlb, 5, 0xffffffff80000000L, 0x80000000L, 1L << 30, "-GP-----W");
+		assertEquals(0x5123, tlb.translateAddress(0x10123));
+		assertEquals(0x7fff, tlb.translateAddress(0x11fff));
+		// The PAT bit is no part of the address of a large page
+		assertEquals(0x7fffff, tlb.translateAddress(0x3fffff));
+		assertEquals(0x7fffffffL, tlb.translateAddress(0x7fffffffL));
+		assertEquals(0x80000000L + 0x12345678, tlb.translateAddress(0xffffffff92345678L));
+		// Not present, or below tables that were not captured
+		assertThrows(IllegalArgumentException.class, () -> tlb.translateAddress(0x12000));
+		assertThrows(IllegalArgumentException.class, () -> tlb.translateAddress(0x400000));
+		assertThrows(IllegalArgumentException.class, () -> tlb.translateAddress(0x80000000L));
+		assertThrows(IllegalArgumentException.class, () -> tlb.translateAddress(0x8000000000L));
+		// Without sign extension, the upper half would end up at a non-canonical address
+		assertThrows(IllegalArgumentException.class, () -> tlb.translateAddress(0x0000ffff80000000L));
+	}
+
+	@Test
+	void walksFiveLevels() {
+		TLB tlb = PageTableWalker.walk(memory(), registers(PML5, 0x3516f0));
+		assertEquals(7, tlb.size());
+		assertMapping(tlb, 0, 0x10000, 0x5000, 1L << 12, "X---A--UW");
+		assertMapping(tlb, 4, 0x40000000L, 0x40000000L, 1L << 30, "--PDA---W");
+		// The upper half of the 4-level tables lies in the lower half of 5-level paging
+		assertMapping(tlb, 5, 0x0000ffff80000000L, 0x80000000L, 1L << 30, "-GP-----W");
+		// Sign extended from bit 56 instead of bit 47
+		assertMapping(tlb, 6, 0xffffffff80000000L, 0x80000000L, 1L << 30, "-GP-----W");
+		assertEquals(0x7fffff, tlb.translateAddress(0x3fffff));
+		assertEquals(0x80000001L, tlb.translateAddress(0x0000ffff80000001L));
+		assertEquals(0x80000001L, tlb.translateAddress(0xffffffff80000001L));
+		assertThrows(IllegalArgumentException.class, () -> tlb.translateAddress(0x01ffffff80000000L));
+	}
+
+	@Test
+	void rejectsOtherPagingModes() {
+		RegisterFile pae = new RegisterFile.Builder()
+				.add("CR0", -1, 64, 0x80050033L).add("CR3", -1, 64, PML4).add("CR4", -1, 64, 0x6b0).add("EFER", -1, 64, 0x800)
+				.build();
+		assertThrows(IllegalArgumentException.class, () -> PageTableWalker.walk(memory(), pae));
+		RegisterFile disabled = new RegisterFile.Builder()
+				.add("CR0", -1, 64, 0x10).add("CR3", -1, 64, 0).add("CR4", -1, 64, 0).add("EFER", -1, 64, 0)
+				.build();
+		assertThrows(IllegalArgumentException.class, () -> PageTableWalker.walk(memory(), disabled));
+	}
+}
@@ -0,0 +1,154 @@
+package edu.kit.unwwi.checkpoints.qemu.models.memory;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compares the queries of reverse indices of random TLBs with a scan over all of their mappings.
+ * The TLBs mix all page sizes of x86 and map many pages to the same few frames, so the mappings overlap a lot.
+ */
+class ReverseIndexTest {
+
+	/**
+	 * The page sizes of x86.
+	 */
+	private static final long[] PAGE_SIZES = {1L << 12, 1L << 21, 1L << 30};
+	/**
+	 * How many queries are made for each index.
+	 */
+	private static final int QUERIES = 500;
+
+	/**
+	 * Creates a TLB of random pages with consecutive virtual addresses.
+	 * The frames are taken from a small pool, so most of them are mapped several times.
+	 *
+	 * @param random Where to take the pages from.
+	 * @param count  How many pages to create.
+	 * @return The TLB.
+	 */
+	@NotNull
+	private static TLB randomTLB(@NotNull Random random, int count) {
+		long[] frames = new long[Math.max(1, count / 4)];
+		for (int i = 0; i < frames.length; i++) frames[i] = random.nextLong(1L << 24) << 12;
+		TLB.Builder builder = new TLB.Builder();
+		long virtual = 0xffff800000000000L;
+		for (int i = 0; i < count; i++) {
+			long size = PAGE_SIZES[random.nextInt(random.nextInt(8) == 0 ? 3 : 2)];
+			virtual = Math.ceilDiv(virtual, size) * size;
+			// Frames are aligned to the size of their page
+			long physical = frames[random.nextInt(frames.length)] & -size;
+			builder.add(virtual, physical, size, random.nextBoolean() ? "----A---W" : "-");
+			virtual += size;
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Finds all mappings overlapping a range by looking at every single one of them.
+	 *
+	 * @param index The index holding the mappings.
+	 * @param from  The first physical address of the range.
+	 * @param to    The first physical address behind the range.
+	 * @return The indices of the mappings, in ascending order.
+	 */
+	@NotNull
+	private static IntList scan(@NotNull ReverseIndex index, long from, long to) {
+		IntList result = new IntArrayList();
+		for (int i = 0; i < index.size(); i++) {
+			if (index.getPhysicalAddress(i) < to && from < index.getPhysicalAddress(i) + index.getSize(i)) result.add(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Finds all virtual addresses mapping to a physical address by looking at every single mapping.
+	 *
+	 * @param index           The index holding the mappings.
+	 * @param physicalAddress The physical address.
+	 * @return The virtual addresses.
+	 */
+	@NotNull
+	private static LongList scanAliases(@NotNull ReverseIndex index, long physicalAddress) {
+		LongList result = new LongArrayList();
+		for (int i : scan(index, physicalAddress, physicalAddress + 1)) {
+			result.add(index.getVirtualAddress(i) + (physicalAddress - index.getPhysicalAddress(i)));
+		}
+		return result;
+	}
+
+	/**
+	 * Compares random queries of an index with a scan of all of its mappings.
+	 *
+	 * @param random Where to take the ranges from.
+	 * @param tlb    The TLB the index was created from.
+	 * @param index  The index.
+	 */
+	private static void assertMatchesScan(@NotNull Random random, @NotNull TLB tlb, @NotNull ReverseIndex index) {
+		assertEquals(tlb.size(), index.size());
+		for (int i = 1; i < index.size(); i++) {
+			assertTrue(index.getPhysicalAddress(i - 1) <= index.getPhysicalAddress(i), "Mappings not sorted at " + i);
+		}
+		long limit = 1L << 37;
+		for (int i = 0; i < QUERIES; i++) {
+			long from = random.nextLong(limit);
+			// Mostly short ranges, which only hit a few mappings
+			long to = from + (random.nextBoolean() ? random.nextLong(1L << 16) : random.nextLong(limit));
+			assertEquals(scan(index, from, to), index.query(from, to), "Range " + from + " to " + to);
+		}
+		for (int i = 0; i < QUERIES && index.size() > 0; i++) {
+			int mapping = random.nextInt(index.size());
+			long physical = index.getPhysicalAddress(mapping) + random.nextLong(index.getSize(mapping));
+			LongList aliases = index.virtualAliases(physical);
+			assertEquals(scanAliases(index, physical), aliases, "Aliases of " + physical);
+			for (long virtual : aliases) assertEquals(physical, tlb.translateAddress(virtual));
+		}
+		assertEquals(scan(index, 0, Long.MAX_VALUE), index.query(0, Long.MAX_VALUE));
+		assertEquals(index.size(), index.query(0, Long.MAX_VALUE).size());
+	}
+
+	@Test
+	void queriesMatchScan() {
+		Random random = new Random(17);
+		for (int count : new int[]{0, 1, 2, 3, 7, 100, 1000, 5000}) {
+			TLB tlb = randomTLB(random, count);
+			assertMatchesScan(random, tlb, ReverseIndex.of(tlb));
+		}
+	}
+
+	@Test
+	void emptyRangesFindNothing() {
+		TLB tlb = randomTLB(new Random(19), 100);
+		ReverseIndex index = ReverseIndex.of(tlb);
+		long physical = index.getPhysicalAddress(50);
+		assertTrue(index.query(physical, physical).isEmpty());
+		assertTrue(index.query(physical + 1, physical).isEmpty());
+		assertTrue(ReverseIndex.of(randomTLB(new Random(19), 0)).query(0, Long.MAX_VALUE).isEmpty());
+	}
+
+	@Test
+	void rangesEndAtFrameBoundaries() {
+		TLB tlb = new TLB.Builder()
+				.add(0x1000, 0x5000, 0x1000, "-")
+				.add(0x2000, 0x6000, 0x1000, "-")
+				.add(0x3000, 0x5000, 0x1000, "-")
+				.add(0x200000, 0x400000, 0x200000, "-")
+				.build();
+		ReverseIndex index = ReverseIndex.of(tlb);
+		assertEquals(scan(index, 0x5000, 0x6000), index.query(0x5000, 0x6000));
+		assertEquals(2, index.query(0x5000, 0x6000).size());
+		assertEquals(2, index.query(0x5fff, 0x6000).size());
+		assertEquals(1, index.query(0x6000, 0x6001).size());
+		assertTrue(index.query(0x7000, 0x400000).isEmpty());
+		assertEquals(1, index.query(0x5ff000, 0x600000).size());
+		assertEquals(LongList.of(0x1008L, 0x3008L), index.virtualAliases(0x5008));
+		assertEquals(LongList.of(0x3ff000L), index.virtualAliases(0x5ff000));
+	}
+}
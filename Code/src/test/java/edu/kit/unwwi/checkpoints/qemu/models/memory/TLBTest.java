@@ -0,0 +1,142 @@
+package edu.kit.unwwi.checkpoints.qemu.models.memory;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Translates addresses with small TLBs, whose mappings are given in and out of order,
+ * lie in both halves of the address space and partly start at the same address.
+ */
+class TLBTest {
+
+	/**
+	 * Mappings in the lower and the upper half, added in ascending order of their unsigned addresses.
+	 *
+	 * @return The builder holding the mappings.
+	 */
+	@NotNull
+	private static TLB.Builder sorted() {
+		return new TLB.Builder()
+				.add(0x1000, 0x5000, 0x1000, "----A--UW")
+				.add(0x2000, 0x9000, 0x1000, "X---A--U-")
+				.add(0x200000, 0x400000, 0x200000, "--PDA---W")
+				.add(0xffff888000000000L, 0, 1L << 30, "XGPDA---W")
+				.add(0xffffffff81000000L, 0x1000000, 0x200000, "-GPDA----");
+	}
+
+	/**
+	 * The same mappings, added out of order.
+	 *
+	 * @return The builder holding the mappings.
+	 */
+	@NotNull
+	private static TLB.Builder unsorted() {
+		return new TLB.Builder()
+				.add(0xffffffff81000000L, 0x1000000, 0x200000, "-GPDA----")
+				.add(0x200000, 0x400000, 0x200000, "--PDA---W")
+				.add(0xffff888000000000L, 0, 1L << 30, "XGPDA---W")
+				.add(0x2000, 0x9000, 0x1000, "X---A--U-")
+				.add(0x1000, 0x5000, 0x1000, "----A--UW");
+	}
+
+	/**
+	 * Checks the mappings and translations of a TLB built from the mappings of sorted().
+	 *
+	 * @param tlb The TLB.
+	 */
+	private static void assertMappings(@NotNull TLB tlb) {
+		assertEquals(5, tlb.size());
+		long[] starts = {0x1000, 0x2000, 0x200000, 0xffff888000000000L, 0xffffffff81000000L};
+		for (int i = 0; i < starts.length; i++) assertEquals(starts[i], tlb.getVirtualAddress(i), "Mapping " + i);
+		assertEquals(0x5fff, tlb.translateAddress(0x1fff));
+		assertEquals(0x9000, tlb.translateAddress(0x2000));
+		assertEquals(0x5fffff, tlb.translateAddress(0x3fffff));
+		assertEquals(0x3fffffffL, tlb.translateAddress(0xffff88803fffffffL));
+		assertEquals(0x1012345, tlb.translateAddress(0xffffffff81012345L));
+		assertThrows(IllegalArgumentException.class, () -> tlb.translateAddress(0xfff));
+		assertThrows(IllegalArgumentException.class, () -> tlb.translateAddress(0x3000));
+		assertThrows(IllegalArgumentException.class, () -> tlb.translateAddress(0xffff888040000000L));
+		assertThrows(IllegalArgumentException.class, () -> tlb.translateAddress(-1L));
+	}
+
+	@Test
+	void ordersUpperHalfAfterLowerHalf() {
+		assertMappings(sorted().build());
+		assertMappings(unsorted().build());
+	}
+
+	@Test
+	void translatesBatches() {
+		TLB tlb = unsorted().build();
+		long[] in = {0x1000, 0x1008, 0x2fff, 0x3000, 0xffffffff81000000L, 0x0, 0x200000, 0xffff888000001000L, -1L, 0x201000};
+		long[] out = new long[in.length + 2];
+		assertEquals(7, tlb.translate(in, out));
+		long unmapped = TLB.UNMAPPED;
+		assertArrayEquals(new long[]{0x5000, 0x5008, 0x9fff, unmapped, 0x1000000, unmapped, 0x400000, 0x1000, unmapped, 0x401000, 0, 0}, out);
+		assertEquals(0, tlb.translate(new long[0], new long[0]));
+		assertThrows(IllegalArgumentException.class, () -> tlb.translate(in, new long[in.length - 1]));
+	}
+
+	@Test
+	void batchesMatchSingleTranslations() {
+		TLB tlb = unsorted().build();
+		Random random = new Random(23);
+		long[] in = new long[1000];
+		for (int i = 0; i < in.length; i++) {
+			int mapping = random.nextInt(tlb.size());
+			// Mostly inside the mappings, sometimes right behind them
+			in[i] = tlb.getVirtualAddress(mapping) + random.nextLong(tlb.getSize(mapping) + 0x2000);
+		}
+		long[] out = new long[in.length];
+		int found = tlb.translate(in, out);
+		int expected = 0;
+		for (int i = 0; i < in.length; i++) {
+			int index = tlb.indexOf(in[i]);
+			if (index < 0) assertEquals(TLB.UNMAPPED, out[i]);
+			else {
+				assertEquals(tlb.translateAddress(in[i]), out[i]);
+				expected++;
+			}
+		}
+		assertEquals(expected, found);
+	}
+
+	@Test
+	void lastMappingWithSameStartWins() {
+		TLB tlb = sorted()
+				.add(0x2000, 0xa000, 0x1000, "-------UW")
+				.add(0xffff888000000000L, 0x40000000, 1L << 30, "-GPDA---W")
+				.build();
+		assertEquals(5, tlb.size());
+		assertEquals(0xa123, tlb.translateAddress(0x2123));
+		assertEquals(0x40000000L, tlb.translateAddress(0xffff888000000000L));
+		int index = tlb.indexOf(0x2000);
+		assertFalse(tlb.flagSet(index, 'X'));
+		assertTrue(tlb.flagSet(index, 'W'));
+		TLB fromMappings = new TLB(new MemoryMapping(0x1000, 0x5000, 0x1000, "-".toCharArray()), new MemoryMapping(0x1000, 0x6000, 0x1000, "-".toCharArray()));
+		assertEquals(1, fromMappings.size());
+		assertEquals(0x6000, fromMappings.translateAddress(0x1000));
+	}
+
+	@Test
+	void keepsFlagsOfEveryMapping() {
+		TLB tlb = unsorted().build();
+		int user = tlb.indexOf(0x1000);
+		assertTrue(tlb.flagSet(user, 'U'));
+		assertTrue(tlb.flagSet(user, 'W'));
+		assertFalse(tlb.flagSet(user, 'X'));
+		int kernel = tlb.indexOf(0xffffffff81000000L);
+		assertTrue(tlb.flagSet(kernel, 'G'));
+		assertTrue(tlb.flagSet(kernel, 'P'));
+		assertFalse(tlb.flagSet(kernel, 'W'));
+		assertFalse(tlb.flagSet(kernel, 'Z'));
+		MemoryMapping[] mappings = tlb.getMappings();
+		assertEquals(tlb.size(), mappings.length);
+		assertArrayEquals(new char[]{'X', 'G', 'P', 'D', 'A', 0, 0, 0, 'W'}, mappings[3].getFlags());
+		assertThrows(IllegalArgumentException.class, () -> new TLB.Builder().add(0, 0, 0x1000, "W").add(0x1000, 0, 0x1000, "X"));
+	}
+}
@@ -0,0 +1,194 @@
+package edu.kit.unwwi.checkpoints.qemu.models.memory;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.WritableByteChannel;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Reads across the pages of a hand-built TLB over two ranges of physical memory.
+ * Some consecutive pages are mapped to consecutive frames, others jump between the ranges,
+ * and some are not mapped at all, or mapped to memory that was not captured.
+ */
+class VirtualMemoryViewTest {
+
+	/**
+	 * The size of a page.
+	 */
+	private static final int PAGE = 0x1000;
+	/**
+	 * Where the first range of physical memory starts.
+	 */
+	private static final long FIRST_RANGE = 0;
+	/**
+	 * Where the second range of physical memory starts.
+	 */
+	private static final long SECOND_RANGE = 0x10000;
+	/**
+	 * The start of the upper half of the address space.
+	 */
+	private static final long UPPER_HALF = 0xffff800000000000L;
+
+	/**
+	 * The TLB translating the addresses.
+	 */
+	private TLB tlb;
+	/**
+	 * The view under test.
+	 */
+	private VirtualMemoryView view;
+
+	@BeforeEach
+	void createView() throws IOException {
+		tlb = new TLB.Builder()
+				// Consecutive pages on consecutive frames
+				.add(0x1000, 0x1000, PAGE, "-")
+				.add(0x2000, 0x2000, PAGE, "-")
+				// Jumps to the second range, where the next page follows directly
+				.add(0x3000, 0x10000, PAGE, "-")
+				.add(0x4000, 0x11000, PAGE, "-")
+				.add(0x5000, 0x3000, PAGE, "-")
+				// Mapped, but not captured
+				.add(0x6000, 0x20000, PAGE, "-")
+				// 0x7000 is not mapped
+				.add(0x8000, 0x12000, PAGE, "-")
+				// The frame behind the first range directly follows, but was not captured
+				.add(0x9000, 0x3000, PAGE, "-")
+				.add(0xa000, 0x4000, PAGE, "-")
+				.add(UPPER_HALF, 0x12000, PAGE, "-")
+				.build();
+		VirtualMemoryView.Builder builder = new VirtualMemoryView.Builder();
+		fill(builder, SECOND_RANGE, 3 * PAGE);
+		fill(builder, FIRST_RANGE, 4 * PAGE);
+		view = builder.build(tlb);
+	}
+
+	@AfterEach
+	void closeView() {
+		view.close();
+	}
+
+	/**
+	 * Adds a range of physical memory holding the pattern.
+	 *
+	 * @param builder The builder to add it to.
+	 * @param start   The physical address of the range.
+	 * @param size    The size of the range.
+	 * @throws IOException When the memory could not be filled.
+	 */
+	private static void fill(@NotNull VirtualMemoryView.Builder builder, long start, int size) throws IOException {
+		ByteBuffer content = ByteBuffer.allocate(size);
+		for (int i = 0; i < size; i++) content.put(pattern(start + i));
+		try (WritableByteChannel channel = builder.allocate(start, size)) {
+			// Written in two parts, like a restored stream
+			channel.write(content.flip().limit(size / 3));
+			channel.write(content.limit(size));
+		}
+	}
+
+	/**
+	 * The byte stored at a physical address, which differs between frames.
+	 *
+	 * @param physical The physical address.
+	 * @return The byte.
+	 */
+	private static byte pattern(long physical) {
+		return (byte) (physical + (physical >>> 12) * 7);
+	}
+
+	/**
+	 * The bytes expected at some virtual addresses, translating every single address on its own.
+	 *
+	 * @param address The first virtual address.
+	 * @param length  How many bytes to return.
+	 * @return The bytes.
+	 */
+	private byte @NotNull [] expected(long address, int length) {
+		byte[] result = new byte[length];
+		for (int i = 0; i < length; i++) result[i] = pattern(tlb.translateAddress(address + i));
+		return result;
+	}
+
+	/**
+	 * Reads from the view.
+	 *
+	 * @param address  The virtual address to start at.
+	 * @param capacity How many bytes to read at most.
+	 * @return The bytes that were read.
+	 */
+	private byte @NotNull [] read(long address, int capacity) {
+		ByteBuffer buffer = ByteBuffer.allocate(capacity);
+		int read = view.read(address, buffer);
+		assertEquals(read, buffer.position());
+		byte[] result = new byte[read];
+		buffer.flip().get(result);
+		return result;
+	}
+
+	@Test
+	void readsAcrossPages() {
+		// Consecutive frames, then a jump to the second range and its consecutive frame
+		assertArrayEquals(expected(0x1800, 0x3000), read(0x1800, 0x3000));
+		// Jumps back to the first range
+		assertArrayEquals(expected(0x3000, 3 * PAGE), read(0x3000, 3 * PAGE));
+		assertArrayEquals(expected(UPPER_HALF + 0x10, 0x20), read(UPPER_HALF + 0x10, 0x20));
+	}
+
+	@Test
+	void stopsAtMemoryThatCanNotBeRead() {
+		// The next page is not captured
+		assertArrayEquals(expected(0x5800, 0x800), read(0x5800, PAGE));
+		assertEquals(0, read(0x6000, PAGE).length);
+		// The next page is not mapped
+		assertArrayEquals(expected(UPPER_HALF + 0x800, 0x800), read(UPPER_HALF + 0x800, PAGE));
+		assertEquals(0, read(0x7800, PAGE).length);
+		// The next frame follows directly, but behind the end of the range
+		assertArrayEquals(expected(0x8000, 2 * PAGE), read(0x8000, 3 * PAGE));
+		assertArrayEquals(expected(0x9800, 0x800), read(0x9800, 2 * PAGE));
+		assertEquals(0, read(0xb000, PAGE).length);
+	}
+
+	@Test
+	void slicesConsecutiveMemoryOnly() {
+		ByteBuffer slice = view.slice(0x1ff0, 0x20);
+		assertNotNull(slice);
+		byte[] bytes = new byte[0x20];
+		slice.get(bytes);
+		assertArrayEquals(expected(0x1ff0, 0x20), bytes);
+		assertThrows(ReadOnlyBufferException.class, () -> slice.put(0, (byte) 0));
+		ByteBuffer second = view.slice(0x3ff8, 0x10);
+		assertNotNull(second);
+		assertEquals(pattern(0x11007), second.get(0xf));
+		// Crosses to a frame which is not consecutive
+		assertNull(view.slice(0x2ff0, 0x20));
+		assertNull(view.slice(0x6000, 1));
+		assertNull(view.slice(0x7000, 1));
+		assertNull(view.slice(0x9ff0, 0x20));
+		assertNotNull(view.slice(0x9ff0, 0x10));
+	}
+
+	@Test
+	void readsLongsAcrossPages() {
+		for (ByteOrder order : new ByteOrder[]{ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+			// Within a page, across consecutive frames, and split between frames which are not consecutive
+			for (long address : new long[]{0x1100, 0x1ffc, 0x2ffc, 0x4ffd, UPPER_HALF + 8}) {
+				long expected = ByteBuffer.wrap(expected(address, Long.BYTES)).order(order).getLong();
+				assertEquals(expected, view.getLong(address, order), "Long at " + Long.toHexString(address) + " in " + order);
+			}
+			assertThrows(IllegalArgumentException.class, () -> view.getLong(0x5ffc, order));
+			assertThrows(IllegalArgumentException.class, () -> view.getLong(0x6ffc, order));
+			assertThrows(IllegalArgumentException.class, () -> view.getLong(0x9ffc, order));
+		}
+		assertEquals(pattern(0x10000), view.getByte(0x3000));
+		assertThrows(IllegalArgumentException.class, () -> view.getByte(0x6000));
+		assertThrows(IllegalArgumentException.class, () -> view.getByte(0x7000));
+	}
+}
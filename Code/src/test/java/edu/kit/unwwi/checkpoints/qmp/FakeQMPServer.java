@@ -0,0 +1,256 @@
+package edu.kit.unwwi.checkpoints.qmp;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A QMP server standing in for QEMU, which listens on several Unix domain sockets like QEMU started with "-qmp" multiple times.
+ * It greets every client, accepts the capabilities negotiation and hands all other commands to a responder.
+ * Like QEMU, it executes the commands of all monitors one after another, as if they all ran on the same main loop.
+ * Events get sent to every connected client, just as QEMU broadcasts them to all monitors.
+ */
+public class FakeQMPServer implements Closeable {
+
+	/**
+	 * The sockets the monitors listen on.
+	 */
+	private final Path[] sockets;
+	/**
+	 * The channels accepting the clients of each monitor.
+	 */
+	private final ServerSocketChannel[] servers;
+	/**
+	 * Answers the commands.
+	 */
+	private final Responder responder;
+	/**
+	 * All clients which are currently connected.
+	 */
+	private final List<Client> clients = new CopyOnWriteArrayList<>();
+	/**
+	 * Makes sure only one command gets executed at a time, no matter which monitor it arrived on.
+	 */
+	private final Lock mainLoop = new ReentrantLock();
+	/**
+	 * How many commands each monitor received, not counting the capabilities negotiation.
+	 */
+	private final AtomicIntegerArray received;
+
+	/**
+	 * Starts listening on the given number of sockets in a directory.
+	 *
+	 * @param directory Where to create the sockets.
+	 * @param monitors  How many monitors to start.
+	 * @param responder Answers all commands besides the capabilities negotiation.
+	 * @throws IOException When a socket could not be created.
+	 */
+	public FakeQMPServer(@NotNull Path directory, int monitors, @NotNull Responder responder) throws IOException {
+		this.sockets = new Path[monitors];
+		this.servers = new ServerSocketChannel[monitors];
+		this.responder = responder;
+		this.received = new AtomicIntegerArray(monitors);
+		for (int i = 0; i < monitors; i++) {
+			sockets[i] = directory.resolve("qmp-" + i + ".sock");
+			servers[i] = ServerSocketChannel.open(StandardProtocolFamily.UNIX).bind(UnixDomainSocketAddress.of(sockets[i]));
+			int monitor = i;
+			Thread.ofPlatform().name("fake-qmp-" + i).daemon(true).start(() -> accept(monitor));
+		}
+	}
+
+	/**
+	 * The sockets of all monitors, in order.
+	 *
+	 * @return The paths of the sockets.
+	 */
+	@NotNull
+	public Path @NotNull [] getSockets() {
+		return sockets.clone();
+	}
+
+	/**
+	 * How many commands a monitor received, not counting the capabilities negotiation.
+	 *
+	 * @param monitor The number of the monitor.
+	 * @return How many commands it received.
+	 */
+	public int getReceived(int monitor) {
+		return received.get(monitor);
+	}
+
+	/**
+	 * Sends an event to all connected clients.
+	 *
+	 * @param name The name of the event.
+	 * @param data The data of the event, or null.
+	 */
+	public void sendEvent(@NotNull String name, @Nullable JSONObject data) {
+		long now = System.currentTimeMillis();
+		JSONObject event = new JSONObject().put("event", name)
+				.put("timestamp", new JSONObject().put("seconds", now / 1000).put("microseconds", now % 1000 * 1000));
+		if (data != null) event.put("data", data);
+		for (Client client : clients) client.send(event);
+	}
+
+	/**
+	 * Accepts clients of a monitor until the server gets closed.
+	 *
+	 * @param monitor The number of the monitor.
+	 */
+	private void accept(int monitor) {
+		try {
+			while (true) {
+				Client client = new Client(servers[monitor].accept(), monitor);
+				clients.add(client);
+				Thread.ofPlatform().name("fake-qmp-client-" + monitor).daemon(true).start(client::serve);
+			}
+		} catch (IOException _) {
+			// The server was closed
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (ServerSocketChannel server : servers) server.close();
+		for (Client client : clients) client.channel.close();
+		for (Path socket : sockets) Files.deleteIfExists(socket);
+	}
+
+	/**
+	 * Answers the commands sent to the server.
+	 */
+	@FunctionalInterface
+	public interface Responder {
+
+		/**
+		 * Executes a single command.
+		 * Runs while holding the lock of the main loop, so no other command gets executed meanwhile.
+		 *
+		 * @param command   The name of the command.
+		 * @param arguments The arguments of the command, which are empty if none were given.
+		 * @return The result to return, which gets sent as an empty object if null.
+		 * @throws IOException When the command should be answered with an error carrying the message of the exception.
+		 */
+		@Nullable
+		Object execute(@NotNull String command, @NotNull JSONObject arguments) throws IOException;
+	}
+
+	/**
+	 * A single client connected to one of the monitors.
+	 */
+	private final class Client {
+
+		/**
+		 * The connection to the client.
+		 */
+		private final SocketChannel channel;
+		/**
+		 * The number of the monitor the client is connected to.
+		 */
+		private final int monitor;
+
+		/**
+		 * Creates a new client.
+		 *
+		 * @param channel The connection to the client.
+		 * @param monitor The number of the monitor.
+		 */
+		Client(@NotNull SocketChannel channel, int monitor) {
+			this.channel = channel;
+			this.monitor = monitor;
+		}
+
+		/**
+		 * Greets the client and answers all requests until it disconnects.
+		 * The client doesn't end its requests with line breaks, so the requests get split by counting braces.
+		 */
+		void serve() {
+			try (channel) {
+				send(new JSONObject().put("QMP", new JSONObject().put("version", new JSONObject()).put("capabilities", new JSONArray())));
+				ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+				StringBuilder request = new StringBuilder();
+				int depth = 0;
+				boolean string = false;
+				boolean escaped = false;
+				while (channel.read(buffer.clear()) >= 0) {
+					String text = StandardCharsets.UTF_8.decode(buffer.flip()).toString();
+					for (char character : text.toCharArray()) {
+						if (depth == 0 && character != '{') continue;
+						request.append(character);
+						if (escaped) escaped = false;
+						else if (string) {
+							if (character == '\\') escaped = true;
+							else if (character == '"') string = false;
+						} else if (character == '"') string = true;
+						else if (character == '{') depth++;
+						else if (character == '}' && --depth == 0) {
+							answer(new JSONObject(request.toString()));
+							request.setLength(0);
+						}
+					}
+				}
+			} catch (IOException _) {
+				// The client disconnected or the server was closed
+			} finally {
+				clients.remove(this);
+			}
+		}
+
+		/**
+		 * Executes a request and sends the answer, tagged with the id of the request.
+		 *
+		 * @param request The request.
+		 */
+		private void answer(@NotNull JSONObject request) {
+			String command = request.getString("execute");
+			JSONObject answer = new JSONObject();
+			if (request.has("id")) answer.put("id", request.get("id"));
+			if (command.equals("qmp_capabilities")) answer.put("return", new JSONObject());
+			else {
+				received.incrementAndGet(monitor);
+				mainLoop.lock();
+				try {
+					Object result = responder.execute(command, request.optJSONObject("arguments", new JSONObject()));
+					answer.put("return", result == null ? new JSONObject() : result);
+				} catch (IOException e) {
+					answer.put("error", new JSONObject().put("class", "GenericError").put("desc", e.getMessage()));
+				} finally {
+					mainLoop.unlock();
+				}
+			}
+			send(answer);
+		}
+
+		/**
+		 * Sends a message as a single line.
+		 * Answers and events may be sent by different threads, so the whole message gets written at once.
+		 *
+		 * @param message The message to send.
+		 */
+		synchronized void send(@NotNull JSONObject message) {
+			ByteBuffer bytes = StandardCharsets.UTF_8.encode(message + "\r\n");
+			try {
+				while (bytes.hasRemaining()) channel.write(bytes);
+			} catch (IOException _) {
+				// The client disconnected
+			}
+		}
+	}
+}
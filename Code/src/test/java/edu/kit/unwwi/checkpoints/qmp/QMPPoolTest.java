@@ -0,0 +1,139 @@
+package edu.kit.unwwi.checkpoints.qmp;
+
+import edu.kit.unwwi.checkpoints.qmp.commands.qhm.QueryRegisters;
+import org.jetbrains.annotations.NotNull;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that a pool spreads the commands over all monitors of a fake QEMU and matches every answer to its command,
+ * while events only get handled once, although every monitor receives them.
+ */
+class QMPPoolTest {
+
+	/**
+	 * How many monitors the fake QEMU listens on.
+	 */
+	private static final int MONITORS = 4;
+	/**
+	 * How many commands get sent at once.
+	 */
+	private static final int COMMANDS = 64;
+
+	/**
+	 * The directory holding the sockets.
+	 */
+	@TempDir
+	Path directory;
+
+	/**
+	 * The fake QEMU.
+	 */
+	private FakeQMPServer server;
+	/**
+	 * The pool connected to all monitors of the fake QEMU.
+	 */
+	private QMPPool pool;
+
+	@BeforeEach
+	void connect() throws IOException {
+		server = new FakeQMPServer(directory, MONITORS, QMPPoolTest::execute);
+		pool = new QMPPool(server.getSockets());
+	}
+
+	@AfterEach
+	void disconnect() throws IOException {
+		pool.exit();
+		server.close();
+	}
+
+	/**
+	 * Answers "info registers" for any CPU with registers holding the index of the CPU, taking a millisecond each.
+	 *
+	 * @param command   The name of the command.
+	 * @param arguments The arguments of the command.
+	 * @return The output of the command.
+	 * @throws IOException When the CPU does not exist.
+	 */
+	@NotNull
+	private static Object execute(@NotNull String command, @NotNull JSONObject arguments) throws IOException {
+		assertEquals("human-monitor-command", command);
+		assertEquals("info registers", arguments.getString("command-line"));
+		int cpu = arguments.getInt("cpu-index");
+		if (cpu < 0) throw new IOException("CPU " + cpu + " does not exist");
+		try {
+			Thread.sleep(1);
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		return String.format("RAX=%016x RBX=%016x\r\nRIP=%016x RFL=00000002 [-------] CPL=0\r\n", cpu, 2L * cpu, 0xffffffff81000000L + cpu);
+	}
+
+	@Test
+	void spreadsCommandsOverMonitors() {
+		List<CommandFuture<QueryRegisters>> futures = new ArrayList<>();
+		for (int i = 0; i < COMMANDS; i++) futures.add(pool.executeAsync(new QueryRegisters(i)));
+		CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+		// Every answer must reach the command it belongs to, no matter which monitor it was sent on
+		for (int i = 0; i < COMMANDS; i++) {
+			QueryRegisters query = futures.get(i).join();
+			assertEquals(i, query.getRegisterFile().getValue(0));
+			assertEquals(2L * i, query.getRegisterFile().getValue(1));
+		}
+		int received = 0;
+		for (int monitor = 0; monitor < MONITORS; monitor++) {
+			assertTrue(server.getReceived(monitor) > 0, "Monitor " + monitor + " received no commands");
+			received += server.getReceived(monitor);
+		}
+		assertEquals(COMMANDS, received);
+	}
+
+	@Test
+	void reportsErrorsOfSingleCommand() throws IOException {
+		CommandFuture<QueryRegisters> failing = pool.executeAsync(new QueryRegisters(-1));
+		CommandFuture<QueryRegisters> succeeding = pool.executeAsync(new QueryRegisters(1));
+		CompletionException error = assertThrows(CompletionException.class, failing::join);
+		assertInstanceOf(IOException.class, error.getCause());
+		assertEquals(1, succeeding.join().getRegisterFile().getValue(0));
+		// The connection stays usable after an error
+		pool.executeCommand(new QueryRegisters(2));
+	}
+
+	@Test
+	void handlesEventsOnce() throws InterruptedException {
+		AtomicInteger handled = new AtomicInteger();
+		EventHandler handler = new EventHandler() {
+			@Override
+			public void handleEvent(@NotNull Event event) {
+				handled.incrementAndGet();
+			}
+
+			@Override
+			public @NotNull String eventName() {
+				return "STOP";
+			}
+		};
+		pool.registerEventHandler(handler);
+		CompletableFuture<Event> stopped = pool.awaitEvent("STOP", _ -> true, Duration.ofSeconds(10));
+		server.sendEvent("STOP", null);
+		assertEquals("STOP", stopped.join().getName());
+		// Handlers of the other monitors would run on other dispatcher threads, so give them some time
+		Thread.sleep(200);
+		assertEquals(1, handled.get());
+		pool.unregisterEventHandler(handler);
+	}
+}
@@ -0,0 +1,248 @@
+package edu.kit.unwwi.checkpoints.qmp.commands;
+
+import edu.kit.unwwi.checkpoints.qemu.models.memory.MemorySegment;
+import edu.kit.unwwi.checkpoints.qmp.FakeQMPServer;
+import edu.kit.unwwi.checkpoints.qmp.QMPInterface;
+import edu.kit.unwwi.elf.ProgramHeader;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Dumps a synthetic ELF file through a fake QMP server, either to a temporary file or through a named pipe.
+ * The fake server writes the dump the way QEMU does: it opens the target before answering the detached command,
+ * writes the dump afterwards and reports its end with the DUMP_COMPLETED event.
+ */
+class ELFDumpTest {
+
+	/**
+	 * The physical address of the first load segment.
+	 */
+	private static final long FIRST_ADDRESS = 0x100000;
+	/**
+	 * The offset of virtual addresses from physical ones.
+	 */
+	private static final long VIRTUAL_OFFSET = 0xffff800000000000L;
+	/**
+	 * The alignment of the segments in the file.
+	 */
+	private static final int ALIGNMENT = 4096;
+
+	/**
+	 * The directory holding the sockets and the dumps.
+	 */
+	@TempDir
+	Path directory;
+
+	/**
+	 * The contents of the load segments QEMU dumps.
+	 */
+	private byte[][] segments;
+	/**
+	 * Whether the fake QEMU fails to open the target of the dump.
+	 */
+	private volatile boolean failToOpen;
+	/**
+	 * The fake QEMU.
+	 */
+	private FakeQMPServer server;
+	/**
+	 * The connection to the fake QEMU.
+	 */
+	private QMPInterface inter;
+
+	@BeforeEach
+	void connect() throws IOException {
+		ELFDump.setTemp(directory);
+		Random random = new Random(11);
+		segments = new byte[][]{new byte[5 * (1 << 20) + 123], new byte[ALIGNMENT], new byte[777], new byte[3 * ALIGNMENT]};
+		for (byte[] segment : segments) random.nextBytes(segment);
+		server = new FakeQMPServer(directory, 1, this::execute);
+		inter = new QMPInterface(server.getSockets()[0]);
+	}
+
+	@AfterEach
+	void disconnect() throws IOException {
+		inter.exit();
+		server.close();
+	}
+
+	/**
+	 * Answers the commands sent to the fake QEMU.
+	 *
+	 * @param command   The name of the command.
+	 * @param arguments The arguments of the command.
+	 * @return The result of the command.
+	 * @throws IOException When the target of the dump could not be opened.
+	 */
+	@Nullable
+	private Object execute(@NotNull String command, @NotNull JSONObject arguments) throws IOException {
+		assertEquals("dump-guest-memory", command);
+		assertTrue(arguments.getBoolean("detach"));
+		Path target = Path.of(arguments.getString("protocol").substring("file:".length()));
+		if (failToOpen) throw new IOException("Could not open " + target);
+		// Opening a named pipe blocks until it gets read, which the dump waits for as well
+		FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		Thread.ofPlatform().daemon(true).start(() -> writeDump(out));
+		return null;
+	}
+
+	/**
+	 * Writes the synthetic dump and reports its end, just as QEMU does after the detached command was answered.
+	 *
+	 * @param out The opened target of the dump.
+	 */
+	private void writeDump(@NotNull FileChannel out) {
+		byte[] dump = createDump(segments);
+		JSONObject data = new JSONObject();
+		long written = 0;
+		try (out) {
+			ByteBuffer buffer = ByteBuffer.wrap(dump);
+			// Written in pieces, so the reader sees the segments arrive while the dump is running
+			while (buffer.hasRemaining()) {
+				written += out.write(buffer.slice(buffer.position(), Math.min(buffer.remaining(), 100_000)));
+				buffer.position((int) written);
+			}
+			data.put("result", new JSONObject().put("status", "completed").put("completed", written).put("total", dump.length));
+		} catch (IOException e) {
+			data.put("result", new JSONObject().put("status", "failed").put("completed", written).put("total", dump.length));
+			data.put("error", "dump: failed to save memory: " + e.getMessage());
+		}
+		server.sendEvent("DUMP_COMPLETED", data);
+	}
+
+	/**
+	 * Creates an ELF64 core file like the dumps of QEMU.
+	 * A note segment comes first, each load segment follows at the next aligned offset behind the one before.
+	 * The gaps between the segments are filled with garbage, which must be skipped by the reader.
+	 *
+	 * @param contents The contents of the load segments.
+	 * @return The ELF file.
+	 */
+	private static byte @NotNull [] createDump(byte @NotNull [] @NotNull [] contents) {
+		int headers = contents.length + 1;
+		long[] offsets = new long[headers];
+		long[] sizes = new long[headers];
+		sizes[0] = 100;
+		offsets[0] = 64 + 56L * headers;
+		for (int i = 1; i < headers; i++) {
+			offsets[i] = Math.ceilDiv(offsets[i - 1] + sizes[i - 1], ALIGNMENT) * (long) ALIGNMENT;
+			sizes[i] = contents[i - 1].length;
+		}
+		ByteBuffer file = ByteBuffer.allocate((int) (offsets[headers - 1] + sizes[headers - 1])).order(ByteOrder.LITTLE_ENDIAN);
+		new Random(13).nextBytes(file.array());
+		file.put(new byte[]{0x7f, 'E', 'L', 'F', 2, 1, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+		file.putShort((short) 4).putShort((short) 62).putInt(1).putLong(0).putLong(64).putLong(0).putInt(0);
+		file.putShort((short) 64).putShort((short) 56).putShort((short) headers).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+		file.putInt(4).putInt(0).putLong(offsets[0]).putLong(0).putLong(0).putLong(sizes[0]).putLong(sizes[0]).putLong(0);
+		for (int i = 1; i < headers; i++) {
+			long physical = FIRST_ADDRESS + (i - 1) * (8L << 20);
+			file.putInt(1).putInt(0).putLong(offsets[i]).putLong(VIRTUAL_OFFSET + physical).putLong(physical)
+					.putLong(sizes[i]).putLong(sizes[i]).putLong(0);
+			file.put((int) offsets[i], contents[i - 1]);
+		}
+		return file.array();
+	}
+
+	/**
+	 * Finds all threads reading a named pipe.
+	 *
+	 * @return The threads.
+	 */
+	@NotNull
+	private static List<Thread> streamReaders() {
+		return Thread.getAllStackTraces().keySet().stream().filter(thread -> thread.getName().equals("dump-stream")).toList();
+	}
+
+	@Test
+	void streamsSegmentsThroughPipe() throws IOException, InterruptedException {
+		List<ProgramHeader> headers = new ArrayList<>();
+		List<byte[]> received = new ArrayList<>();
+		try (ELFDump dump = new ELFDump(inter, (header, content) -> {
+			headers.add(header);
+			// The second segment is only read partially, the rest of it must get skipped
+			if (headers.size() == 2) received.add(Channels.newInputStream(content).readNBytes(100));
+			else received.add(Channels.newInputStream(content).readAllBytes());
+		})) {
+			inter.executeCommand(dump);
+			dump.awaitCompletion();
+			assertEquals(0, dump.getSegments().length);
+			assertEquals(createDump(segments).length, dump.getSize());
+		}
+		assertEquals(segments.length, headers.size());
+		for (int i = 0; i < segments.length; i++) {
+			assertEquals(FIRST_ADDRESS + i * (8L << 20), headers.get(i).physicalAddress());
+			assertEquals(VIRTUAL_OFFSET + headers.get(i).physicalAddress(), headers.get(i).virtualAddress());
+			byte[] expected = i == 1 ? Arrays.copyOf(segments[i], 100) : segments[i];
+			assertArrayEquals(expected, received.get(i), "Segment " + i);
+		}
+	}
+
+	@Test
+	void reportsFailingHandler() throws IOException {
+		try (ELFDump dump = new ELFDump(inter, (header, _) -> {
+			if (header.physicalAddress() != FIRST_ADDRESS) throw new IOException("Disk full");
+		})) {
+			inter.executeCommand(dump);
+			// The pipe gets closed early, so QEMU fails as well, but the first error is the one reported
+			IOException error = assertThrows(IOException.class, dump::awaitCompletion);
+			assertEquals("Disk full", error.getMessage());
+			assertTrue(dump.isDone());
+		}
+	}
+
+	@Test
+	void releasesReaderWhenPipeIsNeverOpened() throws IOException, InterruptedException {
+		failToOpen = true;
+		ELFDump dump = new ELFDump(inter, (_, _) -> fail("QEMU never wrote the dump"));
+		assertThrows(IOException.class, () -> inter.executeCommand(dump));
+		dump.close();
+		for (Thread reader : streamReaders()) reader.join(5000);
+		assertTrue(streamReaders().isEmpty(), "The reader of the pipe is still waiting for QEMU");
+	}
+
+	@Test
+	void readsTemporaryFile() throws IOException, InterruptedException {
+		try (ELFDump dump = new ELFDump(inter)) {
+			inter.executeCommand(dump);
+			dump.awaitCompletion();
+			MemorySegment[] result = dump.getSegments();
+			assertEquals(segments.length, result.length);
+			for (int i = 0; i < segments.length; i++) {
+				assertEquals(FIRST_ADDRESS + i * (8L << 20), result[i].getStartPhysicalAddress());
+				assertEquals(segments[i].length, result[i].getSize());
+				assertArrayEquals(segments[i], result[i].getInputStream().readAllBytes(), "Segment " + i);
+			}
+		}
+	}
+
+	@Test
+	void reportsFailedDump() throws IOException {
+		try (ELFDump dump = new ELFDump(inter)) {
+			// Only registers for the event, QEMU reports the failure after answering the detached command
+			dump.toJson();
+			server.sendEvent("DUMP_COMPLETED", new JSONObject().put("result", new JSONObject().put("status", "failed").put("total", 0)).put("error", "out of space"));
+			IOException error = assertThrows(IOException.class, dump::awaitCompletion);
+			assertTrue(error.getMessage().contains("out of space"));
+			assertTrue(dump.isDone());
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package edu.kit.unwwi.checkpoints.qmp.commands;
+
+import edu.kit.unwwi.checkpoints.qemu.models.CPU;
+import edu.kit.unwwi.checkpoints.qmp.FakeQMPServer;
+import edu.kit.unwwi.checkpoints.qmp.QMPInterface;
+import org.jetbrains.annotations.NotNull;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Queries the registers of all CPUs of a fake QEMU, whose answer to "info registers -a" misses the last CPU.
+ * That CPU has to be queried by itself, and the query must fail if even that doesn't return its registers.
+ */
+class QueryCPURegistersTest {
+
+	/**
+	 * How many CPUs the fake QEMU has.
+	 */
+	private static final int CPUS = 4;
+
+	/**
+	 * The directory holding the socket.
+	 */
+	@TempDir
+	Path directory;
+
+	/**
+	 * Whether the fake QEMU fails to return the registers of a single CPU.
+	 */
+	private volatile boolean failSingle;
+	/**
+	 * The fake QEMU.
+	 */
+	private FakeQMPServer server;
+	/**
+	 * The connection to the fake QEMU.
+	 */
+	private QMPInterface inter;
+
+	@BeforeEach
+	void connect() throws IOException {
+		server = new FakeQMPServer(directory, 1, this::execute);
+		inter = new QMPInterface(server.getSockets()[0]);
+	}
+
+	@AfterEach
+	void disconnect() throws IOException {
+		inter.exit();
+		server.close();
+	}
+
+	/**
+	 * The output of "info registers" for a single CPU, whose registers hold its index.
+	 *
+	 * @param cpu The index of the CPU.
+	 * @return The output for the CPU.
+	 */
+	@NotNull
+	private static String registers(int cpu) {
+		return String.format("RAX=%016x RBX=%016x\r\nRIP=%016x RFL=00000002 [-------] CPL=0\r\n", cpu, 2L * cpu, 0xffffffff81000000L + cpu);
+	}
+
+	/**
+	 * Answers the commands sent to the fake QEMU.
+	 *
+	 * @param command   The name of the command.
+	 * @param arguments The arguments of the command.
+	 * @return The result of the command.
+	 * @throws IOException When a single CPU should fail.
+	 */
+	@NotNull
+	private Object execute(@NotNull String command, @NotNull JSONObject arguments) throws IOException {
+		if (command.equals("query-cpus-fast")) {
+			JSONArray cpus = new JSONArray();
+			for (int i = 0; i < CPUS; i++) cpus.put(new JSONObject().put("cpu-index", i).put("target", "x86_64").put("thread-id", 1000 + i));
+			return cpus;
+		}
+		assertEquals("human-monitor-command", command);
+		if (arguments.getString("command-line").equals("info registers -a")) {
+			// The last CPU is missing, e.g. because it was hot-plugged while QEMU printed the others
+			StringBuilder output = new StringBuilder();
+			for (int i = 0; i < CPUS - 1; i++) output.append("\r\nCPU#").append(i).append("\r\n").append(registers(i));
+			return output.toString();
+		}
+		int cpu = arguments.getInt("cpu-index");
+		if (failSingle) throw new IOException("CPU " + cpu + " is not running");
+		return registers(cpu);
+	}
+
+	/**
+	 * Queries the CPUs and their registers like a checkpoint does.
+	 *
+	 * @return A future completing with the CPUs.
+	 */
+	@NotNull
+	private CompletableFuture<CPU[]> query() {
+		return inter.executeAsync(new QueryCPURegisters(inter)).thenCompose(QueryCPURegisters::queryRegisters);
+	}
+
+	@Test
+	void queriesMissingCpuByItself() {
+		CPU[] cpus = query().join();
+		assertEquals(CPUS, cpus.length);
+		for (int i = 0; i < CPUS; i++) {
+			assertEquals(i, cpus[i].getId());
+			assertEquals(1000 + i, cpus[i].getHostThreadId());
+			assertNotNull(cpus[i].getRegisterFile(), "CPU " + i + " has no registers");
+			assertEquals(i, cpus[i].getRegisterFile().getValue(0));
+			assertEquals(2L * i, cpus[i].getRegisterFile().getValue(1));
+		}
+		// The CPUs, all registers at once and the missing CPU
+		assertEquals(3, server.getReceived(0));
+	}
+
+	@Test
+	void failsWithoutRegisters() {
+		failSingle = true;
+		CompletionException error = assertThrows(CompletionException.class, () -> query().join());
+		assertInstanceOf(IOException.class, error.getCause());
+		assertTrue(error.getCause().getMessage().contains("CPU " + (CPUS - 1)), error.getCause().getMessage());
+	}
+}
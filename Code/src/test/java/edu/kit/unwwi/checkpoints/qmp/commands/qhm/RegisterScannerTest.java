@@ -0,0 +1,132 @@
+package edu.kit.unwwi.checkpoints.qmp.commands.qhm;
+
+import edu.kit.unwwi.checkpoints.qemu.models.registers.RegisterFile;
+import edu.kit.unwwi.checkpoints.qemu.models.registers.RegisterLayout;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Parses recorded outputs of "info registers" and compares them with the registers recorded for them.
+ * Every sample comes with a file holding one line per register in the form "name number width value",
+ * preceded by a line "flags [...]" if the output contains flags.
+ * The x86-64 samples contain the segment registers and FPRs, whose values QEMU splits by whitespace,
+ * EFER, and either the XMM registers of a guest with SSE only or the YMM registers of a guest with AVX.
+ * The aarch64 sample contains no flags, and its Q registers don't match "name=value", so they get skipped.
+ */
+class RegisterScannerTest {
+
+	/**
+	 * Reads a recorded sample.
+	 *
+	 * @param name The name of the file.
+	 * @return The contents of the file.
+	 * @throws IOException When the file could not be read.
+	 */
+	@NotNull
+	private static String read(@NotNull String name) throws IOException {
+		try (InputStream in = RegisterScannerTest.class.getResourceAsStream(name)) {
+			assertNotNull(in, "Missing sample " + name);
+			return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Parses an output the way QueryRegisters does.
+	 *
+	 * @param output The output of "info registers".
+	 * @return The executed query.
+	 */
+	@NotNull
+	private static QueryRegisters parse(@NotNull String output) {
+		QueryRegisters query = new QueryRegisters(0);
+		query.receiveResult((Object) output);
+		return query;
+	}
+
+	/**
+	 * Compares the parsed registers and flags with those recorded for a sample.
+	 *
+	 * @param query  The executed query.
+	 * @param sample The name of the sample, without its extension.
+	 * @throws IOException When the recorded registers could not be read.
+	 */
+	private static void assertRecorded(@NotNull QueryRegisters query, @NotNull String sample) throws IOException {
+		String[] expected = read(sample + ".expected").split("\n");
+		int line = 0;
+		if (expected[0].startsWith("flags ")) {
+			String flags = expected[line++].substring("flags ".length());
+			assertArrayEquals(flags.substring(1, flags.length() - 1).replace('-', '\0').toCharArray(), query.flags());
+		} else assertFalse(query.hasFlags());
+		RegisterFile registers = query.getRegisterFile();
+		RegisterLayout layout = registers.getLayout();
+		assertEquals(expected.length - line, registers.size());
+		for (int i = 0; i < registers.size(); i++, line++) {
+			String[] parts = expected[line].split(" ");
+			String name = parts[0];
+			assertEquals(name, layout.getName(i), "Register " + i);
+			assertEquals(Integer.parseInt(parts[1]), layout.getRegisterNumber(i), "Number of " + name);
+			assertEquals(Integer.parseInt(parts[2]), layout.getWidth(i), "Width of " + name);
+			assertEquals(parts[3], registers.get(i).toHexString(), "Value of " + name);
+		}
+	}
+
+	@Test
+	void parsesX86WithSSE() throws IOException {
+		QueryRegisters query = parse(read("registers-x86_64-sse.txt"));
+		assertRecorded(query, "registers-x86_64-sse");
+		RegisterFile registers = query.getRegisterFile();
+		assertEquals(0xd01, registers.getValue(registers.getLayout().indexOf("EFER")));
+		assertEquals(128, registers.getLayout().getWidth(registers.getLayout().indexOf("XMM15")));
+	}
+
+	@Test
+	void parsesX86WithAVX() throws IOException {
+		QueryRegisters query = parse(read("registers-x86_64-avx.txt"));
+		assertRecorded(query, "registers-x86_64-avx");
+		RegisterLayout layout = query.getRegisterFile().getLayout();
+		assertEquals(256, layout.getWidth(layout.indexOf("YMM00")));
+		assertEquals(80, layout.getWidth(layout.indexOf("FPR7")));
+	}
+
+	@Test
+	void joinsHexWordsSplitByWhitespace() throws IOException {
+		RegisterFile registers = parse(read("registers-x86_64-sse.txt")).getRegisterFile();
+		// "TR =0040 fffffe0000003000 00004087 00008900" keeps the selector in its first bytes
+		assertEquals("0x0040fffffe00000030000000408700008900", registers.get("TR").toHexString());
+		assertEquals("0xfffffe00000010000000007f", registers.get("GDT").toHexString());
+		assertEquals("0xc90fdaa22168c0004000", registers.get("FPR1").toHexString());
+	}
+
+	@Test
+	void parsesAArch64() throws IOException {
+		assertRecorded(parse(read("registers-aarch64.txt")), "registers-aarch64");
+	}
+
+	@Test
+	void skipsMultiDigitCPUMarker() throws IOException {
+		// The sample with AVX starts with "CPU#10", so its registers must get the same numbers as those of "CPU#0"
+		RegisterFile sse = parse(read("registers-x86_64-sse.txt")).getRegisterFile();
+		RegisterFile avx = parse(read("registers-x86_64-avx.txt")).getRegisterFile();
+		for (String name : new String[]{"RFL", "CPL", "CR0", "CR4", "FCW", "MXCSR"}) {
+			int index = sse.getLayout().indexOf(name);
+			assertEquals(sse.getLayout().getRegisterNumber(index), avx.getLayout().getRegisterNumber(avx.getLayout().indexOf(name)), name);
+		}
+	}
+
+	@Test
+	void splitsAllCPUs() throws IOException {
+		QueryAllRegisters query = new QueryAllRegisters();
+		query.receiveResult((Object) (read("registers-x86_64-sse.txt") + read("registers-x86_64-avx.txt")));
+		Map<Integer, QueryRegisters> result = query.getResult();
+		assertEquals(2, result.size());
+		assertRecorded(result.get(0), "registers-x86_64-sse");
+		assertRecorded(result.get(10), "registers-x86_64-avx");
+	}
+}
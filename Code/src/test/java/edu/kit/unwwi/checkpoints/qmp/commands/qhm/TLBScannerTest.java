@@ -0,0 +1,211 @@
+package edu.kit.unwwi.checkpoints.qmp.commands.qhm;
+
+import edu.kit.unwwi.checkpoints.qemu.models.memory.PagingMode;
+import edu.kit.unwwi.checkpoints.qemu.models.memory.TLB;
+import edu.kit.unwwi.checkpoints.qemu.models.registers.RegisterFile;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Scans the output of "info tlb" for x86 guests using every paging mode.
+ * QEMU prints all addresses with 16 hex digits, no matter which mode the guest uses,
+ * so the size of large pages must be taken from the paging mode of the CPU.
+ */
+class TLBScannerTest {
+
+	/**
+	 * A 32-bit guest without PAE, mapping its kernel with 4 MiB pages.
+	 */
+	private static final String LEGACY = """
+			00000000000b8000: 00000000000b8000 ----A---W
+			00000000c0000000: 0000000000000000 -GPDA---W
+			00000000c0400000: 0000000000400000 -GPDA---W
+			00000000c0800000: 0000000000800000 -GP-A---W
+			00000000f7f00000: 0000000007f00000 -G-DAC--W
+			00000000ff800000: 000000000f800000 --P-A---W
+			""";
+	/**
+	 * A 32-bit guest with PAE, whose large pages have 2 MiB even when aligned to 1 GiB.
+	 */
+	private static final String PAE = """
+			0000000000001000: 0000000000001000 ----A--UW
+			0000000040000000: 0000000040000000 --PDA--UW
+			0000000080000000: 0000000080000000 --PDA--UW
+			00000000c0000000: 0000000000000000 XGPDA---W
+			00000000c0200000: 0000000000200000 XGPDA---W
+			00000000c0400000: 0000000000400000 XG-DA---W
+			""";
+	/**
+	 * An x86-64 guest using 4-level paging, mapping the direct map with 1 GiB and the kernel with 2 MiB pages.
+	 */
+	private static final String FOUR_LEVEL = """
+			0000000000400000: 0000000002a00000 ----A--U-
+			0000000000401000: 0000000002a01000 ---DA--UW
+			00007ffc1a3f2000: 0000000003d4e000 X--DA--UW
+			ffff888000000000: 0000000000000000 XGPDA---W
+			ffff888040000000: 0000000040000000 XGPDA---W
+			ffff888080000000: 0000000080000000 XGPDA---W
+			ffffffff81000000: 0000000001000000 -GPDA---W
+			ffffffff81200000: 0000000001200000 -GPDA---W
+			""";
+	/**
+	 * An x86-64 guest using 4-level paging, whose output ends with a run of 1 GiB pages.
+	 */
+	private static final String FOUR_LEVEL_HUGE_LAST = """
+			0000000000001000: 0000000000001000 ----A---W
+			ffff888000000000: 0000000000000000 XGPDA---W
+			ffff888040000000: 0000000040000000 XGPDA---W
+			""";
+	/**
+	 * An x86-64 guest using 5-level paging, whose direct map starts at a different address.
+	 */
+	private static final String FIVE_LEVEL = """
+			ff11000000000000: 0000000000000000 XGPDA---W
+			ff11000040000000: 0000000040000000 XGPDA---W
+			ffffffff81000000: 0000000001000000 -GPDA---W
+			""";
+
+	/**
+	 * Creates the control registers of an x86 CPU.
+	 *
+	 * @param cr0  The value of CR0.
+	 * @param cr4  The value of CR4.
+	 * @param efer The value of EFER.
+	 * @return The registers.
+	 */
+	@NotNull
+	private static RegisterFile registers(long cr0, long cr4, long efer) {
+		return new RegisterFile.Builder()
+				.add("CR0", -1, 64, cr0)
+				.add("CR3", -1, 64, 0x1000)
+				.add("CR4", -1, 64, cr4)
+				.add("EFER", -1, 64, efer)
+				.build();
+	}
+
+	/**
+	 * Parses an output the way QueryTLB does.
+	 *
+	 * @param output The output of "info tlb".
+	 * @param mode   The paging mode of the CPU.
+	 * @return The TLB.
+	 */
+	@NotNull
+	private static TLB scan(@NotNull String output, @NotNull PagingMode mode) {
+		QueryTLB query = new QueryTLB(mode);
+		query.receiveResult((Object) output);
+		return query.getResult();
+	}
+
+	/**
+	 * Checks the size of the page containing an address.
+	 *
+	 * @param tlb     The TLB holding the page.
+	 * @param virtual The virtual address of the page.
+	 * @param size    The expected size.
+	 */
+	private static void assertPage(@NotNull TLB tlb, long virtual, long size) {
+		int index = tlb.indexOf(virtual);
+		assertTrue(index >= 0, "No page at " + Long.toHexString(virtual));
+		assertEquals(virtual, tlb.getVirtualAddress(index));
+		assertEquals(size, tlb.getSize(index), "Size of " + Long.toHexString(virtual));
+	}
+
+	@Test
+	void readsPagingModeFromRegisters() {
+		assertEquals(PagingMode.NONE, PagingMode.of(registers(0x10, 0, 0)));
+		assertEquals(PagingMode.LEGACY, PagingMode.of(registers(0x80050033, 0x690, 0)));
+		assertEquals(PagingMode.PAE, PagingMode.of(registers(0x80050033, 0x6b0, 0x800)));
+		assertEquals(PagingMode.FOUR_LEVEL, PagingMode.of(registers(0x80050033, 0x3506f0, 0xd01)));
+		assertEquals(PagingMode.FIVE_LEVEL, PagingMode.of(registers(0x80050033, 0x3516f0, 0xd01)));
+		RegisterFile arm = new RegisterFile.Builder().add("PC", -1, 64, 0xffff800010000000L).build();
+		assertThrows(IllegalArgumentException.class, () -> PagingMode.of(arm));
+		assertThrows(IllegalArgumentException.class, () -> new QueryTLB(arm));
+	}
+
+	@Test
+	void legacyLargePagesHave4MiB() {
+		TLB tlb = scan(LEGACY, PagingMode.of(registers(0x80050033, 0x690, 0)));
+		assertEquals(6, tlb.size());
+		assertPage(tlb, 0xb8000, 1L << 12);
+		assertPage(tlb, 0xc0000000L, 1L << 22);
+		assertPage(tlb, 0xc0400000L, 1L << 22);
+		assertPage(tlb, 0xc0800000L, 1L << 22);
+		assertPage(tlb, 0xf7f00000L, 1L << 12);
+		// The upper half of a large page, which a 2 MiB page would miss
+		assertEquals(0x300000, tlb.translateAddress(0xc0300000L));
+		assertEquals(0xbff123, tlb.translateAddress(0xc0bff123L));
+		assertEquals(-1, tlb.indexOf(0xc0c00000L));
+		// The last line has no next page to tell its size from
+		assertPage(tlb, 0xff800000L, 1L << 22);
+		assertEquals(0xfbfffff, tlb.translateAddress(0xffbfffffL));
+		assertTrue(tlb.flagSet(tlb.indexOf(0xf7f00000L), 'C'));
+		assertFalse(tlb.flagSet(tlb.indexOf(0xc0800000L), 'D'));
+	}
+
+	@Test
+	void paeLargePagesHave2MiB() {
+		TLB tlb = scan(PAE, PagingMode.of(registers(0x80050033, 0x6b0, 0x800)));
+		assertEquals(6, tlb.size());
+		assertPage(tlb, 0x1000, 1L << 12);
+		// Aligned to 1 GiB and followed by a page 1 GiB later, but PAE has no 1 GiB pages
+		assertPage(tlb, 0x40000000L, 1L << 21);
+		assertPage(tlb, 0x80000000L, 1L << 21);
+		assertEquals(-1, tlb.indexOf(0x40200000L));
+		assertPage(tlb, 0xc0000000L, 1L << 21);
+		assertEquals(0x3fffff, tlb.translateAddress(0xc03fffffL));
+		assertPage(tlb, 0xc0400000L, 1L << 12);
+		assertTrue(tlb.flagSet(tlb.indexOf(0xc0000000L), 'X'));
+	}
+
+	@Test
+	void fourLevelPagesHave2MiBOr1GiB() {
+		TLB tlb = scan(FOUR_LEVEL, PagingMode.of(registers(0x80050033, 0x3506f0, 0xd01)));
+		assertEquals(8, tlb.size());
+		assertPage(tlb, 0x400000, 1L << 12);
+		assertPage(tlb, 0x7ffc1a3f2000L, 1L << 12);
+		assertPage(tlb, 0xffff888000000000L, 1L << 30);
+		assertPage(tlb, 0xffff888040000000L, 1L << 30);
+		// Only the previous page continues the run of 1 GiB pages
+		assertPage(tlb, 0xffff888080000000L, 1L << 30);
+		assertEquals(0xbfffffffL, tlb.translateAddress(0xffff8880bfffffffL));
+		assertPage(tlb, 0xffffffff81000000L, 1L << 21);
+		// The last line is not aligned to 1 GiB
+		assertPage(tlb, 0xffffffff81200000L, 1L << 21);
+		assertEquals(-1, tlb.indexOf(0xffffffff81400000L));
+		assertFalse(tlb.flagSet(tlb.indexOf(0x400000), 'W'));
+		assertTrue(tlb.flagSet(tlb.indexOf(0x401000), 'W'));
+	}
+
+	@Test
+	void lastHugePageKeepsItsSize() {
+		TLB tlb = scan(FOUR_LEVEL_HUGE_LAST, PagingMode.FOUR_LEVEL);
+		assertPage(tlb, 0xffff888000000000L, 1L << 30);
+		assertPage(tlb, 0xffff888040000000L, 1L << 30);
+		assertEquals(0x7fffffffL, tlb.translateAddress(0xffff88807fffffffL));
+	}
+
+	@Test
+	void assumesLongModeWithoutRegisters() {
+		QueryTLB query = new QueryTLB();
+		query.receiveResult((Object) FOUR_LEVEL);
+		TLB tlb = query.getResult();
+		assertPage(tlb, 0xffff888080000000L, 1L << 30);
+		assertPage(tlb, 0xffffffff81000000L, 1L << 21);
+	}
+
+	@Test
+	void fiveLevelPagesHave2MiBOr1GiB() {
+		TLB tlb = scan(FIVE_LEVEL, PagingMode.of(registers(0x80050033, 0x3516f0, 0xd01)));
+		assertPage(tlb, 0xff11000000000000L, 1L << 30);
+		assertPage(tlb, 0xff11000040000000L, 1L << 30);
+		assertPage(tlb, 0xffffffff81000000L, 1L << 21);
+	}
+
+	@Test
+	void disabledPagingHasNoPages() {
+		assertEquals(0, scan("PG disabled\n", PagingMode.NONE).size());
+	}
+}
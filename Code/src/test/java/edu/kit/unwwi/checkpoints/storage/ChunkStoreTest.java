@@ -0,0 +1,150 @@
+package edu.kit.unwwi.checkpoints.storage;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Stores files in a chunk store with a small read buffer, so a single file needs many refills of it,
+ * and checks that they restore unchanged and that a file with inserted bytes reuses almost all chunks.
+ */
+class ChunkStoreTest {
+
+	/**
+	 * The digest identifying the chunks.
+	 */
+	private static final String DIGEST = "SHA-256";
+	/**
+	 * The average size of a chunk.
+	 */
+	private static final int AVERAGE_SIZE = 256;
+	/**
+	 * The size of the read buffer, holding only a few chunks.
+	 */
+	private static final int BUFFER_SIZE = 4096;
+
+	/**
+	 * The directory containing the store and the files.
+	 */
+	@TempDir
+	Path directory;
+
+	/**
+	 * Creates data which is not a multiple of the buffer size, partly random and partly zeroes.
+	 *
+	 * @return The data.
+	 */
+	private static byte @NotNull [] createData() {
+		Random random = new Random(5);
+		byte[] data = new byte[30 * BUFFER_SIZE + 123];
+		random.nextBytes(data);
+		// Zeroes have no boundaries, so they get cut at the maximum size
+		for (int i = 10 * BUFFER_SIZE; i < 12 * BUFFER_SIZE; i++) data[i] = 0;
+		return data;
+	}
+
+	/**
+	 * Opens the store.
+	 *
+	 * @return The store.
+	 * @throws IOException When the store could not be opened.
+	 */
+	@NotNull
+	private ChunkStore open() throws IOException {
+		return new ChunkStore(directory.resolve("store"), AVERAGE_SIZE, DIGEST, BUFFER_SIZE);
+	}
+
+	/**
+	 * Stores data and restores it from its manifest.
+	 *
+	 * @param store The store.
+	 * @param name  The name of the file and its manifest.
+	 * @param data  The data.
+	 * @return How many bytes were written to the store.
+	 * @throws IOException When storing or restoring failed.
+	 */
+	private long roundTrip(@NotNull ChunkStore store, @NotNull String name, byte @NotNull [] data) throws IOException {
+		Path file = Files.write(directory.resolve(name), data);
+		Path manifest = directory.resolve(name + ".manifest");
+		long written = store.store(file, manifest, null);
+		ByteArrayOutputStream restored = new ByteArrayOutputStream();
+		store.restore(manifest, Channels.newChannel(restored));
+		assertArrayEquals(data, restored.toByteArray(), "Restored " + name);
+		return written;
+	}
+
+	@Test
+	void restoresAcrossBufferRefills() throws IOException {
+		byte[] data = createData();
+		try (ChunkStore store = open()) {
+			long written = roundTrip(store, "first", data);
+			// The zeroes get cut into equal chunks, which are only stored once
+			assertTrue(written < data.length && written > data.length - 2 * BUFFER_SIZE, written + " bytes written");
+			// Everything is already known
+			assertEquals(0, roundTrip(store, "second", data));
+			assertEquals(0, roundTrip(store, "empty", new byte[0]));
+		}
+		try (ChunkStore store = open()) {
+			ByteArrayOutputStream restored = new ByteArrayOutputStream();
+			store.restore(directory.resolve("first.manifest"), Channels.newChannel(restored));
+			assertArrayEquals(data, restored.toByteArray());
+		}
+	}
+
+	@Test
+	void insertionReusesOtherChunks() throws IOException {
+		byte[] data = createData();
+		int offset = 5 * BUFFER_SIZE + 17;
+		byte[] shifted = new byte[data.length + 3];
+		System.arraycopy(data, 0, shifted, 0, offset);
+		shifted[offset] = 1;
+		shifted[offset + 1] = 2;
+		shifted[offset + 2] = 3;
+		System.arraycopy(data, offset, shifted, offset + 3, data.length - offset);
+		try (ChunkStore store = open()) {
+			roundTrip(store, "original", data);
+			long written = roundTrip(store, "shifted", shifted);
+			// Only the chunks around the insertion are new, even though every later byte moved
+			assertTrue(written > 0);
+			assertTrue(written <= 3L * 4 * AVERAGE_SIZE, written + " bytes written");
+		}
+	}
+
+	@Test
+	void chunkSizesShareFiles() throws IOException {
+		byte[] data = createData();
+		try (ChunkStore store = open()) {
+			assertSame(store, store.withAverageSize(AVERAGE_SIZE));
+			ChunkStore larger = store.withAverageSize(4 * AVERAGE_SIZE);
+			assertEquals(4 * AVERAGE_SIZE, larger.getAverageSize());
+			roundTrip(store, "small", data);
+			assertTrue(roundTrip(larger, "large", data) > 0);
+			// Each manifest can be restored by the other store, as both read the same files
+			ByteArrayOutputStream restored = new ByteArrayOutputStream();
+			larger.restore(directory.resolve("small.manifest"), Channels.newChannel(restored));
+			store.restore(directory.resolve("large.manifest"), Channels.newChannel(restored));
+			assertEquals(2 * data.length, restored.size());
+			assertEquals(0, roundTrip(larger, "again", data));
+		}
+	}
+
+	@Test
+	void refusesManifestOfOtherDigest() throws IOException {
+		byte[] data = createData();
+		try (ChunkStore store = open()) {
+			roundTrip(store, "file", data);
+		}
+		try (ChunkStore store = new ChunkStore(directory.resolve("other"), AVERAGE_SIZE, "SHA-1", BUFFER_SIZE)) {
+			assertThrows(IOException.class, () -> store.restore(directory.resolve("file.manifest"), Channels.newChannel(new ByteArrayOutputStream())));
+		}
+	}
+}
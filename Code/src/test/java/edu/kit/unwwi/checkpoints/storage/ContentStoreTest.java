@@ -0,0 +1,142 @@
+package edu.kit.unwwi.checkpoints.storage;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that a content store keeps its blobs when it gets reopened,
+ * refuses an index written with a different digest and cuts off entries which were not completely written.
+ */
+class ContentStoreTest {
+
+	/**
+	 * The digest identifying the blobs.
+	 */
+	private static final String DIGEST = "SHA-256";
+	/**
+	 * The length of the hashes created by the digest.
+	 */
+	private static final int HASH_LENGTH = 32;
+	/**
+	 * The name of the store and its files.
+	 */
+	private static final String NAME = "blobs";
+	/**
+	 * How many blobs get stored.
+	 */
+	private static final int BLOBS = 1000;
+
+	/**
+	 * The directory containing the store.
+	 */
+	@TempDir
+	Path directory;
+
+	/**
+	 * Creates random blobs of different sizes, some larger than the buffers of the store.
+	 *
+	 * @return The blobs.
+	 */
+	private static byte[][] createBlobs() {
+		Random random = new Random(42);
+		byte[][] blobs = new byte[BLOBS][];
+		for (int i = 0; i < BLOBS; i++) {
+			blobs[i] = new byte[i % 100 == 0 ? (1 << 20) + i : random.nextInt(5000)];
+			random.nextBytes(blobs[i]);
+		}
+		return blobs;
+	}
+
+	/**
+	 * Hashes a blob.
+	 *
+	 * @param blob The blob to hash.
+	 * @return The hash of the blob.
+	 */
+	private static byte[] hash(byte @NotNull [] blob) {
+		try {
+			return MessageDigest.getInstance(DIGEST).digest(blob);
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Stores all blobs in a new store.
+	 *
+	 * @param blobs The blobs to store.
+	 * @throws IOException When the store could not be written.
+	 */
+	private void store(byte @NotNull [] @NotNull [] blobs) throws IOException {
+		try (ContentStore store = new ContentStore(directory, NAME, DIGEST, HASH_LENGTH)) {
+			for (byte[] blob : blobs) assertTrue(store.put(hash(blob), ByteBuffer.wrap(blob)));
+			// Blobs which are already stored don't get written again
+			assertFalse(store.put(hash(blobs[0]), ByteBuffer.wrap(blobs[0])));
+			assertEquals(BLOBS, store.size());
+		}
+	}
+
+	@Test
+	void reopenedStoreContainsAllBlobs() throws IOException {
+		byte[][] blobs = createBlobs();
+		store(blobs);
+		try (ContentStore store = new ContentStore(directory, NAME, DIGEST, HASH_LENGTH)) {
+			assertEquals(BLOBS, store.size());
+			for (byte[] blob : blobs) {
+				ByteBuffer read = store.read(hash(blob));
+				assertEquals(ByteBuffer.wrap(blob), read);
+				assertFalse(store.put(hash(blob), ByteBuffer.wrap(blob)));
+			}
+		}
+	}
+
+	@Test
+	void refusesStoreOfOtherDigest() throws IOException {
+		store(createBlobs());
+		Path index = directory.resolve(NAME + ".idx");
+		byte[] before = Files.readAllBytes(index);
+		assertThrows(IOException.class, () -> new ContentStore(directory, NAME, "SHA-1", 20));
+		assertThrows(IOException.class, () -> new ContentStore(directory, NAME, DIGEST, 20));
+		// The index must not get cut off just because it could not be read with these hashes
+		assertArrayEquals(before, Files.readAllBytes(index));
+	}
+
+	@Test
+	void cutsOffIncompleteEntries() throws IOException {
+		byte[][] blobs = createBlobs();
+		store(blobs);
+		long lastBlob;
+		try (ContentStore store = new ContentStore(directory, NAME, DIGEST, HASH_LENGTH)) {
+			lastBlob = store.find(hash(blobs[BLOBS - 1]));
+		}
+		// The blob of the last entry never reached the pack, and only half of another entry reached the index
+		try (FileChannel pack = FileChannel.open(directory.resolve(NAME + ".pack"), StandardOpenOption.WRITE)) {
+			pack.truncate(lastBlob);
+		}
+		Files.write(directory.resolve(NAME + ".idx"), new byte[HASH_LENGTH / 2], StandardOpenOption.APPEND);
+
+		try (ContentStore store = new ContentStore(directory, NAME, DIGEST, HASH_LENGTH)) {
+			assertEquals(BLOBS - 1, store.size());
+			assertFalse(store.contains(hash(blobs[BLOBS - 1])));
+			for (int i = 0; i < BLOBS - 1; i++) assertEquals(ByteBuffer.wrap(blobs[i]), store.read(hash(blobs[i])));
+			assertTrue(store.put(hash(blobs[BLOBS - 1]), ByteBuffer.wrap(blobs[BLOBS - 1])));
+		}
+		try (ContentStore store = new ContentStore(directory, NAME, DIGEST, HASH_LENGTH)) {
+			assertEquals(BLOBS, store.size());
+			assertEquals(ByteBuffer.wrap(blobs[BLOBS - 1]), store.read(hash(blobs[BLOBS - 1])));
+		}
+	}
+}
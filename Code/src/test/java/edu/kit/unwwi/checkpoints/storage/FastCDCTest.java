@@ -0,0 +1,111 @@
+package edu.kit.unwwi.checkpoints.storage;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Cuts random data into chunks and checks their sizes,
+ * and that inserting bytes only moves the boundaries right behind the insertion.
+ */
+class FastCDCTest {
+
+	/**
+	 * The average size of a chunk.
+	 */
+	private static final int AVERAGE_SIZE = 1024;
+
+	/**
+	 * Creates random data.
+	 *
+	 * @param length How many bytes to create.
+	 * @return The data.
+	 */
+	private static byte @NotNull [] random(int length) {
+		byte[] data = new byte[length];
+		new Random(17).nextBytes(data);
+		return data;
+	}
+
+	/**
+	 * Cuts all data into chunks.
+	 *
+	 * @param chunker The chunker.
+	 * @param data    The data.
+	 * @return The offsets all chunks end at.
+	 */
+	private static long @NotNull [] boundaries(@NotNull FastCDC chunker, byte @NotNull [] data) {
+		long[] boundaries = new long[data.length / chunker.getMinSize() + 1];
+		int count = 0;
+		for (int position = 0; position < data.length; ) {
+			position += chunker.cut(data, position, data.length - position);
+			boundaries[count++] = position;
+		}
+		return Arrays.copyOf(boundaries, count);
+	}
+
+	@Test
+	void rejectsInvalidSizes() {
+		assertThrows(IllegalArgumentException.class, () -> new FastCDC(1000));
+		assertThrows(IllegalArgumentException.class, () -> new FastCDC(128));
+		assertThrows(IllegalArgumentException.class, () -> new FastCDC(1 << 25));
+		FastCDC chunker = new FastCDC(AVERAGE_SIZE);
+		assertEquals(AVERAGE_SIZE / 4, chunker.getMinSize());
+		assertEquals(AVERAGE_SIZE * 4, chunker.getMaxSize());
+	}
+
+	@Test
+	void chunksStayWithinLimits() {
+		FastCDC chunker = new FastCDC(AVERAGE_SIZE);
+		byte[] data = random(1 << 20);
+		long[] boundaries = boundaries(chunker, data);
+		assertEquals(data.length, boundaries[boundaries.length - 1]);
+		long previous = 0;
+		for (int i = 0; i < boundaries.length; i++) {
+			long size = boundaries[i] - previous;
+			assertTrue(size <= chunker.getMaxSize(), "Chunk " + i + " too large");
+			if (i < boundaries.length - 1) assertTrue(size > chunker.getMinSize(), "Chunk " + i + " too small");
+			previous = boundaries[i];
+		}
+		// Normalized chunking keeps the chunks close to the average
+		long average = data.length / boundaries.length;
+		assertTrue(average > AVERAGE_SIZE / 2 && average < AVERAGE_SIZE * 2, "Average of " + average);
+		// Data without boundaries gets cut at the maximum size, and the rest at its end
+		byte[] zeroes = new byte[chunker.getMaxSize() + 10];
+		assertEquals(chunker.getMaxSize(), chunker.cut(zeroes, 0, zeroes.length));
+		assertEquals(10, chunker.cut(zeroes, chunker.getMaxSize(), 10));
+		assertEquals(chunker.getMinSize(), chunker.cut(zeroes, 0, chunker.getMinSize()));
+	}
+
+	@Test
+	void insertionOnlyMovesNearbyBoundaries() {
+		FastCDC chunker = new FastCDC(AVERAGE_SIZE);
+		byte[] data = random(1 << 18);
+		int offset = 50_000;
+		byte[] inserted = {1, 2, 3, 4, 5, 6, 7};
+		byte[] shifted = new byte[data.length + inserted.length];
+		System.arraycopy(data, 0, shifted, 0, offset);
+		System.arraycopy(inserted, 0, shifted, offset, inserted.length);
+		System.arraycopy(data, offset, shifted, offset + inserted.length, data.length - offset);
+
+		long[] before = boundaries(chunker, data);
+		long[] after = boundaries(chunker, shifted);
+		int unchanged = 0;
+		int moved = 0;
+		int beforeIndex = 0;
+		for (long boundary : after) {
+			// Compare with the boundaries of the original data, shifted by the insertion
+			long original = boundary <= offset ? boundary : boundary - inserted.length;
+			while (beforeIndex < before.length && before[beforeIndex] < original) beforeIndex++;
+			if (beforeIndex < before.length && before[beforeIndex] == original) unchanged++;
+			else moved++;
+		}
+		// At most the chunk with the insertion and the one behind it differ
+		assertTrue(moved <= 2, moved + " boundaries moved");
+		assertTrue(unchanged >= before.length - 2);
+	}
+}
@@ -0,0 +1,143 @@
+package edu.kit.unwwi.checkpoints.storage;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that data written by a FrameWriter reads back unchanged from a FramedFile,
+ * no matter whether it was written from a file or streamed through a CapturePipeline.
+ */
+class FramedFileTest {
+
+	/**
+	 * The size of the frames used by the FrameWriter.
+	 */
+	private static final int FRAME_SIZE = 1 << 18;
+
+	/**
+	 * The directory holding the files.
+	 */
+	@TempDir
+	Path directory;
+
+	/**
+	 * Creates data which is neither a multiple of the frame size nor uniformly compressible.
+	 * Some frames are random and therefore get stored as they are, others consist of zeroes or a repeating pattern.
+	 *
+	 * @return The data.
+	 */
+	private static byte[] createData() {
+		Random random = new Random(7);
+		byte[] data = new byte[37 * FRAME_SIZE + 12345];
+		for (int frame = 0; frame * FRAME_SIZE < data.length; frame++) {
+			int start = frame * FRAME_SIZE;
+			int end = Math.min(data.length, start + FRAME_SIZE);
+			switch (frame % 3) {
+				case 0 -> {
+					byte[] chunk = new byte[end - start];
+					random.nextBytes(chunk);
+					System.arraycopy(chunk, 0, data, start, chunk.length);
+				}
+				case 1 -> {
+					for (int i = start; i < end; i++) data[i] = (byte) (i % 251);
+				}
+				default -> Arrays.fill(data, start, end, (byte) 0);
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Reads the complete uncompressed data of a framed file.
+	 *
+	 * @param file The framed file.
+	 * @return Its uncompressed data.
+	 * @throws IOException When the file could not be read.
+	 */
+	private static byte[] readAll(@NotNull Path file) throws IOException {
+		try (FramedFile framed = new FramedFile(file)) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			framed.transferTo(Channels.newChannel(out));
+			return out.toByteArray();
+		}
+	}
+
+	@Test
+	void fileRoundTrip() throws IOException {
+		byte[] data = createData();
+		Path source = directory.resolve("source");
+		Path target = directory.resolve("target");
+		Files.write(source, data);
+		new FrameWriter(Codec.DEFLATE, Codec.DEFLATE.getDefaultLevel()).write(source, target, null);
+
+		assertTrue(Files.size(target) < data.length);
+		assertArrayEquals(data, readAll(target));
+		try (FramedFile framed = new FramedFile(target)) {
+			assertEquals(data.length, framed.size());
+			assertEquals(Codec.DEFLATE, framed.getCodec());
+			// Reads crossing the boundaries of frames, including the last shorter one
+			Random random = new Random(3);
+			for (int i = 0; i < 200; i++) {
+				long offset = random.nextInt(data.length);
+				ByteBuffer buffer = ByteBuffer.allocate(random.nextInt(3 * FRAME_SIZE));
+				int read = framed.read(offset, buffer);
+				assertEquals((int) Math.min(buffer.capacity(), data.length - offset), read);
+				assertEquals(ByteBuffer.wrap(data, (int) offset, read), buffer.flip());
+				assertEquals(data[(int) offset], framed.get(offset));
+			}
+			assertThrows(IndexOutOfBoundsException.class, () -> framed.get(data.length));
+		}
+	}
+
+	@Test
+	void streamedOutputMatchesFile() throws IOException {
+		byte[] data = createData();
+		Path source = directory.resolve("source");
+		Files.write(source, data);
+		FrameWriter writer = new FrameWriter(Codec.DEFLATE, 1);
+		writer.write(source, directory.resolve("written"), null);
+
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+			 FrameWriter.Output output = writer.open(directory.resolve("streamed"), data.length)) {
+			assertEquals(data.length, new CapturePipeline().then(output).readFrom(in));
+		}
+		assertArrayEquals(Files.readAllBytes(directory.resolve("written")), Files.readAllBytes(directory.resolve("streamed")));
+		assertArrayEquals(data, readAll(directory.resolve("streamed")));
+	}
+
+	@Test
+	void emptyRoundTrip() throws IOException {
+		Path source = Files.createFile(directory.resolve("source"));
+		Path target = directory.resolve("target");
+		new FrameWriter(Codec.DEFLATE, Codec.DEFLATE.getDefaultLevel()).write(source, target, null);
+		assertArrayEquals(new byte[0], readAll(target));
+	}
+
+	@Test
+	void shortStreamFails() throws IOException {
+		FrameWriter.Output output = new FrameWriter(Codec.DEFLATE, 1).open(directory.resolve("short"), FRAME_SIZE + 1);
+		output.accept(0, ByteBuffer.allocate(FRAME_SIZE));
+		assertThrows(IOException.class, output::close);
+	}
+
+	@Test
+	void refusesOtherFiles() throws IOException {
+		Path other = directory.resolve("other");
+		Files.write(other, new byte[64]);
+		assertThrows(IOException.class, () -> new FramedFile(other));
+	}
+}
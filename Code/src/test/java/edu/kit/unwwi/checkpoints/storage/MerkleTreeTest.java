@@ -0,0 +1,173 @@
+package edu.kit.unwwi.checkpoints.storage;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compares trees over random data with an odd number of leaves, whose last node on each level gets carried up,
+ * against a comparison of every single leaf, and checks that trees survive being written and read again.
+ */
+class MerkleTreeTest {
+
+	/**
+	 * The digest used for all hashes.
+	 */
+	private static final String DIGEST = "SHA-256";
+	/**
+	 * The size of the leaves, small enough to create many of them.
+	 */
+	private static final int LEAF_SIZE = 64;
+
+	/**
+	 * The directory holding the written trees.
+	 */
+	@TempDir
+	Path directory;
+
+	/**
+	 * Creates a tree over data.
+	 *
+	 * @param data The data.
+	 * @return The tree.
+	 */
+	@NotNull
+	private static MerkleTree tree(byte @NotNull [] data) {
+		return MerkleTree.of(DIGEST, LEAF_SIZE, MemorySegment.ofArray(data));
+	}
+
+	/**
+	 * Hashes the concatenation of some arrays.
+	 *
+	 * @param parts The arrays.
+	 * @return The hash.
+	 */
+	private static byte @NotNull [] hash(byte @NotNull [] @NotNull ... parts) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance(DIGEST);
+			for (byte[] part : parts) digest.update(part);
+			return digest.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Finds the leaves which differ by comparing the data of every single leaf.
+	 *
+	 * @param a The first data.
+	 * @param b The second data.
+	 * @return The numbers of all leaves which differ.
+	 */
+	@NotNull
+	private static IntList compareLeaves(byte @NotNull [] a, byte @NotNull [] b) {
+		IntList result = new IntArrayList();
+		int leaves = Math.max(MerkleTree.leafCount(a.length, LEAF_SIZE), MerkleTree.leafCount(b.length, LEAF_SIZE));
+		for (int leaf = 0; leaf < leaves; leaf++) {
+			int from = leaf * LEAF_SIZE;
+			if (from >= a.length || from >= b.length
+					|| !Arrays.equals(a, from, Math.min(a.length, from + LEAF_SIZE), b, from, Math.min(b.length, from + LEAF_SIZE)))
+				result.add(leaf);
+		}
+		return result;
+	}
+
+	@Test
+	void carriesOddNodesUp() {
+		byte[] data = new byte[2 * LEAF_SIZE + 10];
+		new Random(3).nextBytes(data);
+		byte[] leaf = {0};
+		byte[] node = {1};
+		byte[] first = hash(leaf, Arrays.copyOfRange(data, 0, LEAF_SIZE));
+		byte[] second = hash(leaf, Arrays.copyOfRange(data, LEAF_SIZE, 2 * LEAF_SIZE));
+		byte[] third = hash(leaf, Arrays.copyOfRange(data, 2 * LEAF_SIZE, data.length));
+		// The third leaf has no sibling, so it becomes the right child of the root unchanged
+		assertArrayEquals(hash(node, hash(node, first, second), third), tree(data).getRoot());
+		assertArrayEquals(hash(leaf), tree(new byte[0]).getRoot());
+		assertEquals(1, tree(new byte[0]).getLeafCount());
+	}
+
+	@Test
+	void buildersAgree() {
+		byte[] data = new byte[1001 * LEAF_SIZE + 33];
+		new Random(11).nextBytes(data);
+		MerkleTree mapped = tree(data);
+		MerkleTree.Builder ordered = new MerkleTree.Builder(DIGEST, LEAF_SIZE, 0);
+		// Parts not aligned to the leaves
+		for (int offset = 0; offset < data.length; offset += 1000)
+			ordered.update(data, offset, Math.min(1000, data.length - offset));
+		MerkleTree streamed = ordered.build();
+		assertEquals(data.length, streamed.getSize());
+		assertEquals(mapped.getLeafCount(), streamed.getLeafCount());
+		assertArrayEquals(mapped.getRoot(), streamed.getRoot());
+		MerkleTree.Builder byNumber = new MerkleTree.Builder(DIGEST, LEAF_SIZE, data.length);
+		for (int leaf = mapped.getLeafCount() - 1; leaf >= 0; leaf--)
+			byNumber.hashLeaf(leaf, ByteBuffer.wrap(data, leaf * LEAF_SIZE, Math.min(LEAF_SIZE, data.length - leaf * LEAF_SIZE)));
+		assertArrayEquals(mapped.getRoot(), byNumber.build().getRoot());
+	}
+
+	@Test
+	void diffMatchesComparisonOfEveryLeaf() {
+		Random random = new Random(17);
+		for (int round = 0; round < 50; round++) {
+			// An odd number of leaves, the last one incomplete
+			int leaves = 2 * random.nextInt(200) + 1;
+			byte[] a = new byte[(leaves - 1) * LEAF_SIZE + 1 + random.nextInt(LEAF_SIZE)];
+			random.nextBytes(a);
+			byte[] b = a.clone();
+			int changes = random.nextInt(5);
+			for (int i = 0; i < changes; i++) b[random.nextInt(b.length)] ^= (byte) (1 + random.nextInt(255));
+			// The last leaf always changes, as it only gets carried up
+			b[b.length - 1] ^= 1;
+			IntList expected = compareLeaves(a, b);
+			assertEquals(expected, tree(a).diff(tree(b)), "Round " + round);
+			assertEquals(expected, tree(b).diff(tree(a)), "Round " + round);
+			assertTrue(expected.contains(leaves - 1));
+		}
+	}
+
+	@Test
+	void diffCountsMissingLeaves() {
+		byte[] a = new byte[7 * LEAF_SIZE];
+		new Random(5).nextBytes(a);
+		byte[] b = Arrays.copyOf(a, 12 * LEAF_SIZE + 1);
+		IntList expected = compareLeaves(a, b);
+		assertEquals(IntList.of(7, 8, 9, 10, 11, 12), expected);
+		assertEquals(expected, tree(a).diff(tree(b)));
+		assertEquals(expected, tree(b).diff(tree(a)));
+		assertTrue(tree(a).diff(tree(a.clone())).isEmpty());
+		MerkleTree other = MerkleTree.of(DIGEST, 2 * LEAF_SIZE, MemorySegment.ofArray(a));
+		assertThrows(IllegalArgumentException.class, () -> tree(a).diff(other));
+	}
+
+	@Test
+	void readsWrittenTree() throws IOException {
+		byte[] data = new byte[99 * LEAF_SIZE + 7];
+		new Random(23).nextBytes(data);
+		MerkleTree tree = tree(data);
+		Path file = directory.resolve("tree");
+		tree.write(file);
+		MerkleTree read = MerkleTree.read(file);
+		assertEquals(DIGEST, read.getDigest());
+		assertEquals(LEAF_SIZE, read.getLeafSize());
+		assertEquals(data.length, read.getSize());
+		assertEquals(tree.getLeafCount(), read.getLeafCount());
+		assertArrayEquals(tree.getRoot(), read.getRoot());
+		assertTrue(tree.diff(read).isEmpty());
+		// Existing files don't get overwritten
+		assertThrows(IOException.class, () -> tree.write(file));
+	}
+}
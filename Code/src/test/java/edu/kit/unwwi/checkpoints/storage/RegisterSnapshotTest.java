@@ -0,0 +1,143 @@
+package edu.kit.unwwi.checkpoints.storage;
+
+import edu.kit.unwwi.checkpoints.qemu.models.CPU;
+import edu.kit.unwwi.checkpoints.qemu.models.registers.RegisterFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Writes chains of register snapshots relative to each other and checks that each of them reads back the CPUs it was written from.
+ */
+class RegisterSnapshotTest {
+
+	/**
+	 * How many CPUs the checkpoints have.
+	 */
+	private static final int CPUS = 4;
+
+	/**
+	 * The directory holding the snapshots.
+	 */
+	@TempDir
+	Path directory;
+
+	/**
+	 * Creates registers of all kinds of widths, whose values depend on the CPU and the checkpoint.
+	 *
+	 * @param cpu        The index of the CPU.
+	 * @param checkpoint The number of the checkpoint, which changes a few of the registers.
+	 * @param extended   Whether an additional register gets added, which changes the layout.
+	 * @return The registers.
+	 */
+	@NotNull
+	private static RegisterFile registers(int cpu, int checkpoint, boolean extended) {
+		RegisterFile.Builder builder = new RegisterFile.Builder()
+				.add("RAX", -1, 64, cpu * 1000L + checkpoint)
+				.add("RBX", -1, 64, 0xdeadbeefL * cpu)
+				.add("RIP", -1, 64, 0xffffffff81000000L + checkpoint * 4L)
+				.add("EFER", -1, 32, 0xd01)
+				.add("CS", -1, 16, 0x10)
+				.add("ST", 0, 80, checkpoint % 3, 0x3fff)
+				.add("XMM", 0, 128, cpu, checkpoint / 2)
+				.add("YMM", 0, 256, 1, 2, 3, cpu)
+				.addFlag("IF", -1, checkpoint % 2 == 0)
+				.add("PKRU", -1, 24, new byte[]{1, (byte) cpu, (byte) checkpoint});
+		if (extended) builder.add("R8", -1, 64, checkpoint);
+		return builder.build();
+	}
+
+	/**
+	 * Creates the CPUs of a checkpoint.
+	 * The third CPU changes its layout in the second checkpoint and the last CPU has no registers in the second one.
+	 *
+	 * @param checkpoint The number of the checkpoint.
+	 * @return The CPUs.
+	 */
+	@NotNull
+	private static CPU @NotNull [] cpus(int checkpoint) {
+		CPU[] cpus = new CPU[CPUS];
+		for (int i = 0; i < CPUS; i++) {
+			RegisterFile registers = i == CPUS - 1 && checkpoint == 1 ? null : registers(i, checkpoint, i == 2 && checkpoint >= 1);
+			char[] flags = i % 2 == 0 ? new char[]{'Z', '\0', 'C'} : null;
+			cpus[i] = new CPU(i, "x86_64", 1000 + i, registers, flags);
+		}
+		return cpus;
+	}
+
+	/**
+	 * Checks that two arrays contain the same CPUs with the same registers.
+	 *
+	 * @param expected The CPUs which were written.
+	 * @param actual   The CPUs which were read.
+	 */
+	private static void assertCPUsEqual(@NotNull CPU @NotNull [] expected, @NotNull CPU @NotNull [] actual) {
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i].getId(), actual[i].getId());
+			assertEquals(expected[i].getArchitecture(), actual[i].getArchitecture());
+			assertEquals(expected[i].getHostThreadId(), actual[i].getHostThreadId());
+			assertEquals(expected[i].hasFlags(), actual[i].hasFlags());
+			if (expected[i].hasFlags()) assertArrayEquals(expected[i].getFlags(), actual[i].getFlags());
+			assertEquals(expected[i].getRegisterFile(), actual[i].getRegisterFile(), "Registers of CPU " + i);
+		}
+	}
+
+	/**
+	 * Writes a snapshot of a checkpoint.
+	 *
+	 * @param checkpoint The number of the checkpoint.
+	 * @param base       The snapshot of the previous checkpoint, or null.
+	 * @return The snapshot.
+	 * @throws IOException When the snapshot could not be written.
+	 */
+	@NotNull
+	private Path write(int checkpoint, @Nullable Path base) throws IOException {
+		Path target = directory.resolve(checkpoint + ".regs");
+		RegisterSnapshot.write(cpus(checkpoint), target, base, base == null ? null : cpus(checkpoint - 1));
+		return target;
+	}
+
+	@Test
+	void deltasReadBackEveryCheckpoint() throws IOException {
+		Path full = write(0, null);
+		Path changed = write(1, full);
+		Path restored = write(2, changed);
+		assertCPUsEqual(cpus(0), RegisterSnapshot.read(full));
+		assertCPUsEqual(cpus(1), RegisterSnapshot.read(changed));
+		assertCPUsEqual(cpus(2), RegisterSnapshot.read(restored));
+	}
+
+	@Test
+	void deltasOnlyStoreChanges() throws IOException {
+		Path full = write(0, null);
+		Path delta = write(1, full);
+		// Only a few registers change, and the CPU changing its layout is the only one written completely
+		assertTrue(Files.size(delta) < Files.size(full), Files.size(delta) + " >= " + Files.size(full));
+	}
+
+	@Test
+	void deltaRequiresPreviousSnapshot() throws IOException {
+		Path full = write(0, null);
+		Path delta = write(1, full);
+		Files.delete(full);
+		assertThrows(IOException.class, () -> RegisterSnapshot.read(delta));
+	}
+
+	@Test
+	void longChainsStartOver() throws IOException {
+		Path previous = write(0, null);
+		for (int checkpoint = 1; checkpoint <= 70; checkpoint++) previous = write(checkpoint, previous);
+		assertCPUsEqual(cpus(70), RegisterSnapshot.read(previous));
+		// At some point a complete snapshot was written again, so the oldest snapshots are no longer needed
+		for (int checkpoint = 0; checkpoint <= 3; checkpoint++) Files.delete(directory.resolve(checkpoint + ".regs"));
+		assertCPUsEqual(cpus(70), RegisterSnapshot.read(previous));
+	}
+}
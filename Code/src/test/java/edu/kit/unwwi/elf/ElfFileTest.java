@@ -0,0 +1,84 @@
+package edu.kit.unwwi.elf;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Decodes note segments like the ones QEMU writes for the state of the CPUs,
+ * and makes sure notes reaching beyond the end of their segment are reported instead of being read partially.
+ */
+class ElfFileTest {
+
+	/**
+	 * The type of the notes holding the general purpose registers.
+	 */
+	private static final int NT_PRSTATUS = 1;
+
+	/**
+	 * Appends a note with its name and descriptor padded to 4 bytes.
+	 *
+	 * @param buffer     The buffer to append to.
+	 * @param name       The name of the owner, which gets null-terminated.
+	 * @param type       The type of the note.
+	 * @param descriptor The contents of the note.
+	 */
+	private static void note(@NotNull ByteBuffer buffer, @NotNull String name, int type, byte @NotNull [] descriptor) {
+		byte[] encoded = (name + "\0").getBytes(StandardCharsets.US_ASCII);
+		buffer.putInt(encoded.length).putInt(descriptor.length).putInt(type);
+		buffer.put(encoded).position(buffer.position() + (-encoded.length & 3));
+		buffer.put(descriptor).position(buffer.position() + (-descriptor.length & 3));
+	}
+
+	/**
+	 * Creates a segment holding two notes.
+	 *
+	 * @param order The byte order of the file.
+	 * @return The segment, ready to be decoded.
+	 */
+	@NotNull
+	private static ByteBuffer segment(@NotNull ByteOrder order) {
+		ByteBuffer buffer = ByteBuffer.allocate(256).order(order);
+		note(buffer, "CORE", NT_PRSTATUS, new byte[]{1, 2, 3, 4, 5, 6});
+		note(buffer, "QEMU", 0, new byte[]{7, 8, 9});
+		return buffer.flip();
+	}
+
+	@Test
+	void decodesNotes() throws IOException {
+		for (ByteOrder order : new ByteOrder[]{ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+			Note[] notes = ElfFile.decodeNotes(segment(order));
+			assertEquals(2, notes.length);
+			assertEquals("CORE", notes[0].name());
+			assertEquals(NT_PRSTATUS, notes[0].type());
+			assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6}, notes[0].descriptor());
+			assertEquals("QEMU", notes[1].name());
+			assertArrayEquals(new byte[]{7, 8, 9}, notes[1].descriptor());
+		}
+	}
+
+	@Test
+	void acceptsMissingPaddingOfLastDescriptor() throws IOException {
+		ByteBuffer segment = segment(ByteOrder.LITTLE_ENDIAN);
+		Note[] notes = ElfFile.decodeNotes(segment.limit(segment.limit() - 1));
+		assertArrayEquals(new byte[]{7, 8, 9}, notes[1].descriptor());
+	}
+
+	@Test
+	void rejectsTruncatedNotes() {
+		ByteBuffer truncated = segment(ByteOrder.LITTLE_ENDIAN);
+		// Cut off in the middle of the descriptor of the second note
+		assertThrows(IOException.class, () -> ElfFile.decodeNotes(truncated.limit(truncated.limit() - 3)));
+		// A descriptor size with the highest bit set
+		ByteBuffer negative = segment(ByteOrder.LITTLE_ENDIAN).putInt(4, 0x80000000);
+		assertThrows(IOException.class, () -> ElfFile.decodeNotes(negative));
+		ByteBuffer tooLarge = segment(ByteOrder.LITTLE_ENDIAN).putInt(0, 1000);
+		assertThrows(IOException.class, () -> ElfFile.decodeNotes(tooLarge));
+	}
+}